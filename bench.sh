@@ -0,0 +1,31 @@
+#!/bin/bash
+# Times running every test, or the files given, five ways: interpreted with -run, compiled to a
+# JVM class with -jvm, simulated with -sim, in MARS from the -gen output and natively from the
+# -x86 output linked with gcc. Programs reading input get a line of 5s each time they ask. Times
+# are wall clock in milliseconds, JVM start up included, compiling and linking not.
+
+mars="java -jar desc/part3/Mars4_5.jar"
+out=$(mktemp -d)
+gcc -c -x c tests/minic-stdlib.h -o $out/stdlib.o
+ms() {
+	local start=$(date +%s%N)
+	yes 5 | head -1000 | timeout 60 "$@" > /dev/null 2>&1
+	echo $(( ($(date +%s%N) - start) / 1000000 ))
+}
+printf "%-32s %8s %8s %8s %8s %8s\n" file run jvm sim mars x86
+total_run=0; total_jvm=0; total_sim=0; total_mars=0; total_x86=0
+for i in ${@:-tests/*.c}
+do
+	n=$(basename $i .c)
+	java -cp bin Main -gen $i $out/$n.s > /dev/null || continue
+	run=$(ms java -cp bin Main -run $i $out/$n.bc)
+	jvm=$(ms java -cp bin Main -jvm $i $out/$n.class)
+	sim=$(ms java -cp bin Main -sim $i $out/$n.sim.s)
+	mars_ms=$(ms $mars nc $out/$n.s)
+	java -cp bin Main -x86 $i $out/$n.x86.s > /dev/null && gcc $out/$n.x86.s $out/stdlib.o -o $out/$n
+	x86=$(ms $out/$n)
+	printf "%-32s %8d %8d %8d %8d %8d\n" $i $run $jvm $sim $mars_ms $x86
+	total_run=$((total_run + run)); total_jvm=$((total_jvm + jvm)); total_sim=$((total_sim + sim)); total_mars=$((total_mars + mars_ms)); total_x86=$((total_x86 + x86))
+done
+printf "%-32s %8d %8d %8d %8d %8d\n" total $total_run $total_jvm $total_sim $total_mars $total_x86
+rm -r $out
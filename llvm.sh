@@ -0,0 +1,44 @@
+#!/bin/bash
+# Checks the LLVM backend: for every test, or the files given, the IR written with -llvm has to
+# assemble with llvm-as and, when clang is there too, the program linked against a C build of
+# tests/minic-stdlib.h has to print what the simulator prints. Without llvm-as there is nothing
+# to check the IR against, so each test is only reported as skipped.
+
+input="5\n3\n"
+out=$(mktemp -d)
+status=0
+if ! command -v llvm-as > /dev/null
+then
+	echo "llvm-as not found, skipping"
+	exit 0
+fi
+command -v clang > /dev/null && clang -c -x c tests/minic-stdlib.h -o $out/stdlib.o
+for i in ${@:-tests/*.c tests/mycode/*.c}
+do
+	n=$(basename $i .c)
+	java -cp bin Main -llvm $i $out/$n.ll > /dev/null 2>&1 || continue
+	if ! llvm-as $out/$n.ll -o $out/$n.bc
+	then
+		echo "$i: FAIL"
+		status=1
+		continue
+	fi
+	if [ ! -e $out/stdlib.o ] || ! grep -q "^define i32 @main" $out/$n.ll
+	then
+		echo "$i: pass"
+		continue
+	fi
+	clang $out/$n.bc $out/stdlib.o -o $out/$n
+	printf "$input" | java -cp bin Main -sim $i $out/$n.s 2> /dev/null | sed '/^Simulation:$/,$d' > $out/$n.expected
+	# the simulator ends the output with a line break before its statistics
+	{ printf "$input" | $out/$n 2> /dev/null; echo; } > $out/$n.actual
+	if cmp -s $out/$n.expected $out/$n.actual
+	then
+		echo "$i: pass"
+	else
+		echo "$i: FAIL"
+		status=1
+	fi
+done
+rm -r $out
+exit $status
@@ -0,0 +1,45 @@
+#!/bin/bash
+# Checks the x86-64 backend: for every test, or the files given, the assembly written with -x86 is
+# linked against a C build of tests/minic-stdlib.h and has to print what the simulator prints.
+
+input="5\n3\n"
+out=$(mktemp -d)
+status=0
+gcc -c -x c tests/minic-stdlib.h -o $out/stdlib.o || exit 1
+for i in ${@:-tests/*.c tests/mycode/*.c}
+do
+	n=$(basename $i .c)
+	java -cp bin Main -x86 $i $out/$n.s > /dev/null 2>&1 || continue
+	# a program without main has nothing to run
+	grep -q "^main:" $out/$n.s || continue
+	if ! gcc $out/$n.s $out/stdlib.o -o $out/$n
+	then
+		echo "$i: FAIL"
+		status=1
+		continue
+	fi
+	# a program the simulator doesn't finish has nothing to compare against
+	printf "$input" | timeout 30 java -cp bin Main -sim $i $out/$n.mips 2> /dev/null > $out/$n.sim || continue
+	sed '/^Simulation:$/,$d' $out/$n.sim > $out/$n.expected
+	# the simulator ends the output with a line break before its statistics
+	{ printf "$input" | timeout 5 $out/$n 2> /dev/null; echo; } > $out/$n.actual
+	if grep -q "^Runtime error: " $out/$n.expected
+	then
+		# after the error the native program does what C does, only the output before it has to match
+		sed -i '/^Runtime error: /,$d' $out/$n.expected
+		size=$(($(wc -c < $out/$n.expected) - 1))
+		head -c $size $out/$n.expected > $out/$n.e
+		head -c $size $out/$n.actual > $out/$n.a
+		mv $out/$n.e $out/$n.expected
+		mv $out/$n.a $out/$n.actual
+	fi
+	if cmp -s $out/$n.expected $out/$n.actual
+	then
+		echo "$i: pass"
+	else
+		echo "$i: FAIL"
+		status=1
+	fi
+done
+rm -r $out
+exit $status
@@ -0,0 +1,185 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Compiles many files in one JVM, side by side on a fork/join pool, for
+ *   java -cp bin Main -batch pass [options] [-jobs=N] source... outputdir
+ * Every file is compiled by Main.compile with objects of its own and nothing shared but the
+ * classes, its output goes to outputdir under its own name, or its path in a directory given, and
+ * what it prints is kept until the end. Then each file's status and output are printed in the
+ * order the files were given, with a line counting what passed and failed.
+ *
+ * If two sources would be written to the same output, nothing is compiled.
+ *
+ * Programs run by -sim, -run and -jvm get no input.
+ */
+final class Batch {
+
+    private static final int FILE_NOT_FOUND = 2;
+    private static final int SAME_OUTPUT = -1; // a command line that can't work, as for usage
+    private static final int PASS = 0;
+
+    private static final class Result {
+        final File source;
+        final int status;
+        final String printed;
+
+        Result(File source, int status, String printed) {
+            this.source = source;
+            this.status = status;
+            this.printed = printed;
+        }
+    }
+
+    static int run(String[] args, PrintStream out) {
+        if (args.length < 4)
+            return Main.usage(out);
+        String pass = args[1];
+        List<String> options = new ArrayList<>();
+        List<String> cacheOptions = new ArrayList<>(); // one cache for all, so its hits can be counted
+        int jobs = Runtime.getRuntime().availableProcessors();
+        int i = 2;
+        for (; i < args.length - 1 && args[i].startsWith("-"); i++) {
+            if (args[i].startsWith("-jobs=")) {
+                try {
+                    jobs = Integer.parseInt(args[i].substring("-jobs=".length()));
+                } catch (NumberFormatException e) {
+                    out.println(e.getMessage());
+                    return Main.usage(out);
+                }
+                if (jobs < 1)
+                    return Main.usage(out);
+            } else if (BuildCache.isOption(args[i])) {
+                cacheOptions.add(args[i]);
+            } else {
+                options.add(args[i]);
+            }
+        }
+        BuildCache cache;
+        try {
+            cache = BuildCache.of(cacheOptions);
+        } catch (NumberFormatException e) {
+            out.println(e.getMessage());
+            return Main.usage(out);
+        }
+        if (i >= args.length - 1)
+            return Main.usage(out);
+        File outputDir = new File(args[args.length - 1]);
+
+        List<File[]> files = new ArrayList<>(); // pairs of a source and its output
+        for (; i < args.length - 1; i++) {
+            File source = new File(args[i]);
+            if (source.isDirectory()) {
+                try (Stream<Path> walk = Files.walk(source.toPath())) {
+                    for (Path p : walk.filter(f -> f.toString().endsWith(".c")).sorted().collect(Collectors.toList())) {
+                        File output = outputDir.toPath().resolve(source.toPath().relativize(p)).toFile();
+                        files.add(new File[] {p.toFile(), output(output, pass)});
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    out.println("Directory " + source + " can't be read.");
+                    return FILE_NOT_FOUND;
+                }
+            } else {
+                files.add(new File[] {source, output(new File(outputDir, source.getName()), pass)});
+            }
+        }
+        // a/x.c and b/x.c would both be written to outputdir/x.s, by two threads at once
+        Map<Path, File> writers = new HashMap<>();
+        for (File[] f : files) {
+            File other = writers.putIfAbsent(f[1].toPath().toAbsolutePath().normalize(), f[0]);
+            if (other != null) {
+                out.println("Files " + other + " and " + f[0] + " would both be compiled to " + f[1] + ".");
+                return SAME_OUTPUT;
+            }
+        }
+
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for (File[] f : files) {
+            List<String> command = new ArrayList<>();
+            command.add(pass);
+            command.addAll(options);
+            command.add(f[0].getPath());
+            command.add(f[1].getPath());
+            tasks.add(() -> compile(f[0], f[1], command.toArray(new String[0]), cache));
+        }
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Future<Result> f : pool.invokeAll(tasks))
+                results.add(f.get());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e); // compile catches what a compile throws
+        } finally {
+            pool.shutdown();
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        int status = PASS, failed = 0;
+        for (Result r : results) {
+            out.println(r.source + ": " + (r.status == PASS ? "pass" : "failed (" + r.status + ")"));
+            out.print(r.printed);
+            if (!r.printed.isEmpty() && !r.printed.endsWith("\n"))
+                out.println();
+            if (r.status != PASS) {
+                if (status == PASS)
+                    status = r.status;
+                failed++;
+            }
+        }
+        out.println("Batch: " + (results.size() - failed) + " passed, " + failed + " failed, " + results.size()
+                + " files in " + millis + " ms on " + jobs + (jobs == 1 ? " thread" : " threads"));
+        if (cache != null)
+            out.println("Cache: " + cache.hits() + " hits, " + cache.misses() + " misses");
+        return status;
+    }
+
+    private static Result compile(File source, File output, String[] command, BuildCache cache) {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        PrintStream stream = new PrintStream(printed);
+        int status;
+        if (output.getParentFile() != null && !output.getParentFile().isDirectory() && !output.getParentFile().mkdirs()) {
+            stream.println("Directory " + output.getParentFile() + " can't be made.");
+            status = FILE_NOT_FOUND;
+        } else {
+            InputStream nothing = new ByteArrayInputStream(new byte[0]);
+            status = Main.compileCatching(command, nothing, stream, stream, cache);
+        }
+        stream.flush();
+        return new Result(source, status, printed.toString());
+    }
+
+    /*
+     * The output for a source, named for what the pass writes.
+     */
+    private static File output(File source, String pass) {
+        String name = source.getName();
+        if (name.endsWith(".c"))
+            name = name.substring(0, name.length() - 2);
+        switch (pass) {
+            case "-gen":
+            case "-sim":
+            case "-x86":
+                return new File(source.getParentFile(), name + ".s");
+            case "-llvm":
+                return new File(source.getParentFile(), name + ".ll");
+            case "-jvm":
+                return new File(source.getParentFile(), name + ".class");
+            default:
+                return new File(source.getParentFile(), name + ".out");
+        }
+    }
+}
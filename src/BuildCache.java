@@ -0,0 +1,262 @@
+import lexer.Scanner;
+import lexer.Token;
+import lexer.Tokeniser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Keeps what -gen, -llvm and -x86 wrote, so compiling a file that hasn't changed only copies it.
+ *
+ * An entry is named for a SHA-256 of the compiler's own classes, the pass and its options and the
+ * file's tokens without their positions, so editing white space or comments still finds it while
+ * a rebuilt compiler doesn't. It holds the files the compile wrote, in the order given, and notes
+ * the ones it didn't write, like the data of -binary when nothing is stored there. Only compiles
+ * that passed are kept, and only if they printed nothing, as -stats would differ.
+ *
+ * Entries are written whole and then renamed into place, so processes sharing a directory only
+ * ever see complete ones. A hit touches the entry, and once the directory is over its limit the
+ * least recently used entries are deleted until it isn't.
+ */
+final class BuildCache {
+
+    static final String DEFAULT_DIRECTORY = ".minic-cache";
+    static final long DEFAULT_LIMIT = 64L << 20;
+    private static final int ABSENT = -1; // the length kept for an output the compile didn't write
+
+    private final File directory;
+    private final long limit;
+    private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+    private long used = -1; // bytes in the directory as far as this process knows, -1 until it has looked
+
+    BuildCache(File directory, long limit) {
+        this.directory = directory;
+        this.limit = limit;
+    }
+
+    static boolean isOption(String option) {
+        return option.equals("-cache") || option.startsWith("-cache=") || option.startsWith("-cache-limit=");
+    }
+
+    /*
+     * The cache -cache, -cache=dir and -cache-limit=N ask for, null if they don't.
+     */
+    static BuildCache of(List<String> options) {
+        File directory = null;
+        long limit = DEFAULT_LIMIT;
+        for (String o : options) {
+            if (o.equals("-cache"))
+                directory = new File(DEFAULT_DIRECTORY);
+            else if (o.startsWith("-cache="))
+                directory = new File(o.substring("-cache=".length()));
+            else if (o.startsWith("-cache-limit="))
+                limit = Long.parseLong(o.substring("-cache-limit=".length())) << 20;
+        }
+        return directory == null ? null : new BuildCache(directory, limit);
+    }
+
+    /*
+     * Names the entry for compiling input with the pass and options, or null when the file can't
+     * be lexed cleanly, as then the compile fails anyway.
+     */
+    String key(File input, List<String> options) {
+        MessageDigest sha = sha256();
+        sha.update(Version.COMPILER);
+        for (String o : options)
+            field(sha, o);
+        Scanner scanner;
+        try {
+            scanner = new Scanner(input);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            Tokeniser tokeniser = new Tokeniser(scanner, new PrintStream(new ByteArrayOutputStream()));
+            for (Token t = tokeniser.nextToken(); t.tokenClass != Token.TokenClass.EOF; t = tokeniser.nextToken()) {
+                field(sha, t.tokenClass.name());
+                field(sha, t.data);
+            }
+            if (tokeniser.getErrorCount() > 0)
+                return null;
+        } finally {
+            try {
+                scanner.close();
+            } catch (IOException e) {
+                // it was only read
+            }
+        }
+        return hex(sha.digest());
+    }
+
+    /*
+     * Writes the files the entry holds and deletes the ones it notes as not written, saying whether
+     * there was one.
+     */
+    boolean restore(String key, List<File> outputs) {
+        File entry = new File(directory, key);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            if (in.readInt() != outputs.size())
+                throw new IOException("not an entry for these outputs");
+            for (File output : outputs) {
+                int length = in.readInt();
+                if (length == ABSENT) {
+                    Files.deleteIfExists(output.toPath());
+                    continue;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                Files.write(output.toPath(), bytes);
+            }
+        } catch (IOException e) {
+            // not there, or deleted by another process while it was read
+            misses.incrementAndGet();
+            return false;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /*
+     * Keeps the files the compile wrote under key, then makes room if the directory is full. The
+     * compile has succeeded already, so a cache that can't be written is only reported.
+     */
+    void store(String key, List<File> outputs, PrintStream err) {
+        try {
+            Files.createDirectories(directory.toPath());
+            File temporary = File.createTempFile(key, ".part", directory);
+            File entry = new File(directory, key);
+            long replaced;
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                    out.writeInt(outputs.size());
+                    for (File output : outputs) {
+                        if (!output.exists()) {
+                            out.writeInt(ABSENT);
+                            continue;
+                        }
+                        byte[] bytes = Files.readAllBytes(output.toPath());
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+                replaced = entry.length(); // 0 if there is none
+                Files.move(temporary.toPath(), entry.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temporary.delete(); // gone already if it was moved into place
+            }
+            added(entry.length() - replaced);
+        } catch (IOException e) {
+            err.println("Cache: can't write to " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * Counts what a store added, making room once the directory is over its limit. Only the first
+     * store and the ones that find it full list the directory, the rest add to what was found, so
+     * a batch doesn't go over every entry for every file it stores. What other processes store
+     * is seen at the next listing.
+     */
+    private synchronized void added(long bytes) throws IOException {
+        if (used < 0 || (used += bytes) > limit)
+            evict();
+    }
+
+    /*
+     * Deletes the least recently used entries until the rest fit in the limit.
+     */
+    private void evict() throws IOException {
+        List<File> entries;
+        try (Stream<Path> list = Files.list(directory.toPath())) {
+            entries = list.map(Path::toFile).filter(f -> !f.getName().endsWith(".part")).collect(Collectors.toList());
+        }
+        used = 0;
+        Map<File, Long> touched = new HashMap<>(); // read once, another process may touch them while this sorts
+        for (File f : entries) {
+            touched.put(f, f.lastModified());
+            used += f.length();
+        }
+        entries.sort(Comparator.comparingLong(touched::get));
+        for (File f : entries) {
+            if (used <= limit)
+                break;
+            long size = f.length();
+            if (f.delete())
+                used -= size;
+        }
+    }
+
+    int hits() {
+        return hits.get();
+    }
+
+    int misses() {
+        return misses.get();
+    }
+
+    private static void field(MessageDigest sha, String s) {
+        byte[] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        sha.update((byte) (bytes.length >>> 24));
+        sha.update((byte) (bytes.length >>> 16));
+        sha.update((byte) (bytes.length >>> 8));
+        sha.update((byte) bytes.length);
+        sha.update(bytes);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has it
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    /*
+     * A digest of the classes the compiler was loaded from, worked out once per JVM, so a compiler
+     * built from other sources never reads what this one wrote.
+     */
+    private static final class Version {
+
+        static final byte[] COMPILER = digest();
+
+        private static byte[] digest() {
+            MessageDigest sha = sha256();
+            try {
+                Path from = Paths.get(BuildCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                if (Files.isDirectory(from)) {
+                    try (Stream<Path> walk = Files.walk(from)) {
+                        for (Path p : walk.filter(f -> f.toString().endsWith(".class")).sorted().collect(Collectors.toList())) {
+                            field(sha, from.relativize(p).toString());
+                            sha.update(Files.readAllBytes(p));
+                        }
+                    }
+                } else {
+                    sha.update(Files.readAllBytes(from));
+                }
+            } catch (IOException | java.net.URISyntaxException | RuntimeException e) {
+                // without the classes nothing can be trusted to match, so nothing will
+                field(sha, Long.toString(System.nanoTime()));
+            }
+            return sha.digest();
+        }
+    }
+}
@@ -2,16 +2,30 @@ import ast.ASTPrinter;
 import ast.DotPrinter;
 import ast.Program;
 import gen.CodeGenerator;
+import gen.LlvmGenerator;
+import gen.MipsEncoder;
+import gen.X86Generator;
+import interp.Interpreter;
+import interp.InterpreterError;
+import interp.JvmCompiler;
 import lexer.Scanner;
 import lexer.Token;
 import lexer.Tokeniser;
 import parser.Parser;
 import sem.SemanticAnalyzer;
+import sim.SimulationError;
+import sim.Simulator;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -26,22 +40,71 @@ public class Main {
     private static final int LEXER_FAIL     = 250;
     private static final int PARSER_FAIL    = 245;
     private static final int SEM_FAIL       = 240;
+    private static final int SIM_FAIL       = 235;
+    private static final int RUN_FAIL       = 230;
+    private static final int ENCODE_FAIL    = 225;
     private static final int PASS           = 0;
     
     private enum Mode {
-        LEXER, PARSER, AST, SEMANTICANALYSIS, GEN, DOT
+        LEXER, PARSER, AST, SEMANTICANALYSIS, GEN, DOT, SIM, RUN, JVM, LLVM, X86
     }
 
-    private static void usage() {
-        System.out.println("Usage: java "+Main.class.getSimpleName()+" pass inputfile outputfile");
-        System.out.println("where pass is either: -lexer, -parser, -ast, -sem or -gen");
-        System.exit(-1);
+    static int usage(PrintStream out) {
+        out.println("Usage: java "+Main.class.getSimpleName()+" pass [options] inputfile outputfile");
+        out.println("   or: java "+Main.class.getSimpleName()+" -batch pass [options] [-jobs=N] source... outputdir");
+        out.println("where pass is either: -lexer, -parser, -ast, -sem, -gen, -sim, -run, -jvm, -llvm or -x86");
+        out.println("-sim generates code like -gen, then runs the output and prints what it executed");
+        out.println("-run interprets the program directly, writing the bytecode it runs to outputfile");
+        out.println("-jvm compiles the program to a JVM class, written to outputfile, and runs it in process");
+        out.println("-llvm writes the program as LLVM IR, to be linked with a C minic-stdlib");
+        out.println("-x86 writes the program as x86-64 assembly for the GNU assembler, to be linked the same way");
+        out.println("and options for -gen and -sim are:");
+        out.println("  -stats                print how often each peephole rule fired");
+        out.println("  -window=N             how far ahead peephole rules look (default 16)");
+        out.println("  -disable=rule,...     switch off peephole rules by name");
+        out.println("  -inline-budget=N      largest function body, in AST nodes, to inline (default 40, 0 disables)");
+        out.println("  -inline-report        print the inlining decision made at each call site");
+        out.println("  -binary               write machine code as MARS HexText dumps, data to outputfile.data");
+        out.println("  -emit-bench=N         write the final code N times to nowhere and print the emission rate");
+        out.println("-stats also works with -run and -jvm, printing what ran and the time taken");
+        out.println("-cache[=dir] with -gen, -llvm or -x86 reuses what a compile of the same tokens wrote before, kept in dir");
+        out.println("  (default .minic-cache), and -cache-limit=N keeps that under N megabytes (default 64)");
+        out.println("-batch compiles every source, and every .c file in a directory given, on N threads (default one per");
+        out.println("  processor) into outputdir, then prints what each printed and its exit status");
+        return -1;
     }
 
     public static void main(String[] args) {
+        System.exit(compile(args, System.in, System.out, System.err, null));
+    }
+
+    /*
+     * Like compile, but a compiler crash is printed to err and gives the status the JVM would have
+     * exited with, for callers compiling more than one file. The code generator's errors, like
+     * running out of registers, are crashes of that file too, only the JVM running out isn't.
+     */
+    static int compileCatching(String[] args, InputStream in, PrintStream out, PrintStream err, BuildCache cache) {
+        try {
+            return compile(args, in, out, err, cache);
+        } catch (RuntimeException | Error e) {
+            if (e instanceof VirtualMachineError && !(e instanceof StackOverflowError))
+                throw e;
+            e.printStackTrace(err);
+            return 1;
+        }
+    }
+
+    /*
+     * Does what the command line asks but returns the exit status, reading the program's input from
+     * in and printing to out and err, so one JVM can compile many files. The cache is used if the
+     * arguments don't name one.
+     */
+    static int compile(String[] args, InputStream in, PrintStream out, PrintStream err, BuildCache cache) {
 
-        if (args.length != 3)
-            usage();
+        if (args.length > 0 && args[0].equals("-batch"))
+            return Batch.run(args, out);
+        if (args.length < 3)
+            return usage(out);
 
         Mode mode = null;
         switch (args[0]) {
@@ -63,109 +126,320 @@ public class Main {
             case "-gen":
                 mode = Mode.GEN;
                 break;
-            default:
-                usage();
+            case "-sim":
+                mode = Mode.SIM;
+                break;
+            case "-run":
+                mode = Mode.RUN;
+                break;
+            case "-jvm":
+                mode = Mode.JVM;
+                break;
+            case "-llvm":
+                mode = Mode.LLVM;
+                break;
+            case "-x86":
+                mode = Mode.X86;
                 break;
+            default:
+                return usage(out);
+        }
+
+        CodeGenerator codegen = new CodeGenerator();
+        boolean stats = false;
+        boolean inlineReport = false;
+        boolean binary = false;
+        int emitRounds = 0;
+        List<String> flags = new ArrayList<>(); // what the output depends on besides the tokens
+        List<String> cacheOptions = new ArrayList<>();
+        flags.add(args[0]);
+        for (int i = 1; i < args.length - 2; i++) {
+            if (!BuildCache.isOption(args[i]))
+                flags.add(args[i]);
+            try {
+                if (args[i].equals("-stats")) {
+                    stats = true;
+                } else if (args[i].equals("-binary") && mode == Mode.GEN) {
+                    codegen.setBinary(true);
+                    binary = true;
+                } else if (BuildCache.isOption(args[i])) {
+                    cacheOptions.add(args[i]);
+                } else if (args[i].equals("-inline-report")) {
+                    inlineReport = true;
+                } else if (args[i].startsWith("-emit-bench=")) {
+                    emitRounds = Integer.parseInt(args[i].substring("-emit-bench=".length()));
+                } else if (args[i].startsWith("-inline-budget=")) {
+                    codegen.getInliner().setBudget(Integer.parseInt(args[i].substring("-inline-budget=".length())));
+                } else if (args[i].startsWith("-window=")) {
+                    codegen.getPeephole().setWindow(Integer.parseInt(args[i].substring("-window=".length())));
+                } else if (args[i].startsWith("-disable=")) {
+                    for (String rule : args[i].substring("-disable=".length()).split(","))
+                        codegen.getPeephole().disable(rule);
+                } else {
+                    return usage(out);
+                }
+            } catch (IllegalArgumentException e) {
+                out.println(e.getMessage());
+                return usage(out);
+            }
         }
 
-        File inputFile = new File(args[1]);
-        File outputFile = new File(args[2]);
+        File inputFile = new File(args[args.length - 2]);
+        File outputFile = new File(args[args.length - 1]);
+
+        // a compile that printed anything would have to print it again, so those aren't kept
+        String key = null;
+        List<File> outputs = new ArrayList<>();
+        outputs.add(outputFile);
+        if (binary)
+            outputs.add(new File(outputFile.getPath() + ".data"));
+        try {
+            if (cache == null)
+                cache = BuildCache.of(cacheOptions);
+        } catch (NumberFormatException e) {
+            out.println(e.getMessage());
+            return usage(out);
+        }
+        if (cache != null && (mode == Mode.GEN || mode == Mode.LLVM || mode == Mode.X86)
+                && !stats && !inlineReport && emitRounds == 0) {
+            key = cache.key(inputFile, flags);
+            if (key != null) {
+                if (cache.restore(key, outputs)) {
+                    err.println("Cache: hit");
+                    return PASS;
+                }
+                err.println("Cache: miss");
+            }
+        }
 
         Scanner scanner;
         try {
             scanner = new Scanner(inputFile);
         } catch (FileNotFoundException e) {
-            System.out.println("File " + inputFile.toString() + " does not exist.");
-            System.exit(FILE_NOT_FOUND);
-            return;
+            out.println("File " + inputFile.toString() + " does not exist.");
+            return FILE_NOT_FOUND;
         }
 
-        Tokeniser tokeniser = new Tokeniser(scanner);
-        if (mode == Mode.LEXER) {
-            for (Token t = tokeniser.nextToken(); t.tokenClass != Token.TokenClass.EOF; t = tokeniser.nextToken()) 
-            	System.out.println(t);
-            if (tokeniser.getErrorCount() == 0)
-        		System.out.println("Lexing: pass");
-    	    else
-        		System.out.println("Lexing: failed ("+tokeniser.getErrorCount()+" errors)");	
-            System.exit(tokeniser.getErrorCount() == 0 ? PASS : LEXER_FAIL);
-        } else if (mode == Mode.PARSER) {
-		    Parser parser = new Parser(tokeniser);
-		    parser.parse();
-		    if (parser.getErrorCount() == 0)
-		    	System.out.println("Parsing: pass");
-		    else
-		    	System.out.println("Parsing: failed ("+parser.getErrorCount()+" errors)");
-		    System.exit(parser.getErrorCount() == 0 ? PASS : PARSER_FAIL);
-        }  else if (mode == Mode.AST) {
-            Parser parser = new Parser(tokeniser);
-            Program programAst = parser.parse();
-            if (parser.getErrorCount() == 0) {
-                System.out.println("Parsing: pass");
-                System.out.println("Printing out AST:");
-                PrintWriter writer;
-                StringWriter sw = new StringWriter();
+        try {
+            Tokeniser tokeniser = new Tokeniser(scanner, out);
+            if (mode == Mode.LEXER) {
+                for (Token t = tokeniser.nextToken(); t.tokenClass != Token.TokenClass.EOF; t = tokeniser.nextToken()) 
+                	out.println(t);
+                if (tokeniser.getErrorCount() == 0)
+            		out.println("Lexing: pass");
+        	    else
+            		out.println("Lexing: failed ("+tokeniser.getErrorCount()+" errors)");	
+                return tokeniser.getErrorCount() == 0 ? PASS : LEXER_FAIL;
+            } else if (mode == Mode.PARSER) {
+    		    Parser parser = new Parser(tokeniser);
+    		    parser.parse();
+    		    if (parser.getErrorCount() == 0)
+    		    	out.println("Parsing: pass");
+    		    else
+    		    	out.println("Parsing: failed ("+parser.getErrorCount()+" errors)");
+    		    return parser.getErrorCount() == 0 ? PASS : PARSER_FAIL;
+            }  else if (mode == Mode.AST) {
+                Parser parser = new Parser(tokeniser);
+                Program programAst = parser.parse();
+                if (parser.getErrorCount() == 0) {
+                    out.println("Parsing: pass");
+                    out.println("Printing out AST:");
+                    PrintWriter writer;
+                    StringWriter sw = new StringWriter();
+                    try {
+                        writer = new PrintWriter(sw);
+                        programAst.accept(new ASTPrinter(writer));
+                        writer.flush();
+                        out.print(sw.toString());
+                        writer.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                } else
+                    out.println("Parsing: failed (" + parser.getErrorCount() + " errors)");
+                return parser.getErrorCount() == 0 ? PASS : PARSER_FAIL;
+            } else if (mode == Mode.DOT) {
+                Parser parser = new Parser(tokeniser);
+                Program programAst = parser.parse();
+                if (parser.getErrorCount() == 0) {
+                    PrintWriter writer;
+                    StringWriter sw = new StringWriter();
+                    try {
+                        writer = new PrintWriter(sw);
+                        programAst.accept(new DotPrinter(writer));
+                        writer.flush();
+                        out.print(sw.toString());
+                        writer.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                } else
+                    out.println("Parsing: failed (" + parser.getErrorCount() + " errors)");
+                return parser.getErrorCount() == 0 ? PASS : PARSER_FAIL;
+            } else if (mode == Mode.SEMANTICANALYSIS) {
+                Parser parser = new Parser(tokeniser);
+                Program programAst = parser.parse();
+                if (parser.getErrorCount() == 0) {
+                    SemanticAnalyzer sem = new SemanticAnalyzer(err);
+                    int errors = sem.analyze(programAst);
+                    if (errors == 0)
+                        out.println("Semantic analysis: Pass");
+                    else
+                        out.println("Semantic analysis: Failed (" + errors + ")");
+                    return errors == 0 ? PASS : SEM_FAIL;
+                } else
+                    return PARSER_FAIL;
+            } else if (mode == Mode.GEN || mode == Mode.SIM) {
+                Parser parser = new Parser(tokeniser);
+                Program programAst = parser.parse();
+                if (parser.getErrorCount() > 0)
+                    return PARSER_FAIL;
+                SemanticAnalyzer sem = new SemanticAnalyzer(err);
+                int errors = sem.analyze(programAst);
+                if (errors > 0)
+                    return SEM_FAIL;
+                try {
+                    codegen.emitProgram(programAst, outputFile);
+                } catch (FileNotFoundException e) {
+                    out.println("File "+outputFile.toString()+" does not exist.");
+                    return FILE_NOT_FOUND;
+                } catch (MipsEncoder.EncodingError e) {
+                    out.println("Encoding error: " + e.getMessage());
+                    return ENCODE_FAIL;
+                }
+                if (inlineReport)
+                    codegen.getInliner().printReport(out);
+                if (stats) {
+                    codegen.getPeephole().printStats(out);
+                    codegen.printEmitStats(out);
+                }
+                if (emitRounds > 0)
+                    codegen.benchmarkEmit(emitRounds, out);
+                if (mode == Mode.SIM) {
+                    Simulator simulator;
+                    try {
+                        simulator = new Simulator(MipsEncoder.assemble(outputFile), in, out);
+                    } catch (IOException e) {
+                        out.println("File "+outputFile.toString()+" can't be read.");
+                        return FILE_NOT_FOUND;
+                    } catch (MipsEncoder.EncodingError e) {
+                        // what MARS won't assemble can't be run, like a program without main
+                        out.println();
+                        out.println("Runtime error: " + e.getMessage());
+                        return SIM_FAIL;
+                    }
+                    int status = PASS;
+                    try {
+                        simulator.run();
+                    } catch (SimulationError e) {
+                        out.println();
+                        out.println("Runtime error: " + e.getMessage());
+                        status = SIM_FAIL;
+                    }
+                    out.println();
+                    simulator.printStats(out);
+                    return status;
+                }
+            } else if (mode == Mode.RUN) {
+                Parser parser = new Parser(tokeniser);
+                Program programAst = parser.parse();
+                if (parser.getErrorCount() > 0)
+                    return PARSER_FAIL;
+                SemanticAnalyzer sem = new SemanticAnalyzer(err);
+                int errors = sem.analyze(programAst);
+                if (errors > 0)
+                    return SEM_FAIL;
+                Interpreter interpreter = new Interpreter(programAst, in, out);
+                try (PrintWriter writer = new PrintWriter(outputFile)) {
+                    interpreter.printCode(writer);
+                } catch (FileNotFoundException e) {
+                    out.println("File "+outputFile.toString()+" does not exist.");
+                    return FILE_NOT_FOUND;
+                }
+                int status = PASS;
                 try {
-                    writer = new PrintWriter(sw);
-                    programAst.accept(new ASTPrinter(writer));
-                    writer.flush();
-                    System.out.print(sw.toString());
-                    writer.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    interpreter.run();
+                } catch (InterpreterError e) {
+                    out.println();
+                    out.println("Runtime error: " + e.getMessage());
+                    status = RUN_FAIL;
                 }
-            } else
-                System.out.println("Parsing: failed (" + parser.getErrorCount() + " errors)");
-            System.exit(parser.getErrorCount() == 0 ? PASS : PARSER_FAIL);
-        } else if (mode == Mode.DOT) {
-            Parser parser = new Parser(tokeniser);
-            Program programAst = parser.parse();
-            if (parser.getErrorCount() == 0) {
-                PrintWriter writer;
-                StringWriter sw = new StringWriter();
+                if (stats) {
+                    out.println();
+                    interpreter.printStats(out);
+                }
+                return status;
+            } else if (mode == Mode.LLVM) {
+                Parser parser = new Parser(tokeniser);
+                Program programAst = parser.parse();
+                if (parser.getErrorCount() > 0)
+                    return PARSER_FAIL;
+                SemanticAnalyzer sem = new SemanticAnalyzer(err);
+                int errors = sem.analyze(programAst);
+                if (errors > 0)
+                    return SEM_FAIL;
+                try {
+                    new LlvmGenerator().emitProgram(programAst, outputFile);
+                } catch (FileNotFoundException e) {
+                    out.println("File "+outputFile.toString()+" does not exist.");
+                    return FILE_NOT_FOUND;
+                }
+            } else if (mode == Mode.X86) {
+                Parser parser = new Parser(tokeniser);
+                Program programAst = parser.parse();
+                if (parser.getErrorCount() > 0)
+                    return PARSER_FAIL;
+                SemanticAnalyzer sem = new SemanticAnalyzer(err);
+                int errors = sem.analyze(programAst);
+                if (errors > 0)
+                    return SEM_FAIL;
                 try {
-                    writer = new PrintWriter(sw);
-                    programAst.accept(new DotPrinter(writer));
-                    writer.flush();
-                    System.out.print(sw.toString());
-                    writer.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    new X86Generator().emitProgram(programAst, outputFile);
+                } catch (FileNotFoundException e) {
+                    out.println("File "+outputFile.toString()+" does not exist.");
+                    return FILE_NOT_FOUND;
                 }
-            } else
-                System.out.println("Parsing: failed (" + parser.getErrorCount() + " errors)");
-            System.exit(parser.getErrorCount() == 0 ? PASS : PARSER_FAIL);
-        } else if (mode == Mode.SEMANTICANALYSIS) {
-            Parser parser = new Parser(tokeniser);
-            Program programAst = parser.parse();
-            if (parser.getErrorCount() == 0) {
-                SemanticAnalyzer sem = new SemanticAnalyzer();
+            } else if (mode == Mode.JVM) {
+                Parser parser = new Parser(tokeniser);
+                Program programAst = parser.parse();
+                if (parser.getErrorCount() > 0)
+                    return PARSER_FAIL;
+                SemanticAnalyzer sem = new SemanticAnalyzer(err);
                 int errors = sem.analyze(programAst);
-                if (errors == 0)
-                    System.out.println("Semantic analysis: Pass");
-                else
-                    System.out.println("Semantic analysis: Failed (" + errors + ")");
-                System.exit(errors == 0 ? PASS : SEM_FAIL);
-            } else
-                System.exit(PARSER_FAIL);
-        } else if (mode == Mode.GEN) {
-            Parser parser = new Parser(tokeniser);
-            Program programAst = parser.parse();
-            if (parser.getErrorCount() > 0)
-                System.exit(PARSER_FAIL);
-            SemanticAnalyzer sem = new SemanticAnalyzer();
-            int errors = sem.analyze(programAst);
-            if (errors > 0)
-                System.exit(SEM_FAIL);
-            CodeGenerator codegen = new CodeGenerator();
+                if (errors > 0)
+                    return SEM_FAIL;
+                JvmCompiler compiler = new JvmCompiler(programAst);
+                try (FileOutputStream classFile = new FileOutputStream(outputFile)) {
+                    classFile.write(compiler.toByteArray());
+                } catch (IOException e) {
+                    out.println("File "+outputFile.toString()+" can't be written.");
+                    return FILE_NOT_FOUND;
+                }
+                int status = PASS;
+                try {
+                    compiler.run(in, out);
+                } catch (InterpreterError e) {
+                    out.println();
+                    out.println("Runtime error: " + e.getMessage());
+                    status = RUN_FAIL;
+                }
+                if (stats) {
+                    out.println();
+                    compiler.printStats(out);
+                }
+                return status;
+            } else {
+            	return MODE_FAIL;
+            }
+            if (key != null)
+                cache.store(key, outputs, err);
+            return PASS;
+        } finally {
             try {
-                codegen.emitProgram(programAst, outputFile);
-            } catch (FileNotFoundException e) {
-                System.out.println("File "+outputFile.toString()+" does not exist.");
-                System.exit(FILE_NOT_FOUND);
+                scanner.close();
+            } catch (IOException e) {
+                // nothing was written, there is nothing to lose
             }
-        } else {
-        	System.exit(MODE_FAIL);
         }
     }
 }
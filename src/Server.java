@@ -0,0 +1,240 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Keeps one JVM compiling, so a compile doesn't pay for starting a JVM and running the compiler
+ * cold, only the first few do. Start it with
+ *   java -cp bin Server [-port=N] [file.c ...]
+ * and send it what Main takes with Client. The files given are compiled with -gen a few times
+ * before it listens, so even the first request finds the compiler warm.
+ *
+ * It only listens on the loopback interface, and only serves whoever can read the token it
+ * writes to .minic-server-PORT in the home directory, which only its own user can. A request is
+ * that token, the client's working directory, the number of arguments and the arguments, then
+ * the program's input as frames of a length and that many bytes, ended by an empty one. The
+ * files and directories the arguments name, -cache ones too, are taken relative to the client's
+ * directory. The reply is frames of a stream, 1 for out and 2 for err, a length and the bytes,
+ * then a 0 and the exit status. Requests are served side by side, each with a compiler of its own.
+ */
+public class Server {
+
+    static final int PORT = 4219;
+    private static final int WARM_UP_ROUNDS = 20;
+    static final int OUT = 1, ERR = 2, STATUS = 0;
+    private static final int NOT_ALLOWED = 4;
+
+    public static void main(String[] args) throws IOException {
+        int port = PORT;
+        int first = 0;
+        if (args.length > 0 && args[0].startsWith("-port=")) {
+            port = Integer.parseInt(args[0].substring("-port=".length()));
+            first = 1;
+        }
+        warmUp(args, first);
+
+        String token = writeToken(tokenFile(port));
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Listening on port " + port);
+            while (true) {
+                Socket socket = server.accept();
+                pool.execute(() -> serve(socket, token));
+            }
+        }
+    }
+
+    /*
+     * Where the token of the server on port is kept.
+     */
+    static File tokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".minic-server-" + port);
+    }
+
+    /*
+     * Writes a new random token to file, readable only by this user, as any other local user can
+     * connect to the port.
+     */
+    private static String writeToken(File file) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random)
+            token.append(String.format("%02x", b & 0xff));
+        Path path = file.toPath();
+        Files.deleteIfExists(path); // made again, so nobody else can have it open
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(path);
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+        Files.write(path, token.toString().getBytes(StandardCharsets.UTF_8));
+        return token.toString();
+    }
+
+    private static void warmUp(String[] files, int first) throws IOException {
+        if (first == files.length)
+            return;
+        File output = File.createTempFile("warm-up", ".s");
+        PrintStream nowhere = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        InputStream nothing = new ByteArrayInputStream(new byte[0]);
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            for (int i = first; i < files.length; i++)
+                Main.compile(new String[] {"-gen", files[i], output.getPath()}, nothing, nowhere, nowhere, null);
+        }
+        output.delete();
+    }
+
+    private static void serve(Socket socket, String token) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true); // a reply is a few small writes, none of them should wait
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, OUT)));
+            PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, ERR)));
+            int status;
+            if (!MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+                stderr.println("Not allowed: the token doesn't match the server's");
+                status = NOT_ALLOWED;
+            } else {
+                File directory = new File(in.readUTF());
+                String[] args = new String[in.readInt()];
+                for (int i = 0; i < args.length; i++)
+                    args[i] = in.readUTF();
+                resolve(args, directory);
+                status = Main.compileCatching(args, new FrameInputStream(in), stdout, stderr, null);
+            }
+            stdout.flush();
+            stderr.flush();
+            synchronized (out) {
+                out.writeByte(STATUS);
+                out.writeInt(status);
+                out.flush();
+            }
+            // closing with input unread would reset the connection, maybe before the client has the status
+            s.shutdownOutput();
+            byte[] rest = new byte[4096];
+            while (s.getInputStream().read(rest) >= 0) {
+            }
+        } catch (IOException e) {
+            System.err.println("Lost a client: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Names the files and directories in args relative to where the client runs: the input and
+     * output of a compile, the sources and output directory of a batch, and the cache's directory.
+     */
+    private static void resolve(String[] args, File directory) {
+        int operands = Math.max(args.length - 2, 1);
+        if (args.length > 0 && args[0].equals("-batch")) {
+            // the options run up to the first source, as Batch reads them
+            for (operands = 2; operands < args.length - 1 && args[operands].startsWith("-"); operands++) {
+            }
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-cache"))
+                args[i] = "-cache=" + new File(directory, BuildCache.DEFAULT_DIRECTORY).getPath();
+            else if (args[i].startsWith("-cache="))
+                args[i] = "-cache=" + resolve(args[i].substring("-cache=".length()), directory);
+            else if (i >= operands)
+                args[i] = resolve(args[i], directory);
+        }
+    }
+
+    private static String resolve(String path, File directory) {
+        return new File(path).isAbsolute() ? path : new File(directory, path).getPath();
+    }
+
+    /*
+     * What is written to one of the request's streams, sent as frames as it is flushed.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final int stream;
+
+        FrameOutputStream(DataOutputStream out, int stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            synchronized (out) {
+                out.writeByte(stream);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+
+    /*
+     * The program's input, read from the frames the client sends as it reads its own.
+     */
+    private static final class FrameInputStream extends InputStream {
+
+        private final DataInputStream in;
+        private int left; // bytes left in the current frame
+        private boolean ended;
+
+        FrameInputStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (left == 0 && !ended) {
+                left = in.readInt();
+                ended = left == 0;
+            }
+            if (ended)
+                return -1;
+            int n = in.read(b, off, Math.min(len, left));
+            if (n < 0)
+                throw new EOFException("the client went away");
+            left -= n;
+            return n;
+        }
+    }
+}
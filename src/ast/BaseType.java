@@ -9,7 +9,7 @@ public enum BaseType implements Type {
 //        this.type = type;
 //    }
 
-    public int type;
+    public final int type;
 
     BaseType(int type) {
         this.type = type;
@@ -4,4 +4,36 @@ public abstract class Expr implements ASTNode {
 
     public Type type; // to be filled in by the type analyser
     public abstract <T> T accept(ASTVisitor<T> v);
+
+    /*
+     * The type of the value of e. The type analyser leaves the array's type on an element access
+     * and the pointer's on *p, and the optimisers make expressions it never saw, so accesses are
+     * worked out from what they access. *a of an array a is its first element, the inliner leaves
+     * those where a pointer parameter was.
+     */
+    public static Type typeOf(Expr e) {
+        if (e instanceof VarExpr) {
+            return ((VarExpr) e).vd.type;
+        } else if (e instanceof ArrayAccessExpr) {
+            Type array = typeOf(((ArrayAccessExpr) e).exp);
+            return array instanceof ArrayType ? ((ArrayType) array).type
+                    : array instanceof PointerType ? ((PointerType) array).type : null;
+        } else if (e instanceof FieldAccessExpr) {
+            Type struct = typeOf(((FieldAccessExpr) e).struct);
+            StructLayout.Field field = struct instanceof StructType && ((StructType) struct).layout != null
+                    ? ((StructType) struct).layout.field(((FieldAccessExpr) e).field) : null;
+            return field != null ? field.type : e.type;
+        } else if (e instanceof ValueAtExpr) {
+            Type pointer = typeOf(((ValueAtExpr) e).exp);
+            return pointer instanceof PointerType ? ((PointerType) pointer).type
+                    : pointer instanceof ArrayType ? ((ArrayType) pointer).type : null;
+        } else if (e instanceof FunCallExpr && ((FunCallExpr) e).fd != null) {
+            return ((FunCallExpr) e).fd.type;
+        } else if (e instanceof BinOp) {
+            return e.type != null ? e.type : BaseType.INT;
+        } else if (e instanceof SizeOfExpr) {
+            return BaseType.INT;
+        }
+        return e.type;
+    }
 }
@@ -13,4 +13,30 @@ public class StrLiteral extends Expr {
 	public <T> T accept(ASTVisitor<T> v) {
 		return v.visitStringLiteral(this);
 	}
+
+	/*
+	 * The characters a literal stands for. The lexer only turns \" into a quote, every other
+	 * escape sequence is still as written.
+	 */
+	public static String decode(String literal) {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < literal.length(); i++) {
+			char c = literal.charAt(i);
+			if (c != '\\' || i + 1 == literal.length()) {
+				out.append(c);
+				continue;
+			}
+			char next = literal.charAt(++i);
+			switch (next) {
+				case 'n': out.append('\n'); break;
+				case 't': out.append('\t'); break;
+				case 'r': out.append('\r'); break;
+				case 'b': out.append('\b'); break;
+				case 'f': out.append('\f'); break;
+				case '0': out.append('\0'); break;
+				default: out.append(next); // \\ and \' stand for the character itself
+			}
+		}
+		return out.toString();
+	}
 }
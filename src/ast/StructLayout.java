@@ -0,0 +1,101 @@
+package ast;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Where each field of a struct lives, worked out once from its declaration. Fields sit from the
+ * struct's address upwards at a multiple of their alignment, in order of decreasing alignment so
+ * no padding is needed between them. The size is rounded up to the alignment so the elements of
+ * an array of structs line up as well.
+ */
+public final class StructLayout {
+
+    public static final class Field {
+        public final String name;
+        public final Type type;
+        public final int offset;
+
+        Field(String name, Type type, int offset) {
+            this.name = name;
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+
+    public final String name;
+    public final int size;
+    public final int align;
+    private final Map<String, Field> fields;
+
+    private StructLayout(String name, int size, int align, Map<String, Field> fields) {
+        this.name = name;
+        this.size = size;
+        this.align = align;
+        this.fields = fields;
+    }
+
+    /*
+     * The structs used by the fields must have their layouts already.
+     */
+    public static StructLayout of(StructTypeDecl st) {
+        return of(st, StructLayout::sizeOf, StructLayout::alignOf);
+    }
+
+    /*
+     * The layout on a target whose types have other sizes, pointers in particular.
+     */
+    public static StructLayout of(StructTypeDecl st, ToIntFunction<Type> sizeOf, ToIntFunction<Type> alignOf) {
+        List<VarDecl> decls = new ArrayList<>(st.varDeclList);
+        decls.sort((a, b) -> alignOf.applyAsInt(b.type) - alignOf.applyAsInt(a.type));
+        Map<String, Field> fields = new LinkedHashMap<>();
+        int pos = 0;
+        int align = 1;
+        for (VarDecl i : decls) {
+            pos = alignUp(pos, alignOf.applyAsInt(i.type));
+            fields.put(i.varName, new Field(i.varName, i.type, pos));
+            pos += sizeOf.applyAsInt(i.type);
+            align = Math.max(align, alignOf.applyAsInt(i.type));
+        }
+        return new StructLayout(st.st.name, alignUp(pos, align), align, Collections.unmodifiableMap(fields));
+    }
+
+    /*
+     * The field called name, null if there isn't one.
+     */
+    public Field field(String name) {
+        return fields.get(name);
+    }
+
+    /*
+     * The fields in the order they are laid out.
+     */
+    public Collection<Field> fields() {
+        return fields.values();
+    }
+
+    /*
+     * Sizes in memory, chars take a byte.
+     */
+    public static int sizeOf(Type t) {
+        if (t == BaseType.CHAR)
+            return 1;
+        if (t instanceof ArrayType)
+            return ((ArrayType) t).size * sizeOf(((ArrayType) t).type);
+        if (t instanceof StructType)
+            return ((StructType) t).layout.size;
+        return 4;
+    }
+
+    public static int alignOf(Type t) {
+        if (t instanceof ArrayType)
+            return alignOf(((ArrayType) t).type);
+        if (t instanceof StructType)
+            return ((StructType) t).layout.align;
+        return sizeOf(t);
+    }
+
+    public static int alignUp(int n, int align) {
+        return (n + align - 1) / align * align;
+    }
+}
@@ -2,6 +2,7 @@ package ast;
 
 public class StructType implements Type{
 	public String name;
+	public StructLayout layout; // filled in by the type analyser
 
 	public StructType(String name) {
 		this.name = name;
@@ -0,0 +1,177 @@
+package gen;
+
+import ast.*;
+
+/**
+ * Visits every node below the one it is given, in evaluation order, and does nothing else.
+ * Passes that only care about a few kinds of node extend this and override those.
+ */
+class ASTWalker implements ASTVisitor<Void> {
+
+    @Override
+    public Void visitBaseType(BaseType bt) {
+        return null;
+    }
+
+    @Override
+    public Void visitStructTypeDecl(StructTypeDecl st) {
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block b) {
+        for (VarDecl i : b.varDeclList) {
+            i.accept(this);
+        }
+        for (Stmt i : b.stmtList) {
+            i.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunDecl(FunDecl p) {
+        for (VarDecl i : p.params) {
+            i.accept(this);
+        }
+        p.block.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitProgram(Program p) {
+        for (VarDecl i : p.varDecls) {
+            i.accept(this);
+        }
+        for (FunDecl i : p.funDecls) {
+            i.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarDecl(VarDecl vd) {
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(VarExpr v) {
+        return null;
+    }
+
+    @Override
+    public Void visitPointerType(PointerType pt) {
+        return null;
+    }
+
+    @Override
+    public Void visitStructType(StructType st) {
+        return null;
+    }
+
+    @Override
+    public Void visitArrayType(ArrayType at) {
+        return null;
+    }
+
+    @Override
+    public Void visitIntLiteral(IntLiteral il) {
+        return null;
+    }
+
+    @Override
+    public Void visitStringLiteral(StrLiteral sl) {
+        return null;
+    }
+
+    @Override
+    public Void visitChrLiteral(ChrLiteral cl) {
+        return null;
+    }
+
+    @Override
+    public Void visitFunCallExpr(FunCallExpr fce) {
+        for (Expr i : fce.args) {
+            i.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinOp(BinOp bo) {
+        bo.E1.accept(this);
+        bo.E2.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitOp(Op o) {
+        return null;
+    }
+
+    @Override
+    public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+        aae.exp.accept(this);
+        aae.index.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFieldAccessExpr(FieldAccessExpr fae) {
+        fae.struct.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitValueAtExpr(ValueAtExpr vae) {
+        vae.exp.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitSizeOfExpr(SizeOfExpr soe) {
+        return null;
+    }
+
+    @Override
+    public Void visitTypecastExpr(TypecastExpr te) {
+        te.exp.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitExprStmt(ExprStmt es) {
+        es.exp.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitWhile(While w) {
+        w.cond.accept(this);
+        w.loop.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitIf(If i) {
+        i.cond.accept(this);
+        i.st1.accept(this);
+        if (i.st2 != null)
+            i.st2.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitAssign(Assign a) {
+        a.e2.accept(this);
+        a.e1.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturn(Return r) {
+        if (r.exp != null)
+            r.exp.accept(this);
+        return null;
+    }
+}
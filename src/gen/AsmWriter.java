@@ -0,0 +1,213 @@
+package gen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes assembly text as bytes into a large direct buffer that is handed to a channel whenever it
+ * fills up. Mnemonics, registers and labels repeat all the time, so each is encoded once and copied
+ * in as bytes after that, and numbers are written digit by digit without making a string. Single
+ * puts into a direct buffer are slow, so lines are put together in a small array first.
+ */
+class AsmWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int STAGE_SIZE = 1 << 13;
+    private static final byte[] SEPARATOR = {',', ' '};
+    private static final byte[] SPACE = {' '};
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Map<String, byte[]> mnemonics = new HashMap<>();
+    private final Map<String, byte[]> fragments = new HashMap<>();
+    private final byte[][] registers = new byte[32][];
+    private final byte[] staged = new byte[STAGE_SIZE]; // small writes are gathered here first
+    private final byte[] digits = new byte[10];
+    private int used;
+    private long written;
+
+    AsmWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /*
+     * op rd, rs, rt
+     */
+    void emitRRR(String op, Register rd, Register rs, Register rt) throws IOException {
+        mnemonic(op);
+        put(SPACE);
+        put(register(rd));
+        put(SEPARATOR);
+        put(register(rs));
+        put(SEPARATOR);
+        put(register(rt));
+        newline();
+    }
+
+    /*
+     * op rt, rs, imm
+     */
+    void emitRRI(String op, Register rt, Register rs, int imm) throws IOException {
+        mnemonic(op);
+        put(SPACE);
+        put(register(rt));
+        put(SEPARATOR);
+        put(register(rs));
+        put(SEPARATOR);
+        number(imm);
+        newline();
+    }
+
+    /*
+     * Loads and stores, op rt, off(base)
+     */
+    void emitMemory(String op, Register rt, Instruction.Address address) throws IOException {
+        mnemonic(op);
+        put(SPACE);
+        put(register(rt));
+        put(SEPARATOR);
+        if (address.hasOffset)
+            number(address.offset);
+        put((byte) '(');
+        put(register(address.base));
+        put((byte) ')');
+        newline();
+    }
+
+    /*
+     * Anything else, the operands as they are written.
+     */
+    void emit(String op, Iterable<String> args) throws IOException {
+        mnemonic(op);
+        byte[] delimiter = SPACE;
+        for (String a : args) {
+            put(delimiter);
+            put(fragment(a));
+            delimiter = SEPARATOR;
+        }
+        newline();
+    }
+
+    void emitLabel(String label) throws IOException {
+        put(fragment(label));
+        put((byte) ':');
+        newline();
+    }
+
+    void emitRaw(String text) throws IOException {
+        put(text.getBytes(StandardCharsets.UTF_8));
+        newline();
+    }
+
+    long bytesWritten() {
+        return written + buffer.position() + used;
+    }
+
+    void flush() throws IOException {
+        stage();
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void mnemonic(String op) throws IOException {
+        byte[] bytes = mnemonics.get(op);
+        if (bytes == null) {
+            bytes = ("\t" + op).getBytes(StandardCharsets.UTF_8);
+            mnemonics.put(op, bytes);
+        }
+        put(bytes);
+    }
+
+    private byte[] register(Register r) {
+        byte[] bytes = registers[r.number()];
+        if (bytes == null) {
+            bytes = r.toString().getBytes(StandardCharsets.UTF_8);
+            registers[r.number()] = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] fragment(String s) {
+        byte[] bytes = fragments.get(s);
+        if (bytes == null) {
+            bytes = s.getBytes(StandardCharsets.UTF_8);
+            fragments.put(s, bytes);
+        }
+        return bytes;
+    }
+
+    private void number(int n) throws IOException {
+        if (n == Integer.MIN_VALUE) {
+            put(fragment(String.valueOf(n)));
+            return;
+        }
+        room(digits.length + 1);
+        if (n < 0) {
+            staged[used++] = '-';
+            n = -n;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        System.arraycopy(digits, i, staged, used, digits.length - i);
+        used += digits.length - i;
+    }
+
+    private void newline() throws IOException {
+        put((byte) '\n');
+    }
+
+    private void put(byte b) throws IOException {
+        room(1);
+        staged[used++] = b;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > staged.length) {
+            stage();
+            flush();
+            ByteBuffer big = ByteBuffer.wrap(bytes);
+            while (big.hasRemaining()) {
+                written += channel.write(big);
+            }
+            return;
+        }
+        room(bytes.length);
+        System.arraycopy(bytes, 0, staged, used, bytes.length);
+        used += bytes.length;
+    }
+
+    private void room(int n) throws IOException {
+        if (staged.length - used < n)
+            stage();
+    }
+
+    /*
+     * Moves the staged bytes into the direct buffer in one go, sending the buffer on once it is full.
+     */
+    private void stage() throws IOException {
+        if (buffer.remaining() < used)
+            drain();
+        buffer.put(staged, 0, used);
+        used = 0;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
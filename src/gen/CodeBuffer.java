@@ -0,0 +1,149 @@
+package gen;
+
+import java.util.*;
+
+/**
+ * The code the peephole rules rewrite, kept as a gap buffer. Rules only change code close to where
+ * they are looking, so the gap follows them there and an insertion or removal moves a few
+ * instructions rather than everything after it.
+ *
+ * Labels are indexed by the slot they sit in, which only changes when the gap passes over them,
+ * so finding a label doesn't scan the code, and every name an instruction mentions is counted,
+ * so whether a label is still referenced is always known.
+ */
+final class CodeBuffer extends AbstractList<Instruction> implements RandomAccess {
+
+    private Instruction[] items;
+    private int gapStart, gapEnd; // the free slots are items[gapStart] to items[gapEnd - 1]
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, Integer> uses = new HashMap<>();
+
+    CodeBuffer(List<Instruction> code) {
+        items = new Instruction[code.size() + 16];
+        gapStart = code.size();
+        gapEnd = items.length;
+        for (int i = 0; i < code.size(); i++) {
+            items[i] = code.get(i);
+            added(items[i], i);
+        }
+    }
+
+    @Override
+    public int size() {
+        return items.length - (gapEnd - gapStart);
+    }
+
+    private int slot(int i) {
+        if (i < 0 || i >= size())
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+        return i < gapStart ? i : i + gapEnd - gapStart;
+    }
+
+    @Override
+    public Instruction get(int i) {
+        return items[slot(i)];
+    }
+
+    @Override
+    public Instruction set(int i, Instruction in) {
+        int s = slot(i);
+        Instruction old = items[s];
+        removed(old, s);
+        items[s] = in;
+        added(in, s);
+        return old;
+    }
+
+    @Override
+    public void add(int i, Instruction in) {
+        if (i < 0 || i > size())
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+        if (gapStart == gapEnd)
+            grow();
+        moveGap(i);
+        items[gapStart] = in;
+        added(in, gapStart);
+        gapStart++;
+        modCount++;
+    }
+
+    @Override
+    public Instruction remove(int i) {
+        slot(i);
+        moveGap(i);
+        Instruction old = items[gapEnd];
+        removed(old, gapEnd);
+        items[gapEnd++] = null;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    protected void removeRange(int from, int to) {
+        moveGap(from);
+        for (int k = 0; k < to - from; k++) {
+            removed(items[gapEnd], gapEnd);
+            items[gapEnd++] = null;
+        }
+        modCount++;
+    }
+
+    /*
+     * Where the label is, -1 if it isn't in the code.
+     */
+    int find(String label) {
+        Integer s = labels.get(label);
+        if (s == null)
+            return -1;
+        return s < gapStart ? s : s - (gapEnd - gapStart);
+    }
+
+    /*
+     * Whether some instruction names label.
+     */
+    boolean referenced(String label) {
+        return uses.containsKey(label);
+    }
+
+    private void moveGap(int i) {
+        while (gapStart > i) {
+            items[--gapEnd] = items[--gapStart];
+            items[gapStart] = null;
+            moved(items[gapEnd], gapEnd);
+        }
+        while (gapStart < i) {
+            items[gapStart] = items[gapEnd];
+            items[gapEnd++] = null;
+            moved(items[gapStart], gapStart++);
+        }
+    }
+
+    private void grow() {
+        Instruction[] bigger = new Instruction[items.length * 2];
+        int after = items.length - gapEnd;
+        System.arraycopy(items, 0, bigger, 0, gapStart);
+        System.arraycopy(items, gapEnd, bigger, bigger.length - after, after);
+        items = bigger;
+        gapEnd = bigger.length - after;
+        for (int s = gapEnd; s < items.length; s++)
+            moved(items[s], s);
+    }
+
+    private void moved(Instruction in, int s) {
+        if (in.isLabel())
+            labels.put(in.label, s);
+    }
+
+    private void added(Instruction in, int s) {
+        moved(in, s);
+        for (String a : in.args)
+            uses.merge(a, 1, Integer::sum);
+    }
+
+    private void removed(Instruction in, int s) {
+        if (in.isLabel())
+            labels.remove(in.label, s);
+        for (String a : in.args)
+            uses.computeIfPresent(a, (k, n) -> n == 1 ? null : n - 1);
+    }
+}
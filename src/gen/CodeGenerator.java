@@ -4,8 +4,18 @@ import ast.*;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.ToIntFunction;
+
+import static ast.Expr.typeOf;
 
 public class CodeGenerator implements ASTVisitor<Register> {
 
@@ -35,19 +45,174 @@ public class CodeGenerator implements ASTVisitor<Register> {
            freeRegs.push(reg);
     }
 
-    private PrintWriter writer; // use this writer to output the assembly instructions
+    private List<Instruction> code; // what has been emitted, gone over by the peephole optimiser before it is written
 
-    public void emitProgram(Program program, File outputFile) throws FileNotFoundException {
-        writer = new PrintWriter(outputFile);
+    private void emit(String op, Object... operands) {
+        code.add(Instruction.op(op, operands));
+    }
+
+    private static Instruction.Address at(int offset, Register base) {
+        return Instruction.at(offset, base);
+    }
+
+    private static Instruction.Address at(Register base) {
+        return Instruction.at(base);
+    }
+
+    private void label(String name) {
+        code.add(Instruction.label(name));
+    }
+
+    private void raw(String text) {
+        code.add(Instruction.raw(text));
+    }
+
+    private final Peephole peephole = new Peephole();
 
+    public Peephole getPeephole() {
+        return peephole;
+    }
+
+    private final Inliner inliner = new Inliner();
+
+    public Inliner getInliner() {
+        return inliner;
+    }
+
+    private boolean binary;
+
+    /*
+     * Write machine code instead of assembly: the text segment as a MARS HexText dump to the output
+     * file, and the data segment, if anything is stored in it, next to it with .data added to the name.
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public void emitProgram(Program program, File outputFile) throws FileNotFoundException {
+        //keep everything in memory so the peephole optimiser can go over it before it is written
+        code = new ArrayList<>();
         visitProgram(program);
-        writer.close();
+        peephole.optimise(code);
+        emitted = code;
+
+        if (binary) {
+            MipsEncoder encoder = new MipsEncoder();
+            encoder.encode(code);
+            encoder.writeDump(outputFile, new File(outputFile.getPath() + ".data"));
+            return;
+        }
+        long start = System.nanoTime();
+        try (AsmWriter out = new AsmWriter(FileChannel.open(outputFile.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            for (Instruction i : code) {
+                i.writeTo(out);
+            }
+            out.flush();
+            emittedBytes = out.bytesWritten();
+        } catch (IOException e) {
+            FileNotFoundException notFound = new FileNotFoundException(outputFile.toString());
+            notFound.initCause(e);
+            throw notFound;
+        }
+        emitNanos = System.nanoTime() - start;
+    }
+
+    /*
+     * Emission statistics, the last program's final code is kept so writing it out can be timed on its own.
+     */
+
+    private List<Instruction> emitted = Collections.emptyList();
+    private long emittedBytes;
+    private long emitNanos;
+
+    public void printEmitStats(PrintStream out) {
+        out.println("Emission:");
+        out.println("	" + emitted.size() + " lines, " + emittedBytes + " bytes in " + emitNanos / 1000 + " us (" + rate(emittedBytes, emitNanos) + ")");
+    }
+
+    /*
+     * Writes the last program's code rounds times through the byte emitter and through a PrintWriter,
+     * both into sinks that drop the output so only the cost of emission is measured.
+     */
+    public void benchmarkEmit(int rounds, PrintStream out) {
+        long[] sunk = new long[1];
+        WritableByteChannel channel = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                sunk[0] += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        long start = System.nanoTime();
+        try (AsmWriter writer = new AsmWriter(channel)) {
+            for (int r = 0; r < rounds; r++) {
+                for (Instruction i : emitted) {
+                    i.writeTo(writer);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // the sink never fails
+        }
+        long asmNanos = System.nanoTime() - start;
+        long asmBytes = sunk[0];
+
+        long[] printed = new long[1];
+        PrintWriter writer = new PrintWriter(new OutputStream() {
+            @Override
+            public void write(int b) {
+                printed[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                printed[0] += len;
+            }
+        });
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (Instruction i : emitted) {
+                writer.println(i);
+            }
+        }
+        writer.flush();
+        long printNanos = System.nanoTime() - start;
+
+        out.println("Emission benchmark, " + rounds + " rounds:");
+        out.println("	byte emitter: " + asmBytes + " bytes in " + asmNanos / 1000000 + " ms (" + rate(asmBytes, asmNanos) + ")");
+        out.println("	PrintWriter:  " + printed[0] + " bytes in " + printNanos / 1000000 + " ms (" + rate(printed[0], printNanos) + ")");
+    }
+
+    private static String rate(long bytes, long nanos) {
+        return String.format("%.1f MB/s", nanos == 0 ? 0.0 : bytes * 1e3 / nanos);
     }
 
     private int pass;
     private int ID;
-    private Stack<Integer> fSize;
-    private HashMap<String, LinkedList<offset>> structs;
+    private StringPool strings;
+
+    static final Set<String> BUILTINS = new HashSet<>(Arrays.asList(
+            "print_s", "print_i", "print_c", "read_i", "read_c", "mcmalloc"));
+
+    // state of the function being generated
+    private FunDecl function;
+    private Frame frame;
+    private HashMap<VarDecl, Register> regVars = new HashMap<>(); // variables living in registers
+    private Set<FunCallExpr> tailCalls = new HashSet<>();
+    private Map<Expr, Integer> resultSlots = new HashMap<>(); // where structs returned to be passed on are kept
+    private boolean loopsToSelf;
+    private String retLabel;
 
     @Override
     public Register visitBaseType(BaseType bt) {
@@ -59,24 +224,11 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
     @Override
     public Register visitStructTypeDecl(StructTypeDecl st) {
-        structs.put(st.st.name,new LinkedList<>());
-        LinkedList<offset> current = structs.get(st.st.name);
-        int sizeLast = 0;
-        boolean first = true;
-        for (VarDecl i : st.varDeclList) {
-            if (first) {
-                current.add(new offset(i.varName,sizeLast));
-                first=false;
-            } else {
-                current.add(new offset(i.varName, current.getLast().pos + sizeLast));
-            }
-            sizeLast = findSize(i.type) + (4-findSize(i.type)%4)%4;
-        }
-        current.add(new offset(current.getLast().pos+sizeLast));
+        //the layout comes with the type from the type checker
         return null;
     }
 
-    int curr_add = 0;
+    int curr_add = 0, frameLocals = 0;
     @Override
     public Register visitBlock(Block b) {
         if (pass == 0) {
@@ -84,91 +236,498 @@ public class CodeGenerator implements ASTVisitor<Register> {
                 i.accept(this);
             }
         } else if (pass == 1){
-            for (VarDecl i : b.varDeclList) {
+            //locals already have their place in the frame
+            for (Stmt i : b.stmtList) {
                 i.accept(this);
             }
-            int a;
-            int c;
-            try {
-                c=fSize.peek();
-            } catch (EmptyStackException e) {
-                c=0;
+        }
+        return null;
+    }
+
+    /*
+     * Gives every local of the function that is used but isn't kept in a register its place in the frame
+     * before any code is generated, blocks that can't be live at the same time share the same space.
+     */
+    private void allocateLocals(Stmt s, UseCounter counter) {
+        if (s instanceof Block) {
+            int start = curr_add;
+            for (VarDecl i : ((Block) s).varDeclList) {
+                if (!regVars.containsKey(i) && counter.uses(i) > 0)
+                    i.accept(this);
             }
-            fSize.push(curr_add);
-            a = fSize.peek();
-            writer.println("\tADDI $sp, $sp "+(a-c));
-            for (Stmt i : b.stmtList) {
-                i.accept(this);
+            frameLocals = Math.max(frameLocals, curr_add);
+            for (Stmt i : ((Block) s).stmtList) {
+                allocateLocals(i, counter);
             }
-            //Move stack pointer back down
-            a = fSize.pop();
-            try {
-                c=fSize.peek();
-            } catch (EmptyStackException e) {
-                c=0;
+            curr_add = start;
+        } else if (s instanceof If) {
+            allocateLocals(((If) s).st1, counter);
+            if (((If) s).st2 != null)
+                allocateLocals(((If) s).st2, counter);
+        } else if (s instanceof While) {
+            allocateLocals(((While) s).loop, counter);
+        }
+    }
+
+    /*
+     * Gives every struct a call returns that is passed straight on to another call a place in the
+     * frame, the struct is left in the callee's finished frame, which the next call reuses.
+     */
+    private void allocateResults(Block body) {
+        resultSlots = new HashMap<>();
+        body.accept(new ASTWalker() {
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                super.visitFunCallExpr(fce);
+                for (Expr arg : fce.args) {
+                    if (returnedStruct(arg)) {
+                        resultSlots.put(arg, frameLocals);
+                        frameLocals += StructLayout.alignUp(findSize(typeOf(arg)), 4);
+                    }
+                }
+                return null;
             }
-            writer.println("\tSUBI $sp, $sp "+(a-c));
-            curr_add=0;
+        });
+    }
+
+    /*
+     * Whether e is a struct that is part of what a call returned.
+     */
+    private static boolean returnedStruct(Expr e) {
+        if (!(typeOf(e) instanceof StructType))
+            return false;
+        while (e instanceof FieldAccessExpr) {
+            e = ((FieldAccessExpr) e).struct;
         }
-        return null;
+        return e instanceof FunCallExpr;
     }
 
+    static boolean isScalar(Type t) {
+        return t instanceof PointerType || t == BaseType.INT || t == BaseType.CHAR;
+    }
+
+    /*
+     * Finds the locals of a function and how often each variable is used,
+     * uses inside a loop count ten times as much as the ones outside it.
+     */
+    static class UseCounter extends ASTWalker {
+        final List<VarDecl> locals = new ArrayList<>();
+        final HashMap<VarDecl, Integer> uses = new HashMap<>();
+        private int depth = 0;
+
+        @Override
+        public Void visitVarDecl(VarDecl vd) {
+            locals.add(vd);
+            return null;
+        }
+
+        @Override
+        public Void visitVarExpr(VarExpr v) {
+            uses.merge(v.vd, (int) Math.pow(10, Math.min(depth, 6)), Integer::sum);
+            return null;
+        }
+
+        @Override
+        public Void visitWhile(While w) {
+            depth++;
+            super.visitWhile(w);
+            depth--;
+            return null;
+        }
+
+        int uses(VarDecl vd) {
+            return uses.getOrDefault(vd, 0);
+        }
+    }
+
+    // temporaries a leaf function may keep locals in, the rest are left for expressions
+    private static final int LEAF_LOCAL_TEMPS = 3;
+
+    /*
+     * What visitFunDecl decided the frame of the current function looks like.
+     */
+    private static class Frame {
+        int size, raOff, fpOff, savedOff;
+        boolean saveRa, needsFp;
+        List<Register> saved = new ArrayList<>();
+    }
+
+    /*
+     * Finds the calls in return f(...) that can reuse the frame of the current function, they can't
+     * if something the callee gets a pointer to might live in that frame. A call to another function
+     * also has to fit all its arguments in registers.
+     */
+    private Set<FunCallExpr> findTailCalls(FunDecl p, UseCounter counter) {
+        Set<FunCallExpr> found = new HashSet<>();
+        for (VarDecl vd : counter.locals) {
+            if (!isScalar(vd.type))
+                return found;
+        }
+        for (VarDecl vd : p.params) {
+            if (!isScalar(vd.type))
+                return found;
+        }
+        List<Expr> candidates = new ArrayList<>();
+        p.block.accept(new ASTWalker() {
+            @Override
+            public Void visitReturn(Return r) {
+                candidates.add(r.exp);
+                return null;
+            }
+        });
+        //so is a call the function falls off the end after
+        List<Stmt> body = p.block.stmtList;
+        if (!body.isEmpty() && body.get(body.size() - 1) instanceof ExprStmt)
+            candidates.add(((ExprStmt) body.get(body.size() - 1)).exp);
+        for (Expr e : candidates) {
+            if (e instanceof FunCallExpr) {
+                FunCallExpr fce = (FunCallExpr) e;
+                if (!BUILTINS.contains(fce.name) && (fce.name.equals(p.name) || fce.args.size() <= 4)
+                        && fce.args.stream().noneMatch(CodeGenerator::returnedStruct))
+                    found.add(fce);
+            }
+        }
+        return found;
+    }
+
+    private boolean selfTailCalls(int maxArgs) {
+        for (FunCallExpr fce : tailCalls) {
+            if (fce.name.equals(function.name) && fce.args.size() > maxArgs)
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Frame layout, the stack grows down and $fp = $sp once the prologue has run:
+     *   fp+F+4*(i-4)  arguments after the fourth, stored by the caller
+     *   fp+L ...      $ra, the callers $fp, then the callee saved registers used
+     *   fp ... fp+L   locals, and the homes of parameters that can't stay in a register
+     * The first four arguments arrive in $a0-$a3. Scalar parameters and as many of the most used
+     * scalar locals as fit stay in registers, $s registers if the function makes calls of its own.
+     * Each part of the frame is only there if something needs it, a leaf function whose
+     * variables all fit in registers has no frame at all. Calls in tail position don't count,
+     * they jump to the callee after the frame has been taken down.
+     */
     @Override
     public Register visitFunDecl(FunDecl p) {
         if (pass == 0) {
             p.block.accept(this);
-        } else if (pass == 1) { //need to figure out what to do with parameters
-            int stack_size = 16;
+        } else if (pass == 1) {
+            function = p;
+            UseCounter counter = new UseCounter();
+            p.block.accept(counter);
+            tailCalls = findTailCalls(p, counter);
+            boolean makesCalls = calls(p.block, false);
+            boolean usesBuiltins = calls(p.block, true);
+            regVars = new HashMap<>();
+            frame = new Frame();
+            curr_add = 0;
+            frameLocals = 0;
+            List<Register> reserved = new ArrayList<>();
+            for (int i = 0; i < p.params.size() && i < 4; i++) {
+                VarDecl param = p.params.get(i);
+                if (param.type instanceof StructType) {
+                    continue;
+                } else if (!isScalar(param.type)) {
+                    //the caller passes a single word
+                    param.offset = curr_add;
+                    curr_add += 4;
+                } else if (makesCalls) {
+                    Register home = Register.savedRegs.get(frame.saved.size());
+                    frame.saved.add(home);
+                    regVars.put(param, home);
+                } else if (i == 0 && usesBuiltins) {
+                    //syscalls take their argument in $a0
+                    Register home = getRegister();
+                    reserved.add(home);
+                    regVars.put(param, home);
+                } else {
+                    regVars.put(param, Register.paramRegs[i]);
+                }
+            }
+
+            //the caller passes the address of a struct, the callee works on its own copy
+            for (VarDecl param : p.params) {
+                if (param.type instanceof StructType) {
+                    param.offset = curr_add;
+                    curr_add += StructLayout.alignUp(findSize(param.type), 4);
+                }
+            }
+
+            //registers for the locals used most
+            LinkedList<Register> pool = new LinkedList<>();
+            int spareTemps = 0;
+            if (makesCalls) {
+                pool.addAll(Register.savedRegs.subList(frame.saved.size(), Register.savedRegs.size()));
+            } else {
+                for (int i = Math.max(p.params.size(), usesBuiltins ? 1 : 0); i < 4; i++) {
+                    pool.add(Register.paramRegs[i]);
+                }
+                pool.add(Register.v1);
+                spareTemps = LEAF_LOCAL_TEMPS;
+            }
+            List<VarDecl> candidates = new ArrayList<>();
+            for (VarDecl vd : counter.locals) {
+                if (isScalar(vd.type) && counter.uses(vd) > 0)
+                    candidates.add(vd);
+            }
+            candidates.sort((a, b) -> counter.uses(b) - counter.uses(a));
+            for (VarDecl vd : candidates) {
+                Register home;
+                if (!pool.isEmpty()) {
+                    home = pool.removeFirst();
+                    if (Register.savedRegs.contains(home))
+                        frame.saved.add(home);
+                } else if (spareTemps-- > 0) {
+                    home = getRegister();
+                    reserved.add(home);
+                } else {
+                    break;
+                }
+                regVars.put(vd, home);
+            }
+
+            frameLocals = curr_add;
+            allocateLocals(p.block, counter);
+            allocateResults(p.block);
+            frame.saveRa = makesCalls;
+            frame.needsFp = frameLocals > 0 || p.params.size() > 4;
+            frame.raOff = frameLocals;
+            frame.fpOff = frame.raOff + (frame.saveRa ? 4 : 0);
+            frame.savedOff = frame.fpOff + (frame.needsFp ? 4 : 0);
+            frame.size = frame.savedOff + 4 * frame.saved.size();
+            for (int i = 4; i < p.params.size(); i++) {
+                if (!(p.params.get(i).type instanceof StructType))
+                    p.params.get(i).offset = frame.size + 4 * (i - 4);
+            }
+
+            label(p.name);
+            List<Stmt> body = p.block.stmtList;
+            int first = 0;
+            //once the test is outside the frame, calls to the function itself have to start again from the top,
+            //which needs all the arguments in registers
+            if (frame.size > 0 && !selfTailCalls(4) && emitEarlyExit(p)) {
+                first = 1;
+                label(p.name + "_frame");
+            }
+            loopsToSelf = first == 0 && selfTailCalls(-1);
+            if (frame.size > 0) {
+                emit("ADDI", Register.sp, Register.sp, -frame.size);
+                if (frame.saveRa)
+                    emit("SW", Register.ra, at(frame.raOff, Register.sp));
+                if (frame.needsFp)
+                    emit("SW", Register.fp, at(frame.fpOff, Register.sp));
+                for (int i = 0; i < frame.saved.size(); i++) {
+                    emit("SW", frame.saved.get(i), at(frame.savedOff + 4 * i, Register.sp));
+                }
+                if (frame.needsFp)
+                    emit("MOVE", Register.fp, Register.sp);
+            }
+            if (loopsToSelf)
+                label(p.name + "_loop");
+            for (int i = 0; i < p.params.size() && i < 4; i++) {
+                VarDecl param = p.params.get(i);
+                Register home = regVars.get(param);
+                if (param.type instanceof StructType) {
+                    continue;
+                } else if (home == null) {
+                    emit("SW", Register.paramRegs[i], at(param.offset, Register.fp));
+                } else if (home != Register.paramRegs[i]) {
+                    emit("MOVE", home, Register.paramRegs[i]);
+                }
+            }
             for (int i = 0; i < p.params.size(); i++) {
-                p.params.get(i).offset = stack_size;
-                stack_size+=4;
+                VarDecl param = p.params.get(i);
+                if (!(param.type instanceof StructType))
+                    continue;
+                Register from = getRegister();
+                if (i < 4)
+                    emit("MOVE", from, Register.paramRegs[i]);
+                else
+                    emit("LW", from, at(frame.size + 4 * (i - 4), Register.fp));
+                Register to = getRegister();
+                emit("ADDI", to, Register.fp, param.offset);
+                emitBlockCopy(to, from, (StructType) param.type);
+                freeRegister(to);
+                freeRegister(from);
+            }
+
+            retLabel = frame.size > 0 ? p.name + "_ret" : null;
+            for (Stmt i : body.subList(first, body.size())) {
+                i.accept(this);
+            }
+
+            if (frame.size > 0) {
+                label(retLabel);
+                emitEpilogue();
+            }
+            emit("JR", Register.ra);
+            for (Register r : reserved) {
+                freeRegister(r);
             }
-            writer.println(p.name+":");
-            curr_add = stack_size;
-            p.block.accept(this);
-            writer.println("\tjr $ra");
         }
         return null;
     }
 
+    /*
+     * Takes the frame down again, everything but the return itself.
+     */
+    private void emitEpilogue() {
+        Register base = frame.needsFp ? Register.fp : Register.sp;
+        if (frame.saveRa)
+            emit("LW", Register.ra, at(frame.raOff, base));
+        for (int i = 0; i < frame.saved.size(); i++) {
+            emit("LW", frame.saved.get(i), at(frame.savedOff + 4 * i, base));
+        }
+        emit("ADDI", Register.sp, base, frame.size);
+        if (frame.needsFp)
+            emit("LW", Register.fp, at(frame.fpOff, Register.fp));
+    }
+
+    /*
+     * return f(...), a call to the function itself goes back to the start of its body with the new
+     * arguments, anything else jumps to the callee once the frame is gone so it returns to our caller.
+     * So does a call to itself when the function starts with a test outside the frame.
+     */
+    private void emitTailCall(FunCallExpr fce) {
+        int pop = emitArguments(fce.args, false);
+        if (fce.name.equals(function.name) && loopsToSelf) {
+            for (int i = 4; i < fce.args.size(); i++) {
+                Register temp = getRegister();
+                emit("LW", temp, at(4 * (i - 4), Register.sp));
+                emit("SW", temp, at(function.params.get(i).offset, Register.fp));
+                freeRegister(temp);
+            }
+            if (pop > 0)
+                emit("ADDI", Register.sp, Register.sp, pop);
+            emit("J", function.name + "_loop");
+        } else {
+            if (pop > 0)
+                emit("ADDI", Register.sp, Register.sp, pop);
+            //before the prologue there is no frame to take down
+            if (retLabel != null)
+                emitEpilogue();
+            emit("J", fce.name);
+        }
+    }
+
+    /*
+     * Shrink wrapping. A function starting with if (...) { ...; return ...; } where that path
+     * makes no calls of its own and only needs the arguments as they arrived takes it before
+     * the frame is set up. Returns whether the first statement has been dealt with.
+     */
+    private boolean emitEarlyExit(FunDecl p) {
+        if (p.block.stmtList.isEmpty() || !(p.block.stmtList.get(0) instanceof If))
+            return false;
+        If guard = (If) p.block.stmtList.get(0);
+        Stmt last = guard.st1;
+        if (last instanceof Block) {
+            List<Stmt> stmts = ((Block) last).stmtList;
+            last = stmts.isEmpty() ? null : stmts.get(stmts.size() - 1);
+        }
+        if (guard.st2 != null || !(last instanceof Return) || calls(guard.cond, true) || calls(guard.st1, false))
+            return false;
+        UseCounter counter = new UseCounter();
+        guard.accept(counter);
+        HashMap<VarDecl, Register> incoming = new HashMap<>();
+        for (int i = 0; i < p.params.size() && i < 4; i++) {
+            if (isScalar(p.params.get(i).type))
+                incoming.put(p.params.get(i), Register.paramRegs[i]);
+        }
+        if (!counter.locals.isEmpty())
+            return false;
+        for (VarDecl vd : counter.uses.keySet()) {
+            //anything else is a global
+            if (!incoming.containsKey(vd) && (regVars.containsKey(vd) || vd.offset != -1 || p.params.contains(vd)))
+                return false;
+        }
+
+        HashMap<VarDecl, Register> homes = regVars;
+        regVars = incoming;
+        retLabel = null;
+        emitCondJump(guard.cond, false, p.name + "_frame");
+        Register keep = null;
+        UseCounter thenUses = new UseCounter();
+        guard.st1.accept(thenUses);
+        if (!p.params.isEmpty() && thenUses.uses(p.params.get(0)) > 0 && calls(guard.st1, true)) {
+            //syscalls take their argument in $a0
+            keep = getRegister();
+            emit("MOVE", keep, Register.paramRegs[0]);
+            regVars.put(p.params.get(0), keep);
+        }
+        guard.st1.accept(this);
+        if (keep != null)
+            freeRegister(keep);
+        regVars = homes;
+        return true;
+    }
+
+    /*
+     * The passes over the AST every backend writing machine code runs first, sizes are the target's.
+     */
+    static void optimise(Program p, Inliner inliner, ToIntFunction<Type> sizes) {
+        //inline small functions first so their bodies are folded with the arguments in place
+        inliner.inline(p);
+        //fold constant expressions, sizeof included
+        p.accept(new ConstantFolder(sizes));
+        //hoist invariant work out of loops and walk arrays with pointers
+        new LoopOptimiser(sizes).optimise(p);
+        //compute repeated expressions once
+        new CommonSubexpressions(sizes).eliminate(p);
+        //drop code that never runs and stores nobody reads
+        new DeadCodeEliminator().eliminate(p);
+    }
+
     @Override
     public Register visitProgram(Program p) {
-        //get struct sizes and offsets
-        structs = new HashMap<>();
-        for (StructTypeDecl i : p.structTypeDecls) {
-            i.accept(this);
-        }
+        optimise(p, inliner, this::findSize);
         //look through for global variables and strings
         pass = 0; ID = 0;
-        writer.println(".data");
+        strings = new StringPool();
+        raw(".data");
         for (VarDecl i : p.varDecls) {
             i.accept(this);
         }
         for (FunDecl i : p.funDecls) {
             i.accept(this);
         }
+        //every occurrence of a string shares one copy
+        strings.emit(this::raw);
 
         //write text segment
         pass=1;
-        writer.println(".text");
-        writer.println("\tMOVE $fp, $sp");
-        fSize=new Stack<>();
-        writer.println("\tJAL main");
-        writer.println("\tLI $v0, 10\n\tSYSCALL");
+        raw(".text");
+        emit("JAL", "main");
+        emit("LI", Register.v0, 10);
+        emit("SYSCALL");
 	    for (FunDecl i : p.funDecls) {
             i.accept(this);
         }
         return null;
     }
 
+    private int dataSize; // bytes of globals so far, to keep the next one aligned
+
     @Override
     public Register visitVarDecl(VarDecl vd) {
         if (pass == 0) {
-            writer.println("\t"+vd.varName+": .space "+findSize(vd.type));
+            int align = StructLayout.alignOf(vd.type);
+            if (dataSize % align != 0) {
+                raw("\t.align " + Integer.numberOfTrailingZeros(align));
+                dataSize = StructLayout.alignUp(dataSize, align);
+            }
+            if (vd.type == BaseType.CHAR)
+                raw("\t" + vd.varName + ": .byte 0");
+            else
+                raw("\t" + vd.varName + ": .space " + findSize(vd.type));
+            dataSize += findSize(vd.type);
             vd.offset=-1;
         } else if (pass == 1) {
-            curr_add+=findSize(vd.type);
-            vd.offset=curr_add;
+            //offset is the lowest address of the variable, arrays and structs extend upwards from it,
+            //every local starts on a word
+            vd.offset = curr_add;
+            curr_add += StructLayout.alignUp(findSize(vd.type), 4);
         }
         return null;
     }
@@ -179,28 +738,22 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
         } else if (pass == 1) {
             Register out = getRegister();
-            if (v.vd.offset < -1 && v.vd.offset >= -4) {
-                out = Register.paramRegs[-1*v.vd.offset-2];
+            Register home = regVars.get(v.vd);
+            if (home != null) {
+                //only scalars live in registers, so this is never asked for an address
+                emit("MOVE", out, home);
+            } else if (init != -1 && !(v.vd.type instanceof ArrayType)) {
+                if (v.vd.offset == -1) {
+                    emit(load(v.vd.type), out, v.name);
+                } else {
+                    emit(load(v.vd.type), out, at(v.vd.offset, Register.fp));
+                }
             } else {
-                if (init != -1) {
-                    writer.print("\tLW " + out + ", ");
-                    if (v.vd.offset == -1) {
-                        writer.println(v.name);
-                    } else if (v.vd.offset < -1) {
-                        writer.println(v.vd.offset + 1 + "($fp)");
-                    } else {
-                        writer.println(v.vd.offset + "($fp)");
-                    }
+                //arrays are only ever used by address
+                if (v.vd.offset == -1) {
+                    emit("LA", out, v.name);
                 } else {
-                    if (v.vd.offset == -1)
-                        writer.println("\tLA "+out+", "+v.name);
-                    else {
-                        writer.println("\tLA " + out + ", ($fp)");
-                        if (v.vd.offset < -1)
-                            writer.println("\tADDI " + out + ", " + out + " " + (v.vd.offset+1));
-                        else
-                            writer.println("\tADDI " + out + ", " + out + " " + v.vd.offset);
-                    }
+                    emit("ADDI", out, Register.fp, v.vd.offset);
                 }
             }
             return out;
@@ -238,7 +791,7 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
         } else if (pass == 1) {
             Register reg = getRegister();
-            writer.println("\tLI "+reg+", "+il.number);
+            emit("LI", reg, il.number);
             return reg;
         }
         return null;
@@ -247,11 +800,10 @@ public class CodeGenerator implements ASTVisitor<Register> {
     @Override
     public Register visitStringLiteral(StrLiteral sl) {
         if (pass == 0) {
-            sl.id = ID++;
-            writer.println("\tString"+sl.id+": .asciiz \""+sl.string+"\"");
+            strings.add(sl.string);
         } else if (pass == 1) {
         	Register out = getRegister();
-        	writer.println("\tLA "+out+", String"+sl.id);
+        	emit("LA", out, strings.address(sl.string));
         	return out;
         }
         return null;
@@ -263,27 +815,29 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
         } else if (pass == 1) {
             Register out = getRegister();
-            writer.print("\tLI " + out + ", '");
+            String c;
             if (cl.c == '\n') {
-                writer.print("\\n");
+                c = "\\n";
             } else if (cl.c == '\"') {
-                writer.print("\"");
+                c = "\"";
+            } else if (cl.c == '\'') {
+                c = "\\'";
             } else if (cl.c == '\\') {
-                writer.print("\\\\");
+                c = "\\\\";
             } else if (cl.c == '\t') {
-                writer.print("\\t");
+                c = "\\t";
             } else if (cl.c == '\b') {
-                writer.print("\\b");
+                c = "\\b";
             } else if (cl.c == '\r') {
-                writer.print("\\r");
+                c = "\\r";
             } else if (cl.c == '\f') {
-                writer.print("\\f");
+                c = "\\f";
             } else if (cl.c == '\0') {
-                writer.print("\\0");
+                c = "\\0";
             } else {
-                writer.print(cl.c);
+                c = String.valueOf(cl.c);
             }
-            writer.println("'");
+            emit("LI", out, "'" + c + "'");
             return out;
         }
         return null;
@@ -296,85 +850,271 @@ public class CodeGenerator implements ASTVisitor<Register> {
                 i.accept(this);
             }
         } else if (pass == 1) {
-            try {
-                if (fce.args.get(0).type instanceof ArrayType)
-                    init = -1;
-                Register a1 = fce.args.get(0).accept(this);
-                if (fce.args.get(0).type instanceof ArrayType)
-                    init = 0;
-                writer.println("\tMOVE $a0, "+a1);
-                freeRegister(a1);
-            } catch (Exception e) {
-                // do nothing if there's no arguments to the function
-            }
-            //run function
-            switch (fce.name) {
-                case "print_s": //to make generic
-                    writer.println("\tLI $v0, 4");
-                    writer.println("\tsyscall");
-                    break;
-                case "print_i":
-                    writer.println("\tLI $v0, 1");
-                    writer.println("\tSYSCALL");
-                    break;
-                case "print_c":
-                    writer.println("\tLI $v0, 11");
-                    writer.println("\tSYSCALL");
-                    break;
-                case "read_i":
-                    writer.println("\tLI $v0, 5");
-                    writer.println("\tSYSCALL");
-                    break;
-                case "read_c":
-                    writer.println("\tLI $v0, 12");
-                    writer.println("\tSYSCALL");
-                    break;
-                case "mcmalloc":
-                    writer.println("\tLI $v0, 9");
-                    writer.println("\tSYSCALL");
-                    break;
-                default:
-                    //store arguments onto stack as regular variables
-                    //inefficient but works
-                    int stack=16;
-                    writer.println("\tSW $a0, 16($sp)"); //save previous evaluation
-                    writer.println("\tADDI $sp, $sp, "+(stack));
-                    List<Expr> rest;
-                    try {
-                        rest = fce.args.subList(1, fce.args.size());
-                    } catch (IllegalArgumentException e) {
-                        rest = new LinkedList();
-                    }
-                    for (Expr i : rest) {
-                        if (i.type instanceof ArrayType)
-                            init = -1;
-                        Register temp = i.accept(this);
-                        if (i.type instanceof ArrayType)
-                            init = 0;
-                        writer.println("\tSW "+temp+", 4($sp)");
-                        writer.println("\tADDI $sp, $sp 4");
-                        stack+=4;
-                        freeRegister(temp);
-                    }
-                    writer.println("\tSW $fp, "+(-1*(stack)+4)+"($sp)");
-                    writer.println("\tSW $sp, "+(-1*(stack)+8)+"($sp)");
-                    writer.println("\tSW $ra, "+(-1*(stack)+12)+"($sp)");
-                    writer.println("\tMOVE $fp, $sp");
-                    writer.println("\tSUBI $fp, $fp "+(stack));
-                    //jump to function
-                	writer.println("\tjal "+fce.name);
-                	//restore old frame
-                	writer.println("\tLW $ra, 12($fp)");
-                	writer.println("\tLW $sp, 8($fp)");
-                	writer.println("\tLW $fp, 4($fp)");
-                    // restore stack to before function call
-                	writer.println("\tSUBI $sp, $sp "+stack);
+            List<Expr> args = fce.args;
+            if (BUILTINS.contains(fce.name)) {
+                if (!args.isEmpty()) {
+                    Register a0 = emitArgument(args.get(0));
+                    emit("MOVE", Register.paramRegs[0], a0);
+                    freeRegister(a0);
+                }
+                switch (fce.name) {
+                    case "print_s": //to make generic
+                        emit("LI", Register.v0, 4);
+                        emit("SYSCALL");
+                        break;
+                    case "print_i":
+                        emit("LI", Register.v0, 1);
+                        emit("SYSCALL");
+                        break;
+                    case "print_c":
+                        emit("LI", Register.v0, 11);
+                        emit("SYSCALL");
+                        break;
+                    case "read_i":
+                        emit("LI", Register.v0, 5);
+                        emit("SYSCALL");
+                        break;
+                    case "read_c":
+                        emit("LI", Register.v0, 12);
+                        emit("SYSCALL");
+                        break;
+                    case "mcmalloc":
+                        emit("LI", Register.v0, 9);
+                        emit("SYSCALL");
+                        break;
+                }
+                return Register.v0;
             }
+            int pop = emitArguments(args, true);
+            emit("JAL", fce.name);
+            if (pop > 0)
+                emit("ADDI", Register.sp, Register.sp, pop);
             return Register.v0;
         }
         return null;
     }
 
+    /*
+     * Puts call arguments where the callee expects them, the first four in $a0-$a3 and the rest on
+     * the stack just above the callee's frame. Returns how far $sp has to move back after the call.
+     * Unless direct is set nothing is moved into an argument register until every argument has been
+     * evaluated, as the arguments may still read them.
+     */
+    private int emitArguments(List<Expr> args, boolean direct) {
+        //evaluate everything first, values a later argument's call would clobber wait on the stack
+        Register[] values = new Register[args.size()];
+        int[] pushedAt = new int[args.size()];
+        int pushed = 0;
+        for (int i = 0; i < args.size(); i++) {
+            Register r = emitArgument(args.get(i));
+            boolean clobbered = false;
+            for (int j = i + 1; j < args.size(); j++) {
+                clobbered |= calls(args.get(j), true);
+            }
+            if (clobbered) {
+                push(r);
+                freeRegister(r);
+                pushedAt[i] = pushed++;
+            } else if (i < 4 && direct) {
+                //nothing after this calls, so the argument register is safe already
+                emit("MOVE", Register.paramRegs[i], r);
+                freeRegister(r);
+                values[i] = Register.paramRegs[i];
+            } else {
+                values[i] = r;
+            }
+        }
+        //arguments after the fourth go just above the callee's frame
+        int stackArgs = Math.max(0, args.size() - 4);
+        if (stackArgs > 0)
+            emit("ADDI", Register.sp, Register.sp, -4 * stackArgs);
+        for (int i = 0; i < args.size(); i++) {
+            Register r = values[i];
+            if (r == null) {
+                Instruction.Address slot = at(4 * stackArgs + 4 * (pushed - 1 - pushedAt[i]), Register.sp);
+                r = i < 4 ? Register.paramRegs[i] : getRegister();
+                emit("LW", r, slot);
+            } else if (i < 4 && r != Register.paramRegs[i]) {
+                emit("MOVE", Register.paramRegs[i], r);
+            }
+            if (i >= 4)
+                emit("SW", r, at(4 * (i - 4), Register.sp));
+            freeRegister(r);
+        }
+        return 4 * (stackArgs + pushed);
+    }
+
+    private Register emitArgument(Expr arg) {
+        //arrays and structs are passed by address
+        Type t = typeOf(arg);
+        if (t instanceof ArrayType || t instanceof StructType) {
+            Register out = emitAddress(arg);
+            Integer slot = resultSlots.get(arg);
+            if (slot != null) {
+                Register to = getRegister();
+                emit("ADDI", to, Register.fp, slot);
+                emitBlockCopy(to, out, (StructType) t);
+                emit("ADDI", out, Register.fp, slot);
+                freeRegister(to);
+            }
+            return out;
+        }
+        return arg.accept(this);
+    }
+
+    /*
+     * The address of an array or struct valued expression. A call returning a struct gives the address
+     * of the struct in the callee's finished frame, it has to be copied out before anything else is
+     * pushed or called.
+     */
+    private Register emitAddress(Expr e) {
+        int tinit = init;
+        Register out;
+        if (e instanceof FunCallExpr) {
+            init = 0;
+            Register result = e.accept(this);
+            out = getRegister();
+            emit("MOVE", out, result);
+        } else {
+            init = -1;
+            out = e.accept(this);
+        }
+        init = tinit;
+        return out;
+    }
+
+    private static final int COPY_UNROLL = 8; // units copied without a loop
+    private static final int COPY_WIDTH = 4; // registers loaded before they are stored
+
+    /*
+     * Copies a struct, in words when it is word aligned and in bytes otherwise. Up to COPY_WIDTH units
+     * are loaded before they are stored so the loads don't wait on each other. Small structs are copied
+     * in a straight line, bigger ones go round a loop moving COPY_WIDTH units at a time and do what's
+     * left over after it. Both registers are moved on by the loop.
+     */
+    private void emitBlockCopy(Register to, Register from, StructType type) {
+        Type unit = type.layout.align % 4 == 0 ? BaseType.INT : BaseType.CHAR;
+        int step = findSize(unit);
+        int units = type.layout.size / step;
+        boolean loop = units > COPY_UNROLL;
+        int width = Math.max(1, Math.min(COPY_WIDTH, freeRegs.size() - (loop ? 1 : 0)));
+        List<Register> regs = new ArrayList<>();
+        for (int i = 0; i < width; i++) {
+            regs.add(getRegister());
+        }
+        int done = 0;
+        if (loop) {
+            int chunk = width * step;
+            int rounds = units / width;
+            String label = "Copy_" + ID++;
+            Register end = getRegister();
+            emit("ADDI", end, from, rounds * chunk);
+            label(label);
+            for (int i = 0; i < width; i++) {
+                emit(load(unit), regs.get(i), at(i * step, from));
+            }
+            emit("ADDI", from, from, chunk);
+            for (int i = 0; i < width; i++) {
+                emit(store(unit), regs.get(i), at(i * step, to));
+            }
+            emit("ADDI", to, to, chunk);
+            emit("BNE", from, end, label);
+            freeRegister(end);
+            done = rounds * width;
+        }
+        //the registers now point at the first unit the loop didn't do
+        int base = done;
+        while (done < units) {
+            int n = Math.min(width, units - done);
+            for (int i = 0; i < n; i++) {
+                emit(load(unit), regs.get(i), at((done + i - base) * step, from));
+            }
+            for (int i = 0; i < n; i++) {
+                emit(store(unit), regs.get(i), at((done + i - base) * step, to));
+            }
+            done += n;
+        }
+        for (Register r : regs) {
+            freeRegister(r);
+        }
+    }
+
+    /*
+     * dst = src for structs. A struct returned by a call is copied before anything else can overwrite
+     * it, so the destination's address is worked out first when that needs a call of its own.
+     */
+    private void emitStructAssign(Expr dst, Expr src, StructType type) {
+        Register to;
+        Register from;
+        if (src instanceof FunCallExpr && calls(dst, true)) {
+            to = emitAddress(dst);
+            push(to);
+            freeRegister(to);
+            from = emitAddress(src);
+            to = reload();
+        } else if (src instanceof FunCallExpr) {
+            from = emitAddress(src);
+            to = emitAddress(dst);
+        } else {
+            from = emitAddress(src);
+            if (calls(dst, true)) {
+                push(from);
+                freeRegister(from);
+                to = emitAddress(dst);
+                from = reload();
+            } else {
+                to = emitAddress(dst);
+            }
+        }
+        emitBlockCopy(to, from, type);
+        freeRegister(to);
+        freeRegister(from);
+    }
+
+    /*
+     * Whether evaluating a statement or expression can call a function, builtins only count
+     * when asked for. Anything kept in a temporary register over such a call has to be saved.
+     * Tail calls don't return here, only their arguments can call anything.
+     */
+    private boolean calls(ASTNode n, boolean builtins) {
+        if (n instanceof FunCallExpr) {
+            FunCallExpr fce = (FunCallExpr) n;
+            if (!tailCalls.contains(fce) && (builtins || !BUILTINS.contains(fce.name)))
+                return true;
+            for (Expr i : fce.args) {
+                if (calls(i, builtins))
+                    return true;
+            }
+        } else if (n instanceof BinOp) {
+            return calls(((BinOp) n).E1, builtins) || calls(((BinOp) n).E2, builtins);
+        } else if (n instanceof ArrayAccessExpr) {
+            return calls(((ArrayAccessExpr) n).exp, builtins) || calls(((ArrayAccessExpr) n).index, builtins);
+        } else if (n instanceof FieldAccessExpr) {
+            return calls(((FieldAccessExpr) n).struct, builtins);
+        } else if (n instanceof ValueAtExpr) {
+            return calls(((ValueAtExpr) n).exp, builtins);
+        } else if (n instanceof TypecastExpr) {
+            return calls(((TypecastExpr) n).exp, builtins);
+        } else if (n instanceof Block) {
+            for (Stmt i : ((Block) n).stmtList) {
+                if (calls(i, builtins))
+                    return true;
+            }
+        } else if (n instanceof If) {
+            If i = (If) n;
+            return calls(i.cond, builtins) || calls(i.st1, builtins) || calls(i.st2, builtins);
+        } else if (n instanceof While) {
+            return calls(((While) n).cond, builtins) || calls(((While) n).loop, builtins);
+        } else if (n instanceof ExprStmt) {
+            return calls(((ExprStmt) n).exp, builtins);
+        } else if (n instanceof Assign) {
+            return calls(((Assign) n).e1, builtins) || calls(((Assign) n).e2, builtins);
+        } else if (n instanceof Return) {
+            return calls(((Return) n).exp, builtins);
+        }
+        return false;
+    }
+
     @Override
     public Register visitBinOp(BinOp bo) {
         if (pass == 0) {
@@ -382,71 +1122,81 @@ public class CodeGenerator implements ASTVisitor<Register> {
 			bo.E2.accept(this);
         } else if (pass == 1) {
             if (bo.op == Op.OR || bo.op == Op.AND) { //short circuit operation
-                Register e1 = bo.E1.accept(this);
                 String end = "end"+ID;
-                String pass = "pass"+ID;
                 String fail = "fail"+ID++;
-                if (bo.op == Op.OR) {
-                    writer.println("\tBNEZ "+e1+", "+pass);
-                    freeRegister(e1);
-                    e1 = bo.E2.accept(this);
-                    writer.println("\tBNEZ "+e1+", "+pass);
-                    writer.println("\tJ "+fail);
+                emitCondJump(bo, false, fail);
+                Register out = getRegister();
+                emit("LI", out, 1);
+                emit("J", end);
+                label(fail);
+                emit("LI", out, 0);
+                label(end);
+                return out;
+            } else if (bo.op == Op.SUB && ConstantFolder.constant(bo.E1) != null && ConstantFolder.constant(bo.E1) == 0) {
+                //unary minus
+                Register e2 = bo.E2.accept(this);
+                Register out = getRegister();
+                emit("SUB", out, Register.zero, e2);
+                freeRegister(e2);
+                return out;
+            } else { //other operations
+                Expr left = bo.E1;
+                Expr right = bo.E2;
+                if (bo.op == Op.MUL && ConstantFolder.constant(left) != null) {
+                    //keep the constant on the right so it can be strength reduced
+                    left = bo.E2;
+                    right = bo.E1;
+                }
+                Register e1 = left.accept(this); //parser fills left tree
+                Register e2;
+                Integer c2 = ConstantFolder.constant(right);
+                if (c2 != null) {
+                    //no need to save e1 when the right hand side is a constant
+                    if ((bo.op == Op.ADD || bo.op == Op.SUB) && c2 > Short.MIN_VALUE && c2 <= Short.MAX_VALUE) {
+                        emit("ADDI", e1, e1, bo.op == Op.ADD ? c2 : -c2);
+                        return e1;
+                    }
+                    if ((bo.op == Op.MUL && emitMulConst(e1, c2)) || (bo.op == Op.DIV && emitDivConst(e1, c2))
+                            || (bo.op == Op.MOD && emitModConst(e1, c2))) {
+                        return e1;
+                    }
+                    e2 = getRegister();
+                    emit("LI", e2, c2);
                 } else {
-                    writer.println("\tBEQZ "+e1+", "+fail);
-                    freeRegister(e1);
-                    e1 = bo.E2.accept(this);
-                    writer.println("\tBEQZ "+e1+", "+fail);
-                    writer.println("\tJ "+pass);
+                    Register[] ops = emitSecondOperand(e1, right);
+                    e1 = ops[0];
+                    e2 = ops[1];
                 }
-                writer.println(pass+":");
-                writer.println("\tLI "+e1+", 1");
-                writer.println("\tJ "+end);
-                writer.println(fail+":");
-                writer.println("\tLI "+e1+", 0");
-                writer.println(end+":");
-                return e1;
-            } else { //other operations
-                Register e1 = bo.E1.accept(this); //parser fills left tree
-                //store intermediate results onto the stack to save registers
-                writer.println("\tSW "+e1+", 4($sp)");
-                writer.println("\tADDI $sp, $sp 4");
-                freeRegister(e1);
-                Register e2 = bo.E2.accept(this);
-                //get intermediate results off stack
-                e1=getRegister();
-                writer.println("\tLW "+e1+", ($sp)");
-                writer.println("\tSUBI $sp, $sp 4");
                 if (bo.op == Op.DIV || bo.op == Op.MUL) {
                     if (bo.op == Op.DIV) {
-                        writer.println("\tDIV "+e1+", "+e1+" "+e2);
+                        emit("DIV", e1, e1, e2);
                     } else {
-                        writer.println("\tMUL "+e1+", "+e1+" "+e2);
+                        emit("MUL", e1, e1, e2);
                     }
-                    writer.println("\tMFLO "+e1);
+                    emit("MFLO", e1);
                 } else if (bo.op == Op.MOD) {
-                    writer.println("\tDIV "+e1+", "+e1+" "+e2);
-                    writer.println("\tMFHI "+e1);
+                    emit("DIV", e1, e1, e2);
+                    emit("MFHI", e1);
                 } else if (bo.op == Op.ADD) {
-                    writer.println("\tADD "+e1+", "+e1+" "+e2);
+                    emit("ADD", e1, e1, e2);
                 } else if (bo.op == Op.SUB) {
-                    writer.println("\tSUB "+e1+", "+e1+" "+e2);
+                    emit("SUB", e1, e1, e2);
                 } else if (bo.op == Op.GT) {
-                    writer.println("\tSGT "+e1+", "+e1+" "+e2);
+                    emit("SGT", e1, e1, e2);
                 } else if (bo.op == Op.LT) {
-                    writer.println("\tSLT "+e1+", "+e1+" "+e2);
+                    emit("SLT", e1, e1, e2);
                 } else if (bo.op == Op.GE) {
-                    writer.println("\tSGE "+e1+", "+e1+" "+e2);
+                    emit("SGE", e1, e1, e2);
                 } else if (bo.op == Op.LE) {
-                    writer.println("\tSLE "+e1+", "+e1+" "+e2);
+                    emit("SLE", e1, e1, e2);
                 } else if (bo.op == Op.NE) {
-                    writer.println("\tSEQ "+e1+", "+e1+" "+e2);
+                    emit("SEQ", e1, e1, e2);
                     Register temp = getRegister();
-                    writer.println("\tLI "+temp+", 1");
-                    writer.println("\tSUB "+e1+", "+temp+" "+e1);
+                    emit("LI", temp, 1);
+                    emit("SUB", e1, temp, e1);
                     freeRegister(temp);
                 } else if (bo.op == Op.EQ) {
-                    writer.println("\tSEQ "+e1+", "+e1+" "+e2);
+                    emit("SEQ", e1, e1, e2);
                 }
                 freeRegister(e2);
                 return e1;
@@ -455,6 +1205,104 @@ public class CodeGenerator implements ASTVisitor<Register> {
         return null;
     }
 
+    /*
+     * Evaluates the right operand of a binary operation while the left one is already in e1,
+     * returns the registers holding the left and right values.
+     */
+    private Register[] emitSecondOperand(Register e1, Expr right) {
+        //store intermediate results onto the stack to save registers
+        push(e1);
+        freeRegister(e1);
+        Register e2 = right.accept(this);
+        //get intermediate results off stack
+        e1=getRegister();
+        pop(e1);
+        return new Register[] {e1, e2};
+    }
+
+    private Register reload() {
+        Register r = getRegister();
+        pop(r);
+        return r;
+    }
+
+    // the stack grows down, everything from $sp up belongs to the current frame
+    private void push(Register r) {
+        emit("ADDI", Register.sp, Register.sp, -4);
+        emit("SW", r, at(0, Register.sp));
+    }
+
+    private void pop(Register r) {
+        emit("LW", r, at(0, Register.sp));
+        emit("ADDI", Register.sp, Register.sp, 4);
+    }
+
+    /*
+     * Compiles a condition directly into control flow: jumps to target when the condition's truth
+     * equals jumpIf and falls through otherwise. Comparisons become a single branch and && and ||
+     * become chains of branches, without ever materialising a boolean.
+     */
+    private void emitCondJump(Expr cond, boolean jumpIf, String target) {
+        Integer c = ConstantFolder.constant(cond);
+        if (c != null) {
+            if ((c != 0) == jumpIf)
+                emit("J", target);
+            return;
+        }
+        if (cond instanceof BinOp) {
+            BinOp bo = (BinOp) cond;
+            if (bo.op == Op.AND || bo.op == Op.OR) {
+                //jumping on the operation's own short circuit value can go straight to target
+                boolean shortCircuit = bo.op == Op.OR;
+                if (jumpIf == shortCircuit) {
+                    emitCondJump(bo.E1, jumpIf, target);
+                    emitCondJump(bo.E2, jumpIf, target);
+                } else {
+                    String skip = "skip"+ID++;
+                    emitCondJump(bo.E1, shortCircuit, skip);
+                    emitCondJump(bo.E2, jumpIf, target);
+                    label(skip);
+                }
+                return;
+            }
+            String branch = branchFor(bo.op, jumpIf);
+            if (branch != null) {
+                Register e1 = bo.E1.accept(this);
+                Integer c2 = ConstantFolder.constant(bo.E2);
+                if (c2 != null && c2 == 0) {
+                    emit(branch + "Z", e1, target);
+                } else if (c2 != null) {
+                    emit(branch, e1, c2, target);
+                } else {
+                    Register[] ops = emitSecondOperand(e1, bo.E2);
+                    e1 = ops[0];
+                    emit(branch, e1, ops[1], target);
+                    freeRegister(ops[1]);
+                }
+                freeRegister(e1);
+                return;
+            }
+        }
+        Register r = cond.accept(this);
+        emit(jumpIf ? "BNEZ" : "BEQZ", r, target);
+        freeRegister(r);
+    }
+
+    /*
+     * The branch taken when a comparison is jumpIf, null for operations that aren't comparisons.
+     */
+    private static String branchFor(Op op, boolean jumpIf) {
+        switch (op) {
+            case GT: return jumpIf ? "BGT" : "BLE";
+            case LT: return jumpIf ? "BLT" : "BGE";
+            case GE: return jumpIf ? "BGE" : "BLT";
+            case LE: return jumpIf ? "BLE" : "BGT";
+            case EQ: return jumpIf ? "BEQ" : "BNE";
+            case NE: return jumpIf ? "BNE" : "BEQ";
+            default: return null;
+        }
+    }
+
     @Override
     public Register visitOp(Op o) {
         if (pass == 0) {
@@ -484,26 +1332,38 @@ public class CodeGenerator implements ASTVisitor<Register> {
             } else {
                 addr = aae.exp.accept(this);
             }
-            int tinit = init;
-            init = 0;
-            Register off = aae.index.accept(this);
-            init = tinit;
-            Register temp = getRegister();
-            if (aae.exp instanceof VarExpr && aae.exp.type == null) {
-                int i = findSize(((VarExpr) aae.exp).vd.type);
-                writer.println("\tLI " + temp + ", " + i);
+            Type element = typeOf(aae);
+            int size = findSize(element);
+            nest -= 1;
+            Integer index = ConstantFolder.constant(aae.index);
+            if (index != null && (long) index * size < Short.MAX_VALUE && (long) index * size > Short.MIN_VALUE) {
+                //constant index, the offset is known now
+                if (index != 0)
+                    emit("ADDI", addr, addr, index * size);
             } else {
-                int i = findSize(aae.exp.type);
-                writer.println("\tLI " + temp + ", " + i);
+                int tinit = init;
+                init = 0;
+                Register off;
+                if (calls(aae.index, true)) {
+                    Register[] both = emitSecondOperand(addr, aae.index);
+                    addr = both[0];
+                    off = both[1];
+                } else {
+                    off = aae.index.accept(this);
+                }
+                init = tinit;
+                if (!emitMulConst(off, size)) {
+                    Register temp = getRegister();
+                    emit("LI", temp, size);
+                    emit("MUL", off, off, temp);
+                    freeRegister(temp);
+                    emit("MFLO", off);
+                }
+                emit("ADD", addr, addr, off);
+                freeRegister(off);
             }
-            nest -= 1;
-            writer.println("\tMUL " + off + ", " + off + " " + temp);
-            freeRegister(temp);
-            writer.println("\tMFLO " + off);
-            writer.println("\tSUB " + addr + ", " + addr + " " + off);
-            freeRegister(off);
             if (!nested) {
-                writer.println("\tLW " + addr + ", " + "(" + addr + ")");
+                emit(load(element), addr, at(addr));
                 init = 0;
             }
             return addr;
@@ -511,59 +1371,41 @@ public class CodeGenerator implements ASTVisitor<Register> {
         return null;
     }
 
-    int init, off;
+    int init;
     @Override
     public Register visitFieldAccessExpr(FieldAccessExpr fae) {
         if (pass == 0) {
 
         } else if (pass == 1) {
+            StructLayout.Field field = field(typeOf(fae.struct), fae.field);
+            int off = field.offset;
         	if (fae.struct instanceof VarExpr) {
-        	    int off=0;
-                for (offset i : structs.get(((StructType) ((VarExpr) fae.struct).type).name)) {
-                    if (i.field.equals(fae.field)) {
-                        off = i.pos;
-                        break;
-                    }
-                }
-                Register out;
+                VarExpr struct = (VarExpr) fae.struct;
+                Register out = getRegister();
                 if (init != -1) {
-                    out = getRegister();
-                    if (((VarExpr) fae.struct).vd.offset != -1) {
-                        off = ((VarExpr) fae.struct).vd.offset - off;
-                        writer.println("\tLW " + out + ", " + (off) + "($fp)");
+                    if (struct.vd.offset != -1) {
+                        emit(load(field.type), out, at(struct.vd.offset + off, Register.fp));
                     } else {
-                        writer.println("\tLA " + out + ", " + ((VarExpr) fae.struct).name);
-                        writer.println("\tADDI "+out+", "+out+" "+findSize(fae.struct.type));
-                        writer.println("\tSUBI " + out + ", " + out + " " + off);
-                        writer.println("\tLW " + out + ", (" + (out) + ")");
+                        emit("LA", out, struct.name);
+                        emit(load(field.type), out, at(off, out));
                     }
                 } else {
-                    out = getRegister();
-                    if (((VarExpr) fae.struct).vd.offset != -1) {
-                        off = ((VarExpr) fae.struct).vd.offset - off;
-                        writer.println("\tADDI " + out + ", $fp " + off);
+                    if (struct.vd.offset != -1) {
+                        emit("ADDI", out, Register.fp, struct.vd.offset + off);
                     } else {
-                        writer.println("\tLA " + out + ", " + ((VarExpr) fae.struct).name);
-                        writer.println("\tADDI "+out+", "+out+" "+findSize(fae.struct.type));
-                        writer.println("\tSUBI " + out + ", " + out + " " + off);
+                        emit("LA", out, struct.name);
+                        emit("ADDI", out, out, off);
                     }
                 }
         	    return out;
 	        } else if (fae.struct instanceof FunCallExpr) {
-        	    Register out = fae.struct.accept(this);
-        	    for (offset i : structs.get(((StructType) ((FunCallExpr) fae.struct).fd.type).name)) {
-        	        if (i.field.equals(fae.field)) {
-        	            off = i.pos;
-        	            break;
-                    }
-        	        if (init != -1) {
-                        writer.println("\tLW " + out + ", " + (-1 * off) + "(" + out + ")");
-                    } else {
-        	            writer.println("\tSUBI "+out+", "+out+" "+(off));
-                    }
-                    return out;
+        	    Register out = emitAddress(fae.struct);
+                if (init != -1) {
+                    emit(load(field.type), out, at(off, out));
+                } else {
+                    emit("ADDI", out, out, off);
                 }
-
+                return out;
 	        } else {
         	    boolean nested;
                 nested = init == -1;
@@ -571,20 +1413,13 @@ public class CodeGenerator implements ASTVisitor<Register> {
                     init = -1;
                 }
                 Register out = fae.struct.accept(this);
-                for (offset i : structs.get(((StructType) fae.struct.type).name)) {
-                    if (i.field.equals(fae.field)) {
-                        off = i.pos;
-                        break;
-                    }
-                }
                 if (!nested) {
                     init = 0;
                 }
                 if (init != -1) {
-                    writer.println("\tLW "+out+", "+(-1*off)+"("+out+")");
+                    emit(load(field.type), out, at(off, out));
                 } else {
-
-                    writer.println("\tSUBI "+out+", "+out+" "+off);
+                    emit("ADDI", out, out, off);
                 }
                 return out;
 	        }
@@ -597,8 +1432,13 @@ public class CodeGenerator implements ASTVisitor<Register> {
         if (pass == 0) {
 
         } else if (pass == 1) {
+            //the address of *p is the value of p
+            int tinit = init;
+            init = 0;
             Register addr = vae.exp.accept(this);
-            writer.println("\tLW "+addr+", ("+addr+")");
+            init = tinit;
+            if (init != -1)
+                emit(load(typeOf(vae)), addr, at(addr));
             return addr;
         }
         return null;
@@ -610,7 +1450,7 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
         } else if (pass == 1) {
             Register out = getRegister();
-            writer.println("\tLI "+out+", "+findSize(soe.type));
+            emit("LI", out, findSize(soe.type));
             return out;
         }
         return null;
@@ -628,6 +1468,10 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
     @Override
     public Register visitExprStmt(ExprStmt es) {
+        if (tailCalls.contains(es.exp)) {
+            emitTailCall((FunCallExpr) es.exp);
+            return null;
+        }
         Register temp = es.exp.accept(this);
         freeRegister(temp);
         return null;
@@ -639,15 +1483,14 @@ public class CodeGenerator implements ASTVisitor<Register> {
             w.cond.accept(this);
             w.loop.accept(this);
         } else if (pass == 1) {
+            //test at the bottom so each iteration only takes the one branch
             String WhileSID = "WhileS"+ID;
-            String WhileEID = "WhileE"+ID++;
-            writer.println(WhileSID+":");
-            Register c = w.cond.accept(this);
-            writer.println("\tBEQZ "+c+", "+WhileEID);
-            freeRegister(c);
+            String WhileCID = "WhileC"+ID++;
+            emit("J", WhileCID);
+            label(WhileSID);
             w.loop.accept(this);
-            writer.println("\tJ "+WhileSID);
-            writer.println(WhileEID+":");
+            label(WhileCID);
+            emitCondJump(w.cond, true, WhileSID);
         }
         return null;
     }
@@ -665,15 +1508,13 @@ public class CodeGenerator implements ASTVisitor<Register> {
             String Case1 = "Then_"+ID;
             String Case2 = "Else_"+ID;
             String End = "End_"+ID++;
-            Register res = i.cond.accept(this);
-            writer.println("\tBEQZ "+res+", "+Case2);
-            freeRegister(res);
+            emitCondJump(i.cond, false, Case2);
             i.st1.accept(this);
-            writer.println("\tJ "+End);
-            writer.println(Case2+":");
+            emit("J", End);
+            label(Case2);
             if (i.st2 != null)
                 i.st2.accept(this);
-            writer.println(End+":");
+            label(End);
         }
         return null;
     }
@@ -685,103 +1526,66 @@ public class CodeGenerator implements ASTVisitor<Register> {
             a.e2.accept(this);
         } else if (pass == 1) {
             Register out;
-            if (a.e2.type instanceof StructType && a.e2 instanceof VarExpr) {
-                Register e1 = getRegister();
-                Register e2 = getRegister();
-                if (((VarExpr) a.e1).vd.offset == -1) {
-                    writer.println("\tLA " + e1 + ", " + ((VarExpr) a.e1).name);
-                } else {
-                    writer.println("\tLI " + e1 + ", " + ((VarExpr) a.e1).vd.offset);
-                    writer.println("\tADD " + e1 + ", " + e1 + " $fp");
-                }
-                if (((VarExpr) a.e2).vd.offset == -1) {
-                    writer.println("\tLA " + e2 + ", " + ((VarExpr) a.e2).name);
-                } else {
-                    writer.println("\tLI " + e2 + ", " + ((VarExpr) a.e2).vd.offset);
-                    writer.println("\tADD " + e2 + ", " + e2 + " $fp");
-                }
-                for (int i = structs.get(((StructType) a.e2.type).name).getLast().pos; i > 0; i -= 4) {
-                    Register temp = getRegister();
-                    writer.println("\tLW " + temp + ", " + i + "(" + e2 + ")");
-                    writer.println("\tSW " + temp + ", " + i + "(" + e1 + ")");
-                    freeRegister(temp);
-                }
-                freeRegister(e1);
-                freeRegister(e2);
+            if (typeOf(a.e1) instanceof StructType) {
+                emitStructAssign(a.e1, a.e2, (StructType) typeOf(a.e1));
                 return null;
-            } else if (a.e1.type instanceof PointerType && a.e2.type instanceof PointerType) {
-                writer.println("# pointer assignment");
-                init = -1;
-                Register e2 = a.e2.accept(this);
-                Register e1 = a.e1.accept(this);
-                init = 0;
-                writer.println("\tSW "+e2+", ("+e1+")");
-                freeRegister(e1);
-                freeRegister(e2);
             } else {
                 out = a.e2.accept(this);
+                //working out where to store may call a function, which would clobber the value
+                boolean spilled = calls(a.e1, true);
+                if (spilled) {
+                    push(out);
+                    freeRegister(out);
+                }
+                String store = store(typeOf(a.e1));
                 if (a.e1 instanceof ValueAtExpr) {
-                	init = -1;
                 	Register addr = ((ValueAtExpr) a.e1).exp.accept(this);
-                	init = 0;
-                	writer.println("\tLW "+addr+", ("+addr+")");
-					writer.println("\tSW "+out+", ("+addr+")");
+                	out = spilled ? reload() : out;
+					emit(store, out, at(addr));
 					freeRegister(addr);
                 } else if (a.e1 instanceof ArrayAccessExpr) {
                     init = -1;
                     Register addr = a.e1.accept(this);
                     init = 0;
-                    writer.println("\tSW " + out + ", (" + addr + ")");
+                    out = spilled ? reload() : out;
+                    emit(store, out, at(addr));
                     freeRegister(addr);
+                } else if (a.e1 instanceof VarExpr && regVars.containsKey(((VarExpr) a.e1).vd)) {
+                    emit("MOVE", regVars.get(((VarExpr) a.e1).vd), out);
                 } else if (a.e1 instanceof VarExpr) {
-                    writer.print("\tSW " + out + ", ");
                     int off = ((VarExpr) a.e1).vd.offset;
                     if (off == -1) {
-                        writer.println(((VarExpr) a.e1).name);
+                        emit(store, out, ((VarExpr) a.e1).name);
                     } else {
-                        writer.println(off + "($fp)");
+                        emit(store, out, at(off, Register.fp));
                     }
                 } else if (a.e1 instanceof FieldAccessExpr) {
-                    if (((FieldAccessExpr) a.e1).struct instanceof VarExpr) {
-                        Register addr = getRegister();
-                        int off = 0;
-                        for (offset i : structs.get(((StructType) ((VarExpr) ((FieldAccessExpr) a.e1).struct).type).name)) {
-                            if (i.field.equals(((FieldAccessExpr) a.e1).field)) {
-                                off = i.pos;
-                                break;
-                            }
-                        }
-                        if (((VarExpr) ((FieldAccessExpr) a.e1).struct).vd.offset == -1) {
-                            writer.println("\tLA " + addr + ", " + ((VarExpr) ((FieldAccessExpr) a.e1).struct).name);
-                            writer.println("\tADDI " + addr + ", " + addr + " " + findSize(a.e1.type));
-                            writer.println("\tSUBI " + addr + ", " + addr + " " + off);
-                            writer.println("\tSW " + out + ", (" + addr + ")");
+                    FieldAccessExpr fae = (FieldAccessExpr) a.e1;
+                    if (fae.struct instanceof VarExpr) {
+                        VarExpr struct = (VarExpr) fae.struct;
+                        int off = field(typeOf(struct), fae.field).offset;
+                        if (struct.vd.offset == -1) {
+                            Register addr = getRegister();
+                            emit("LA", addr, struct.name);
+                            emit(store, out, at(off, addr));
+                            freeRegister(addr);
                         } else {
-                            writer.println("\tLA " + addr + ", " + ((VarExpr) ((FieldAccessExpr) a.e1).struct).vd.offset + "($fp)");
-                            writer.println("\tSUBI " + addr + ", " + addr + " " + off);
-                            writer.println("\tSW " + out + ", (" + addr + ")");
+                            emit(store, out, at(struct.vd.offset + off, Register.fp));
                         }
-                        freeRegister(addr);
                     } else {
                         boolean nested;
                         nested = init == -1;
                         if (!nested)
                             init = -1;
+                        //the address of the field itself
                         Register addr = a.e1.accept(this);
                         if (!nested)
                             init = 0;
                         if (init == -1) {
                             return addr;
                         } else {
-                            int off = 0;
-                            for (offset i : structs.get(((StructType) ((FieldAccessExpr) a.e1).struct.type).name)) {
-                                if (i.field.equals(((FieldAccessExpr) a.e1).field)) {
-                                    off = i.pos;
-                                    break;
-                                }
-                            }
-                            writer.println("\tSUBI " + addr + ", " + addr + " " + off);
-                            writer.println("\tSW " + out + ", (" + addr + ")");
+                            out = spilled ? reload() : out;
+                            emit(store, out, at(addr));
                             freeRegister(addr);
                         }
                     }
@@ -800,54 +1604,128 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
 	    } else if (pass == 1) {
 		    Register out;
+		    if (tailCalls.contains(r.exp)) {
+			    emitTailCall((FunCallExpr) r.exp);
+			    return null;
+		    }
 		    if (r.exp != null) {
-			    out = r.exp.accept(this);
-			    writer.println("\tMOVE $v0, "+out);
+			    //a struct is returned by address, the caller copies it out of the finished frame
+			    out = typeOf(r.exp) instanceof StructType ? emitAddress(r.exp) : r.exp.accept(this);
+			    emit("MOVE", Register.v0, out);
 			    freeRegister(out);
 		    }
-		    writer.println("\tJR $ra");
+		    if (retLabel == null)
+		        emit("JR", Register.ra);
+		    else
+		        emit("J", retLabel);
 	    }
         return null;
     }
 
-    int lnest = 0;
-    private int findSize(Type t) {
-        if (t instanceof PointerType) {
-            return 4;
-        } else if (t instanceof BaseType) {
-            if (((BaseType) t).type == BaseType.INT.type) {
-                return 4;
-            } else if (((BaseType) t).type == BaseType.CHAR.type) {
-                return 4; //TODO Efficiency, need to come back and make code align to nearest byte
-            }
-        } else if (t instanceof ArrayType) {
-            if (lnest == nest) {
-                return ((ArrayType) t).size * findSize(((ArrayType) t).type);
-            } else {
-                lnest+=1;
-                int i = findSize(((ArrayType) t).type);
-                lnest-=1;
-                return i;
-            }
-//            int i = ((ArrayType) t).size * findSize(((ArrayType) t).type);
-//            return i + (4-i%4)%4;
-        } else if (t instanceof StructType) {
-            return structs.get(((StructType) t).name).getLast().pos;
+    /*
+     * Strength reduction, multiplication, division and modulo by constants using shifts.
+     * Each one rewrites r in place and returns false when there is no cheap sequence,
+     * leaving the caller to fall back on the multiply unit.
+     */
+
+    private boolean emitMulConst(Register r, int c) {
+        if (c == Integer.MIN_VALUE)
+            return false;
+        int abs = Math.abs(c);
+        if (abs == 0) {
+            emit("LI", r, 0);
+            return true;
+        } else if (Integer.bitCount(abs) == 1) {
+            if (abs != 1)
+                emit("SLL", r, r, Integer.numberOfTrailingZeros(abs));
+        } else if (Integer.bitCount(abs) == 2) {
+            //x*(2^a + 2^b) = (x << a) + (x << b)
+            Register temp = getRegister();
+            emit("SLL", temp, r, 31 - Integer.numberOfLeadingZeros(abs));
+            if (Integer.numberOfTrailingZeros(abs) != 0)
+                emit("SLL", r, r, Integer.numberOfTrailingZeros(abs));
+            emit("ADDU", r, r, temp);
+            freeRegister(temp);
+        } else if (Integer.bitCount(abs + 1) == 1) {
+            //x*(2^a - 1) = (x << a) - x
+            Register temp = getRegister();
+            emit("SLL", temp, r, Integer.numberOfTrailingZeros(abs + 1));
+            emit("SUBU", r, temp, r);
+            freeRegister(temp);
+        } else {
+            return false;
         }
-        return 4;
+        if (c < 0)
+            emit("SUBU", r, Register.zero, r);
+        return true;
     }
-}
 
-class offset {
-    public String field;
-    public Integer pos;
+    /*
+     * Puts 2^k-1 into bias if r is negative and 0 otherwise, so that shifting r+bias
+     * rounds towards zero like DIV does.
+     */
+    private void emitRoundingBias(Register bias, Register r, int k) {
+        if (k == 1) {
+            emit("SRL", bias, r, 31);
+        } else {
+            emit("SRA", bias, r, 31);
+            emit("SRL", bias, bias, 32 - k);
+        }
+    }
 
-    public offset(String field, Integer pos) {
-        this.field = field;
-        this.pos = pos;
+    private boolean emitDivConst(Register r, int c) {
+        if (c == Integer.MIN_VALUE || Integer.bitCount(Math.abs(c)) != 1)
+            return false;
+        int k = Integer.numberOfTrailingZeros(Math.abs(c));
+        if (k != 0) {
+            Register bias = getRegister();
+            emitRoundingBias(bias, r, k);
+            emit("ADDU", bias, r, bias);
+            emit("SRA", r, bias, k);
+            freeRegister(bias);
+        }
+        if (c < 0)
+            emit("SUBU", r, Register.zero, r);
+        return true;
     }
 
-    public offset(Integer pos) {
-        this.pos = pos;
+    private boolean emitModConst(Register r, int c) {
+        if (c == Integer.MIN_VALUE || Integer.bitCount(Math.abs(c)) != 1 || Math.abs(c) == 1)
+            return false;
+        //the sign of the result follows the dividend, so the sign of c doesn't matter
+        int k = Integer.numberOfTrailingZeros(Math.abs(c));
+        Register bias = getRegister();
+        emitRoundingBias(bias, r, k);
+        emit("ADDU", r, r, bias);
+        if (k <= 16) {
+            emit("ANDI", r, r, (1 << k) - 1);
+        } else {
+            Register mask = getRegister();
+            emit("LI", mask, (1 << k) - 1);
+            emit("AND", r, r, mask);
+            freeRegister(mask);
+        }
+        emit("SUBU", r, r, bias);
+        freeRegister(bias);
+        return true;
     }
-}
\ No newline at end of file
+
+    int findSize(Type t) {
+        return StructLayout.sizeOf(t);
+    }
+
+    /*
+     * chars take a byte in memory, everything else that fits in a register a word.
+     */
+    private static String load(Type t) {
+        return t == BaseType.CHAR ? "LB" : "LW";
+    }
+
+    private static String store(Type t) {
+        return t == BaseType.CHAR ? "SB" : "SW";
+    }
+
+    private static StructLayout.Field field(Type struct, String name) {
+        return ((StructType) struct).layout.field(name);
+    }
+}
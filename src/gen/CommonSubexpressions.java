@@ -0,0 +1,439 @@
+package gen;
+
+import ast.*;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import static gen.LoopOptimiser.*;
+
+/**
+ * Computes a repeated expression once. Within a basic block expressions are numbered by what they
+ * compute (the operator and the variables and constants it reads), and across blocks an expression
+ * counts as available where every path to it has computed it since the last change to anything it
+ * reads. The first computations store their value in a new local, in front of their statement, and
+ * the later ones read the local.
+ *
+ * Array elements have their address numbered as well as their value, so a[i] = a[i] + 1 works out
+ * the address once. Loaded values are forgotten on any store that could change them: stores into
+ * the same variable, stores through pointers, and calls.
+ */
+class CommonSubexpressions {
+
+    private static class Info {
+        final Set<VarDecl> vars = new HashSet<>();
+        boolean memory; // loads from memory
+        boolean viaPointer; // loads from memory a pointer could alias
+        boolean global; // reads a global variable
+        Type type; // of the local holding the value
+        VarDecl temp;
+    }
+
+    private static final int MAX_ROUNDS = 50; // of the data flow, before giving up on a function
+
+    private final ToIntFunction<Type> sizes; // element sizes
+    private Set<VarDecl> globals;
+    private int fresh;
+
+    // state of the function being rewritten
+    private FunDecl function;
+    private final Map<String, Info> infos = new HashMap<>();
+    private final Set<String> used = new HashSet<>(); // keys which are reused somewhere
+    // the keys by what changes them, so a store only looks at the ones it may kill
+    private final Map<VarDecl, List<String>> byVar = new HashMap<>();
+    private final List<String> memoryKeys = new ArrayList<>();
+    private final List<String> pointerKeys = new ArrayList<>();
+    private final List<String> globalKeys = new ArrayList<>();
+
+    CommonSubexpressions(ToIntFunction<Type> sizes) {
+        this.sizes = sizes;
+    }
+
+    void eliminate(Program p) {
+        globals = new HashSet<>(p.varDecls);
+        for (FunDecl f : p.funDecls) {
+            function = f;
+            infos.clear();
+            used.clear();
+            byVar.clear();
+            memoryKeys.clear();
+            pointerKeys.clear();
+            globalKeys.clear();
+            eliminate(new ControlFlowGraph(f));
+        }
+    }
+
+    private void eliminate(ControlFlowGraph cfg) {
+        List<ControlFlowGraph.BasicBlock> blocks = cfg.reversePostorder(); // predecessors first, but along back edges
+        //what is available at the start and end of each block, everything to begin with but the entry
+        Map<ControlFlowGraph.BasicBlock, Set<String>> in = new HashMap<>();
+        Map<ControlFlowGraph.BasicBlock, Set<String>> out = new HashMap<>();
+        for (ControlFlowGraph.BasicBlock b : blocks) {
+            for (ASTNode i : b.items) {
+                new Scan(null, false).item(i); // fills in infos with every key
+            }
+        }
+        for (ControlFlowGraph.BasicBlock b : blocks) {
+            out.put(b, new HashSet<>(infos.keySet()));
+        }
+        boolean changed = true;
+        for (int round = 0; changed; round++) {
+            if (round == MAX_ROUNDS)
+                return;
+            changed = false;
+            for (ControlFlowGraph.BasicBlock b : blocks) {
+                Set<String> avail = new HashSet<>();
+                if (b != cfg.entry) {
+                    avail.addAll(infos.keySet());
+                    for (ControlFlowGraph.BasicBlock p : b.preds) {
+                        if (out.containsKey(p))
+                            avail.retainAll(out.get(p));
+                    }
+                }
+                in.put(b, new HashSet<>(avail));
+                Scan scan = new Scan(avail, false);
+                for (ASTNode i : b.items) {
+                    scan.item(i);
+                }
+                if (!avail.equals(out.get(b))) {
+                    out.put(b, avail);
+                    changed = true;
+                }
+            }
+        }
+        if (used.isEmpty())
+            return;
+        for (ControlFlowGraph.BasicBlock b : blocks) {
+            Scan scan = new Scan(in.get(b), true);
+            for (ASTNode i : b.items) {
+                scan.item(i);
+            }
+        }
+    }
+
+    /*
+     * Keys
+     */
+
+    /*
+     * The key of an expression worth keeping in a local, null for the ones that aren't.
+     */
+    private String valueKey(Expr e) {
+        if (!ConstantFolder.pure(e) || !isScalar(localType(e)))
+            return null;
+        if (e instanceof VarExpr && !globals.contains(((VarExpr) e).vd))
+            return null;
+        if (e instanceof BinOp && (isComparison(((BinOp) e).op) || ((BinOp) e).op == Op.AND || ((BinOp) e).op == Op.OR))
+            return null;
+        if (e instanceof FieldAccessExpr && !(((FieldAccessExpr) e).struct instanceof VarExpr))
+            return null;
+        if (e instanceof BinOp && isCheap((BinOp) e))
+            return null;
+        if (!(e instanceof VarExpr || e instanceof BinOp || e instanceof ArrayAccessExpr
+                || e instanceof FieldAccessExpr || e instanceof ValueAtExpr))
+            return null;
+        return info(key(e), e, localType(e));
+    }
+
+    /*
+     * A local and a constant take one instruction, which is no more than keeping the result
+     * in a register (and less than keeping it over a call) costs.
+     */
+    private boolean isCheap(BinOp bo) {
+        Expr var = ConstantFolder.constant(bo.E1) != null ? bo.E2 : ConstantFolder.constant(bo.E2) != null ? bo.E1 : null;
+        return var instanceof VarExpr && !globals.contains(((VarExpr) var).vd);
+    }
+
+    /*
+     * The key of the address of an array element, null if it isn't worth keeping.
+     */
+    private String addressKey(ArrayAccessExpr aae) {
+        if (!(aae.exp instanceof VarExpr) || ConstantFolder.constant(aae.index) != null || !ConstantFolder.pure(aae.index))
+            return null;
+        Type element = localType(aae);
+        if (!isScalar(element))
+            return null;
+        String key = "&" + key(aae);
+        if (!infos.containsKey(key)) {
+            Info info = new Info();
+            info.type = new PointerType(element);
+            reads(new ArrayAccessExpr(aae.exp, aae.index), info);
+            //the address doesn't depend on what is stored in the array
+            info.memory = reads(aae.index, null);
+            info.viaPointer = info.memory;
+            add(key, info);
+        }
+        return key;
+    }
+
+    private String info(String key, Expr e, Type type) {
+        if (!infos.containsKey(key)) {
+            Info info = new Info();
+            info.type = type;
+            info.memory = reads(e, info);
+            add(key, info);
+        }
+        return key;
+    }
+
+    private void add(String key, Info info) {
+        infos.put(key, info);
+        for (VarDecl vd : info.vars)
+            byVar.computeIfAbsent(vd, v -> new ArrayList<>()).add(key);
+        if (info.memory)
+            memoryKeys.add(key);
+        if (info.viaPointer)
+            pointerKeys.add(key);
+        if (info.global)
+            globalKeys.add(key);
+    }
+
+    /*
+     * Whether e loads from memory, collecting what it reads into info when given.
+     */
+    private boolean reads(Expr e, Info info) {
+        boolean[] memory = {false};
+        e.accept(new ASTWalker() {
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                if (info != null) {
+                    info.vars.add(v.vd);
+                    info.global |= globals.contains(v.vd);
+                }
+                return null;
+            }
+
+            @Override
+            public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+                memory[0] = true;
+                if (info != null)
+                    info.viaPointer |= !isArray(aae.exp);
+                return super.visitArrayAccessExpr(aae);
+            }
+
+            @Override
+            public Void visitFieldAccessExpr(FieldAccessExpr fae) {
+                memory[0] = true;
+                return super.visitFieldAccessExpr(fae);
+            }
+
+            @Override
+            public Void visitValueAtExpr(ValueAtExpr vae) {
+                memory[0] = true;
+                if (info != null)
+                    info.viaPointer = true;
+                return super.visitValueAtExpr(vae);
+            }
+        });
+        return memory[0];
+    }
+
+    private VarDecl temp(String key) {
+        Info info = infos.get(key);
+        if (info.temp == null) {
+            info.temp = new VarDecl(info.type, "cse_" + fresh++);
+            function.block.varDeclList.add(info.temp);
+        }
+        return info.temp;
+    }
+
+    /*
+     * Goes over the code of a block in the order it runs, keeping track of what is available. When
+     * rewriting, computations whose key is reused elsewhere are stored in their local first, and
+     * computations already available read it instead.
+     */
+    private class Scan {
+        final Set<String> avail; // null while just collecting the keys
+        final boolean rewrite;
+        private final List<Stmt> before = new LinkedList<>(); // stores of the current statement's computations
+        private final List<Predicate<Info>> killed = new ArrayList<>(); // what the current statement has changed so far
+        private boolean header; // in a loop condition, which is computed again on every iteration
+
+        Scan(Set<String> avail, boolean rewrite) {
+            this.avail = avail == null ? new HashSet<>() : avail;
+            this.rewrite = rewrite;
+        }
+
+        void item(ASTNode i) {
+            before.clear();
+            killed.clear();
+            header = false;
+            if (i instanceof If) {
+                ((If) i).cond = value(((If) i).cond, false);
+            } else if (i instanceof While) {
+                header = true;
+                ((While) i).cond = value(((While) i).cond, false);
+            } else if (i instanceof ExprStmt) {
+                ((ExprStmt) i).exp = value(((ExprStmt) i).exp, false);
+            } else if (i instanceof Return) {
+                ((Return) i).exp = value(((Return) i).exp, false);
+            } else if (i instanceof Assign) {
+                Assign a = (Assign) i;
+                a.e2 = value(a.e2, false);
+                target(a.e1);
+                store(a.e1);
+            }
+            if (!before.isEmpty()) {
+                List<Stmt> stmts = new LinkedList<>(before);
+                stmts.add((Stmt) i);
+                replace(function.block, (Stmt) i, new Block(new LinkedList<>(), stmts));
+            }
+        }
+
+        /*
+         * Goes over an expression that is evaluated for its value, returns what replaces it.
+         * Conditional expressions, the right of && and ||, may not run so they neither make
+         * anything available nor use it.
+         */
+        private Expr value(Expr e, boolean conditional) {
+            if (e == null)
+                return null;
+            String key = valueKey(e);
+            if (key != null && !conditional && avail.contains(key))
+                return reuse(key, e);
+            if (e instanceof BinOp) {
+                BinOp bo = (BinOp) e;
+                bo.E1 = value(bo.E1, conditional);
+                bo.E2 = value(bo.E2, conditional || bo.op == Op.AND || bo.op == Op.OR);
+            } else if (e instanceof ArrayAccessExpr) {
+                element((ArrayAccessExpr) e, conditional);
+            } else if (e instanceof FieldAccessExpr) {
+                calls(((FieldAccessExpr) e).struct);
+            } else if (e instanceof ValueAtExpr) {
+                ((ValueAtExpr) e).exp = value(((ValueAtExpr) e).exp, conditional);
+            } else if (e instanceof TypecastExpr) {
+                ((TypecastExpr) e).exp = value(((TypecastExpr) e).exp, conditional);
+            } else if (e instanceof FunCallExpr) {
+                FunCallExpr fce = (FunCallExpr) e;
+                fce.args.replaceAll(arg -> value(arg, conditional));
+                if (!CodeGenerator.BUILTINS.contains(fce.name))
+                    killCalled();
+            }
+            if (key == null || conditional || header || killed(key))
+                return e;
+            avail.add(key);
+            if (!rewrite || !used.contains(key))
+                return e;
+            VarDecl temp = temp(key);
+            before.add(new Assign(variable(temp), e));
+            return variable(temp);
+        }
+
+        private Expr reuse(String key, Expr e) {
+            used.add(key);
+            return rewrite ? variable(temp(key)) : e;
+        }
+
+        /*
+         * The address of an element, which might already be in a local or be worth putting in one.
+         * The key is taken before the index is rewritten.
+         */
+        private void element(ArrayAccessExpr aae, boolean conditional) {
+            String key = addressKey(aae);
+            if (!isArray(aae.exp))
+                aae.exp = value(aae.exp, conditional);
+            aae.index = value(aae.index, conditional);
+            if (key == null || conditional)
+                return;
+            if (avail.contains(key)) {
+                used.add(key);
+            } else if (header || killed(key)) {
+                return;
+            } else {
+                avail.add(key);
+                if (!rewrite || !used.contains(key))
+                    return;
+                Type pointer = infos.get(key).type;
+                before.add(new Assign(variable(temp(key)), elementAddress(aae.exp, aae.index, pointer,
+                        sizes.applyAsInt(((PointerType) pointer).type))));
+            }
+            if (rewrite) {
+                aae.exp = variable(temp(key));
+                aae.index = literal(0);
+            }
+        }
+
+        /*
+         * Goes over the left hand side of an assignment, which is evaluated for its address.
+         */
+        private void target(Expr e) {
+            if (e instanceof ArrayAccessExpr) {
+                element((ArrayAccessExpr) e, false);
+            } else if (e instanceof FieldAccessExpr) {
+                calls(((FieldAccessExpr) e).struct);
+            } else if (e instanceof ValueAtExpr) {
+                ((ValueAtExpr) e).exp = value(((ValueAtExpr) e).exp, false);
+            }
+        }
+
+        /*
+         * What an assignment to e changes.
+         */
+        private void store(Expr e) {
+            Expr root = e;
+            while (root instanceof FieldAccessExpr || root instanceof ArrayAccessExpr && isArray(((ArrayAccessExpr) root).exp)) {
+                root = root instanceof FieldAccessExpr ? ((FieldAccessExpr) root).struct : ((ArrayAccessExpr) root).exp;
+            }
+            if (root == e && e instanceof VarExpr) {
+                VarDecl vd = ((VarExpr) e).vd;
+                kill(byVar.get(vd), info -> info.vars.contains(vd));
+            } else if (root instanceof VarExpr) {
+                VarDecl vd = ((VarExpr) root).vd;
+                kill(byVar.get(vd), info -> info.memory && info.vars.contains(vd));
+                kill(pointerKeys, info -> info.memory && info.viaPointer);
+            } else {
+                kill(memoryKeys, info -> info.memory);
+            }
+        }
+
+        /*
+         * Expressions that aren't looked into still have to have the effect of their calls.
+         */
+        private void calls(Expr e) {
+            e.accept(new ASTWalker() {
+                @Override
+                public Void visitFunCallExpr(FunCallExpr fce) {
+                    super.visitFunCallExpr(fce);
+                    if (!CodeGenerator.BUILTINS.contains(fce.name))
+                        killCalled();
+                    return null;
+                }
+            });
+        }
+
+        /*
+         * A call can change memory and globals.
+         */
+        private void killCalled() {
+            kill(memoryKeys, info -> info.memory);
+            kill(globalKeys, info -> info.global);
+        }
+
+        /*
+         * Makes what changed unavailable, going over whichever of the available keys and the keys
+         * that might have changed is shorter.
+         */
+        private void kill(List<String> keys, Predicate<Info> changed) {
+            killed.add(changed);
+            if (keys == null)
+                return;
+            if (avail.size() < keys.size()) {
+                avail.removeIf(key -> changed.test(infos.get(key)));
+            } else {
+                for (String key : keys) {
+                    if (changed.test(infos.get(key)))
+                        avail.remove(key);
+                }
+            }
+        }
+
+        private boolean killed(String key) {
+            for (Predicate<Info> changed : killed) {
+                if (changed.test(infos.get(key)))
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package gen;
+
+import ast.*;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Folds constant subexpressions and applies simple algebraic identities
+ * before code is generated. Statements are rewritten in place, expression
+ * visits return the (possibly replaced) expression.
+ */
+class ConstantFolder implements ASTVisitor<Expr> {
+
+    private final ToIntFunction<Type> sizes; // needed for the size of sizeof(type), which depends on the target
+
+    ConstantFolder(ToIntFunction<Type> sizes) {
+        this.sizes = sizes;
+    }
+
+    /*
+     * Returns the value of an expression that is already a constant, null otherwise.
+     */
+    static Integer constant(Expr e) {
+        if (e instanceof IntLiteral) {
+            return ((IntLiteral) e).number;
+        } else if (e instanceof ChrLiteral) {
+            return (int) ((ChrLiteral) e).c;
+        }
+        return null;
+    }
+
+    /*
+     * Whether an expression can be dropped without changing the behaviour of the program.
+     * Calls may have side effects and division may trap, anything else just reads.
+     */
+    static boolean pure(Expr e) {
+        if (e instanceof FunCallExpr) {
+            return false;
+        } else if (e instanceof BinOp) {
+            BinOp bo = (BinOp) e;
+            return bo.op != Op.DIV && bo.op != Op.MOD && pure(bo.E1) && pure(bo.E2);
+        } else if (e instanceof ArrayAccessExpr) {
+            return pure(((ArrayAccessExpr) e).exp) && pure(((ArrayAccessExpr) e).index);
+        } else if (e instanceof FieldAccessExpr) {
+            return pure(((FieldAccessExpr) e).struct);
+        } else if (e instanceof ValueAtExpr) {
+            return pure(((ValueAtExpr) e).exp);
+        } else if (e instanceof TypecastExpr) {
+            return pure(((TypecastExpr) e).exp);
+        }
+        return true;
+    }
+
+    private Expr fold(Expr e) {
+        return e == null ? null : e.accept(this);
+    }
+
+    /*
+     * Evaluates op on two constants, returns null if the result can't be computed at compile time
+     * (division by zero, or an overflow that ADD/SUB would trap on at run time).
+     */
+    private static Integer evaluate(Op op, int a, int b) {
+        try {
+            switch (op) {
+                case ADD: return Math.addExact(a, b);
+                case SUB: return Math.subtractExact(a, b);
+                case MUL: return a * b;
+                case DIV: return b == 0 ? null : a / b;
+                case MOD: return b == 0 ? null : a % b;
+                case GT:  return a > b ? 1 : 0;
+                case LT:  return a < b ? 1 : 0;
+                case GE:  return a >= b ? 1 : 0;
+                case LE:  return a <= b ? 1 : 0;
+                case NE:  return a != b ? 1 : 0;
+                case EQ:  return a == b ? 1 : 0;
+                case OR:  return a != 0 || b != 0 ? 1 : 0;
+                case AND: return a != 0 && b != 0 ? 1 : 0;
+            }
+        } catch (ArithmeticException e) {
+            // leave it to the hardware
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitBinOp(BinOp bo) {
+        bo.E1 = fold(bo.E1);
+        bo.E2 = fold(bo.E2);
+        Integer c1 = constant(bo.E1);
+        Integer c2 = constant(bo.E2);
+
+        if (c1 != null && c2 != null) {
+            Integer res = evaluate(bo.op, c1, c2);
+            if (res != null)
+                return new IntLiteral(res);
+            return bo;
+        }
+
+        //identities, only one side is constant from here on
+        switch (bo.op) {
+            case ADD:
+                if (c1 != null && c1 == 0) return bo.E2;
+                if (c2 != null && c2 == 0) return bo.E1;
+                break;
+            case SUB:
+                if (c2 != null && c2 == 0) return bo.E1;
+                break;
+            case MUL:
+                if (c1 != null && c1 == 1) return bo.E2;
+                if (c2 != null && c2 == 1) return bo.E1;
+                if (c1 != null && c1 == 0 && pure(bo.E2)) return new IntLiteral(0);
+                if (c2 != null && c2 == 0 && pure(bo.E1)) return new IntLiteral(0);
+                break;
+            case DIV:
+                if (c2 != null && c2 == 1) return bo.E1;
+                break;
+            case MOD:
+                if (c2 != null && (c2 == 1 || c2 == -1) && pure(bo.E1)) return new IntLiteral(0);
+                break;
+            case AND:
+                //right hand side is never evaluated when the left is false
+                if (c1 != null && c1 == 0) return new IntLiteral(0);
+                if (c2 != null && c2 == 0 && pure(bo.E1)) return new IntLiteral(0);
+                break;
+            case OR:
+                if (c1 != null && c1 != 0) return new IntLiteral(1);
+                if (c2 != null && c2 != 0 && pure(bo.E1)) return new IntLiteral(1);
+                break;
+        }
+        return bo;
+    }
+
+    @Override
+    public Expr visitSizeOfExpr(SizeOfExpr soe) {
+        return new IntLiteral(sizes.applyAsInt(soe.type));
+    }
+
+    @Override
+    public Expr visitTypecastExpr(TypecastExpr te) {
+        te.exp = fold(te.exp);
+        Integer c = constant(te.exp);
+        if (c != null && te.type == BaseType.INT)
+            return new IntLiteral(c);
+        return te;
+    }
+
+    @Override
+    public Expr visitIntLiteral(IntLiteral il) {
+        return il;
+    }
+
+    @Override
+    public Expr visitStringLiteral(StrLiteral sl) {
+        return sl;
+    }
+
+    @Override
+    public Expr visitChrLiteral(ChrLiteral cl) {
+        return cl;
+    }
+
+    @Override
+    public Expr visitVarExpr(VarExpr v) {
+        return v;
+    }
+
+    @Override
+    public Expr visitFunCallExpr(FunCallExpr fce) {
+        for (int i = 0; i < fce.args.size(); i++) {
+            fce.args.set(i, fold(fce.args.get(i)));
+        }
+        return fce;
+    }
+
+    @Override
+    public Expr visitArrayAccessExpr(ArrayAccessExpr aae) {
+        aae.exp = fold(aae.exp);
+        aae.index = fold(aae.index);
+        return aae;
+    }
+
+    @Override
+    public Expr visitFieldAccessExpr(FieldAccessExpr fae) {
+        fae.struct = fold(fae.struct);
+        return fae;
+    }
+
+    @Override
+    public Expr visitValueAtExpr(ValueAtExpr vae) {
+        vae.exp = fold(vae.exp);
+        return vae;
+    }
+
+    @Override
+    public Expr visitBlock(Block b) {
+        for (Stmt i : b.stmtList) {
+            i.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitFunDecl(FunDecl p) {
+        p.block.accept(this);
+        return null;
+    }
+
+    @Override
+    public Expr visitProgram(Program p) {
+        for (FunDecl i : p.funDecls) {
+            i.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitExprStmt(ExprStmt es) {
+        es.exp = fold(es.exp);
+        return null;
+    }
+
+    @Override
+    public Expr visitWhile(While w) {
+        w.cond = fold(w.cond);
+        w.loop.accept(this);
+        return null;
+    }
+
+    @Override
+    public Expr visitIf(If i) {
+        i.cond = fold(i.cond);
+        i.st1.accept(this);
+        if (i.st2 != null)
+            i.st2.accept(this);
+        return null;
+    }
+
+    @Override
+    public Expr visitAssign(Assign a) {
+        a.e1 = fold(a.e1);
+        a.e2 = fold(a.e2);
+        return null;
+    }
+
+    @Override
+    public Expr visitReturn(Return r) {
+        r.exp = fold(r.exp);
+        return null;
+    }
+
+    @Override
+    public Expr visitVarDecl(VarDecl vd) {
+        return null;
+    }
+
+    @Override
+    public Expr visitStructTypeDecl(StructTypeDecl st) {
+        return null;
+    }
+
+    @Override
+    public Expr visitBaseType(BaseType bt) {
+        return null;
+    }
+
+    @Override
+    public Expr visitPointerType(PointerType pt) {
+        return null;
+    }
+
+    @Override
+    public Expr visitStructType(StructType st) {
+        return null;
+    }
+
+    @Override
+    public Expr visitArrayType(ArrayType at) {
+        return null;
+    }
+
+    @Override
+    public Expr visitOp(Op o) {
+        return null;
+    }
+}
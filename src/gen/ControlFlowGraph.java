@@ -0,0 +1,320 @@
+package gen;
+
+import ast.*;
+
+import java.util.*;
+
+/**
+ * The basic blocks of a function body. A block holds the statements that run one after the other
+ * (assignments, expression statements and returns); an If or While at the end of a block stands
+ * for its condition, which picks the successor. Code after a return starts a block nothing jumps to.
+ */
+class ControlFlowGraph {
+
+    static class BasicBlock {
+        final int id;
+        final List<ASTNode> items = new ArrayList<>();
+        final List<BasicBlock> succs = new ArrayList<>();
+        final List<BasicBlock> preds = new ArrayList<>();
+
+        BasicBlock(int id) {
+            this.id = id;
+        }
+
+        /*
+         * The If or While whose condition ends this block, null if it just falls or jumps on.
+         */
+        Stmt branch() {
+            if (items.isEmpty())
+                return null;
+            ASTNode last = items.get(items.size() - 1);
+            return last instanceof If || last instanceof While ? (Stmt) last : null;
+        }
+
+        @Override
+        public String toString() {
+            return "B" + id;
+        }
+    }
+
+    /*
+     * A natural loop: the header and every block that can reach the back edge without going through it.
+     */
+    static class Loop {
+        final While stmt;
+        final BasicBlock header;
+        final Set<BasicBlock> body = new LinkedHashSet<>();
+
+        Loop(While stmt, BasicBlock header) {
+            this.stmt = stmt;
+            this.header = header;
+        }
+
+        /*
+         * The statements and conditions of the loop, in the blocks' order.
+         */
+        List<ASTNode> items() {
+            List<ASTNode> out = new ArrayList<>();
+            for (BasicBlock b : body) {
+                out.addAll(b.items);
+            }
+            return out;
+        }
+    }
+
+    final List<BasicBlock> blocks = new ArrayList<>();
+    final BasicBlock entry;
+    final BasicBlock exit;
+    private final Map<BasicBlock, While> headers = new HashMap<>();
+    // worked out when first asked for, the graph doesn't change
+    private List<BasicBlock> postorder, reversePostorder;
+    private Set<BasicBlock> reachable;
+    private int[] enter, leave; // where the depth first numbering of the dominator tree enters and leaves each block
+    private List<Loop> loops;
+    private final Map<While, Loop> loopOf = new HashMap<>();
+
+    ControlFlowGraph(FunDecl f) {
+        this(f.block);
+    }
+
+    /*
+     * The graph of s on its own, as if it were a function body.
+     */
+    ControlFlowGraph(Stmt s) {
+        entry = newBlock();
+        exit = newBlock();
+        BasicBlock last = build(s, entry);
+        edge(last, exit);
+    }
+
+    private BasicBlock newBlock() {
+        BasicBlock b = new BasicBlock(blocks.size());
+        blocks.add(b);
+        return b;
+    }
+
+    private static void edge(BasicBlock from, BasicBlock to) {
+        from.succs.add(to);
+        to.preds.add(from);
+    }
+
+    /*
+     * Adds the code of s to the graph starting in block cur, returns the block control is in afterwards.
+     */
+    private BasicBlock build(Stmt s, BasicBlock cur) {
+        if (s instanceof Block) {
+            for (Stmt i : ((Block) s).stmtList) {
+                cur = build(i, cur);
+            }
+            return cur;
+        } else if (s instanceof If) {
+            If i = (If) s;
+            cur.items.add(i);
+            BasicBlock then = newBlock();
+            BasicBlock join = newBlock();
+            edge(cur, then);
+            edge(build(i.st1, then), join);
+            if (i.st2 != null) {
+                BasicBlock otherwise = newBlock();
+                edge(cur, otherwise);
+                edge(build(i.st2, otherwise), join);
+            } else {
+                edge(cur, join);
+            }
+            return join;
+        } else if (s instanceof While) {
+            While w = (While) s;
+            BasicBlock header = newBlock();
+            BasicBlock body = newBlock();
+            BasicBlock after = newBlock();
+            headers.put(header, w);
+            edge(cur, header);
+            header.items.add(w);
+            edge(header, body);
+            edge(header, after);
+            edge(build(w.loop, body), header);
+            return after;
+        } else if (s instanceof Return) {
+            cur.items.add(s);
+            edge(cur, exit);
+            return newBlock();
+        }
+        cur.items.add(s);
+        return cur;
+    }
+
+    /*
+     * The blocks that can be reached from the entry, each after the ones it leads to, but for those
+     * it jumps back to, from a depth first search.
+     */
+    List<BasicBlock> postorder() {
+        if (postorder == null) {
+            List<BasicBlock> order = new ArrayList<>();
+            Set<BasicBlock> seen = new HashSet<>();
+            Deque<BasicBlock> path = new ArrayDeque<>();
+            Deque<Iterator<BasicBlock>> next = new ArrayDeque<>(); // the successors left for each block on the path
+            seen.add(entry);
+            path.push(entry);
+            next.push(entry.succs.iterator());
+            while (!path.isEmpty()) {
+                if (next.peek().hasNext()) {
+                    BasicBlock s = next.peek().next();
+                    if (seen.add(s)) {
+                        path.push(s);
+                        next.push(s.succs.iterator());
+                    }
+                } else {
+                    next.pop();
+                    order.add(path.pop());
+                }
+            }
+            postorder = Collections.unmodifiableList(order);
+        }
+        return postorder;
+    }
+
+    /*
+     * The blocks that can be reached from the entry, each before the ones it leads to but for those
+     * it jumps back to, the order forward data flow converges fastest in.
+     */
+    List<BasicBlock> reversePostorder() {
+        if (reversePostorder == null) {
+            List<BasicBlock> order = new ArrayList<>(postorder());
+            Collections.reverse(order);
+            reversePostorder = Collections.unmodifiableList(order);
+        }
+        return reversePostorder;
+    }
+
+    /*
+     * Blocks that can be reached from the entry.
+     */
+    Set<BasicBlock> reachable() {
+        if (reachable == null)
+            reachable = Collections.unmodifiableSet(new LinkedHashSet<>(reversePostorder()));
+        return reachable;
+    }
+
+    /*
+     * Whether every path from the entry to b goes through a: whether a is b or above it in the
+     * dominator tree, which is numbered once so that takes a few comparisons.
+     */
+    boolean dominates(BasicBlock a, BasicBlock b) {
+        if (enter == null)
+            dominatorTree();
+        return enter[a.id] >= 0 && enter[b.id] >= 0 && enter[a.id] <= enter[b.id] && leave[b.id] <= leave[a.id];
+    }
+
+    /*
+     * Finds each block's immediate dominator the way Cooper, Harvey and Kennedy do: in reverse
+     * postorder, the nearest block above all its predecessors' in the tree so far, until nothing
+     * changes, which without irreducible loops is after a pass or two. The tree is then numbered
+     * depth first, a block's descendants being the ones entered after it and left before it.
+     */
+    private void dominatorTree() {
+        List<BasicBlock> order = postorder();
+        int[] number = new int[blocks.size()];
+        for (int i = 0; i < order.size(); i++) {
+            number[order.get(i).id] = i;
+        }
+        BasicBlock[] idom = new BasicBlock[blocks.size()]; // null for the blocks not reached
+        idom[entry.id] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : reversePostorder()) {
+                if (b == entry)
+                    continue;
+                BasicBlock dom = null;
+                for (BasicBlock p : b.preds) {
+                    if (idom[p.id] != null)
+                        dom = dom == null ? p : intersect(p, dom, idom, number);
+                }
+                if (idom[b.id] != dom) {
+                    idom[b.id] = dom;
+                    changed = true;
+                }
+            }
+        }
+
+        List<List<BasicBlock>> children = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            children.add(new ArrayList<>());
+        }
+        for (BasicBlock b : order) {
+            if (b != entry)
+                children.get(idom[b.id].id).add(b);
+        }
+        enter = new int[blocks.size()];
+        leave = new int[blocks.size()];
+        Arrays.fill(enter, -1);
+        Arrays.fill(leave, -1);
+        int count = 0;
+        Deque<BasicBlock> path = new ArrayDeque<>();
+        Deque<Iterator<BasicBlock>> next = new ArrayDeque<>();
+        enter[entry.id] = count++;
+        path.push(entry);
+        next.push(children.get(entry.id).iterator());
+        while (!path.isEmpty()) {
+            if (next.peek().hasNext()) {
+                BasicBlock c = next.peek().next();
+                enter[c.id] = count++;
+                path.push(c);
+                next.push(children.get(c.id).iterator());
+            } else {
+                next.pop();
+                leave[path.pop().id] = count++;
+            }
+        }
+    }
+
+    /*
+     * The nearest block above both a and b in the tree so far; blocks higher up come later in postorder.
+     */
+    private static BasicBlock intersect(BasicBlock a, BasicBlock b, BasicBlock[] idom, int[] number) {
+        while (a != b) {
+            while (number[a.id] < number[b.id])
+                a = idom[a.id];
+            while (number[b.id] < number[a.id])
+                b = idom[b.id];
+        }
+        return a;
+    }
+
+    /*
+     * The natural loops of the function, found from the back edges (edges to a block that
+     * dominates their source), outer loops before the loops nested in them.
+     */
+    List<Loop> loops() {
+        if (loops != null)
+            return loops;
+        List<Loop> out = new ArrayList<>();
+        for (BasicBlock tail : reachable()) {
+            for (BasicBlock head : tail.succs) {
+                if (!dominates(head, tail))
+                    continue;
+                Loop loop = new Loop(headers.get(head), head);
+                loop.body.add(head);
+                Deque<BasicBlock> todo = new ArrayDeque<>();
+                todo.push(tail);
+                while (!todo.isEmpty()) {
+                    BasicBlock b = todo.pop();
+                    if (loop.body.add(b))
+                        b.preds.forEach(todo::push);
+                }
+                out.add(loop);
+            }
+        }
+        out.sort((a, b) -> b.body.size() - a.body.size());
+        loops = Collections.unmodifiableList(out);
+        for (Loop l : loops) {
+            loopOf.putIfAbsent(l.stmt, l);
+        }
+        return loops;
+    }
+
+    Loop loop(While w) {
+        loops();
+        return loopOf.get(w);
+    }
+}
@@ -0,0 +1,237 @@
+package gen;
+
+import ast.*;
+
+import java.util.*;
+
+import static gen.LoopOptimiser.*;
+
+/**
+ * Removes code that can't run or whose result is never used, before code is generated.
+ *
+ * An if or while with a constant condition is replaced by the code that would run. Statements in
+ * basic blocks that can't be reached, like the ones after a return, are dropped. A liveness
+ * analysis of the function's scalar locals then finds assignments whose value is never read:
+ * those are removed, keeping the right hand side as a statement when it has side effects.
+ *
+ * The analysis doesn't count what the right hand side of such a store reads, as it goes with the
+ * store, so a chain of stores feeding only each other is found in one go and the whole function
+ * is done with one graph and one liveness solve.
+ */
+class DeadCodeEliminator {
+
+    private Set<VarDecl> locals; // the variables whose liveness is tracked
+
+    void eliminate(Program p) {
+        for (FunDecl f : p.funDecls) {
+            f.block.stmtList.replaceAll(this::constantConditions);
+            locals = new HashSet<>();
+            for (VarDecl vd : f.params) {
+                if (isScalar(vd.type))
+                    locals.add(vd);
+            }
+            f.block.accept(new ASTWalker() {
+                @Override
+                public Void visitVarDecl(VarDecl vd) {
+                    if (isScalar(vd.type))
+                        locals.add(vd);
+                    return null;
+                }
+            });
+            //what unreachable drops is in blocks the liveness never looks at, so the graph still holds
+            ControlFlowGraph cfg = new ControlFlowGraph(f);
+            unreachable(f, cfg);
+            deadStores(f, cfg);
+        }
+    }
+
+    private static Block empty() {
+        return new Block(new LinkedList<>(), new LinkedList<>());
+    }
+
+    /*
+     * Returns what runs of s once conditions known at compile time are taken into account.
+     */
+    private Stmt constantConditions(Stmt s) {
+        if (s instanceof Block) {
+            ((Block) s).stmtList.replaceAll(this::constantConditions);
+        } else if (s instanceof If) {
+            If i = (If) s;
+            Integer c = ConstantFolder.constant(i.cond);
+            if (c != null)
+                return c != 0 ? constantConditions(i.st1) : i.st2 == null ? empty() : constantConditions(i.st2);
+            i.st1 = constantConditions(i.st1);
+            if (i.st2 != null)
+                i.st2 = constantConditions(i.st2);
+        } else if (s instanceof While) {
+            While w = (While) s;
+            Integer c = ConstantFolder.constant(w.cond);
+            if (c != null && c == 0)
+                return empty();
+            w.loop = constantConditions(w.loop);
+        }
+        return s;
+    }
+
+    /*
+     * Drops the statements of blocks control can't reach.
+     */
+    private void unreachable(FunDecl f, ControlFlowGraph cfg) {
+        Set<ControlFlowGraph.BasicBlock> reachable = cfg.reachable();
+        Set<ASTNode> dead = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ControlFlowGraph.BasicBlock b : cfg.blocks) {
+            if (!reachable.contains(b))
+                dead.addAll(b.items);
+        }
+        if (!dead.isEmpty())
+            remove(f.block, dead);
+    }
+
+    private static Stmt remove(Stmt s, Set<ASTNode> dead) {
+        if (dead.contains(s)) {
+            return null;
+        } else if (s instanceof Block) {
+            List<Stmt> stmts = ((Block) s).stmtList;
+            stmts.replaceAll(i -> remove(i, dead));
+            stmts.removeIf(Objects::isNull);
+        } else if (s instanceof If) {
+            If i = (If) s;
+            i.st1 = orEmpty(remove(i.st1, dead));
+            if (i.st2 != null)
+                i.st2 = remove(i.st2, dead);
+        } else if (s instanceof While) {
+            ((While) s).loop = orEmpty(remove(((While) s).loop, dead));
+        }
+        return s;
+    }
+
+    private static Stmt orEmpty(Stmt s) {
+        return s == null ? empty() : s;
+    }
+
+    /*
+     * Liveness
+     */
+
+    /*
+     * Removes assignments to locals that are never read afterwards.
+     */
+    private void deadStores(FunDecl f, ControlFlowGraph cfg) {
+        //live variables at the start of each block, worked out backwards until nothing changes,
+        //successors first so a pass over code without loops is enough
+        Map<ControlFlowGraph.BasicBlock, Set<VarDecl>> liveIn = new HashMap<>();
+        List<ControlFlowGraph.BasicBlock> blocks = cfg.postorder();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ControlFlowGraph.BasicBlock b : blocks) {
+                Set<VarDecl> live = liveOut(b, liveIn);
+                for (int i = b.items.size() - 1; i >= 0; i--) {
+                    transfer(b.items.get(i), live);
+                }
+                if (!live.equals(liveIn.get(b))) {
+                    liveIn.put(b, live);
+                    changed = true;
+                }
+            }
+        }
+
+        Map<Stmt, Stmt> replacements = new IdentityHashMap<>();
+        for (ControlFlowGraph.BasicBlock b : blocks) {
+            Set<VarDecl> live = liveOut(b, liveIn);
+            for (int i = b.items.size() - 1; i >= 0; i--) {
+                ASTNode item = b.items.get(i);
+                if (deadStore(item, live)) {
+                    Assign a = (Assign) item;
+                    replacements.put(a, ConstantFolder.pure(a.e2) ? null : new ExprStmt(a.e2));
+                }
+                transfer(item, live);
+            }
+        }
+        if (!replacements.isEmpty())
+            replaceStores(f.block, replacements);
+    }
+
+    /*
+     * Whether item stores to a local that isn't live after it.
+     */
+    private boolean deadStore(ASTNode item, Set<VarDecl> live) {
+        if (!(item instanceof Assign) || !(((Assign) item).e1 instanceof VarExpr))
+            return false;
+        VarDecl vd = ((VarExpr) ((Assign) item).e1).vd;
+        return locals.contains(vd) && !live.contains(vd);
+    }
+
+    private static Set<VarDecl> liveOut(ControlFlowGraph.BasicBlock b, Map<ControlFlowGraph.BasicBlock, Set<VarDecl>> liveIn) {
+        Set<VarDecl> live = new HashSet<>();
+        for (ControlFlowGraph.BasicBlock s : b.succs) {
+            live.addAll(liveIn.getOrDefault(s, Collections.<VarDecl>emptySet()));
+        }
+        return live;
+    }
+
+    /*
+     * Updates the variables live after an item to the ones live before it.
+     */
+    private void transfer(ASTNode item, Set<VarDecl> live) {
+        if (item instanceof Return) {
+            live.clear(); // nothing after a return is run
+            uses(((Return) item).exp, live);
+        } else if (item instanceof Assign) {
+            Assign a = (Assign) item;
+            if (deadStore(a, live)) {
+                //it is removed, only a right hand side kept for its side effects reads anything
+                if (!ConstantFolder.pure(a.e2))
+                    uses(a.e2, live);
+                return;
+            }
+            if (a.e1 instanceof VarExpr)
+                live.remove(((VarExpr) a.e1).vd);
+            else
+                uses(a.e1, live);
+            uses(a.e2, live);
+        } else if (item instanceof ExprStmt) {
+            uses(((ExprStmt) item).exp, live);
+        } else if (item instanceof If) {
+            uses(((If) item).cond, live);
+        } else if (item instanceof While) {
+            uses(((While) item).cond, live);
+        }
+    }
+
+    private void uses(Expr e, Set<VarDecl> live) {
+        if (e == null)
+            return;
+        e.accept(new ASTWalker() {
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                if (locals.contains(v.vd))
+                    live.add(v.vd);
+                return null;
+            }
+        });
+    }
+
+    private static void replaceStores(Stmt s, Map<Stmt, Stmt> replacements) {
+        if (s instanceof Block) {
+            List<Stmt> stmts = ((Block) s).stmtList;
+            stmts.replaceAll(i -> replacements.containsKey(i) ? replacements.get(i) : i);
+            stmts.removeIf(Objects::isNull);
+            stmts.forEach(i -> replaceStores(i, replacements));
+        } else if (s instanceof If) {
+            If i = (If) s;
+            i.st1 = replaceStore(i.st1, replacements);
+            if (i.st2 != null)
+                i.st2 = replaceStore(i.st2, replacements);
+        } else if (s instanceof While) {
+            ((While) s).loop = replaceStore(((While) s).loop, replacements);
+        }
+    }
+
+    private static Stmt replaceStore(Stmt s, Map<Stmt, Stmt> replacements) {
+        if (replacements.containsKey(s))
+            return orEmpty(replacements.get(s));
+        replaceStores(s, replacements);
+        return s;
+    }
+}
@@ -0,0 +1,922 @@
+package gen;
+
+import ast.*;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Replaces calls to small non-recursive functions with a copy of their body, working on the AST
+ * before any code is generated. Functions are handled callees first, following the call graph,
+ * so the size of a callee is its size with its own calls already inlined.
+ *
+ * A function that is only return e; with no calls in e is substituted into the expression calling it.
+ * Any other function up to the size budget is inlined as a block in front of the statement calling
+ * it: parameters and locals become fresh variables, and returns become assignments to the variable
+ * the result is used from. Calls whose evaluation can't be moved in front of their statement, and
+ * functions with a return inside a loop, stay calls.
+ */
+public class Inliner {
+
+    private static class NotInlinable extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        NotInlinable(String reason) {
+            super(reason);
+        }
+    }
+
+    private int budget = 40; // largest callee body, in AST nodes, that is inlined
+    private final List<String> report = new ArrayList<>();
+
+    private Set<VarDecl> globals;
+    private Set<FunDecl> recursive;
+    private Set<FunCallExpr> decided; // call sites already reported
+    private FunDecl caller;
+    private int fresh;
+
+    public void setBudget(int budget) {
+        this.budget = budget;
+    }
+
+    public List<String> getReport() {
+        return Collections.unmodifiableList(report);
+    }
+
+    public void printReport(PrintStream out) {
+        out.println("Inlining decisions:");
+        for (String line : report) {
+            out.println("\t" + line);
+        }
+    }
+
+    void inline(Program p) {
+        report.clear();
+        if (budget <= 0)
+            return;
+        globals = new HashSet<>(p.varDecls);
+        decided = new HashSet<>();
+        Map<FunDecl, Set<FunDecl>> graph = callGraph(p);
+        recursive = new HashSet<>();
+        for (FunDecl f : p.funDecls) {
+            if (reachable(graph, f).contains(f))
+                recursive.add(f);
+        }
+
+        List<FunDecl> order = new ArrayList<>();
+        Set<FunDecl> seen = new HashSet<>();
+        for (FunDecl f : p.funDecls) {
+            postOrder(graph, f, seen, order);
+        }
+        for (FunDecl f : order) {
+            caller = f;
+            f.block.accept(new ExpressionInliner());
+            inlineStatements(f.block);
+            //calls under && and || or in loop conditions, which are never looked at for statement inlining
+            f.block.accept(new ASTWalker() {
+                @Override
+                public Void visitFunCallExpr(FunCallExpr fce) {
+                    super.visitFunCallExpr(fce);
+                    if (!CodeGenerator.BUILTINS.contains(fce.name)) {
+                        String reason = refuse(fce);
+                        decide(fce, "not inlined, " + (reason != null ? reason : "its statement can't be split around it"));
+                    }
+                    return null;
+                }
+            });
+        }
+
+        //functions nothing calls any more
+        FunDecl main = null;
+        for (FunDecl f : p.funDecls) {
+            if (f.name.equals("main"))
+                main = f;
+        }
+        if (main != null) {
+            Set<FunDecl> live = reachable(callGraph(p), main);
+            live.add(main);
+            p.funDecls.retainAll(live);
+        }
+    }
+
+    /*
+     * Call graph
+     */
+
+    private static Map<FunDecl, Set<FunDecl>> callGraph(Program p) {
+        Map<FunDecl, Set<FunDecl>> graph = new HashMap<>();
+        for (FunDecl f : p.funDecls) {
+            Set<FunDecl> callees = new LinkedHashSet<>();
+            f.block.accept(new ASTWalker() {
+                @Override
+                public Void visitFunCallExpr(FunCallExpr fce) {
+                    if (!CodeGenerator.BUILTINS.contains(fce.name) && fce.fd != null)
+                        callees.add(fce.fd);
+                    return super.visitFunCallExpr(fce);
+                }
+            });
+            graph.put(f, callees);
+        }
+        return graph;
+    }
+
+    private static Set<FunDecl> reachable(Map<FunDecl, Set<FunDecl>> graph, FunDecl from) {
+        Set<FunDecl> out = new HashSet<>();
+        Deque<FunDecl> todo = new ArrayDeque<>(graph.getOrDefault(from, Collections.<FunDecl>emptySet()));
+        while (!todo.isEmpty()) {
+            FunDecl f = todo.pop();
+            if (out.add(f))
+                todo.addAll(graph.getOrDefault(f, Collections.<FunDecl>emptySet()));
+        }
+        return out;
+    }
+
+    private static void postOrder(Map<FunDecl, Set<FunDecl>> graph, FunDecl f, Set<FunDecl> seen, List<FunDecl> out) {
+        if (!graph.containsKey(f) || !seen.add(f))
+            return;
+        for (FunDecl callee : graph.get(f)) {
+            postOrder(graph, callee, seen, out);
+        }
+        out.add(f);
+    }
+
+    /*
+     * Facts about functions
+     */
+
+    private static int size(ASTNode n) {
+        int[] count = {0};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                count[0]++;
+                return null;
+            }
+
+            @Override
+            public Void visitIntLiteral(IntLiteral il) {
+                count[0]++;
+                return null;
+            }
+
+            @Override
+            public Void visitStringLiteral(StrLiteral sl) {
+                count[0]++;
+                return null;
+            }
+
+            @Override
+            public Void visitChrLiteral(ChrLiteral cl) {
+                count[0]++;
+                return null;
+            }
+
+            @Override
+            public Void visitVarDecl(VarDecl vd) {
+                count[0]++;
+                return null;
+            }
+
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                count[0] += 2;
+                return super.visitFunCallExpr(fce);
+            }
+
+            @Override
+            public Void visitBinOp(BinOp bo) {
+                count[0]++;
+                return super.visitBinOp(bo);
+            }
+
+            @Override
+            public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+                count[0]++;
+                return super.visitArrayAccessExpr(aae);
+            }
+
+            @Override
+            public Void visitFieldAccessExpr(FieldAccessExpr fae) {
+                count[0]++;
+                return super.visitFieldAccessExpr(fae);
+            }
+
+            @Override
+            public Void visitValueAtExpr(ValueAtExpr vae) {
+                count[0]++;
+                return super.visitValueAtExpr(vae);
+            }
+
+            @Override
+            public Void visitWhile(While w) {
+                count[0]++;
+                return super.visitWhile(w);
+            }
+
+            @Override
+            public Void visitIf(If i) {
+                count[0]++;
+                return super.visitIf(i);
+            }
+
+            @Override
+            public Void visitAssign(Assign a) {
+                count[0]++;
+                return super.visitAssign(a);
+            }
+
+            @Override
+            public Void visitReturn(Return r) {
+                count[0]++;
+                return super.visitReturn(r);
+            }
+        });
+        return count[0];
+    }
+
+    private static int uses(ASTNode n, VarDecl vd) {
+        int[] count = {0};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                if (v.vd == vd)
+                    count[0]++;
+                return null;
+            }
+        });
+        return count[0];
+    }
+
+    private static boolean assigned(ASTNode n, VarDecl vd) {
+        boolean[] found = {false};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitAssign(Assign a) {
+                found[0] |= a.e1 instanceof VarExpr && ((VarExpr) a.e1).vd == vd;
+                return super.visitAssign(a);
+            }
+        });
+        return found[0];
+    }
+
+    private static boolean hasCalls(ASTNode n) {
+        boolean[] found = {false};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                found[0] = true;
+                return null;
+            }
+        });
+        return found[0];
+    }
+
+    /*
+     * Whether calling f can change memory its caller might read, it may only assign its own variables.
+     */
+    private static boolean writesMemory(FunDecl f) {
+        Set<VarDecl> own = new HashSet<>(f.params);
+        boolean[] found = {false};
+        f.block.accept(new ASTWalker() {
+            @Override
+            public Void visitVarDecl(VarDecl vd) {
+                own.add(vd);
+                return null;
+            }
+
+            @Override
+            public Void visitAssign(Assign a) {
+                found[0] |= !(a.e1 instanceof VarExpr && own.contains(((VarExpr) a.e1).vd));
+                return super.visitAssign(a);
+            }
+
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                found[0] |= !CodeGenerator.BUILTINS.contains(fce.name);
+                return super.visitFunCallExpr(fce);
+            }
+        });
+        return found[0];
+    }
+
+    private static boolean isScalar(Type t) {
+        return t instanceof PointerType || t == BaseType.INT || t == BaseType.CHAR;
+    }
+
+    /*
+     * The reason a call can't be inlined at all, null if it can.
+     */
+    private String refuse(FunCallExpr fce) {
+        if (CodeGenerator.BUILTINS.contains(fce.name) || fce.fd == null)
+            return "builtin";
+        if (recursive.contains(fce.fd))
+            return "recursive";
+        if (fce.fd == caller)
+            return "calls itself";
+        int size = size(fce.fd.block);
+        if (size > budget)
+            return "too big (" + size + " > " + budget + ")";
+        return null;
+    }
+
+    private void decide(FunCallExpr fce, String decision) {
+        if (decided.add(fce))
+            report.add(caller.name + " -> " + fce.name + ": " + decision);
+    }
+
+    /*
+     * Copies part of a tree. Variables in vars are replaced by (a copy of) their expression,
+     * declarations met on the way get a fresh name and are added to vars, calls in calls are replaced.
+     */
+    private class Copier implements ASTVisitor<ASTNode> {
+        final Map<VarDecl, Expr> vars;
+        final Map<FunCallExpr, Expr> calls;
+
+        Copier(Map<VarDecl, Expr> vars, Map<FunCallExpr, Expr> calls) {
+            this.vars = vars;
+            this.calls = calls;
+        }
+
+        Expr copy(Expr e) {
+            return e == null ? null : (Expr) e.accept(this);
+        }
+
+        Stmt copy(Stmt s) {
+            return s == null ? null : (Stmt) s.accept(this);
+        }
+
+        private <T extends Expr> T typed(T copy, Expr original) {
+            copy.type = original.type;
+            return copy;
+        }
+
+        @Override
+        public ASTNode visitVarDecl(VarDecl vd) {
+            if (vars.containsKey(vd))
+                return null; // already stands for a variable of the caller
+            VarDecl copy = new VarDecl(vd.type, vd.varName + "_" + fresh++);
+            vars.put(vd, variable(copy));
+            return copy;
+        }
+
+        @Override
+        public ASTNode visitVarExpr(VarExpr v) {
+            if (vars.containsKey(v.vd))
+                return new Copier(new HashMap<>(), new HashMap<>()).copy(vars.get(v.vd));
+            VarExpr copy = new VarExpr(v.name);
+            copy.vd = v.vd;
+            copy.type = Expr.typeOf(v);
+            return copy;
+        }
+
+        @Override
+        public ASTNode visitBlock(Block b) {
+            List<VarDecl> decls = new LinkedList<>();
+            for (VarDecl i : b.varDeclList) {
+                VarDecl copy = (VarDecl) i.accept(this);
+                if (copy != null)
+                    decls.add(copy);
+            }
+            List<Stmt> stmts = new LinkedList<>();
+            for (Stmt i : b.stmtList) {
+                stmts.add(copy(i));
+            }
+            return new Block(decls, stmts);
+        }
+
+        @Override
+        public ASTNode visitFunCallExpr(FunCallExpr fce) {
+            if (calls.containsKey(fce))
+                return calls.get(fce);
+            List<Expr> args = new LinkedList<>();
+            for (Expr i : fce.args) {
+                args.add(copy(i));
+            }
+            FunCallExpr copy = typed(new FunCallExpr(fce.name, args), fce);
+            copy.fd = fce.fd;
+            if (decided.contains(fce))
+                decided.add(copy); // the same decision again
+            return copy;
+        }
+
+        @Override
+        public ASTNode visitBinOp(BinOp bo) {
+            return typed(new BinOp(copy(bo.E1), copy(bo.E2), bo.op), bo);
+        }
+
+        @Override
+        public ASTNode visitArrayAccessExpr(ArrayAccessExpr aae) {
+            return typed(new ArrayAccessExpr(copy(aae.exp), copy(aae.index)), aae);
+        }
+
+        @Override
+        public ASTNode visitFieldAccessExpr(FieldAccessExpr fae) {
+            return typed(new FieldAccessExpr(copy(fae.struct), fae.field), fae);
+        }
+
+        @Override
+        public ASTNode visitValueAtExpr(ValueAtExpr vae) {
+            return typed(new ValueAtExpr(copy(vae.exp)), vae);
+        }
+
+        @Override
+        public ASTNode visitSizeOfExpr(SizeOfExpr soe) {
+            SizeOfExpr copy = new SizeOfExpr(soe.type);
+            ((Expr) copy).type = ((Expr) soe).type;
+            return copy;
+        }
+
+        @Override
+        public ASTNode visitTypecastExpr(TypecastExpr te) {
+            return new TypecastExpr(te.type, copy(te.exp));
+        }
+
+        // literals are never changed, they can be shared
+        @Override
+        public ASTNode visitIntLiteral(IntLiteral il) {
+            return il;
+        }
+
+        @Override
+        public ASTNode visitStringLiteral(StrLiteral sl) {
+            return sl;
+        }
+
+        @Override
+        public ASTNode visitChrLiteral(ChrLiteral cl) {
+            return cl;
+        }
+
+        @Override
+        public ASTNode visitExprStmt(ExprStmt es) {
+            return new ExprStmt(copy(es.exp));
+        }
+
+        @Override
+        public ASTNode visitWhile(While w) {
+            return new While(copy(w.cond), copy(w.loop));
+        }
+
+        @Override
+        public ASTNode visitIf(If i) {
+            return new If(copy(i.cond), copy(i.st1), copy(i.st2));
+        }
+
+        @Override
+        public ASTNode visitAssign(Assign a) {
+            return new Assign(copy(a.e1), copy(a.e2));
+        }
+
+        @Override
+        public ASTNode visitReturn(Return r) {
+            return new Return(copy(r.exp));
+        }
+
+        // nothing below needs copying
+        @Override
+        public ASTNode visitFunDecl(FunDecl p) {
+            return p;
+        }
+
+        @Override
+        public ASTNode visitProgram(Program p) {
+            return p;
+        }
+
+        @Override
+        public ASTNode visitStructTypeDecl(StructTypeDecl st) {
+            return st;
+        }
+
+        @Override
+        public ASTNode visitBaseType(BaseType bt) {
+            return bt;
+        }
+
+        @Override
+        public ASTNode visitPointerType(PointerType pt) {
+            return pt;
+        }
+
+        @Override
+        public ASTNode visitStructType(StructType st) {
+            return st;
+        }
+
+        @Override
+        public ASTNode visitArrayType(ArrayType at) {
+            return at;
+        }
+
+        @Override
+        public ASTNode visitOp(Op o) {
+            return o;
+        }
+    }
+
+    private static VarExpr variable(VarDecl vd) {
+        VarExpr v = new VarExpr(vd.varName);
+        v.vd = vd;
+        v.type = vd.type;
+        return v;
+    }
+
+    /*
+     * Calls to functions that are just return e; become e with the arguments in place of the
+     * parameters. The arguments have to be free of side effects, and used at most once unless
+     * they are a literal or a variable.
+     */
+    private class ExpressionInliner extends ASTWalker {
+
+        private Expr expression(FunDecl f) {
+            List<Stmt> body = f.block.stmtList;
+            if (!f.block.varDeclList.isEmpty() || body.size() != 1 || !(body.get(0) instanceof Return))
+                return null;
+            Expr e = ((Return) body.get(0)).exp;
+            return e == null || hasCalls(e) ? null : e;
+        }
+
+        private Expr rewrite(Expr e) {
+            if (e == null)
+                return null;
+            e.accept(this); // arguments and operands first
+            if (!(e instanceof FunCallExpr) || decided.contains(e))
+                return e;
+            FunCallExpr fce = (FunCallExpr) e;
+            if (refuse(fce) != null)
+                return e;
+            Expr body = expression(fce.fd);
+            if (body == null)
+                return e;
+            Map<VarDecl, Expr> vars = new HashMap<>();
+            for (int i = 0; i < fce.args.size(); i++) {
+                Expr arg = fce.args.get(i);
+                int used = uses(body, fce.fd.params.get(i));
+                boolean simple = arg instanceof VarExpr || ConstantFolder.constant(arg) != null;
+                if (!ConstantFolder.pure(arg) || used > 1 && !simple || !isScalar(fce.fd.params.get(i).type) && !(arg instanceof VarExpr))
+                    return e;
+                vars.put(fce.fd.params.get(i), arg);
+            }
+            decide(fce, "inlined as an expression (size " + size(fce.fd.block) + ")");
+            return new Copier(vars, new HashMap<>()).copy(body);
+        }
+
+        @Override
+        public Void visitFunCallExpr(FunCallExpr fce) {
+            fce.args.replaceAll(this::rewrite);
+            return null;
+        }
+
+        @Override
+        public Void visitBinOp(BinOp bo) {
+            bo.E1 = rewrite(bo.E1);
+            bo.E2 = rewrite(bo.E2);
+            return null;
+        }
+
+        @Override
+        public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+            aae.exp = rewrite(aae.exp);
+            aae.index = rewrite(aae.index);
+            return null;
+        }
+
+        @Override
+        public Void visitFieldAccessExpr(FieldAccessExpr fae) {
+            fae.struct = rewrite(fae.struct);
+            return null;
+        }
+
+        @Override
+        public Void visitValueAtExpr(ValueAtExpr vae) {
+            vae.exp = rewrite(vae.exp);
+            return null;
+        }
+
+        @Override
+        public Void visitTypecastExpr(TypecastExpr te) {
+            te.exp = rewrite(te.exp);
+            return null;
+        }
+
+        @Override
+        public Void visitExprStmt(ExprStmt es) {
+            es.exp = rewrite(es.exp);
+            return null;
+        }
+
+        @Override
+        public Void visitWhile(While w) {
+            w.cond = rewrite(w.cond);
+            w.loop.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIf(If i) {
+            i.cond = rewrite(i.cond);
+            i.st1.accept(this);
+            if (i.st2 != null)
+                i.st2.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssign(Assign a) {
+            a.e2 = rewrite(a.e2);
+            a.e1 = rewrite(a.e1);
+            return null;
+        }
+
+        @Override
+        public Void visitReturn(Return r) {
+            r.exp = rewrite(r.exp);
+            return null;
+        }
+    }
+
+    /*
+     * Statement level inlining
+     */
+
+    private void inlineStatements(Stmt s) {
+        if (s instanceof Block) {
+            List<Stmt> stmts = ((Block) s).stmtList;
+            for (int i = 0; i < stmts.size(); i++) {
+                Stmt replacement = inlineCall(stmts.get(i));
+                if (replacement != null)
+                    stmts.set(i, replacement);
+                inlineStatements(stmts.get(i));
+            }
+        } else if (s instanceof If) {
+            ((If) s).st1 = inlineNested(((If) s).st1);
+            ((If) s).st2 = inlineNested(((If) s).st2);
+        } else if (s instanceof While) {
+            ((While) s).loop = inlineNested(((While) s).loop);
+        }
+    }
+
+    private Stmt inlineNested(Stmt s) {
+        if (s == null)
+            return null;
+        Stmt replacement = inlineCall(s);
+        if (replacement != null)
+            s = replacement;
+        inlineStatements(s);
+        return s;
+    }
+
+    /*
+     * The first call in a statement worth inlining, in the order the code generator evaluates it.
+     * Calls in the right hand side of && and || might not be evaluated at all, so they are left alone.
+     */
+    private FunCallExpr firstCall(Expr e) {
+        if (e instanceof FunCallExpr) {
+            for (Expr i : ((FunCallExpr) e).args) {
+                FunCallExpr found = firstCall(i);
+                if (found != null)
+                    return found;
+            }
+            return decided.contains(e) || CodeGenerator.BUILTINS.contains(((FunCallExpr) e).name) ? null : (FunCallExpr) e;
+        } else if (e instanceof BinOp) {
+            FunCallExpr found = firstCall(((BinOp) e).E1);
+            if (found != null || ((BinOp) e).op == Op.AND || ((BinOp) e).op == Op.OR)
+                return found;
+            return firstCall(((BinOp) e).E2);
+        } else if (e instanceof ArrayAccessExpr) {
+            FunCallExpr found = firstCall(((ArrayAccessExpr) e).exp);
+            return found != null ? found : firstCall(((ArrayAccessExpr) e).index);
+        } else if (e instanceof FieldAccessExpr) {
+            return firstCall(((FieldAccessExpr) e).struct);
+        } else if (e instanceof ValueAtExpr) {
+            return firstCall(((ValueAtExpr) e).exp);
+        } else if (e instanceof TypecastExpr) {
+            return firstCall(((TypecastExpr) e).exp);
+        }
+        return null;
+    }
+
+    /*
+     * Inlines one call made by a statement, returning the block that replaces the statement,
+     * or null if there was nothing to inline.
+     */
+    private Stmt inlineCall(Stmt s) {
+        FunCallExpr fce;
+        if (s instanceof ExprStmt) {
+            fce = firstCall(((ExprStmt) s).exp);
+        } else if (s instanceof Assign) {
+            fce = firstCall(((Assign) s).e2);
+            if (fce == null)
+                fce = firstCall(((Assign) s).e1);
+        } else if (s instanceof Return) {
+            fce = firstCall(((Return) s).exp);
+        } else if (s instanceof If) {
+            fce = firstCall(((If) s).cond);
+        } else {
+            return null;
+        }
+        if (fce == null)
+            return null;
+        String reason = refuse(fce);
+        if (reason != null) {
+            decide(fce, "not inlined, " + reason);
+            return inlineCall(s);
+        }
+        try {
+            Stmt out = inlineCall(s, fce);
+            decide(fce, "inlined (size " + size(fce.fd.block) + ")");
+            return out;
+        } catch (NotInlinable e) {
+            decide(fce, "not inlined, " + e.getMessage());
+            return inlineCall(s);
+        }
+    }
+
+    private Stmt inlineCall(Stmt s, FunCallExpr fce) throws NotInlinable {
+        FunDecl f = fce.fd;
+        List<VarDecl> decls = new LinkedList<>();
+        List<Stmt> stmts = new LinkedList<>();
+
+        //what happens to the value returned, straight into the variable, returned, or kept for the statement
+        boolean whole = s instanceof ExprStmt && ((ExprStmt) s).exp == fce
+                || s instanceof Assign && ((Assign) s).e2 == fce && !hasCalls(((Assign) s).e1)
+                || s instanceof Return && ((Return) s).exp == fce;
+        if (!whole) {
+            //the rest of the statement is evaluated after the body now, which must not be able to tell
+            if (callsIn(s).indexOf(fce) != 0 || writesMemory(f))
+                throw new NotInlinable("can't move the call in front of its statement");
+        }
+        VarExpr result = null;
+        if (!whole && f.type != BaseType.VOID) {
+            VarDecl tmp = new VarDecl(f.type, f.name + "_result_" + fresh++);
+            decls.add(tmp);
+            result = variable(tmp);
+        }
+
+        //parameters, literals and variables of the caller the callee doesn't assign are used directly
+        Map<VarDecl, Expr> vars = new HashMap<>();
+        for (int i = 0; i < fce.args.size(); i++) {
+            VarDecl param = f.params.get(i);
+            Expr arg = fce.args.get(i);
+            if (!isScalar(param.type)) {
+                //arrays are passed by address and structs have no copy we could make from any expression
+                if (!(arg instanceof VarExpr) || param.type instanceof StructType && written(f.block, param))
+                    throw new NotInlinable("can't copy argument " + param.varName);
+                vars.put(param, arg);
+            } else if ((ConstantFolder.constant(arg) != null || arg instanceof VarExpr && !globals.contains(((VarExpr) arg).vd))
+                    && !assigned(f.block, param)) {
+                vars.put(param, arg);
+            } else {
+                VarDecl copy = new VarDecl(param.type, param.varName + "_" + fresh++);
+                decls.add(copy);
+                vars.put(param, variable(copy));
+                stmts.add(new Assign(variable(copy), arg));
+            }
+        }
+
+        //a struct is built straight in the variable it ends up in rather than copied there on return
+        if (f.type instanceof StructType) {
+            Expr into = s instanceof Assign && whole ? ((Assign) s).e1 : result;
+            VarDecl built = returnedLocal(f);
+            if (built == null || !(into instanceof VarExpr) || uses(new ExprStmt(new FunCallExpr(f.name, fce.args)), ((VarExpr) into).vd) > 0)
+                throw new NotInlinable("struct result would need a copy");
+            vars.put(built, into);
+        }
+
+        Block body = (Block) new Copier(vars, new HashMap<>()).copy(f.block);
+        Sink sink;
+        if (f.type instanceof StructType) {
+            sink = e -> null;
+        } else if (s instanceof Assign && whole) {
+            Expr lhs = ((Assign) s).e1;
+            sink = e -> e == null ? null : new Assign(new Copier(new HashMap<>(), new HashMap<>()).copy(lhs), e);
+        } else if (s instanceof Return && whole) {
+            sink = Return::new;
+        } else if (result != null) {
+            VarExpr target = result;
+            sink = e -> e == null ? null : new Assign(variable(target.vd), e);
+        } else {
+            sink = e -> e != null && hasCalls(e) ? new ExprStmt(e) : null;
+        }
+        stmts.add(new Block(body.varDeclList, returns(body.stmtList, sink)));
+        if (s instanceof Return && whole && f.type == BaseType.VOID)
+            stmts.add(new Return()); // falling off the end of the callee
+        if (!whole) {
+            Map<FunCallExpr, Expr> replace = new HashMap<>();
+            replace.put(fce, result);
+            stmts.add(new Copier(new HashMap<>(), replace).copy(s));
+        }
+        return new Block(decls, stmts);
+    }
+
+    /*
+     * The local of f's outermost block that every return in f returns, null if there isn't one.
+     */
+    private static VarDecl returnedLocal(FunDecl f) {
+        Set<VarDecl> returned = new HashSet<>();
+        boolean[] other = {false};
+        f.block.accept(new ASTWalker() {
+            @Override
+            public Void visitReturn(Return r) {
+                if (r.exp instanceof VarExpr)
+                    returned.add(((VarExpr) r.exp).vd);
+                else
+                    other[0] = true;
+                return null;
+            }
+        });
+        if (other[0] || returned.size() != 1 || !f.block.varDeclList.containsAll(returned))
+            return null;
+        return returned.iterator().next();
+    }
+
+    /*
+     * Calls made by a statement, in the order they are evaluated.
+     */
+    private static List<FunCallExpr> callsIn(Stmt s) {
+        List<FunCallExpr> out = new ArrayList<>();
+        s.accept(new ASTWalker() {
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                super.visitFunCallExpr(fce);
+                out.add(fce);
+                return null;
+            }
+        });
+        return out;
+    }
+
+    /*
+     * Whether anything in n is assigned through variable vd, including its fields and elements.
+     */
+    private static boolean written(ASTNode n, VarDecl vd) {
+        boolean[] found = {false};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitAssign(Assign a) {
+                found[0] |= uses(a.e1, vd) > 0;
+                return super.visitAssign(a);
+            }
+        });
+        return found[0];
+    }
+
+    private interface Sink {
+        Stmt returning(Expr e) throws NotInlinable;
+    }
+
+    /*
+     * Rewrites a body so control falls off its end instead of returning, every return e becomes
+     * sink(e). Whatever follows an if containing a return is copied into the branches that can
+     * fall through, so a return inside a loop is the only one that can't be dealt with.
+     */
+    private List<Stmt> returns(List<Stmt> stmts, Sink sink) throws NotInlinable {
+        List<Stmt> out = new LinkedList<>();
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt s = stmts.get(i);
+            List<Stmt> rest = stmts.subList(i + 1, stmts.size());
+            if (s instanceof Return) {
+                Expr e = ((Return) s).exp;
+                Stmt done = sink.returning(e);
+                if (done != null)
+                    out.add(done);
+                return out;
+            } else if (s instanceof If && containsReturn(s)) {
+                If branch = (If) s;
+                out.add(new If(branch.cond, branchWith(branch.st1, rest, sink), branchWith(branch.st2, rest, sink)));
+                return out;
+            } else if (s instanceof Block && containsReturn(s)) {
+                List<Stmt> inner = new LinkedList<>(((Block) s).stmtList);
+                inner.addAll(rest);
+                out.add(new Block(((Block) s).varDeclList, returns(inner, sink)));
+                return out;
+            } else if (s instanceof While && containsReturn(s)) {
+                throw new NotInlinable("returns from inside a loop");
+            }
+            out.add(s);
+        }
+        return out;
+    }
+
+    private Stmt branchWith(Stmt branch, List<Stmt> rest, Sink sink) throws NotInlinable {
+        List<Stmt> stmts = new LinkedList<>();
+        if (branch != null)
+            stmts.add(branch);
+        for (Stmt i : rest) {
+            stmts.add(new Copier(new HashMap<>(), new HashMap<>()).copy(i));
+        }
+        return new Block(new LinkedList<>(), returns(stmts, sink));
+    }
+
+    private static boolean containsReturn(Stmt s) {
+        boolean[] found = {false};
+        s.accept(new ASTWalker() {
+            @Override
+            public Void visitReturn(Return r) {
+                found[0] = true;
+                return null;
+            }
+        });
+        return found[0];
+    }
+}
@@ -0,0 +1,274 @@
+package gen;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One line of emitted assembly. Either a label, an instruction with its operands,
+ * or text the optimiser doesn't look inside (directives, data, comments).
+ *
+ * The operands are kept as they were given, Registers, ints and Addresses where the code
+ * generator had them, so they are written without being turned into text and read back, and
+ * as the text they stand for, which is what the optimiser and the encoder look at.
+ */
+class Instruction {
+    final String label;
+    final String op;
+    final List<String> args;
+    final String text;
+    private final Object[] operands;
+    private final int shape; // how writeTo puts the operands out
+
+    /*
+     * A memory operand, off(base), written without the offset if it was given none.
+     */
+    static final class Address {
+        final int offset;
+        final boolean hasOffset;
+        final Register base;
+
+        Address(int offset, boolean hasOffset, Register base) {
+            this.offset = offset;
+            this.hasOffset = hasOffset;
+            this.base = base;
+        }
+
+        /*
+         * The same offset from another register.
+         */
+        Address from(Register base) {
+            return new Address(offset, hasOffset, base);
+        }
+
+        @Override
+        public String toString() {
+            return hasOffset ? offset + "(" + base + ")" : "(" + base + ")";
+        }
+    }
+
+    private static final Object[] NONE = {};
+    private static final int GENERIC = 0, RRR = 1, RRI = 2, MEMORY = 3;
+
+    private Instruction(String label, String op, Object[] operands, String text) {
+        this.label = label;
+        this.op = op;
+        this.operands = operands;
+        this.text = text;
+        String[] args = new String[operands.length];
+        for (int i = 0; i < operands.length; i++) {
+            args[i] = operands[i].toString();
+        }
+        this.args = Arrays.asList(args);
+        this.shape = shape(operands);
+    }
+
+    static Instruction label(String name) {
+        return new Instruction(name, null, NONE, null);
+    }
+
+    /*
+     * An instruction, its operands Registers, Integers, Addresses, or text like labels.
+     */
+    static Instruction op(String op, Object... operands) {
+        return new Instruction(null, op.toUpperCase(), operands.clone(), null);
+    }
+
+    static Instruction raw(String text) {
+        return new Instruction(null, null, NONE, text);
+    }
+
+    static Address at(int offset, Register base) {
+        return new Address(offset, true, base);
+    }
+
+    static Address at(Register base) {
+        return new Address(0, false, base);
+    }
+
+    /*
+     * The operand as it was given, a Register, Integer, Address or String.
+     */
+    Object operand(int i) {
+        return operands[i];
+    }
+
+    /*
+     * This instruction with operand i replaced.
+     */
+    Instruction with(int i, Object operand) {
+        Object[] copy = operands.clone();
+        copy[i] = operand;
+        return new Instruction(null, op, copy, null);
+    }
+
+    /*
+     * Another instruction with the same operands.
+     */
+    Instruction as(String op) {
+        return new Instruction(null, op, operands, null);
+    }
+
+    boolean isLabel() {
+        return label != null;
+    }
+
+    boolean is(String... ops) {
+        if (op == null)
+            return false;
+        for (String o : ops) {
+            if (op.equals(o))
+                return true;
+        }
+        return false;
+    }
+
+    String arg(int i) {
+        return i < args.size() ? args.get(i) : null;
+    }
+
+    /*
+     * Control flow leaves the straight line at these, nothing can be assumed across them.
+     */
+    boolean isBranch() {
+        return op != null && (op.startsWith("B") || op.startsWith("J"));
+    }
+
+    boolean isStore() {
+        return is("SW", "SB", "SH");
+    }
+
+    /*
+     * The register written by this instruction, if any. Stores, branches, jumps and
+     * two operand MULT/DIV don't write a general purpose register we track.
+     */
+    String def() {
+        if (op == null || args.isEmpty() || isStore() || isBranch() || is("SYSCALL", "MTHI", "MTLO"))
+            return null;
+        if (is("MULT", "MULTU", "DIV", "DIVU") && args.size() == 2)
+            return null;
+        return args.get(0);
+    }
+
+    boolean writes(String reg) {
+        if (is("SYSCALL"))
+            return reg.equals(Register.v0.toString());
+        return reg.equals(def());
+    }
+
+    boolean reads(String reg) {
+        if (is("SYSCALL"))
+            return reg.equals(Register.v0.toString()) || reg.equals(Register.paramRegs[0].toString());
+        for (int i = def() == null ? 0 : 1; i < args.size(); i++) {
+            if (mentions(args.get(i), reg))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Whether an operand is the register or a memory operand based on it, e.g. 4($sp)
+     */
+    static boolean mentions(String operand, String reg) {
+        return operand.equals(reg) || operand.endsWith("(" + reg + ")");
+    }
+
+    static String base(String memOperand) {
+        int open = memOperand.indexOf('(');
+        return open < 0 ? null : memOperand.substring(open + 1, memOperand.length() - 1);
+    }
+
+    static int offset(String memOperand) {
+        int open = memOperand.indexOf('(');
+        return open <= 0 ? 0 : Integer.parseInt(memOperand.substring(0, open));
+    }
+
+    /*
+     * Parses one line of an assembly file the code generator wrote.
+     */
+    static Instruction parse(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.startsWith(".") || trimmed.contains(": ."))
+            return raw(line);
+        if (trimmed.endsWith(":") && !trimmed.contains(" "))
+            return label(trimmed.substring(0, trimmed.length() - 1));
+        int space = 0;
+        while (space < trimmed.length() && !Character.isWhitespace(trimmed.charAt(space)))
+            space++;
+        String op = trimmed.substring(0, space);
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = space; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (quoted) {
+                current.append(c);
+                if (c == '\\' && i + 1 < trimmed.length()) {
+                    current.append(trimmed.charAt(++i));
+                } else if (c == '\'') {
+                    quoted = false;
+                }
+            } else if (c == ',' || Character.isWhitespace(c)) {
+                if (current.length() > 0) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                }
+            } else {
+                if (c == '\'')
+                    quoted = true;
+                current.append(c);
+            }
+        }
+        if (current.length() > 0)
+            args.add(current.toString());
+        return op(op, args.toArray());
+    }
+
+    /*
+     * Writes the same text as toString, through the writer's typed methods where the operands fit them.
+     */
+    void writeTo(AsmWriter out) throws IOException {
+        if (label != null) {
+            out.emitLabel(label);
+            return;
+        }
+        if (op == null) {
+            out.emitRaw(text);
+            return;
+        }
+        switch (shape) {
+            case RRR: out.emitRRR(op, (Register) operands[0], (Register) operands[1], (Register) operands[2]); break;
+            case RRI: out.emitRRI(op, (Register) operands[0], (Register) operands[1], (Integer) operands[2]); break;
+            case MEMORY: out.emitMemory(op, (Register) operands[0], (Address) operands[1]); break;
+            default: out.emit(op, args);
+        }
+    }
+
+    private static int shape(Object[] operands) {
+        if (operands.length == 3 && operands[0] instanceof Register && operands[1] instanceof Register) {
+            if (operands[2] instanceof Register)
+                return RRR;
+            if (operands[2] instanceof Integer)
+                return RRI;
+        } else if (operands.length == 2 && operands[0] instanceof Register && operands[1] instanceof Address) {
+            return MEMORY;
+        }
+        return GENERIC;
+    }
+
+    @Override
+    public String toString() {
+        if (label != null)
+            return label + ":";
+        if (op == null)
+            return text;
+        StringBuilder sb = new StringBuilder("\t").append(op);
+        String delimiter = " ";
+        for (String a : args) {
+            sb.append(delimiter).append(a);
+            delimiter = ", ";
+        }
+        return sb.toString();
+    }
+}
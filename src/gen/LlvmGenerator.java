@@ -0,0 +1,597 @@
+package gen;
+
+import ast.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static ast.Expr.typeOf;
+
+/**
+ * Writes a program as textual LLVM IR, for opt and llc to take from there. Every variable gets an
+ * alloca at the start of its function, so mem2reg can put them in registers, array elements and
+ * fields are reached with GEPs, and the built-ins are calls to the functions of minic-stdlib.h.
+ *
+ * The visit methods return the operand holding the value of an expression: an i32 for ints and
+ * chars, which are only bytes in memory, and a ptr for pointers and for the address of an array or
+ * a struct. Functions returning a struct write it through a pointer passed before the arguments.
+ */
+public class LlvmGenerator implements ASTVisitor<String> {
+
+    private static final Map<String, String> BUILTINS = new LinkedHashMap<>();
+
+    static {
+        BUILTINS.put("print_s", "void @print_s(ptr)");
+        BUILTINS.put("print_i", "void @print_i(i32)");
+        BUILTINS.put("print_c", "void @print_c(i8 signext)");
+        BUILTINS.put("read_c", "signext i8 @read_c()");
+        BUILTINS.put("read_i", "i32 @read_i()");
+        BUILTINS.put("mcmalloc", "ptr @mcmalloc(i32)");
+    }
+
+    private PrintWriter writer;
+    private final Map<VarDecl, String> addresses = new HashMap<>();
+    private final Set<VarDecl> arrayParams = new HashSet<>(); // hold the address of the array, not the array
+    private final Map<String, String> strings = new LinkedHashMap<>();
+    private final Set<String> defined = new HashSet<>(); // a program defining a built-in gets its own
+
+    // the function being written
+    private StringBuilder allocas, body;
+    private FunDecl function;
+    private int temps, labels;
+    private boolean terminated; // the current block has its branch or return already
+
+    public void emitProgram(Program program, File outputFile) throws FileNotFoundException {
+        writer = new PrintWriter(outputFile);
+        visitProgram(program);
+        writer.close();
+    }
+
+    @Override
+    public String visitProgram(Program p) {
+        writer.println("; ModuleID = 'minic'");
+        writer.println();
+        for (StructTypeDecl st : p.structTypeDecls) {
+            st.accept(this);
+        }
+        for (VarDecl vd : p.varDecls) {
+            addresses.put(vd, "@g." + vd.varName);
+            writer.println("@g." + vd.varName + " = internal global " + storage(vd.type) + " zeroinitializer");
+        }
+        for (FunDecl fd : p.funDecls) {
+            defined.add(fd.name);
+        }
+        StringBuilder functions = new StringBuilder();
+        for (FunDecl fd : p.funDecls) {
+            fd.accept(this);
+            functions.append(allocas).append(body).append("}\n\n");
+        }
+        for (Map.Entry<String, String> s : strings.entrySet()) {
+            byte[] bytes = (s.getKey() + "\0").getBytes(StandardCharsets.ISO_8859_1);
+            writer.println(s.getValue() + " = private unnamed_addr constant [" + bytes.length + " x i8] c\"" + escape(bytes) + "\"");
+        }
+        writer.println();
+        writer.print(functions);
+        for (Map.Entry<String, String> builtin : BUILTINS.entrySet()) {
+            if (!defined.contains(builtin.getKey()))
+                writer.println("declare " + builtin.getValue());
+        }
+        writer.println("declare void @llvm.memcpy.p0.p0.i32(ptr, ptr, i32, i1)");
+        return null;
+    }
+
+    /*
+     * Fields are declared in the order StructLayout puts them, so LLVM lays them out the same way.
+     */
+    @Override
+    public String visitStructTypeDecl(StructTypeDecl st) {
+        StringJoiner fields = new StringJoiner(", ", "{ ", " }");
+        for (StructLayout.Field f : st.st.layout.fields()) {
+            fields.add(storage(f.type));
+        }
+        writer.println("%struct." + st.st.name + " = type " + fields);
+        return null;
+    }
+
+    @Override
+    public String visitFunDecl(FunDecl fd) {
+        function = fd;
+        allocas = new StringBuilder();
+        body = new StringBuilder();
+        temps = labels = 0;
+        terminated = false;
+
+        StringJoiner params = new StringJoiner(", ", "(", ")");
+        if (fd.type instanceof StructType)
+            params.add("ptr %result");
+        for (VarDecl vd : fd.params) {
+            params.add(value(vd.type) + " %p." + vd.varName);
+        }
+        allocas.append(fd.name.equals("main") ? "define " : "define internal ").append(returned(fd)).append(" @").append(fd.name).append(params).append(" {\n");
+        allocas.append("entry:\n");
+        for (VarDecl vd : fd.params) {
+            if (vd.type instanceof ArrayType) {
+                arrayParams.add(vd);
+                local(vd, "ptr");
+                emit("store ptr %p." + vd.varName + ", ptr " + addresses.get(vd));
+            } else if (vd.type instanceof StructType) { // passed by address, the callee gets its own copy
+                local(vd, storage(vd.type));
+                copy(addresses.get(vd), "%p." + vd.varName, vd.type);
+            } else {
+                local(vd, storage(vd.type));
+                store(vd.type, "%p." + vd.varName, addresses.get(vd));
+            }
+        }
+        fd.block.accept(this);
+        if (!terminated)
+            emitReturn(null);
+        return null;
+    }
+
+    /*
+     * main returns an int to the C runtime whatever it was declared to return.
+     */
+    private static String returned(FunDecl fd) {
+        if (fd.name.equals("main"))
+            return "i32";
+        return fd.type == BaseType.VOID || fd.type instanceof StructType ? "void" : value(fd.type);
+    }
+
+    @Override
+    public String visitBlock(Block b) {
+        for (VarDecl vd : b.varDeclList) {
+            vd.accept(this);
+        }
+        for (Stmt s : b.stmtList) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public String visitVarDecl(VarDecl vd) {
+        local(vd, storage(vd.type));
+        return null;
+    }
+
+    @Override
+    public String visitExprStmt(ExprStmt es) {
+        es.exp.accept(this);
+        return null;
+    }
+
+    @Override
+    public String visitIf(If i) {
+        String then = label(), otherwise = label(), end = i.st2 == null ? otherwise : label();
+        branch(i.cond, then, otherwise);
+        start(then);
+        i.st1.accept(this);
+        jump(end);
+        if (i.st2 != null) {
+            start(otherwise);
+            i.st2.accept(this);
+            jump(end);
+        }
+        start(end);
+        return null;
+    }
+
+    @Override
+    public String visitWhile(While w) {
+        String test = label(), loop = label(), end = label();
+        jump(test);
+        start(test);
+        branch(w.cond, loop, end);
+        start(loop);
+        w.loop.accept(this);
+        jump(test);
+        start(end);
+        return null;
+    }
+
+    @Override
+    public String visitAssign(Assign a) {
+        Type t = typeOf(a.e1);
+        String value = a.e2.accept(this);
+        String address = address(a.e1);
+        if (t instanceof StructType)
+            copy(address, value, t);
+        else
+            store(t, value, address);
+        return null;
+    }
+
+    @Override
+    public String visitReturn(Return r) {
+        emitReturn(r.exp == null ? null : r.exp.accept(this));
+        return null;
+    }
+
+    private void emitReturn(String value) {
+        if (function.type instanceof StructType) {
+            if (value != null)
+                copy("%result", value, function.type);
+            emit("ret void");
+        } else if (function.name.equals("main")) {
+            emit("ret i32 " + (value != null && value(function.type).equals("i32") ? value : "0"));
+        } else if (function.type == BaseType.VOID) {
+            emit("ret void");
+        } else {
+            emit("ret " + value(function.type) + " " + (value != null ? value : function.type instanceof PointerType ? "null" : "0"));
+        }
+        terminated = true;
+    }
+
+    @Override
+    public String visitVarExpr(VarExpr v) {
+        return load(v);
+    }
+
+    @Override
+    public String visitArrayAccessExpr(ArrayAccessExpr aae) {
+        return load(aae);
+    }
+
+    @Override
+    public String visitFieldAccessExpr(FieldAccessExpr fae) {
+        return load(fae);
+    }
+
+    @Override
+    public String visitValueAtExpr(ValueAtExpr vae) {
+        return load(vae);
+    }
+
+    /*
+     * The value at the address of e, or the address itself for arrays and structs.
+     */
+    private String load(Expr e) {
+        Type t = typeOf(e);
+        String address = address(e);
+        if (t instanceof ArrayType || t instanceof StructType)
+            return address;
+        String loaded = temp();
+        emit(loaded + " = load " + storage(t) + ", ptr " + address);
+        if (t != BaseType.CHAR)
+            return loaded;
+        String extended = temp();
+        emit(extended + " = sext i8 " + loaded + " to i32");
+        return extended;
+    }
+
+    /*
+     * Where the value of an lvalue, array or struct is.
+     */
+    private String address(Expr e) {
+        if (e instanceof VarExpr) {
+            VarDecl vd = ((VarExpr) e).vd;
+            if (!arrayParams.contains(vd))
+                return addresses.get(vd);
+            String array = temp();
+            emit(array + " = load ptr, ptr " + addresses.get(vd));
+            return array;
+        } else if (e instanceof ArrayAccessExpr) {
+            ArrayAccessExpr aae = (ArrayAccessExpr) e;
+            Type array = typeOf(aae.exp);
+            String base = aae.exp.accept(this); // arrays give their address, pointers their value
+            String index = aae.index.accept(this);
+            Type element = array instanceof ArrayType ? ((ArrayType) array).type : ((PointerType) array).type;
+            String d = temp();
+            emit(d + " = getelementptr inbounds " + storage(element) + ", ptr " + base + ", i32 " + index);
+            return d;
+        } else if (e instanceof FieldAccessExpr) {
+            FieldAccessExpr fae = (FieldAccessExpr) e;
+            StructType struct = (StructType) typeOf(fae.struct);
+            String base = fae.struct.accept(this);
+            int index = 0;
+            for (StructLayout.Field f : struct.layout.fields()) {
+                if (f.name.equals(fae.field))
+                    break;
+                index++;
+            }
+            String d = temp();
+            emit(d + " = getelementptr inbounds %struct." + struct.name + ", ptr " + base + ", i32 0, i32 " + index);
+            return d;
+        } else if (e instanceof ValueAtExpr) {
+            return ((ValueAtExpr) e).exp.accept(this);
+        }
+        return e.accept(this);
+    }
+
+    @Override
+    public String visitIntLiteral(IntLiteral il) {
+        return Integer.toString(il.number);
+    }
+
+    @Override
+    public String visitChrLiteral(ChrLiteral cl) {
+        return Integer.toString((byte) cl.c);
+    }
+
+    @Override
+    public String visitStringLiteral(StrLiteral sl) {
+        String s = StrLiteral.decode(sl.string);
+        String name = strings.get(s);
+        if (name == null) {
+            name = "@.str." + strings.size();
+            strings.put(s, name);
+        }
+        return name;
+    }
+
+    @Override
+    public String visitSizeOfExpr(SizeOfExpr soe) {
+        return sizeOf(soe.type);
+    }
+
+    /*
+     * Sizes are left to LLVM, pointers on the target needn't take a word like they do on MIPS.
+     */
+    private String sizeOf(Type t) {
+        String end = temp(), size = temp();
+        emit(end + " = getelementptr " + storage(t) + ", ptr null, i32 1");
+        emit(size + " = ptrtoint ptr " + end + " to i32");
+        return size;
+    }
+
+    /*
+     * Pointers are all the same to LLVM and chars are already ints in registers, so a cast changes nothing.
+     */
+    @Override
+    public String visitTypecastExpr(TypecastExpr te) {
+        return te.exp.accept(this);
+    }
+
+    @Override
+    public String visitBinOp(BinOp bo) {
+        if (bo.op == Op.AND || bo.op == Op.OR) {
+            String yes = label(), no = label(), end = label();
+            branch(bo, yes, no);
+            start(yes);
+            jump(end);
+            start(no);
+            jump(end);
+            start(end);
+            String d = temp();
+            emit(d + " = phi i32 [ 1, %" + yes + " ], [ 0, %" + no + " ]");
+            return d;
+        }
+        String a = bo.E1.accept(this);
+        String b = bo.E2.accept(this);
+        String d = temp();
+        String condition = condition(bo.op);
+        if (condition != null) {
+            String bit = temp();
+            emit(bit + " = icmp " + condition + " " + value(typeOf(bo.E1)) + " " + a + ", " + b);
+            emit(d + " = zext i1 " + bit + " to i32");
+            return d;
+        }
+        emit(d + " = " + arithmetic(bo.op) + " i32 " + a + ", " + b);
+        return d;
+    }
+
+    /*
+     * Goes to yes when e is true and to no otherwise, && and || skip their right hand side as soon
+     * as the outcome is known.
+     */
+    private void branch(Expr e, String yes, String no) {
+        if (e instanceof BinOp && (((BinOp) e).op == Op.AND || ((BinOp) e).op == Op.OR)) {
+            BinOp bo = (BinOp) e;
+            String next = label();
+            if (bo.op == Op.AND)
+                branch(bo.E1, next, no);
+            else
+                branch(bo.E1, yes, next);
+            start(next);
+            branch(bo.E2, yes, no);
+            return;
+        }
+        String bit = temp();
+        if (e instanceof BinOp && condition(((BinOp) e).op) != null) {
+            BinOp bo = (BinOp) e;
+            String a = bo.E1.accept(this);
+            String b = bo.E2.accept(this);
+            emit(bit + " = icmp " + condition(bo.op) + " " + value(typeOf(bo.E1)) + " " + a + ", " + b);
+        } else {
+            String v = e.accept(this);
+            boolean pointer = value(typeOf(e)).equals("ptr");
+            emit(bit + " = icmp ne " + (pointer ? "ptr " + v + ", null" : "i32 " + v + ", 0"));
+        }
+        emit("br i1 " + bit + ", label %" + yes + ", label %" + no);
+        terminated = true;
+    }
+
+    private static String condition(Op op) {
+        switch (op) {
+            case EQ: return "eq";
+            case NE: return "ne";
+            case LT: return "slt";
+            case GT: return "sgt";
+            case LE: return "sle";
+            case GE: return "sge";
+            default: return null;
+        }
+    }
+
+    private static String arithmetic(Op op) {
+        switch (op) {
+            case ADD: return "add";
+            case SUB: return "sub";
+            case MUL: return "mul";
+            case DIV: return "sdiv";
+            case MOD: return "srem";
+            default: throw new IllegalArgumentException(op.toString());
+        }
+    }
+
+    @Override
+    public String visitFunCallExpr(FunCallExpr fce) {
+        if (BUILTINS.containsKey(fce.name) && !defined.contains(fce.name))
+            return builtin(fce);
+        StringJoiner args = new StringJoiner(", ", "(", ")");
+        String result = null;
+        Type type = fce.fd.type;
+        if (type instanceof StructType) { // the callee writes the struct to a place in this frame
+            result = "%r." + temps++;
+            allocas.append("  ").append(result).append(" = alloca ").append(storage(type)).append("\n");
+            args.add("ptr " + result);
+        }
+        for (int i = 0; i < fce.args.size(); i++) {
+            Expr e = fce.args.get(i);
+            args.add(value(fce.fd.params.get(i).type) + " " + e.accept(this));
+        }
+        if (type == BaseType.VOID || type instanceof StructType) {
+            emit("call void @" + fce.name + args);
+            return result != null ? result : "0";
+        }
+        result = temp();
+        emit(result + " = call " + value(type) + " @" + fce.name + args);
+        return result;
+    }
+
+    private String builtin(FunCallExpr fce) {
+        String a = fce.args.isEmpty() ? null : fce.args.get(0).accept(this);
+        String d = temp();
+        switch (fce.name) {
+            case "print_s":
+                emit("call void @print_s(ptr " + a + ")");
+                break;
+            case "print_i":
+                emit("call void @print_i(i32 " + a + ")");
+                break;
+            case "print_c":
+                emit(d + " = trunc i32 " + a + " to i8");
+                emit("call void @print_c(i8 signext " + d + ")");
+                break;
+            case "read_c": {
+                String c = temp();
+                emit(c + " = call signext i8 @read_c()");
+                emit(d + " = sext i8 " + c + " to i32");
+                break;
+            }
+            case "read_i":
+                emit(d + " = call i32 @read_i()");
+                break;
+            case "mcmalloc":
+                emit(d + " = call ptr @mcmalloc(i32 " + a + ")");
+                break;
+        }
+        return d;
+    }
+    /*
+     * How a value of type t is kept in memory. void only appears behind pointers or as the element
+     * of an array, which StructLayout gives a word.
+     */
+    private static String storage(Type t) {
+        if (t == BaseType.CHAR)
+            return "i8";
+        if (t instanceof PointerType)
+            return "ptr";
+        if (t instanceof ArrayType)
+            return "[" + ((ArrayType) t).size + " x " + storage(((ArrayType) t).type) + "]";
+        if (t instanceof StructType)
+            return "%struct." + ((StructType) t).name;
+        return "i32";
+    }
+
+    /*
+     * How a value of type t is kept in a register.
+     */
+    private static String value(Type t) {
+        return t == BaseType.INT || t == BaseType.CHAR || t == BaseType.VOID ? "i32" : "ptr";
+    }
+
+    private void store(Type t, String value, String address) {
+        if (t == BaseType.CHAR) {
+            String b = temp();
+            emit(b + " = trunc i32 " + value + " to i8");
+            value = b;
+        }
+        emit("store " + storage(t) + " " + value + ", ptr " + address);
+    }
+
+    private void copy(String to, String from, Type t) {
+        emit("call void @llvm.memcpy.p0.p0.i32(ptr " + to + ", ptr " + from + ", i32 " + sizeOf(t) + ", i1 false)");
+    }
+
+    private void local(VarDecl vd, String type) {
+        String address = "%v." + vd.varName + "." + temps++;
+        addresses.put(vd, address);
+        allocas.append("  ").append(address).append(" = alloca ").append(type).append("\n");
+    }
+
+    private String temp() {
+        return "%t" + temps++;
+    }
+
+    private String label() {
+        return "L" + labels++;
+    }
+
+    /*
+     * Starts a block, falling through to it from the one before unless that one has already ended.
+     */
+    private void start(String label) {
+        jump(label);
+        body.append(label).append(":\n");
+        terminated = false;
+    }
+
+    private void jump(String label) {
+        if (!terminated)
+            emit("br label %" + label);
+        terminated = true;
+    }
+
+    /*
+     * Code after a return or a branch gets a block of its own, one nothing jumps to.
+     */
+    private void emit(String instruction) {
+        if (terminated) {
+            body.append(label()).append(":\n");
+            terminated = false;
+        }
+        body.append("  ").append(instruction).append("\n");
+    }
+
+    private static String escape(byte[] bytes) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : bytes) {
+            if (b >= 0x20 && b < 0x7f && b != '"' && b != '\\')
+                out.append((char) b);
+            else
+                out.append(String.format("\\%02X", b & 0xff));
+        }
+        return out.toString();
+    }
+
+    // types are only looked at through the declarations
+
+    @Override
+    public String visitBaseType(BaseType bt) {
+        return null;
+    }
+
+    @Override
+    public String visitPointerType(PointerType pt) {
+        return null;
+    }
+
+    @Override
+    public String visitStructType(StructType st) {
+        return null;
+    }
+
+    @Override
+    public String visitArrayType(ArrayType at) {
+        return null;
+    }
+
+    @Override
+    public String visitOp(Op o) {
+        return null;
+    }
+}
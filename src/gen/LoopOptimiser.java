@@ -0,0 +1,426 @@
+package gen;
+
+import ast.*;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Moves work out of loops before code is generated. For every natural loop, outer loops first:
+ *
+ * Computations whose operands the loop never changes are evaluated once into a new local before
+ * the loop (its preheader) and the loop reads the local instead. Only expressions that can't trap
+ * are moved, as the preheader runs even when the loop body doesn't.
+ *
+ * An array indexed by a variable that goes up or down by a constant once per iteration gets a
+ * pointer that walks along with it, so a[i] is a load through the pointer rather than
+ * recomputing the base address and i*size each time.
+ */
+class LoopOptimiser {
+
+    private final ToIntFunction<Type> sizes; // element sizes
+    private Set<VarDecl> globals;
+    private int fresh;
+
+    // what the loop being optimised changes
+    private Set<VarDecl> assigned; // variables assigned, or whose fields and elements are
+    private Map<VarDecl, Integer> assignments; // how many times each plain variable is assigned
+    private boolean writesMemory; // stores through pointers
+    private boolean callsFunctions; // calls which could change globals or anything they are passed
+
+    LoopOptimiser(ToIntFunction<Type> sizes) {
+        this.sizes = sizes;
+    }
+
+    void optimise(Program p) {
+        globals = new HashSet<>(p.varDecls);
+        for (FunDecl f : p.funDecls) {
+            List<While> loops = new ArrayList<>();
+            f.block.accept(new ASTWalker() {
+                @Override
+                public Void visitWhile(While w) {
+                    loops.add(w);
+                    return super.visitWhile(w);
+                }
+            });
+            //the graph is rebuilt for each loop as the ones before add statements around it, but only
+            //of the loop, nothing jumps into one and only a return leaves it early
+            for (While w : loops) {
+                ControlFlowGraph.Loop loop = new ControlFlowGraph(w).loop(w);
+                if (loop != null)
+                    optimise(f, loop);
+            }
+        }
+    }
+
+    private void optimise(FunDecl f, ControlFlowGraph.Loop loop) {
+        List<ASTNode> items = loop.items();
+        summarise(items);
+        List<VarDecl> decls = new LinkedList<>();
+        List<Stmt> preheader = new LinkedList<>();
+        reduceInductionVariables(loop.stmt, items, decls, preheader);
+        hoistInvariants(items, decls, preheader);
+        if (preheader.isEmpty())
+            return;
+        preheader.add(loop.stmt);
+        f.block.stmtList.replaceAll(s -> replace(s, loop.stmt, new Block(decls, preheader)));
+    }
+
+    /*
+     * Returns s with the statement old replaced by neu, wherever it is nested.
+     */
+    static Stmt replace(Stmt s, Stmt old, Stmt neu) {
+        if (s == old) {
+            return neu;
+        } else if (s instanceof Block) {
+            ((Block) s).stmtList.replaceAll(i -> replace(i, old, neu));
+        } else if (s instanceof If) {
+            ((If) s).st1 = replace(((If) s).st1, old, neu);
+            if (((If) s).st2 != null)
+                ((If) s).st2 = replace(((If) s).st2, old, neu);
+        } else if (s instanceof While) {
+            ((While) s).loop = replace(((While) s).loop, old, neu);
+        }
+        return s;
+    }
+
+    private void summarise(List<ASTNode> items) {
+        assigned = new HashSet<>();
+        assignments = new HashMap<>();
+        writesMemory = false;
+        callsFunctions = false;
+        ASTWalker walker = new ASTWalker() {
+            @Override
+            public Void visitAssign(Assign a) {
+                Expr root = a.e1;
+                while (root instanceof FieldAccessExpr || root instanceof ArrayAccessExpr && isArray(((ArrayAccessExpr) root).exp)) {
+                    root = root instanceof FieldAccessExpr ? ((FieldAccessExpr) root).struct : ((ArrayAccessExpr) root).exp;
+                }
+                if (root instanceof VarExpr) {
+                    assigned.add(((VarExpr) root).vd);
+                    if (root == a.e1)
+                        assignments.merge(((VarExpr) root).vd, 1, Integer::sum);
+                } else {
+                    writesMemory = true;
+                }
+                return super.visitAssign(a);
+            }
+
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                callsFunctions |= !CodeGenerator.BUILTINS.contains(fce.name);
+                return super.visitFunCallExpr(fce);
+            }
+        };
+        for (ASTNode i : items) {
+            //only the condition of an if or while is in its block, the rest is in others
+            if (i instanceof If)
+                ((If) i).cond.accept(walker);
+            else if (i instanceof While)
+                ((While) i).cond.accept(walker);
+            else
+                i.accept(walker);
+        }
+    }
+
+    static boolean isArray(Expr e) {
+        return e instanceof VarExpr && ((VarExpr) e).vd.type instanceof ArrayType;
+    }
+
+    static boolean isScalar(Type t) {
+        return t instanceof PointerType || t == BaseType.INT || t == BaseType.CHAR;
+    }
+
+    static VarExpr variable(VarDecl vd) {
+        VarExpr v = new VarExpr(vd.varName);
+        v.vd = vd;
+        v.type = vd.type;
+        return v;
+    }
+
+    static IntLiteral literal(int value) {
+        IntLiteral il = new IntLiteral(value);
+        il.type = BaseType.INT;
+        return il;
+    }
+
+    /*
+     * Induction variables
+     */
+
+    private void reduceInductionVariables(While w, List<ASTNode> items, List<VarDecl> decls, List<Stmt> preheader) {
+        //basic induction variables, i = i + c run once in every iteration and nowhere else in the loop
+        if (!(w.loop instanceof Block))
+            w.loop = new Block(new LinkedList<>(), new LinkedList<>(Collections.singletonList(w.loop)));
+        List<Stmt> body = ((Block) w.loop).stmtList;
+        Map<VarDecl, Integer> steps = new HashMap<>();
+        Map<VarDecl, Assign> steppedBy = new HashMap<>();
+        for (Stmt s : body) {
+            if (!(s instanceof Assign) || !(((Assign) s).e1 instanceof VarExpr))
+                continue;
+            VarDecl i = ((VarExpr) ((Assign) s).e1).vd;
+            Integer step = step(i, ((Assign) s).e2);
+            if (step != null && i.type == BaseType.INT && !globals.contains(i) && assignments.get(i) == 1) {
+                steps.put(i, step);
+                steppedBy.put(i, (Assign) s);
+            }
+        }
+        if (steps.isEmpty())
+            return;
+
+        //one pointer for each array and induction variable it is indexed by
+        Map<VarDecl, Map<VarDecl, VarDecl>> pointers = new HashMap<>();
+        forEachExpr(items, (e, parent) -> {
+            if (!(e instanceof ArrayAccessExpr))
+                return e;
+            ArrayAccessExpr aae = (ArrayAccessExpr) e;
+            if (!(aae.exp instanceof VarExpr) || assigned.contains(((VarExpr) aae.exp).vd) && !isArray(aae.exp))
+                return e;
+            VarDecl base = ((VarExpr) aae.exp).vd;
+            Type element = base.type instanceof ArrayType ? ((ArrayType) base.type).type
+                    : base.type instanceof PointerType ? ((PointerType) base.type).type : null;
+            if (!isScalar(element) || globals.contains(base) && !isArray(aae.exp) && callsFunctions)
+                return e;
+            for (VarDecl i : steps.keySet()) {
+                Integer offset = offset(i, aae.index);
+                if (offset == null)
+                    continue;
+                VarDecl pointer = pointers.computeIfAbsent(base, b -> new HashMap<>()).computeIfAbsent(i, v -> {
+                    VarDecl p = new VarDecl(new PointerType(element), base.varName + "_" + v.varName + "_" + fresh++);
+                    decls.add(p);
+                    int size = sizes.applyAsInt(element);
+                    preheader.add(new Assign(variable(p), elementAddress(variable(base), variable(v), p.type, size)));
+                    BinOp next = new BinOp(variable(p), literal(steps.get(v) * size), Op.ADD);
+                    next.type = p.type;
+                    body.add(body.indexOf(steppedBy.get(v)) + 1, new Assign(variable(p), next));
+                    return p;
+                });
+                aae.exp = variable(pointer);
+                aae.index = literal(offset);
+                break;
+            }
+            return e;
+        });
+    }
+
+    /*
+     * &base[index] as an expression of the given pointer type. Elements are laid out upwards
+     * from the address of the array, the same as visitArrayAccessExpr indexes them.
+     */
+    static Expr elementAddress(Expr base, Expr index, Type pointer, int size) {
+        Expr start = new TypecastExpr(pointer, base);
+        BinOp scaled = new BinOp(index, literal(size), Op.MUL);
+        scaled.type = BaseType.INT;
+        BinOp address = new BinOp(start, scaled, Op.ADD);
+        address.type = pointer;
+        return address;
+    }
+
+    /*
+     * The amount i = e adds to i each time, null if it isn't i plus or minus a constant.
+     */
+    private static Integer step(VarDecl i, Expr e) {
+        if (!(e instanceof BinOp) || ((BinOp) e).op != Op.ADD && ((BinOp) e).op != Op.SUB)
+            return null;
+        BinOp bo = (BinOp) e;
+        Integer c = ConstantFolder.constant(bo.E2);
+        if (isVar(bo.E1, i) && c != null)
+            return bo.op == Op.ADD ? c : -c;
+        c = ConstantFolder.constant(bo.E1);
+        if (bo.op == Op.ADD && isVar(bo.E2, i) && c != null)
+            return c;
+        return null;
+    }
+
+    /*
+     * k when an index is i + k for a constant k, null otherwise.
+     */
+    private static Integer offset(VarDecl i, Expr index) {
+        if (isVar(index, i))
+            return 0;
+        Integer step = step(i, index);
+        return step != null && Math.abs((long) step) < 1 << 12 ? step : null;
+    }
+
+    private static boolean isVar(Expr e, VarDecl vd) {
+        return e instanceof VarExpr && ((VarExpr) e).vd == vd;
+    }
+
+    /*
+     * Invariants
+     */
+
+    private void hoistInvariants(List<ASTNode> items, List<VarDecl> decls, List<Stmt> preheader) {
+        Map<String, VarDecl> hoisted = new HashMap<>(); // the same computation is only done once
+        forEachExpr(items, (e, parent) -> {
+            if (!worthHoisting(e, parent))
+                return null;
+            VarDecl tmp = hoisted.computeIfAbsent(key(e), k -> {
+                VarDecl vd = new VarDecl(localType(e), "loop_inv_" + fresh++);
+                decls.add(vd);
+                preheader.add(new Assign(variable(vd), e));
+                return vd;
+            });
+            return variable(tmp);
+        });
+    }
+
+    private boolean worthHoisting(Expr e, Expr parent) {
+        if (!invariant(e) || !isScalar(localType(e)))
+            return false;
+        if (e instanceof VarExpr)
+            return globals.contains(((VarExpr) e).vd) && !(parent instanceof FieldAccessExpr);
+        if (e instanceof TypecastExpr)
+            return worthHoisting(((TypecastExpr) e).exp, parent);
+        if (parent == null && e instanceof BinOp && isComparison(((BinOp) e).op))
+            return false; // a condition compiles to a branch that does the comparison itself
+        return e instanceof BinOp || e instanceof ArrayAccessExpr || e instanceof FieldAccessExpr;
+    }
+
+    static boolean isComparison(Op op) {
+        return op == Op.EQ || op == Op.NE || op == Op.LT || op == Op.GT || op == Op.LE || op == Op.GE;
+    }
+
+    /*
+     * Whether e has the same value on every iteration and can be evaluated early without trapping.
+     */
+    private boolean invariant(Expr e) {
+        if (e instanceof IntLiteral || e instanceof ChrLiteral || e instanceof SizeOfExpr) {
+            return true;
+        } else if (e instanceof VarExpr) {
+            VarDecl vd = ((VarExpr) e).vd;
+            return !assigned.contains(vd) && !(globals.contains(vd) && callsFunctions);
+        } else if (e instanceof BinOp) {
+            BinOp bo = (BinOp) e;
+            if (bo.op == Op.AND || bo.op == Op.OR)
+                return false;
+            if (bo.op == Op.DIV || bo.op == Op.MOD) {
+                Integer divisor = ConstantFolder.constant(bo.E2);
+                if (divisor == null || divisor == 0)
+                    return false;
+            }
+            return invariant(bo.E1) && invariant(bo.E2);
+        } else if (e instanceof ArrayAccessExpr) {
+            //only elements that certainly exist, loaded from an array nothing in the loop writes
+            ArrayAccessExpr aae = (ArrayAccessExpr) e;
+            Integer index = ConstantFolder.constant(aae.index);
+            return isArray(aae.exp) && invariant(aae.exp) && !writesMemory && !callsFunctions
+                    && index != null && index >= 0 && index < ((ArrayType) ((VarExpr) aae.exp).vd.type).size;
+        } else if (e instanceof FieldAccessExpr) {
+            FieldAccessExpr fae = (FieldAccessExpr) e;
+            return fae.struct instanceof VarExpr && invariant(fae.struct) && !writesMemory && !callsFunctions;
+        } else if (e instanceof TypecastExpr) {
+            return invariant(((TypecastExpr) e).exp);
+        }
+        return false;
+    }
+
+    /*
+     * The type of a value we'd keep in a local, null for calls, strings and pointer arithmetic.
+     */
+    static Type localType(Expr e) {
+        if (e instanceof BinOp) {
+            Type left = localType(((BinOp) e).E1);
+            Type right = localType(((BinOp) e).E2);
+            return left == BaseType.INT || left == BaseType.CHAR ? (right == BaseType.INT || right == BaseType.CHAR ? BaseType.INT : null) : null;
+        } else if (e instanceof FunCallExpr || e instanceof StrLiteral) {
+            return null;
+        }
+        return Expr.typeOf(e);
+    }
+
+    /*
+     * Text that is the same for expressions computing the same value.
+     */
+    static String key(Expr e) {
+        if (e instanceof VarExpr) {
+            return ((VarExpr) e).vd.varName + "@" + System.identityHashCode(((VarExpr) e).vd);
+        } else if (e instanceof BinOp) {
+            return "(" + key(((BinOp) e).E1) + " " + ((BinOp) e).op + " " + key(((BinOp) e).E2) + ")";
+        } else if (e instanceof ArrayAccessExpr) {
+            return key(((ArrayAccessExpr) e).exp) + "[" + key(((ArrayAccessExpr) e).index) + "]";
+        } else if (e instanceof FieldAccessExpr) {
+            return key(((FieldAccessExpr) e).struct) + "." + ((FieldAccessExpr) e).field;
+        } else if (e instanceof ValueAtExpr) {
+            return "*" + key(((ValueAtExpr) e).exp);
+        } else if (e instanceof TypecastExpr) {
+            return "(" + e.type + ")" + key(((TypecastExpr) e).exp);
+        } else if (ConstantFolder.constant(e) != null) {
+            return String.valueOf(ConstantFolder.constant(e));
+        } else if (e instanceof SizeOfExpr) {
+            return "sizeof " + ((SizeOfExpr) e).type;
+        }
+        return "?" + System.identityHashCode(e);
+    }
+
+    /*
+     * Rewrites the expressions of a loop, outermost first. The rewrite is given each expression with
+     * the one containing it, and returns what replaces it or null to leave it and look inside it instead.
+     * Variables being assigned and the structs of field accesses aren't offered.
+     */
+    private interface Rewrite {
+        Expr apply(Expr e, Expr parent);
+    }
+
+    private static void forEachExpr(List<ASTNode> items, Rewrite rewrite) {
+        for (ASTNode i : items) {
+            if (i instanceof If) {
+                ((If) i).cond = visit(((If) i).cond, null, rewrite);
+            } else if (i instanceof While) {
+                ((While) i).cond = visit(((While) i).cond, null, rewrite);
+            } else if (i instanceof ExprStmt) {
+                ((ExprStmt) i).exp = visit(((ExprStmt) i).exp, null, rewrite);
+            } else if (i instanceof Return) {
+                ((Return) i).exp = visit(((Return) i).exp, null, rewrite);
+            } else if (i instanceof Assign) {
+                Assign a = (Assign) i;
+                a.e2 = visit(a.e2, null, rewrite);
+                visitTarget(a.e1, rewrite);
+            }
+        }
+    }
+
+    private static void visitTarget(Expr target, Rewrite rewrite) {
+        if (target instanceof ArrayAccessExpr) {
+            ArrayAccessExpr aae = (ArrayAccessExpr) target;
+            Expr replaced = rewrite.apply(aae, null);
+            if (replaced != aae && replaced != null)
+                return; // the element written can't become a value
+            if (isArray(aae.exp) || aae.exp instanceof FieldAccessExpr)
+                visitTarget(aae.exp, rewrite);
+            else
+                aae.exp = visit(aae.exp, aae, rewrite);
+            aae.index = visit(aae.index, aae, rewrite);
+        } else if (target instanceof FieldAccessExpr) {
+            visitTarget(((FieldAccessExpr) target).struct, rewrite);
+        } else if (target instanceof ValueAtExpr) {
+            ((ValueAtExpr) target).exp = visit(((ValueAtExpr) target).exp, target, rewrite);
+        }
+    }
+
+    private static Expr visit(Expr e, Expr parent, Rewrite rewrite) {
+        if (e == null)
+            return null;
+        Expr replaced = rewrite.apply(e, parent);
+        if (replaced != null && replaced != e)
+            return replaced;
+        if (e instanceof BinOp) {
+            ((BinOp) e).E1 = visit(((BinOp) e).E1, e, rewrite);
+            ((BinOp) e).E2 = visit(((BinOp) e).E2, e, rewrite);
+        } else if (e instanceof ArrayAccessExpr) {
+            if (!isArray(((ArrayAccessExpr) e).exp))
+                ((ArrayAccessExpr) e).exp = visit(((ArrayAccessExpr) e).exp, e, rewrite);
+            ((ArrayAccessExpr) e).index = visit(((ArrayAccessExpr) e).index, e, rewrite);
+        } else if (e instanceof FieldAccessExpr) {
+            if (!(((FieldAccessExpr) e).struct instanceof VarExpr))
+                ((FieldAccessExpr) e).struct = visit(((FieldAccessExpr) e).struct, e, rewrite);
+        } else if (e instanceof ValueAtExpr) {
+            ((ValueAtExpr) e).exp = visit(((ValueAtExpr) e).exp, e, rewrite);
+        } else if (e instanceof TypecastExpr) {
+            ((TypecastExpr) e).exp = visit(((TypecastExpr) e).exp, e, rewrite);
+        } else if (e instanceof FunCallExpr) {
+            ((FunCallExpr) e).args.replaceAll(i -> visit(i, e, rewrite));
+        }
+        return e;
+    }
+}
@@ -0,0 +1,649 @@
+package gen;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Turns the final instructions into MIPS32 machine code and data without going through an assembler.
+ *
+ * Everything is laid out in one pass at the addresses MARS uses. An operand naming a label is left
+ * as zero and noted in a fixup table, which is gone through once the whole program has been seen
+ * and every label has its address. Pseudo instructions are expanded exactly as MARS expands them,
+ * using $at, so the words written are the ones MARS would assemble from the same text.
+ */
+public class MipsEncoder {
+
+    public static final int TEXT_BASE = 0x00400000;
+    public static final int DATA_BASE = 0x10010000;
+    private static final int BLOCK = 4096; // MARS hands out memory in blocks this size
+
+    private static final int ZERO = 0, AT = 1, RA = 31;
+    private static final String[] NAMES = {"zero", "at", "v0", "v1", "a0", "a1", "a2", "a3",
+            "t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7", "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7",
+            "t8", "t9", "k0", "k1", "gp", "sp", "fp", "ra"};
+
+    /*
+     * Function codes of the register instructions and opcodes of the immediate ones.
+     */
+    private static final Map<String, Integer> FUNCT = new HashMap<>();
+    private static final Map<String, Integer> OPCODE = new HashMap<>();
+    static {
+        String[] funct = {"SLL", "0", "SRL", "2", "SRA", "3", "SLLV", "4", "SRLV", "6", "SRAV", "7",
+                "JR", "8", "JALR", "9", "SYSCALL", "12", "BREAK", "13", "MFHI", "16", "MTHI", "17", "MFLO", "18",
+                "MTLO", "19", "MULT", "24", "MULTU", "25", "DIV", "26", "DIVU", "27", "ADD", "32", "ADDU", "33",
+                "SUB", "34", "SUBU", "35", "AND", "36", "OR", "37", "XOR", "38", "NOR", "39", "SLT", "42", "SLTU", "43"};
+        for (int i = 0; i < funct.length; i += 2)
+            FUNCT.put(funct[i], Integer.parseInt(funct[i + 1]));
+        String[] opcode = {"J", "2", "JAL", "3", "BEQ", "4", "BNE", "5", "BLEZ", "6", "BGTZ", "7",
+                "ADDI", "8", "ADDIU", "9", "SLTI", "10", "SLTIU", "11", "ANDI", "12", "ORI", "13", "XORI", "14", "LUI", "15",
+                "LB", "32", "LH", "33", "LW", "35", "LBU", "36", "LHU", "37", "SB", "40", "SH", "41", "SW", "43"};
+        for (int i = 0; i < opcode.length; i += 2)
+            OPCODE.put(opcode[i], Integer.parseInt(opcode[i + 1]));
+    }
+
+    public static class EncodingError extends Error {
+        private static final long serialVersionUID = 1L;
+
+        EncodingError(String message) {
+            super(message);
+        }
+    }
+
+    private enum Kind { BRANCH, JUMP, HI, HI_ADJUSTED, LO }
+
+    /*
+     * A field of an encoded word that waits for the address of a label.
+     */
+    private static class Fixup {
+        final int index;
+        final Kind kind;
+        final String symbol;
+        final int addend;
+
+        Fixup(int index, Kind kind, String symbol, int addend) {
+            this.index = index;
+            this.kind = kind;
+            this.symbol = symbol;
+            this.addend = addend;
+        }
+    }
+
+    private int[] text = new int[1024];
+    private int textSize;
+    private byte[] data = new byte[BLOCK];
+    private int dataSize;
+    private final BitSet written = new BitSet(); // blocks of the data segment something was stored in
+    private final Map<String, Integer> symbols = new HashMap<>();
+    private final List<Fixup> fixups = new ArrayList<>();
+    private boolean inData;
+
+    void encode(List<Instruction> code) {
+        for (Instruction in : code) {
+            if (in.isLabel())
+                define(in.label, inData ? DATA_BASE + dataSize : pc());
+            else if (in.op == null)
+                directive(in.text);
+            else if (inData)
+                throw new EncodingError("instruction in the data segment: " + in);
+            else
+                instruction(in);
+        }
+        for (Fixup f : fixups) {
+            Integer address = symbols.get(f.symbol);
+            if (address == null)
+                throw new EncodingError(f.symbol.equals("main") ? "no main function" : "undefined label " + f.symbol);
+            int target = address + f.addend;
+            int word = text[f.index];
+            switch (f.kind) {
+                case BRANCH: word |= ((target - (TEXT_BASE + 4 * f.index + 4)) >> 2) & 0xffff; break;
+                case JUMP: word |= (target >>> 2) & 0x3ffffff; break;
+                case HI: word |= target >>> 16; break;
+                case HI_ADJUSTED: word |= (target + 0x8000) >>> 16; break;
+                case LO: word |= target & 0xffff; break;
+            }
+            text[f.index] = word;
+        }
+        fixups.clear();
+    }
+
+    /*
+     * Encodes an assembly file the compiler wrote.
+     */
+    public static MipsEncoder assemble(File source) throws IOException {
+        List<Instruction> code = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(source))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                code.add(Instruction.parse(line));
+            }
+        }
+        MipsEncoder encoder = new MipsEncoder();
+        encoder.encode(code);
+        return encoder;
+    }
+
+    /*
+     * The text segment, one word per instruction from TEXT_BASE.
+     */
+    public int[] text() {
+        return Arrays.copyOf(text, textSize);
+    }
+
+    /*
+     * The data segment from DATA_BASE, .space included.
+     */
+    public byte[] data() {
+        return Arrays.copyOf(data, dataSize);
+    }
+
+    /*
+     * Writes the segments the way MARS dumps them as HexText, one word in hex per line. The data segment
+     * goes up to the first block nothing was stored in and isn't written at all if that is the first one.
+     */
+    void writeDump(File textFile, File dataFile) throws FileNotFoundException {
+        PrintWriter out = new PrintWriter(textFile);
+        for (int i = 0; i < textSize; i++) {
+            out.printf("%08x%n", text[i]);
+        }
+        out.close();
+        int blocks = written.nextClearBit(0);
+        if (blocks == 0) {
+            dataFile.delete(); // one left by an earlier compile isn't this program's
+            return;
+        }
+        out = new PrintWriter(dataFile);
+        for (int i = 0; i < blocks * BLOCK; i += 4) {
+            out.printf("%08x%n", (dataByte(i) & 0xff) | (dataByte(i + 1) & 0xff) << 8
+                    | (dataByte(i + 2) & 0xff) << 16 | (dataByte(i + 3) & 0xff) << 24);
+        }
+        out.close();
+    }
+
+    private byte dataByte(int i) {
+        return i < data.length ? data[i] : 0;
+    }
+
+    private int pc() {
+        return TEXT_BASE + 4 * textSize;
+    }
+
+    private void define(String label, int address) {
+        if (symbols.put(label, address) != null)
+            throw new EncodingError("label " + label + " defined twice");
+    }
+
+    /*
+     * Data
+     */
+
+    private void directive(String line) {
+        String s = line.trim();
+        if (s.isEmpty() || s.startsWith("#"))
+            return;
+        int colon = s.indexOf(':');
+        String label = null;
+        if (colon > 0 && !s.substring(0, colon).contains("\"")) {
+            label = s.substring(0, colon).trim();
+            s = s.substring(colon + 1).trim();
+        }
+        int space = s.indexOf(' ');
+        String name = space < 0 ? s : s.substring(0, space);
+        String rest = space < 0 ? "" : s.substring(space + 1).trim();
+        switch (name) {
+            case ".data": inData = true; break;
+            case ".text": inData = false; break;
+            case ".align": alignData(1 << Integer.parseInt(rest)); break;
+            case ".word": alignData(4); break;
+            case ".half": alignData(2); break;
+            default: break;
+        }
+        if (label != null)
+            define(label, inData ? DATA_BASE + dataSize : pc());
+        switch (name) {
+            case ".data": case ".text": case ".align":
+                break;
+            case ".space":
+                dataSize += Integer.parseInt(rest);
+                break;
+            case ".byte":
+                for (String v : rest.split(","))
+                    store(immediate(v.trim()), 1);
+                break;
+            case ".half":
+                for (String v : rest.split(","))
+                    store(immediate(v.trim()), 2);
+                break;
+            case ".word":
+                for (String v : rest.split(","))
+                    store(immediate(v.trim()), 4);
+                break;
+            case ".ascii":
+            case ".asciiz":
+                for (char c : unquote(rest).toCharArray())
+                    store(c, 1);
+                if (name.equals(".asciiz"))
+                    store(0, 1);
+                break;
+            default:
+                throw new EncodingError("unsupported directive: " + line.trim());
+        }
+    }
+
+    private void alignData(int align) {
+        dataSize = (dataSize + align - 1) / align * align;
+    }
+
+    /*
+     * Stores a little endian value of the given number of bytes, as MARS does.
+     */
+    private void store(int value, int bytes) {
+        if (dataSize + bytes > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + bytes));
+        for (int i = 0; i < bytes; i++) {
+            written.set((dataSize + i) / BLOCK);
+            data[dataSize + i] = (byte) (value >> 8 * i);
+        }
+        dataSize += bytes;
+    }
+
+    private static String unquote(String literal) {
+        if (literal.length() < 2 || !literal.startsWith("\"") || !literal.endsWith("\""))
+            throw new IllegalArgumentException("not a string: " + literal);
+        StringBuilder out = new StringBuilder();
+        for (int i = 1; i < literal.length() - 1; i++) {
+            char c = literal.charAt(i);
+            out.append(c == '\\' ? escape(literal.charAt(++i)) : c);
+        }
+        return out.toString();
+    }
+
+    private static char escape(char c) {
+        switch (c) {
+            case 'n': return '\n';
+            case 't': return '\t';
+            case 'r': return '\r';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case '0': return '\0';
+            default: return c;
+        }
+    }
+
+    /*
+     * Text
+     */
+
+    private void emit(int word) {
+        if (textSize == text.length)
+            text = Arrays.copyOf(text, text.length * 2);
+        text[textSize++] = word;
+    }
+
+    private void emit(int word, Kind kind, String symbol, int addend) {
+        fixups.add(new Fixup(textSize, kind, symbol, addend));
+        emit(word);
+    }
+
+    private void r(String op, int rs, int rt, int rd, int shamt) {
+        emit(rs << 21 | rt << 16 | rd << 11 | shamt << 6 | FUNCT.get(op));
+    }
+
+    private void i(String op, int rs, int rt, int imm) {
+        emit(OPCODE.get(op) << 26 | rs << 21 | rt << 16 | imm & 0xffff);
+    }
+
+    private void branch(String op, int rs, int rt, String label) {
+        emit(OPCODE.get(op) << 26 | rs << 21 | rt << 16, Kind.BRANCH, label, 0);
+    }
+
+    /*
+     * BGEZ and BLTZ share an opcode and are told apart by the rt field.
+     */
+    private void regimm(int rs, int which, String label) {
+        emit(1 << 26 | rs << 21 | which << 16, Kind.BRANCH, label, 0);
+    }
+
+    /*
+     * $at = value, the way MARS builds any 32 bit constant.
+     */
+    private void load32(int value) {
+        i("LUI", ZERO, AT, value >>> 16);
+        i("ORI", AT, AT, value);
+    }
+
+    private void instruction(Instruction in) {
+        List<String> a = in.args;
+        switch (in.op) {
+            case "ADDU": case "SUBU": case "AND": case "OR": case "XOR": case "NOR": case "SLT": case "SLTU":
+                r(in.op, reg(a.get(1)), reg(a.get(2)), reg(a.get(0)), 0);
+                break;
+            case "ADD": case "SUB":
+                if (isRegister(a.get(2)))
+                    r(in.op, reg(a.get(1)), reg(a.get(2)), reg(a.get(0)), 0);
+                else if (in.is("ADD"))
+                    addImmediate("ADD", a);
+                else
+                    subImmediate(a);
+                break;
+            case "ADDI":
+                addImmediate("ADD", a);
+                break;
+            case "SUBI":
+                subImmediate(a);
+                break;
+            case "ANDI": case "ORI": case "XORI": {
+                int imm = immediate(a.get(2));
+                if (fitsUnsigned(imm)) {
+                    i(in.op, reg(a.get(1)), reg(a.get(0)), imm);
+                } else {
+                    load32(imm);
+                    r(in.op.substring(0, in.op.length() - 1), reg(a.get(1)), AT, reg(a.get(0)), 0);
+                }
+                break;
+            }
+            case "ADDIU": case "SLTI": case "SLTIU":
+                i(in.op, reg(a.get(1)), reg(a.get(0)), signed(in, immediate(a.get(2))));
+                break;
+            case "LUI":
+                i(in.op, ZERO, reg(a.get(0)), immediate(a.get(1)));
+                break;
+            case "SLL": case "SRL": case "SRA":
+                r(in.op, ZERO, reg(a.get(1)), reg(a.get(0)), immediate(a.get(2)) & 31);
+                break;
+            case "SLLV": case "SRLV": case "SRAV":
+                r(in.op, reg(a.get(2)), reg(a.get(1)), reg(a.get(0)), 0);
+                break;
+            case "MUL":
+                emit(0x1c << 26 | reg(a.get(1)) << 21 | reg(a.get(2)) << 16 | reg(a.get(0)) << 11 | 2);
+                break;
+            case "MULT": case "MULTU": case "DIVU":
+                r(in.op, reg(a.get(0)), reg(a.get(1)), ZERO, 0);
+                break;
+            case "DIV": case "REM":
+                if (a.size() == 2) {
+                    r("DIV", reg(a.get(0)), reg(a.get(1)), ZERO, 0);
+                } else {
+                    //trap a division by zero first, as MARS does for the three operand form
+                    i("BNE", reg(a.get(2)), ZERO, 1);
+                    r("BREAK", ZERO, ZERO, ZERO, 0);
+                    r("DIV", reg(a.get(1)), reg(a.get(2)), ZERO, 0);
+                    r(in.is("DIV") ? "MFLO" : "MFHI", ZERO, ZERO, reg(a.get(0)), 0);
+                }
+                break;
+            case "MFHI": case "MFLO":
+                r(in.op, ZERO, ZERO, reg(a.get(0)), 0);
+                break;
+            case "MTHI": case "MTLO": case "JR":
+                r(in.op, reg(a.get(0)), ZERO, ZERO, 0);
+                break;
+            case "JALR":
+                r(in.op, reg(a.get(0)), ZERO, RA, 0);
+                break;
+            case "SYSCALL": case "BREAK":
+                r(in.op, ZERO, ZERO, ZERO, 0);
+                break;
+            case "NOP":
+                emit(0);
+                break;
+            case "J": case "JAL":
+                emit(OPCODE.get(in.op) << 26, Kind.JUMP, a.get(0), 0);
+                break;
+            case "MOVE":
+                r("ADDU", ZERO, reg(a.get(1)), reg(a.get(0)), 0);
+                break;
+            case "NEG":
+                r("SUB", ZERO, reg(a.get(1)), reg(a.get(0)), 0);
+                break;
+            case "NOT":
+                r("NOR", reg(a.get(1)), ZERO, reg(a.get(0)), 0);
+                break;
+            case "LI": {
+                int rd = reg(a.get(0));
+                int imm = immediate(a.get(1));
+                if (fitsSigned(imm)) {
+                    i("ADDIU", ZERO, rd, imm);
+                } else if (fitsUnsigned(imm)) {
+                    i("ORI", ZERO, rd, imm);
+                } else {
+                    i("LUI", ZERO, AT, imm >>> 16);
+                    i("ORI", AT, rd, imm);
+                }
+                break;
+            }
+            case "LA":
+                loadAddress(reg(a.get(0)), a.get(1));
+                break;
+            case "LB": case "LBU": case "LH": case "LHU": case "LW": case "SB": case "SH": case "SW":
+                memory(in.op, reg(a.get(0)), a.get(1));
+                break;
+            case "SEQ": case "SNE": case "SGT": case "SGE": case "SLE":
+                set(in.op, reg(a.get(0)), reg(a.get(1)), reg(a.get(2)));
+                break;
+            case "BEQZ": case "BNEZ":
+                branch(in.is("BEQZ") ? "BEQ" : "BNE", reg(a.get(0)), ZERO, a.get(1));
+                break;
+            case "BGTZ": case "BLEZ":
+                branch(in.op, reg(a.get(0)), ZERO, a.get(1));
+                break;
+            case "BGEZ": case "BLTZ":
+                regimm(reg(a.get(0)), in.is("BGEZ") ? 1 : 0, a.get(1));
+                break;
+            case "BEQ": case "BNE":
+                if (isRegister(a.get(1))) {
+                    branch(in.op, reg(a.get(0)), reg(a.get(1)), a.get(2));
+                } else {
+                    int imm = immediate(a.get(1));
+                    if (fitsSigned(imm))
+                        i("ADDI", ZERO, AT, imm);
+                    else
+                        load32(imm);
+                    branch(in.op, AT, reg(a.get(0)), a.get(2));
+                }
+                break;
+            case "BLT": case "BGE": case "BGT": case "BLE":
+                compareAndBranch(in.op, reg(a.get(0)), a.get(1), a.get(2));
+                break;
+            default:
+                throw new EncodingError("can't encode " + in);
+        }
+    }
+
+    private void addImmediate(String op, List<String> a) {
+        int imm = immediate(a.get(2));
+        if (fitsSigned(imm)) {
+            i(op + "I", reg(a.get(1)), reg(a.get(0)), imm);
+        } else {
+            load32(imm);
+            r(op, reg(a.get(1)), AT, reg(a.get(0)), 0);
+        }
+    }
+
+    private void subImmediate(List<String> a) {
+        int imm = immediate(a.get(2));
+        if (fitsSigned(imm))
+            i("ADDI", ZERO, AT, imm);
+        else
+            load32(imm);
+        r("SUB", reg(a.get(1)), AT, reg(a.get(0)), 0);
+    }
+
+    private void set(String op, int rd, int rs, int rt) {
+        switch (op) {
+            case "SEQ":
+                r("SUBU", rs, rt, rd, 0);
+                i("ORI", ZERO, AT, 1);
+                r("SLTU", rd, AT, rd, 0);
+                break;
+            case "SNE":
+                r("SUBU", rs, rt, rd, 0);
+                r("SLTU", ZERO, rd, rd, 0);
+                break;
+            case "SGT":
+                r("SLT", rt, rs, rd, 0);
+                break;
+            case "SGE":
+            case "SLE":
+                if (op.equals("SGE"))
+                    r("SLT", rs, rt, rd, 0);
+                else
+                    r("SLT", rt, rs, rd, 0);
+                i("ORI", ZERO, AT, 1);
+                r("SUBU", AT, rd, rd, 0);
+                break;
+        }
+    }
+
+    /*
+     * BLT, BGE, BGT and BLE compare into $at with SLT and branch on it.
+     */
+    private void compareAndBranch(String op, int rs, String operand, String label) {
+        boolean less = op.equals("BLT") || op.equals("BLE");
+        if (isRegister(operand)) {
+            int rt = reg(operand);
+            if (op.equals("BLT") || op.equals("BGE"))
+                r("SLT", rs, rt, AT, 0);
+            else
+                r("SLT", rt, rs, AT, 0);
+            branch(op.equals("BLT") || op.equals("BGT") ? "BNE" : "BEQ", AT, ZERO, label);
+            return;
+        }
+        int imm = immediate(operand);
+        if (!fitsSigned(imm)) {
+            //rs <= imm is rs < imm + 1, and rs > imm is !(rs < imm + 1)
+            load32(op.equals("BLT") || op.equals("BGE") ? imm : imm + 1);
+            r("SLT", rs, AT, AT, 0);
+            branch(op.equals("BLT") || op.equals("BLE") ? "BNE" : "BEQ", AT, ZERO, label);
+            return;
+        }
+        switch (op) {
+            case "BLT": case "BGE":
+                i("SLTI", rs, AT, imm);
+                break;
+            case "BLE":
+                i("ADDI", rs, AT, -1);
+                i("SLTI", AT, AT, imm);
+                break;
+            case "BGT":
+                i("ADDI", ZERO, AT, imm);
+                r("SLT", AT, rs, AT, 0);
+                break;
+        }
+        branch(op.equals("BGE") ? "BEQ" : "BNE", AT, ZERO, label);
+    }
+
+    private void loadAddress(int rd, String operand) {
+        int open = operand.indexOf('(');
+        if (open < 0) {
+            Symbol s = symbol(operand);
+            emit(OPCODE.get("LUI") << 26 | AT << 16, Kind.HI, s.name, s.addend);
+            emit(OPCODE.get("ORI") << 26 | AT << 21 | rd << 16, Kind.LO, s.name, s.addend);
+            return;
+        }
+        int base = reg(operand.substring(open + 1, operand.length() - 1));
+        if (open == 0) {
+            i("ADDI", base, rd, 0);
+            return;
+        }
+        int off = immediate(operand.substring(0, open));
+        if (fitsUnsigned(off))
+            i("ORI", ZERO, AT, off);
+        else
+            load32(off);
+        r("ADD", base, AT, rd, 0);
+    }
+
+    private void memory(String op, int rt, String operand) {
+        int open = operand.indexOf('(');
+        if (open < 0) {
+            Symbol s = symbol(operand);
+            emit(OPCODE.get("LUI") << 26 | AT << 16, Kind.HI_ADJUSTED, s.name, s.addend);
+            emit(OPCODE.get(op) << 26 | AT << 21 | rt << 16, Kind.LO, s.name, s.addend);
+            return;
+        }
+        int base = reg(operand.substring(open + 1, operand.length() - 1));
+        int off = open == 0 ? 0 : immediate(operand.substring(0, open));
+        if (fitsSigned(off)) {
+            i(op, base, rt, off);
+        } else if (fitsUnsigned(off)) {
+            i("ORI", ZERO, AT, off);
+            r("ADDU", AT, base, AT, 0);
+            i(op, AT, rt, 0);
+        } else {
+            i("LUI", ZERO, AT, (off + 0x8000) >>> 16);
+            r("ADDU", AT, base, AT, 0);
+            i(op, AT, rt, off);
+        }
+    }
+
+    /*
+     * Operands
+     */
+
+    private static class Symbol {
+        final String name;
+        final int addend;
+
+        Symbol(String name, int addend) {
+            this.name = name;
+            this.addend = addend;
+        }
+    }
+
+    /*
+     * A label, maybe with a constant added like String3+2.
+     */
+    private Symbol symbol(String operand) {
+        int plus = operand.indexOf('+');
+        if (plus < 0)
+            return new Symbol(operand, 0);
+        return new Symbol(operand.substring(0, plus), immediate(operand.substring(plus + 1)));
+    }
+
+    private static boolean isRegister(String operand) {
+        return operand.startsWith("$");
+    }
+
+    private int reg(String operand) {
+        if (isRegister(operand)) {
+            String name = operand.substring(1);
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(name))
+                    return i;
+            }
+            if (!name.isEmpty() && Character.isDigit(name.charAt(0)) && Integer.parseInt(name) < 32)
+                return Integer.parseInt(name);
+        }
+        throw new EncodingError("not a register: " + operand);
+    }
+
+    /*
+     * A number or a character constant like '\n'.
+     */
+    private int immediate(String operand) {
+        // MARS takes one character or one escape between the quotes, so not '''
+        if (operand.length() == 3 && operand.startsWith("'") && operand.endsWith("'") && operand.charAt(1) != '\'')
+            return operand.charAt(1);
+        if (operand.length() == 4 && operand.startsWith("'\\") && operand.endsWith("'"))
+            return escape(operand.charAt(2));
+        try {
+            if (operand.startsWith("0x") || operand.startsWith("-0x"))
+                return (int) Long.parseLong(operand.replace("0x", ""), 16);
+            return Integer.parseInt(operand);
+        } catch (NumberFormatException e) {
+            throw new EncodingError("not a constant: " + operand);
+        }
+    }
+
+    private int signed(Instruction in, int imm) {
+        if (!fitsSigned(imm))
+            throw new EncodingError("immediate out of range: " + in);
+        return imm;
+    }
+
+    private static boolean fitsSigned(int imm) {
+        return imm >= -32768 && imm <= 32767;
+    }
+
+    private static boolean fitsUnsigned(int imm) {
+        return imm >= 0 && imm <= 65535;
+    }
+}
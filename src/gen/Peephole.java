@@ -0,0 +1,454 @@
+package gen;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Window based peephole optimiser over the emitted instruction list.
+ * Every rule looks at the instruction at a position and up to window instructions after it,
+ * rules are applied until nothing changes. Rules can be switched off by name.
+ */
+public class Peephole {
+
+    private abstract class Rule {
+        final String name;
+
+        Rule(String name) {
+            this.name = name;
+        }
+
+        // tries to rewrite the code starting at i, returns whether anything changed
+        abstract boolean apply(CodeBuffer code, int i);
+    }
+
+    private static final String SP = Register.sp.toString();
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final Set<String> disabled = new HashSet<>();
+    private final Map<String, Integer> hits = new LinkedHashMap<>();
+    private int window = 16;
+    private final Set<String> entries = new HashSet<>(); // labels that are called, the start of a function
+
+    public Peephole() {
+        rules.add(new Rule("zero-add") {
+            // ADDI r, r, 0
+            boolean apply(CodeBuffer code, int i) {
+                Instruction a = code.get(i);
+                if (a.is("ADDI", "SUBI", "ADDIU") && a.arg(0).equals(a.arg(1)) && "0".equals(a.arg(2))) {
+                    code.remove(i);
+                    return true;
+                }
+                return false;
+            }
+        });
+        rules.add(new Rule("sp-adjust") {
+            // two adjustments of $sp in a row are merged, cancelling ones disappear
+            boolean apply(CodeBuffer code, int i) {
+                if (i + 1 >= code.size())
+                    return false;
+                Integer a = spAdjustment(code.get(i));
+                Integer b = spAdjustment(code.get(i + 1));
+                if (a == null || b == null)
+                    return false;
+                code.remove(i + 1);
+                code.remove(i);
+                if (a + b != 0)
+                    code.add(i, Instruction.op("ADDI", Register.sp, Register.sp, a + b));
+                return true;
+            }
+        });
+        rules.add(new Rule("spill-reload") {
+            // ADDI $sp, $sp, -4; SW r, 0($sp); ...; LW r2, 0($sp); ADDI $sp, $sp, 4 keeps the value in a register,
+            // r if nothing in between overwrites it, otherwise r2 if nothing in between touches that
+            boolean apply(CodeBuffer code, int i) {
+                if (i + 1 >= code.size())
+                    return false;
+                Integer push = spAdjustment(code.get(i));
+                Instruction sw = code.get(i + 1);
+                if (push == null || push != -4 || !sw.is("SW") || !SP.equals(Instruction.base(sw.arg(1)))
+                        || Instruction.offset(sw.arg(1)) != 0)
+                    return false;
+                String r = sw.arg(0);
+                boolean rWritten = false;
+                for (int j = i + 2; j < code.size() && j <= i + 2 + window; j++) {
+                    Instruction in = code.get(j);
+                    Integer popped = spAdjustment(in);
+                    if (popped != null && popped == 4) {
+                        //the value is never read back
+                        code.remove(j);
+                        code.remove(i + 1);
+                        code.remove(i);
+                        return true;
+                    }
+                    if (in.is("LW") && SP.equals(Instruction.base(in.arg(1))) && Instruction.offset(in.arg(1)) == 0
+                            && j + 1 < code.size()) {
+                        Integer pop = spAdjustment(code.get(j + 1));
+                        String r2 = in.arg(0);
+                        if (pop == null || pop != 4 || (rWritten && mentioned(code, i + 2, j, r2)))
+                            return false;
+                        code.remove(j + 1);
+                        code.remove(j);
+                        if (!rWritten && !r2.equals(r))
+                            code.add(j, Instruction.op("MOVE", in.operand(0), sw.operand(0)));
+                        code.remove(i + 1);
+                        code.remove(i);
+                        if (rWritten)
+                            code.add(i, Instruction.op("MOVE", in.operand(0), sw.operand(0)));
+                        return true;
+                    }
+                    if (!straight(in) || in.isStore() || in.reads(SP) || in.writes(SP))
+                        return false;
+                    rWritten |= in.writes(r);
+                }
+                return false;
+            }
+        });
+        rules.add(new Rule("store-load") {
+            // SW r, X; ...; LW r2, X reuses r
+            boolean apply(CodeBuffer code, int i) {
+                Instruction sw = code.get(i);
+                if (!sw.is("SW"))
+                    return false;
+                String r = sw.arg(0);
+                String base = Instruction.base(sw.arg(1));
+                for (int j = i + 1; j < code.size() && j <= i + window; j++) {
+                    Instruction in = code.get(j);
+                    if (in.is("LW") && in.arg(1).equals(sw.arg(1))) {
+                        code.remove(j);
+                        if (!in.arg(0).equals(r))
+                            code.add(j, Instruction.op("MOVE", in.operand(0), sw.operand(0)));
+                        return true;
+                    }
+                    if (!straight(in) || in.writes(r) || (base != null && in.writes(base)))
+                        return false;
+                    // another word off the same base can't overlap
+                    if (in.isStore() && !(in.is("SW") && base != null && base.equals(Instruction.base(in.arg(1)))
+                            && Math.abs(Instruction.offset(in.arg(1)) - Instruction.offset(sw.arg(1))) >= 4))
+                        return false;
+                }
+                return false;
+            }
+        });
+        rules.add(new Rule("self-move") {
+            // MOVE r, r
+            boolean apply(CodeBuffer code, int i) {
+                Instruction a = code.get(i);
+                if (a.is("MOVE") && a.arg(0).equals(a.arg(1))) {
+                    code.remove(i);
+                    return true;
+                }
+                return false;
+            }
+        });
+        rules.add(new Rule("move-chain") {
+            // t = ...; ...; MOVE r, t becomes r = ... when t isn't used again and nothing in between touches r
+            boolean apply(CodeBuffer code, int i) {
+                Instruction a = code.get(i);
+                String t = a.def();
+                if (t == null || !isTemp(t))
+                    return false;
+                for (int j = i + 1; j < code.size() && j <= i + window; j++) {
+                    Instruction b = code.get(j);
+                    if (b.is("MOVE") && b.arg(1).equals(t)) {
+                        String r = b.arg(0);
+                        if (mentioned(code, i + 1, j, r) || !dead(code, j + 1, t))
+                            return false;
+                        code.remove(j);
+                        code.set(i, a.with(0, b.operand(0)));
+                        return true;
+                    }
+                    if (!straight(b) || b.reads(t) || b.writes(t))
+                        return false;
+                }
+                return false;
+            }
+        });
+        rules.add(new Rule("copy-forward") {
+            // MOVE t, r; ...; op ..., t, ... reads r directly when t isn't used again and r hasn't changed
+            boolean apply(CodeBuffer code, int i) {
+                Instruction a = code.get(i);
+                if (!a.is("MOVE") || !isTemp(a.arg(0)))
+                    return false;
+                String t = a.arg(0);
+                String r = a.arg(1);
+                for (int j = i + 1; j < code.size() && j <= i + window; j++) {
+                    Instruction b = code.get(j);
+                    if (b.op != null && !b.is("SYSCALL") && b.reads(t)) {
+                        if (!b.writes(t) && !deadAfter(code, j, t))
+                            return false;
+                        Instruction c = b;
+                        for (int k = b.def() == null ? 0 : 1; k < b.args.size(); k++) {
+                            if (b.arg(k).equals(t))
+                                c = c.with(k, a.operand(1));
+                            else if (b.arg(k).endsWith("(" + t + ")"))
+                                c = c.with(k, rebase(b.operand(k), a.operand(1)));
+                        }
+                        code.set(j, c);
+                        code.remove(i);
+                        return true;
+                    }
+                    if (!straight(b) || b.writes(t) || b.writes(r))
+                        return false;
+                }
+                return false;
+            }
+        });
+        rules.add(new Rule("offset-fold") {
+            // ADDI t, r, k; LW x, off(t) loads from off+k(r) when t isn't needed afterwards
+            boolean apply(CodeBuffer code, int i) {
+                if (i + 1 >= code.size())
+                    return false;
+                Instruction add = code.get(i);
+                Instruction mem = code.get(i + 1);
+                if (!add.is("ADDI", "ADDIU") || !isTemp(add.arg(0)) || !mem.is("LW", "SW", "LB", "SB"))
+                    return false;
+                String t = add.arg(0);
+                String operand = mem.arg(1);
+                if (!operand.endsWith("(" + t + ")") || mem.isStore() && mem.arg(0).equals(t))
+                    return false;
+                int offset;
+                try {
+                    offset = Instruction.offset(operand) + Integer.parseInt(add.arg(2));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE || !mem.writes(t) && !deadAfter(code, i + 1, t))
+                    return false;
+                code.set(i + 1, mem.with(1, add.operand(1) instanceof Register
+                        ? Instruction.at(offset, (Register) add.operand(1)) : offset + "(" + add.arg(1) + ")"));
+                code.remove(i);
+                return true;
+            }
+        });
+        rules.add(new Rule("jump-next") {
+            // J L; L:
+            boolean apply(CodeBuffer code, int i) {
+                if (i + 1 >= code.size())
+                    return false;
+                Instruction j = code.get(i);
+                if (!j.is("J", "B"))
+                    return false;
+                for (int k = i + 1; k < code.size() && code.get(k).isLabel(); k++) {
+                    if (code.get(k).label.equals(j.arg(0))) {
+                        code.remove(i);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        rules.add(new Rule("unreachable") {
+            // nothing falls through an unconditional jump, the code up to the next label can't run
+            boolean apply(CodeBuffer code, int i) {
+                if (!code.get(i).is("J", "B", "JR"))
+                    return false;
+                int end = i + 1;
+                while (end < code.size() && code.get(end).op != null)
+                    end++;
+                if (end == i + 1)
+                    return false;
+                code.subList(i + 1, end).clear();
+                return true;
+            }
+        });
+        rules.add(new Rule("dead-label") {
+            // a label nothing jumps to only splits the code around it
+            boolean apply(CodeBuffer code, int i) {
+                Instruction in = code.get(i);
+                if (!in.isLabel() || code.referenced(in.label) || in.label.equals("main"))
+                    return false;
+                code.remove(i);
+                return true;
+            }
+        });
+        rules.add(new Rule("seq-not") {
+            // SEQ r, a, b; LI t, 1; SUB r, t, r is SNE r, a, b
+            boolean apply(CodeBuffer code, int i) {
+                if (i + 2 >= code.size())
+                    return false;
+                Instruction seq = code.get(i);
+                Instruction li = code.get(i + 1);
+                Instruction sub = code.get(i + 2);
+                if (!seq.is("SEQ") || !li.is("LI") || !"1".equals(li.arg(1)) || !sub.is("SUB", "SUBU"))
+                    return false;
+                String r = seq.arg(0);
+                String t = li.arg(0);
+                if (t.equals(r) || !sub.arg(0).equals(r) || !sub.arg(1).equals(t) || !sub.arg(2).equals(r)
+                        || !isTemp(t) || !dead(code, i + 3, t))
+                    return false;
+                code.remove(i + 2);
+                code.remove(i + 1);
+                code.set(i, seq.as("SNE"));
+                return true;
+            }
+        });
+        rules.add(new Rule("mul-mflo") {
+            // the three operand MUL already leaves the result in its destination
+            boolean apply(CodeBuffer code, int i) {
+                if (i + 1 >= code.size())
+                    return false;
+                Instruction mul = code.get(i);
+                Instruction mflo = code.get(i + 1);
+                if (mul.is("MUL") && mul.args.size() == 3 && mflo.is("MFLO") && mflo.arg(0).equals(mul.arg(0))) {
+                    code.remove(i + 1);
+                    return true;
+                }
+                return false;
+            }
+        });
+        for (Rule r : rules) {
+            hits.put(r.name, 0);
+        }
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    public void disable(String rule) {
+        if (!hits.containsKey(rule))
+            throw new IllegalArgumentException("Unknown peephole rule " + rule);
+        disabled.add(rule);
+    }
+
+    public Set<String> getRuleNames() {
+        return Collections.unmodifiableSet(hits.keySet());
+    }
+
+    public Map<String, Integer> getHits() {
+        return Collections.unmodifiableMap(hits);
+    }
+
+    public void printStats(PrintStream out) {
+        out.println("Peephole rule hits:");
+        for (Map.Entry<String, Integer> e : hits.entrySet()) {
+            out.println("\t" + e.getKey() + (disabled.contains(e.getKey()) ? " (disabled)" : "") + ": " + e.getValue());
+        }
+    }
+
+    void optimise(List<Instruction> program) {
+        entries.clear();
+        for (Instruction in : program) {
+            if (in.is("JAL"))
+                entries.add(in.arg(0));
+        }
+        CodeBuffer code = new CodeBuffer(program);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < code.size(); i++) {
+                for (Rule r : rules) {
+                    if (disabled.contains(r.name))
+                        continue;
+                    if (i < code.size() && r.apply(code, i)) {
+                        hits.put(r.name, hits.get(r.name) + 1);
+                        changed = true;
+                        //the instructions just before may match something now, start again a little earlier
+                        i = Math.max(-1, i - 2);
+                        break;
+                    }
+                }
+            }
+        }
+        program.clear();
+        program.addAll(code);
+    }
+
+    /*
+     * The amount an instruction moves $sp by, null if it isn't a constant adjustment of $sp.
+     */
+    private static Integer spAdjustment(Instruction in) {
+        if (!in.is("ADDI", "SUBI", "ADDIU") || !SP.equals(in.arg(0)) || !SP.equals(in.arg(1)))
+            return null;
+        try {
+            int amount = Integer.parseInt(in.arg(2));
+            return in.is("SUBI") ? -amount : amount;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Registers the allocator hands out, nothing outside an expression relies on them.
+     */
+    private static boolean isTemp(String reg) {
+        for (Register r : Register.tmpRegs) {
+            if (r.toString().equals(reg))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * A memory operand based on another register instead, e.g. 4($t0) on $t1 is 4($t1)
+     */
+    private static Object rebase(Object operand, Object reg) {
+        if (operand instanceof Instruction.Address && reg instanceof Register)
+            return ((Instruction.Address) operand).from((Register) reg);
+        String old = operand.toString();
+        return old.substring(0, old.indexOf('(')) + "(" + reg + ")";
+    }
+
+    private static boolean straight(Instruction in) {
+        return in.op != null && !in.isBranch() && !in.is("SYSCALL");
+    }
+
+    private static boolean mentioned(CodeBuffer code, int from, int to, String reg) {
+        for (int j = from; j < to; j++) {
+            if (code.get(j).reads(reg) || code.get(j).writes(reg))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Whether reg is overwritten before it is read again on every path, following jumps and
+     * branches for at most window instructions. Calls and returns kill every temporary.
+     */
+    private boolean dead(CodeBuffer code, int from, String reg) {
+        return dead(code, from, reg, window, new HashSet<Integer>());
+    }
+
+    /*
+     * Whether reg is dead once the instruction at j has run, wherever that goes next.
+     */
+    private boolean deadAfter(CodeBuffer code, int j, String reg) {
+        Instruction in = code.get(j);
+        if (in.is("JR", "JAL") || in.is("J") && entries.contains(in.arg(0)))
+            return true;
+        if (in.isBranch()) {
+            int target = code.find(in.arg(in.args.size() - 1));
+            if (target < 0 || !dead(code, target, reg))
+                return false;
+            if (in.is("J", "B"))
+                return true;
+        }
+        return dead(code, j + 1, reg);
+    }
+
+    private boolean dead(CodeBuffer code, int from, String reg, int budget, Set<Integer> seen) {
+        for (int j = from; j < code.size(); j++) {
+            if (budget-- <= 0 || !seen.add(j))
+                return budget >= 0; // a loop back to code already checked adds nothing new
+            Instruction in = code.get(j);
+            if (in.isLabel())
+                continue;
+            if (in.op == null || in.reads(reg))
+                return false;
+            if (in.is("JR") || in.writes(reg))
+                return true;
+            if (in.is("JAL"))
+                return true; // arguments go in $a registers and temporaries aren't kept over a call
+            if (in.is("J") && entries.contains(in.arg(0)))
+                return true; // a tail call, the same as JAL
+            if (in.isBranch()) {
+                int target = code.find(in.arg(in.args.size() - 1));
+                if (target < 0 || !dead(code, target, reg, budget, seen))
+                    return false;
+                if (in.is("J", "B"))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -13,7 +13,9 @@ public class Register {
      * definition of registers
      */
 
+    public static final Register zero = new Register(0,"zero");
     public static final Register v0 = new Register(2,"v0");
+    public static final Register v1 = new Register(3,"v1");
     public static final Register[] paramRegs = {
             new Register(4,"a0"),
             new Register(5,"a1"),
@@ -24,12 +26,17 @@ public class Register {
     static {
         for (int i=8; i<=15; i++)
             tmpRegs.add(new Register(i,"t"+(i-8)));
-        for (int i=16; i<=23; i++)
-            tmpRegs.add(new Register(i,"s"+(i-16)));
         for (int i=24; i<=25; i++)
             tmpRegs.add(new Register(i,"t"+(i-24+8)));
     }
 
+    // callee saved, a function has to restore any of these it writes
+    public static final List<Register> savedRegs = new ArrayList<Register>();
+    static {
+        for (int i=16; i<=23; i++)
+            savedRegs.add(new Register(i,"s"+(i-16)));
+    }
+
     public static final Register gp = new Register(28,"gp");
     public static final Register sp = new Register(29,"sp");
     public static final Register fp = new Register(30,"fp");
@@ -38,15 +45,21 @@ public class Register {
 
     private final int num;      // register number
     private final String name;  // register name
+    private final String text;  // as written in assembly, asked for all the time
 
 
     private Register(int num, String name) {
         this.num = num;
         this.name = name;
+        this.text = "$"+name;
+    }
+
+    int number() {
+        return num;
     }
 
     public String toString() {
-        return "$"+name;
+        return text;
     }
 
 }
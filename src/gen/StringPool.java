@@ -0,0 +1,119 @@
+package gen;
+
+import ast.StrLiteral;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The string literals of a program, each distinct string stored once. A string that is the tail
+ * of a longer one isn't stored at all, it is addressed part way into the longer one, which is why
+ * the strings are compared as the characters they stand for rather than as written in the source.
+ */
+class StringPool {
+
+    private final Map<String, String> addresses = new HashMap<>(); // string -> label, with an offset for tails
+    private final Set<String> strings = new LinkedHashSet<>();
+    private final String prefix;
+    private final boolean gnu;
+    private int count;
+
+    StringPool() {
+        this("String", false);
+    }
+
+    /*
+     * Labels start with prefix, and with gnu set the strings are written for the GNU assembler.
+     */
+    StringPool(String prefix, boolean gnu) {
+        this.prefix = prefix;
+        this.gnu = gnu;
+    }
+
+    void add(String literal) {
+        strings.add(StrLiteral.decode(literal));
+    }
+
+    /*
+     * The operand for LA, or for LEA relative to %rip, that gives the address of the literal, only known once the pool has been written.
+     */
+    String address(String literal) {
+        return addresses.get(StrLiteral.decode(literal));
+    }
+
+    /*
+     * Writes the pool. Reversed, a tail is a prefix, so sorting the reversed strings puts each one right
+     * before a string it is the tail of, if it is the tail of any. Each line of it goes to lines.
+     */
+    void emit(Consumer<String> lines) {
+        List<String> reversed = new ArrayList<>();
+        for (String s : strings) {
+            reversed.add(new StringBuilder(s).reverse().toString());
+        }
+        Collections.sort(reversed);
+        String[] owner = new String[reversed.size()];
+        for (int i = reversed.size() - 1; i >= 0; i--) {
+            String s = reversed.get(i);
+            owner[i] = i + 1 < reversed.size() && reversed.get(i + 1).startsWith(s) ? owner[i + 1] : s;
+        }
+        Map<String, String> labels = new HashMap<>();
+        for (int i = 0; i < reversed.size(); i++) {
+            String whole = new StringBuilder(owner[i]).reverse().toString();
+            String label = labels.get(whole);
+            if (label == null) {
+                label = prefix + count++;
+                labels.put(whole, label);
+                lines.accept("\t" + label + ": " + (gnu ? asciz(whole) : data(whole)));
+            }
+            String s = new StringBuilder(reversed.get(i)).reverse().toString();
+            int offset = whole.length() - s.length();
+            addresses.put(s, offset == 0 ? label : label + "+" + offset);
+        }
+    }
+
+    /*
+     * The directive holding s, .asciiz when the assembler can take every character in a string literal.
+     */
+    private static String data(String s) {
+        StringBuilder text = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '\n': text.append("\\n"); break;
+                case '\t': text.append("\\t"); break;
+                case '\r': text.append("\\r"); break;
+                case '\0': text.append("\\0"); break;
+                case '"': text.append("\\\""); break;
+                case '\\': text.append("\\\\"); break;
+                default:
+                    if (c < ' ' || c > '~')
+                        return bytes(s);
+                    text.append(c);
+            }
+        }
+        return ".asciiz \"" + text + "\"";
+    }
+
+    /*
+     * The GNU assembler takes any byte in octal, three digits so a digit after it isn't taken as well.
+     */
+    private static String asciz(String s) {
+        StringBuilder text = new StringBuilder(".asciz \"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                text.append('\\').append(c);
+            else if (c < ' ' || c > '~')
+                text.append(String.format("\\%03o", c & 0xff));
+            else
+                text.append(c);
+        }
+        return text.append('"').toString();
+    }
+
+    private static String bytes(String s) {
+        StringBuilder out = new StringBuilder(".byte ");
+        for (char c : s.toCharArray()) {
+            out.append((int) (byte) c).append(", ");
+        }
+        return out.append(0).toString();
+    }
+}
@@ -0,0 +1,1134 @@
+package gen;
+
+import ast.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.*;
+
+import static ast.Expr.typeOf;
+
+/**
+ * Writes a program as x86-64 assembly for the GNU assembler, to be linked with a C build of
+ * minic-stdlib.h. The AST goes through the same passes as for CodeGenerator first and structs are
+ * laid out the same way, only with pointers taking eight bytes.
+ *
+ * Calls follow the System V ABI, except that structs are passed by address and copied by the
+ * callee, as CodeGenerator does, and returned through a pointer passed before the arguments.
+ * The most used scalar variables live in the callee saved registers, and in the spare caller saved
+ * ones in functions that make no calls, expressions are evaluated in the caller saved registers
+ * left over. %rax and %rdx are kept free for division, return values and copying.
+ *
+ * The visit methods return the register holding the value of an expression: ints and chars in the
+ * low 32 bits, pointers and the addresses of arrays and structs in all 64.
+ */
+public class X86Generator implements ASTVisitor<X86Generator.Reg> {
+
+    enum Reg {
+        RAX("rax", "eax", "al"), RBX("rbx", "ebx", "bl"), RCX("rcx", "ecx", "cl"), RDX("rdx", "edx", "dl"),
+        RSI("rsi", "esi", "sil"), RDI("rdi", "edi", "dil"), R8("r8", "r8d", "r8b"), R9("r9", "r9d", "r9b"),
+        R10("r10", "r10d", "r10b"), R11("r11", "r11d", "r11b"), R12("r12", "r12d", "r12b"),
+        R13("r13", "r13d", "r13b"), R14("r14", "r14d", "r14b"), R15("r15", "r15d", "r15b");
+
+        final String q, l, b;
+
+        Reg(String q, String l, String b) {
+            this.q = "%" + q;
+            this.l = "%" + l;
+            this.b = "%" + b;
+        }
+    }
+
+    private static final Reg[] ARGS = {Reg.RDI, Reg.RSI, Reg.RDX, Reg.RCX, Reg.R8, Reg.R9};
+    private static final List<Reg> TEMPS = Arrays.asList(Reg.R10, Reg.R11, Reg.R9, Reg.R8, Reg.RCX, Reg.RSI, Reg.RDI);
+    private static final List<Reg> SAVED = Arrays.asList(Reg.RBX, Reg.R12, Reg.R13, Reg.R14, Reg.R15);
+    private static final int LEAF_LOCAL_TEMPS = 3; // temporaries a leaf function may keep variables in
+    private static final int COPY_UNROLL = 128; // bytes of struct copied without a loop
+
+    private final Inliner inliner = new Inliner();
+    private final Map<String, StructLayout> layouts = new HashMap<>();
+    private final StringPool strings = new StringPool(".LS", true);
+    private PrintWriter writer;
+    private int labels;
+
+    // state of the function being generated
+    private FunDecl function;
+    private PrintWriter out; // the body, written after the prologue once the frame is known
+    private final Map<VarDecl, Reg> regVars = new HashMap<>();
+    private final Map<VarDecl, Integer> offsets = new HashMap<>(); // from %rbp, of what lives in the frame
+    private final Set<FunCallExpr> tailCalls = new HashSet<>();
+    private final List<Reg> busy = new ArrayList<>(); // temporaries holding values
+    private final List<Reg> reserved = new ArrayList<>(); // temporaries holding variables
+    private int savedBytes, frameSize, pushed;
+    private int resultOffset; // where the address a struct is returned to is kept
+    private String retLabel, startLabel;
+
+    public Inliner getInliner() {
+        return inliner;
+    }
+
+    public void emitProgram(Program program, File outputFile) throws FileNotFoundException {
+        writer = new PrintWriter(outputFile);
+        visitProgram(program);
+        writer.close();
+    }
+
+    /*
+     * Sizes in memory, as StructLayout has them apart from pointers, which are eight bytes.
+     */
+    int findSize(Type t) {
+        if (t instanceof PointerType)
+            return 8;
+        if (t instanceof ArrayType)
+            return ((ArrayType) t).size * findSize(((ArrayType) t).type);
+        if (t instanceof StructType)
+            return layout(t).size;
+        return StructLayout.sizeOf(t);
+    }
+
+    private int alignOf(Type t) {
+        if (t instanceof ArrayType)
+            return alignOf(((ArrayType) t).type);
+        if (t instanceof StructType)
+            return layout(t).align;
+        return findSize(t);
+    }
+
+    private StructLayout layout(Type struct) {
+        return layouts.get(((StructType) struct).name);
+    }
+
+    @Override
+    public Reg visitProgram(Program p) {
+        //the sizes have to be the ones the passes see
+        for (StructTypeDecl st : p.structTypeDecls) {
+            st.accept(this);
+        }
+        CodeGenerator.optimise(p, inliner, this::findSize);
+
+        p.accept(new ASTWalker() {
+            @Override
+            public Void visitStringLiteral(StrLiteral sl) {
+                strings.add(sl.string);
+                return null;
+            }
+        });
+        writer.println("\t.section .rodata");
+        strings.emit(writer::println);
+
+        writer.println("\t.bss");
+        for (VarDecl vd : p.varDecls) {
+            writer.println("\t.align " + alignOf(vd.type));
+            writer.println(vd.varName + ":");
+            writer.println("\t.zero " + findSize(vd.type));
+        }
+
+        writer.println("\t.text");
+        for (FunDecl fd : p.funDecls) {
+            //calls to a built-in go to the C version even if the program has its own
+            if (!CodeGenerator.BUILTINS.contains(fd.name))
+                fd.accept(this);
+        }
+        writer.println("\t.section .note.GNU-stack,\"\",@progbits");
+        return null;
+    }
+
+    @Override
+    public Reg visitStructTypeDecl(StructTypeDecl st) {
+        layouts.put(st.st.name, StructLayout.of(st, this::findSize, this::alignOf));
+        return null;
+    }
+
+    /*
+     * Frame layout, the stack grows down and %rbp points at the caller's %rbp:
+     *   rbp+16+8*i    arguments after the sixth, stored by the caller
+     *   rbp-8*k       the callee saved registers used
+     *   below         locals, homes of parameters that can't stay in a register and the structs
+     *                 returned by calls, each in a slot of its own
+     * A function making no calls whose variables all fit in registers doesn't set up a frame.
+     */
+    @Override
+    public Reg visitFunDecl(FunDecl p) {
+        function = p;
+        regVars.clear();
+        offsets.clear();
+        busy.clear();
+        reserved.clear();
+        frameSize = 0;
+        pushed = 0;
+        labels++;
+        retLabel = ".Lret" + labels;
+        startLabel = ".Lstart" + labels;
+
+        CodeGenerator.UseCounter counter = new CodeGenerator.UseCounter();
+        p.block.accept(counter);
+        findTailCalls(p, counter);
+        boolean leaf = !calls(p.block);
+        boolean returnsStruct = p.type instanceof StructType;
+        int hidden = returnsStruct ? 1 : 0;
+
+        //registers for the variables used most
+        List<VarDecl> candidates = new ArrayList<>();
+        for (VarDecl vd : p.params) {
+            if (held(vd))
+                candidates.add(vd);
+        }
+        for (VarDecl vd : counter.locals) {
+            if (CodeGenerator.isScalar(vd.type) && counter.uses(vd) > 0)
+                candidates.add(vd);
+        }
+        candidates.sort((a, b) -> counter.uses(b) - counter.uses(a));
+        LinkedList<Reg> pool = new LinkedList<>();
+        if (leaf)
+            pool.addAll(TEMPS.subList(TEMPS.size() - LEAF_LOCAL_TEMPS, TEMPS.size()));
+        pool.addAll(SAVED);
+        List<Reg> saved = new ArrayList<>();
+        for (VarDecl vd : candidates) {
+            if (pool.isEmpty() || counter.uses(vd) == 0)
+                break;
+            Reg home = pool.removeFirst();
+            if (SAVED.contains(home))
+                saved.add(home);
+            else
+                reserved.add(home);
+            regVars.put(vd, home);
+        }
+        savedBytes = 8 * saved.size();
+
+        //everything else gets a slot
+        StringWriter body = new StringWriter();
+        out = new PrintWriter(body);
+        if (returnsStruct) {
+            resultOffset = slot(8, 8);
+            out.println("\tmovq %rdi, " + resultOffset + "(%rbp)");
+        }
+        Map<Reg, Reg> moves = new LinkedHashMap<>();
+        List<VarDecl> fromStack = new ArrayList<>();
+        for (int i = 0; i < p.params.size(); i++) {
+            VarDecl param = p.params.get(i);
+            boolean inReg = i + hidden < ARGS.length;
+            String incoming = inReg ? ARGS[i + hidden].q : (16 + 8 * (i + hidden - ARGS.length)) + "(%rbp)";
+            if (param.type instanceof StructType) {
+                //the caller passes the address of a struct, the callee works on its own copy
+                int offset = slot(findSize(param.type), alignOf(param.type));
+                offsets.put(param, offset);
+                Mem from;
+                if (inReg) {
+                    from = new Mem(ARGS[i + hidden], "", 0, false);
+                } else {
+                    Reg r = getRegister(); // not one the arguments come in, none are taken yet
+                    out.println("\tmovq " + incoming + ", " + r.q);
+                    from = new Mem(r, "", 0, true);
+                }
+                emitCopy(frame(offset), from, findSize(param.type));
+                release(from);
+            } else if (regVars.containsKey(param)) {
+                if (inReg)
+                    moves.put(regVars.get(param), ARGS[i + hidden]);
+                else
+                    fromStack.add(param);
+            } else if (inReg) {
+                int offset = slot(findSize(storage(param)), alignOf(storage(param)));
+                offsets.put(param, offset);
+                out.println("\t" + store(storage(param), ARGS[i + hidden]) + ", " + offset + "(%rbp)");
+            } else {
+                offsets.put(param, 16 + 8 * (i + hidden - ARGS.length));
+            }
+        }
+        emitMoves(moves);
+        for (VarDecl param : fromStack) {
+            int index = p.params.indexOf(param) + hidden;
+            out.println("\tmovq " + (16 + 8 * (index - ARGS.length)) + "(%rbp), " + regVars.get(param).q);
+        }
+        for (VarDecl vd : counter.locals) {
+            if (!regVars.containsKey(vd) && counter.uses(vd) > 0)
+                offsets.put(vd, slot(findSize(vd.type), alignOf(vd.type)));
+        }
+
+        out.println(startLabel + ":");
+        p.block.accept(this);
+        out.println(retLabel + ":");
+        //the C runtime takes what main returns as the exit status
+        if (p.name.equals("main") && p.type == BaseType.VOID)
+            out.println("\txorl %eax, %eax");
+        out.flush();
+
+        boolean frame = !leaf || frameSize > 0 || savedBytes > 0 || p.params.size() + hidden > ARGS.length;
+        if (p.name.equals("main"))
+            writer.println("\t.globl main");
+        writer.println(p.name + ":");
+        if (frame) {
+            writer.println("\tpushq %rbp");
+            writer.println("\tmovq %rsp, %rbp");
+            for (Reg r : saved) {
+                writer.println("\tpushq " + r.q);
+            }
+            //calls need %rsp on a 16 byte boundary, it is once %rbp has been pushed
+            int locals = StructLayout.alignUp(frameSize + savedBytes, 16) - savedBytes;
+            if (locals > 0)
+                writer.println("\tsubq $" + locals + ", %rsp");
+        }
+        writer.print(body);
+        if (frame) {
+            if (saved.isEmpty()) {
+                writer.println("\tleave");
+            } else {
+                writer.println("\tleaq " + (-savedBytes) + "(%rbp), %rsp");
+                for (int i = saved.size() - 1; i >= 0; i--) {
+                    writer.println("\tpopq " + saved.get(i).q);
+                }
+                writer.println("\tpopq %rbp");
+            }
+        }
+        writer.println("\tret");
+        return null;
+    }
+
+    /*
+     * A slot of the frame for something of the given size, returns its offset from %rbp.
+     */
+    private int slot(int size, int align) {
+        frameSize = StructLayout.alignUp(frameSize + size, align);
+        return -(savedBytes + frameSize);
+    }
+
+    /*
+     * Whether a variable holds a single value, which could live in a register. An array parameter is
+     * the address of the array.
+     */
+    private boolean held(VarDecl vd) {
+        return CodeGenerator.isScalar(vd.type) || vd.type instanceof ArrayType && function.params.contains(vd);
+    }
+
+    /*
+     * The type of what is stored for a variable, a pointer for an array parameter.
+     */
+    private Type storage(VarDecl vd) {
+        return vd.type instanceof ArrayType ? new PointerType(((ArrayType) vd.type).type) : vd.type;
+    }
+
+    /*
+     * return f(...) where f is the function itself becomes a jump back to the start with the new
+     * arguments, which can only be done when nothing in the frame could be pointed at.
+     */
+    private void findTailCalls(FunDecl p, CodeGenerator.UseCounter counter) {
+        tailCalls.clear();
+        if (p.type instanceof StructType)
+            return;
+        for (VarDecl vd : counter.locals) {
+            if (!CodeGenerator.isScalar(vd.type))
+                return;
+        }
+        for (VarDecl vd : p.params) {
+            if (!held(vd))
+                return;
+        }
+        p.block.accept(new ASTWalker() {
+            @Override
+            public Void visitReturn(Return r) {
+                if (r.exp instanceof FunCallExpr && ((FunCallExpr) r.exp).name.equals(p.name))
+                    tailCalls.add((FunCallExpr) r.exp);
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Whether anything below n calls a function, built-ins included. Tail calls don't return here.
+     */
+    private boolean calls(ASTNode n) {
+        boolean[] found = {false};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                found[0] |= !tailCalls.contains(fce);
+                return super.visitFunCallExpr(fce);
+            }
+        });
+        return found[0];
+    }
+
+    /*
+     * Temporary registers, there are always two free when an expression starts being evaluated.
+     */
+
+    private Reg getRegister() {
+        for (Reg r : TEMPS) {
+            if (!busy.contains(r) && !reserved.contains(r)) {
+                busy.add(r);
+                return r;
+            }
+        }
+        throw new IllegalStateException("no free register in " + function.name);
+    }
+
+    private void freeRegister(Reg r) {
+        busy.remove(r);
+    }
+
+    private int freeRegisters() {
+        return TEMPS.size() - busy.size() - reserved.size();
+    }
+
+    private void push(Reg r) {
+        out.println("\tpushq " + r.q);
+        pushed += 8;
+    }
+
+    private void pop(Reg r) {
+        out.println("\tpopq " + r.q);
+        pushed -= 8;
+    }
+
+    /*
+     * Evaluates the right operand of a binary operation while the left one is already in left,
+     * which goes on the stack when that would leave too few registers. Returns both registers.
+     */
+    private Reg[] emitSecondOperand(Reg left, Expr right) {
+        if (freeRegisters() >= 2)
+            return new Reg[] {left, right.accept(this)};
+        push(left);
+        freeRegister(left);
+        Reg r = right.accept(this);
+        left = getRegister();
+        pop(left);
+        return new Reg[] {left, r};
+    }
+
+    /*
+     * Copies registers into others all at once, to -> from, going through %rax for a cycle.
+     */
+    private void emitMoves(Map<Reg, Reg> moves) {
+        moves.entrySet().removeIf(m -> m.getKey() == m.getValue());
+        while (!moves.isEmpty()) {
+            Reg to = null;
+            for (Reg t : moves.keySet()) {
+                if (!moves.containsValue(t)) {
+                    to = t;
+                    break;
+                }
+            }
+            if (to == null) {
+                //every destination is still to be read, free one by copying it aside
+                Reg blocked = moves.keySet().iterator().next();
+                out.println("\tmovq " + blocked.q + ", %rax");
+                for (Map.Entry<Reg, Reg> m : moves.entrySet()) {
+                    if (m.getValue() == blocked)
+                        m.setValue(Reg.RAX);
+                }
+                continue;
+            }
+            out.println("\tmovq " + moves.remove(to).q + ", " + to.q);
+        }
+    }
+
+    /*
+     * A memory operand, disp(base) where the base is a register, %rbp or %rip, disp a symbol for
+     * %rip. Only a temporary base belongs to the operand.
+     */
+    private static final class Mem {
+        final Reg reg;
+        final String base;
+        final String symbol;
+        int disp;
+        final boolean temp;
+
+        Mem(Reg reg, String symbol, int disp, boolean temp) {
+            this.reg = reg;
+            this.base = reg == null ? (symbol.isEmpty() ? "%rbp" : "%rip") : reg.q;
+            this.symbol = symbol;
+            this.disp = disp;
+            this.temp = temp;
+        }
+
+        @Override
+        public String toString() {
+            if (!symbol.isEmpty())
+                return symbol + (disp > 0 ? "+" + disp : disp < 0 ? "" + disp : "") + "(" + base + ")";
+            return (disp != 0 ? "" + disp : "") + "(" + base + ")";
+        }
+    }
+
+    private static Mem frame(int offset) {
+        return new Mem(null, "", offset, false);
+    }
+
+    private void release(Mem m) {
+        if (m.temp)
+            freeRegister(m.reg);
+    }
+
+    /*
+     * The same place with a temporary of its own as the base, so the address can be added to.
+     */
+    private Mem own(Mem m) {
+        if (m.temp)
+            return m;
+        Reg r = getRegister();
+        out.println("\tleaq " + m + ", " + r.q);
+        return new Mem(r, "", 0, true);
+    }
+
+    /*
+     * Where the value of an expression is kept in memory, for arrays and structs where they start.
+     */
+    private Mem address(Expr e) {
+        if (e instanceof VarExpr) {
+            VarDecl vd = ((VarExpr) e).vd;
+            Reg home = regVars.get(vd);
+            if (home != null) {
+                //an array parameter in a register, the only variable asked for an address that has one
+                Reg r = getRegister();
+                out.println("\tmovq " + home.q + ", " + r.q);
+                return new Mem(r, "", 0, true);
+            }
+            Integer offset = offsets.get(vd);
+            if (offset != null && vd.type instanceof ArrayType && function.params.contains(vd)) {
+                Reg r = getRegister();
+                out.println("\tmovq " + offset + "(%rbp), " + r.q);
+                return new Mem(r, "", 0, true);
+            }
+            return offset != null ? frame(offset) : new Mem(null, vd.varName, 0, false);
+        } else if (e instanceof ArrayAccessExpr) {
+            ArrayAccessExpr aae = (ArrayAccessExpr) e;
+            Mem base;
+            if (typeOf(aae.exp) instanceof ArrayType) {
+                base = address(aae.exp);
+            } else {
+                Reg r = aae.exp.accept(this);
+                base = new Mem(r, "", 0, true);
+            }
+            int size = findSize(typeOf(aae));
+            Integer index = ConstantFolder.constant(aae.index);
+            if (index != null) {
+                base.disp += index * size;
+                return base;
+            }
+            base = own(base);
+            Reg[] both = emitSecondOperand(base.reg, aae.index);
+            Mem m = new Mem(both[0], "", base.disp, true);
+            Reg i = both[1];
+            out.println("\tmovslq " + i.l + ", " + i.q);
+            if (size == 1 || size == 2 || size == 4 || size == 8) {
+                out.println("\tleaq (" + m.reg.q + "," + i.q + "," + size + "), " + m.reg.q);
+            } else {
+                out.println("\timulq $" + size + ", " + i.q + ", " + i.q);
+                out.println("\taddq " + i.q + ", " + m.reg.q);
+            }
+            freeRegister(i);
+            return m;
+        } else if (e instanceof FieldAccessExpr) {
+            FieldAccessExpr fae = (FieldAccessExpr) e;
+            Mem m = address(fae.struct);
+            m.disp += layout(typeOf(fae.struct)).field(fae.field).offset;
+            return m;
+        } else if (e instanceof TypecastExpr) {
+            return address(((TypecastExpr) e).exp);
+        }
+        //the address is the value, of a pointer or of a call returning a struct
+        Reg r = e instanceof ValueAtExpr ? ((ValueAtExpr) e).exp.accept(this) : e.accept(this);
+        return new Mem(r, "", 0, true);
+    }
+
+    /*
+     * The value kept at m, which is given up.
+     */
+    private Reg load(Mem m, Type t) {
+        release(m);
+        Reg r = getRegister();
+        if (t instanceof ArrayType || t instanceof StructType) {
+            //an array or struct stands for its address
+            if (!m.temp || m.reg != r || m.disp != 0)
+                out.println("\tleaq " + m + ", " + r.q);
+        } else if (t == BaseType.CHAR) {
+            out.println("\tmovsbl " + m + ", " + r.l);
+        } else if (t instanceof PointerType) {
+            out.println("\tmovq " + m + ", " + r.q);
+        } else {
+            out.println("\tmovl " + m + ", " + r.l);
+        }
+        return r;
+    }
+
+    /*
+     * The start of a store of r as a t, the destination still to be added.
+     */
+    private static String store(Type t, Reg r) {
+        if (t == BaseType.CHAR)
+            return "movb " + r.b;
+        if (t instanceof PointerType)
+            return "movq " + r.q;
+        return "movl " + r.l;
+    }
+
+    /*
+     * Copies size bytes, eight at a time as far as they go, through %rax. Past COPY_UNROLL bytes the
+     * eights go round a loop counting in a temporary, which can't index from %rip.
+     */
+    private void emitCopy(Mem to, Mem from, int size) {
+        int done = 0;
+        if (size > COPY_UNROLL) {
+            Mem t = to.symbol.isEmpty() ? to : own(to);
+            Mem f = from.symbol.isEmpty() ? from : own(from);
+            Reg i = getRegister();
+            String loop = ".L" + labels++;
+            out.println("\txorl " + i.l + ", " + i.l);
+            out.println(loop + ":");
+            out.println("\tmovq " + f.disp + "(" + f.base + "," + i.q + "), %rax");
+            out.println("\tmovq %rax, " + t.disp + "(" + t.base + "," + i.q + ")");
+            out.println("\taddq $8, " + i.q);
+            out.println("\tcmpq $" + size / 8 * 8 + ", " + i.q);
+            out.println("\tjne " + loop);
+            freeRegister(i);
+            if (t != to)
+                release(t);
+            if (f != from)
+                release(f);
+            done = size / 8 * 8;
+        }
+        for (int unit : new int[] {8, 4, 1}) {
+            String suffix = unit == 8 ? "q" : unit == 4 ? "l" : "b";
+            String rax = unit == 8 ? "%rax" : unit == 4 ? "%eax" : "%al";
+            for (; done + unit <= size; done += unit) {
+                out.println("\tmov" + suffix + " " + offset(from, done) + ", " + rax);
+                out.println("\tmov" + suffix + " " + rax + ", " + offset(to, done));
+            }
+        }
+    }
+
+    private static Mem offset(Mem m, int by) {
+        return new Mem(m.reg, m.symbol, m.disp + by, m.temp);
+    }
+
+    @Override
+    public Reg visitBlock(Block b) {
+        for (Stmt s : b.stmtList) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Reg visitVarDecl(VarDecl vd) {
+        return null;
+    }
+
+    @Override
+    public Reg visitVarExpr(VarExpr v) {
+        Reg home = regVars.get(v.vd);
+        if (home != null) {
+            Reg r = getRegister();
+            out.println("\tmovq " + home.q + ", " + r.q);
+            return r;
+        }
+        return load(address(v), v.vd.type);
+    }
+
+    @Override
+    public Reg visitIntLiteral(IntLiteral il) {
+        Reg r = getRegister();
+        out.println("\tmovl $" + il.number + ", " + r.l);
+        return r;
+    }
+
+    @Override
+    public Reg visitStringLiteral(StrLiteral sl) {
+        Reg r = getRegister();
+        out.println("\tleaq " + strings.address(sl.string) + "(%rip), " + r.q);
+        return r;
+    }
+
+    @Override
+    public Reg visitChrLiteral(ChrLiteral cl) {
+        Reg r = getRegister();
+        out.println("\tmovl $" + (int) cl.c + ", " + r.l);
+        return r;
+    }
+
+    @Override
+    public Reg visitSizeOfExpr(SizeOfExpr soe) {
+        Reg r = getRegister();
+        out.println("\tmovl $" + findSize(soe.type) + ", " + r.l);
+        return r;
+    }
+
+    @Override
+    public Reg visitTypecastExpr(TypecastExpr te) {
+        //chars are already ints in registers and arrays already their addresses
+        return te.exp.accept(this);
+    }
+
+    @Override
+    public Reg visitArrayAccessExpr(ArrayAccessExpr aae) {
+        return load(address(aae), typeOf(aae));
+    }
+
+    @Override
+    public Reg visitFieldAccessExpr(FieldAccessExpr fae) {
+        return load(address(fae), layout(typeOf(fae.struct)).field(fae.field).type);
+    }
+
+    @Override
+    public Reg visitValueAtExpr(ValueAtExpr vae) {
+        return load(address(vae), typeOf(vae));
+    }
+
+    /*
+     * Whether the value of e is an address, which takes all 64 bits.
+     */
+    private static boolean wide(Expr e) {
+        if (e instanceof BinOp) {
+            BinOp bo = (BinOp) e;
+            return (bo.op == Op.ADD || bo.op == Op.SUB) && (wide(bo.E1) || wide(bo.E2));
+        }
+        if (e instanceof StrLiteral)
+            return true;
+        Type t = typeOf(e);
+        return t instanceof PointerType || t instanceof ArrayType || t instanceof StructType;
+    }
+
+    /*
+     * The register a variable lives in, null for any other expression.
+     */
+    private Reg home(Expr e) {
+        return e instanceof VarExpr ? regVars.get(((VarExpr) e).vd) : null;
+    }
+
+    /*
+     * The operand an instruction can take e as without it being loaded first, null if there isn't one.
+     */
+    private String operand(Expr e) {
+        Integer c = ConstantFolder.constant(e);
+        if (c != null)
+            return "$" + c;
+        if (e instanceof VarExpr && typeOf(e) == BaseType.INT) {
+            VarDecl vd = ((VarExpr) e).vd;
+            if (regVars.containsKey(vd))
+                return regVars.get(vd).l;
+            return offsets.containsKey(vd) ? offsets.get(vd) + "(%rbp)" : vd.varName + "(%rip)";
+        }
+        return null;
+    }
+
+    @Override
+    public Reg visitBinOp(BinOp bo) {
+        if (bo.op == Op.AND || bo.op == Op.OR || condition(bo.op, true) != null) {
+            String[] cc = new String[1];
+            Reg r = emitCompare(bo, cc);
+            if (r == null) {
+                //&& and || materialise through branches
+                String fail = ".L" + labels++;
+                String end = ".L" + labels++;
+                emitCondJump(bo, false, fail);
+                r = getRegister();
+                out.println("\tmovl $1, " + r.l);
+                out.println("\tjmp " + end);
+                out.println(fail + ":");
+                out.println("\tmovl $0, " + r.l);
+                out.println(end + ":");
+                return r;
+            }
+            if (!busy.contains(r))
+                r = getRegister(); // the left side was a variable, which keeps its value
+            out.println("\tset" + cc[0] + " " + r.b);
+            out.println("\tmovzbl " + r.b + ", " + r.l);
+            return r;
+        }
+        Integer c1 = ConstantFolder.constant(bo.E1);
+        if (bo.op == Op.SUB && c1 != null && c1 == 0) {
+            Reg r = bo.E2.accept(this);
+            out.println("\tnegl " + r.l);
+            return r;
+        }
+        Expr left = bo.E1;
+        Expr right = bo.E2;
+        if ((bo.op == Op.ADD || bo.op == Op.MUL) && (c1 != null || wide(right) && !wide(left))) {
+            //constants on the right, where they can be immediates, and addresses on the left
+            left = bo.E2;
+            right = bo.E1;
+        }
+        if (wide(left)) {
+            String op = bo.op == Op.ADD ? "addq " : "subq ";
+            Reg l = left.accept(this);
+            Integer c = ConstantFolder.constant(right);
+            if (c != null) {
+                out.println("\t" + op + "$" + c + ", " + l.q);
+                return l;
+            }
+            Reg[] both = emitSecondOperand(l, right);
+            out.println("\tmovslq " + both[1].l + ", " + both[1].q);
+            out.println("\t" + op + both[1].q + ", " + both[0].q);
+            freeRegister(both[1]);
+            return both[0];
+        }
+        Reg l = left.accept(this);
+        String r = operand(right);
+        Reg temp = null;
+        if (r == null || (bo.op == Op.DIV || bo.op == Op.MOD) && r.startsWith("$")) {
+            //idiv takes no immediate
+            Reg[] both = r == null ? emitSecondOperand(l, right) : new Reg[] {l, right.accept(this)};
+            l = both[0];
+            temp = both[1];
+            r = temp.l;
+        }
+        switch (bo.op) {
+            case ADD: out.println("\taddl " + r + ", " + l.l); break;
+            case SUB: out.println("\tsubl " + r + ", " + l.l); break;
+            case MUL:
+                if (r.startsWith("$"))
+                    out.println("\timull " + r + ", " + l.l + ", " + l.l);
+                else
+                    out.println("\timull " + r + ", " + l.l);
+                break;
+            case DIV:
+            case MOD:
+                out.println("\tmovl " + l.l + ", %eax");
+                out.println("\tcltd");
+                out.println("\tidivl " + r);
+                out.println("\tmovl " + (bo.op == Op.DIV ? "%eax" : "%edx") + ", " + l.l);
+                break;
+            default:
+                throw new IllegalStateException("unexpected operator " + bo.op);
+        }
+        if (temp != null)
+            freeRegister(temp);
+        return l;
+    }
+
+    /*
+     * Compares the operands of a comparison, returning the register of the left one, which is no
+     * longer needed, and the condition code of the comparison being true in cc. Null for && and ||.
+     */
+    private Reg emitCompare(BinOp bo, String[] cc) {
+        cc[0] = condition(bo.op, true);
+        if (cc[0] == null)
+            return null;
+        boolean wide = wide(bo.E1) || wide(bo.E2);
+        Reg l = home(bo.E1);
+        String r = wide ? null : operand(bo.E2);
+        Reg temp = null;
+        if (l != null && r == null) {
+            //a variable needs no protecting while the other side is evaluated
+            temp = bo.E2.accept(this);
+            r = wide ? temp.q : temp.l;
+        } else if (l == null) {
+            l = bo.E1.accept(this);
+            if (r == null) {
+                Reg[] both = emitSecondOperand(l, bo.E2);
+                l = both[0];
+                temp = both[1];
+                r = wide ? temp.q : temp.l;
+            }
+        }
+        out.println("\t" + (wide ? "cmpq " : "cmpl ") + r + ", " + (wide ? l.q : l.l));
+        if (temp != null)
+            freeRegister(temp);
+        return l;
+    }
+
+    /*
+     * The condition code for a comparison being jumpIf, null for operators that aren't comparisons.
+     */
+    private static String condition(Op op, boolean jumpIf) {
+        switch (op) {
+            case GT: return jumpIf ? "g" : "le";
+            case LT: return jumpIf ? "l" : "ge";
+            case GE: return jumpIf ? "ge" : "l";
+            case LE: return jumpIf ? "le" : "g";
+            case EQ: return jumpIf ? "e" : "ne";
+            case NE: return jumpIf ? "ne" : "e";
+            default: return null;
+        }
+    }
+
+    /*
+     * Jumps to target when the condition's truth equals jumpIf and falls through otherwise, as
+     * CodeGenerator.emitCondJump does.
+     */
+    private void emitCondJump(Expr cond, boolean jumpIf, String target) {
+        Integer c = ConstantFolder.constant(cond);
+        if (c != null) {
+            if ((c != 0) == jumpIf)
+                out.println("\tjmp " + target);
+            return;
+        }
+        if (cond instanceof BinOp) {
+            BinOp bo = (BinOp) cond;
+            if (bo.op == Op.AND || bo.op == Op.OR) {
+                boolean shortCircuit = bo.op == Op.OR;
+                if (jumpIf == shortCircuit) {
+                    emitCondJump(bo.E1, jumpIf, target);
+                    emitCondJump(bo.E2, jumpIf, target);
+                } else {
+                    String skip = ".L" + labels++;
+                    emitCondJump(bo.E1, shortCircuit, skip);
+                    emitCondJump(bo.E2, jumpIf, target);
+                    out.println(skip + ":");
+                }
+                return;
+            }
+            String[] cc = new String[1];
+            Reg l = emitCompare(bo, cc);
+            if (l != null) {
+                out.println("\tj" + condition(bo.op, jumpIf) + " " + target);
+                freeRegister(l);
+                return;
+            }
+        }
+        Reg r = cond.accept(this);
+        out.println("\t" + (wide(cond) ? "testq " + r.q + ", " + r.q : "testl " + r.l + ", " + r.l));
+        out.println("\t" + (jumpIf ? "jne " : "je ") + target);
+        freeRegister(r);
+    }
+
+    /*
+     * Temporaries the enclosing expressions hold are saved around the call. Arguments are evaluated
+     * in order, those for the stack stored straight into the space made for them and the others
+     * held in registers, or pushed when registers run short, until they all go where the callee
+     * wants them. A struct is returned into a slot of the caller's frame.
+     */
+    @Override
+    public Reg visitFunCallExpr(FunCallExpr fce) {
+        List<Reg> live = new ArrayList<>(busy);
+        for (Reg r : live) {
+            push(r);
+            freeRegister(r);
+        }
+        boolean returnsStruct = fce.fd != null && fce.fd.type instanceof StructType
+                && !CodeGenerator.BUILTINS.contains(fce.name);
+        int hidden = returnsStruct ? 1 : 0;
+        List<Expr> args = fce.args;
+        int inRegs = Math.min(args.size(), ARGS.length - hidden);
+        int stack = 8 * (args.size() - inRegs);
+        int space = stack + ((pushed + stack) % 16 == 0 ? 0 : 8);
+        if (space > 0) {
+            out.println("\tsubq $" + space + ", %rsp");
+            pushed += space;
+        }
+        int base = pushed;
+        Map<Reg, Reg> moves = new LinkedHashMap<>();
+        List<Integer> spilled = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            Expr arg = args.get(i);
+            Type t = typeOf(arg);
+            Reg home = home(arg);
+            if (home != null && i < inRegs) {
+                //nothing evaluated after it can change a variable
+                moves.put(ARGS[i + hidden], home);
+                continue;
+            }
+            //arrays and structs are passed by address
+            Reg v = t instanceof ArrayType || t instanceof StructType ? load(address(arg), t) : arg.accept(this);
+            if (i >= inRegs) {
+                out.println("\tmovq " + v.q + ", " + (8 * (i - inRegs) + pushed - base) + "(%rsp)");
+                freeRegister(v);
+            } else if (i + 1 < args.size() && freeRegisters() < 2) {
+                push(v);
+                freeRegister(v);
+                spilled.add(i);
+            } else {
+                moves.put(ARGS[i + hidden], v);
+            }
+        }
+        List<Reg> held = new ArrayList<>(moves.values());
+        emitMoves(moves);
+        for (Reg r : held) {
+            freeRegister(r);
+        }
+        for (int i = spilled.size() - 1; i >= 0; i--) {
+            pop(ARGS[spilled.get(i) + hidden]);
+        }
+        if (returnsStruct)
+            out.println("\tleaq " + slot(findSize(fce.fd.type), alignOf(fce.fd.type)) + "(%rbp), %rdi");
+        out.println("\tcall " + fce.name);
+        if (space > 0) {
+            out.println("\taddq $" + space + ", %rsp");
+            pushed -= space;
+        }
+        busy.addAll(live);
+        Reg result = null;
+        if (typeOf(fce) != BaseType.VOID) {
+            result = getRegister();
+            if (fce.name.equals("read_c"))
+                out.println("\tmovsbl %al, " + result.l); // a char comes back in %al alone
+            else
+                out.println("\tmovq %rax, " + result.q);
+        }
+        for (int i = live.size() - 1; i >= 0; i--) {
+            out.println("\tpopq " + live.get(i).q);
+            pushed -= 8;
+        }
+        return result;
+    }
+
+    /*
+     * return f(...) for the function itself: the arguments are evaluated onto the stack, then go
+     * where the parameters live and the function starts again.
+     */
+    private void emitTailCall(FunCallExpr fce) {
+        for (Expr arg : fce.args) {
+            Reg r = arg.accept(this);
+            push(r);
+            freeRegister(r);
+        }
+        for (int i = fce.args.size() - 1; i >= 0; i--) {
+            VarDecl param = function.params.get(i);
+            Reg home = regVars.get(param);
+            if (home != null) {
+                pop(home);
+            } else {
+                pop(Reg.RAX);
+                out.println("\t" + store(storage(param), Reg.RAX) + ", " + offsets.get(param) + "(%rbp)");
+            }
+        }
+        out.println("\tjmp " + startLabel);
+    }
+
+    @Override
+    public Reg visitAssign(Assign a) {
+        Type t = typeOf(a.e1);
+        if (t instanceof StructType) {
+            Mem from = address(a.e2);
+            Mem to;
+            if (from.temp && freeRegisters() < 2) {
+                push(from.reg);
+                freeRegister(from.reg);
+                to = address(a.e1);
+                Reg r = getRegister();
+                pop(r);
+                from = new Mem(r, "", from.disp, true);
+            } else {
+                to = address(a.e1);
+            }
+            emitCopy(to, from, findSize(t));
+            release(to);
+            release(from);
+            return null;
+        }
+        Reg home = home(a.e1);
+        String operand = operand(a.e2);
+        if (home != null && operand != null) {
+            out.println("\tmovl " + operand + ", " + home.l);
+            return null;
+        }
+        if (home != null && a.e2 instanceof BinOp && home(((BinOp) a.e2).E1) == home) {
+            //i = i + c and the like work on the register in place
+            BinOp bo = (BinOp) a.e2;
+            String by = operand(bo.E2);
+            String op = bo.op == Op.ADD ? "addl " : bo.op == Op.SUB ? "subl " : bo.op == Op.MUL ? "imull " : null;
+            if (by != null && op != null && !wide(bo)) {
+                out.println("\t" + op + by + ", " + home.l);
+                return null;
+            }
+        }
+        Reg v = a.e2.accept(this);
+        if (home != null) {
+            out.println("\tmovq " + v.q + ", " + home.q);
+            freeRegister(v);
+            return null;
+        }
+        //working out where to store may need registers or make calls
+        boolean spilled = freeRegisters() < 2;
+        if (spilled) {
+            push(v);
+            freeRegister(v);
+        }
+        Mem to = address(a.e1);
+        if (spilled) {
+            v = getRegister();
+            pop(v);
+        }
+        out.println("\t" + store(t, v) + ", " + to);
+        release(to);
+        freeRegister(v);
+        return null;
+    }
+
+    @Override
+    public Reg visitExprStmt(ExprStmt es) {
+        Reg r = es.exp.accept(this);
+        if (r != null)
+            freeRegister(r);
+        return null;
+    }
+
+    @Override
+    public Reg visitIf(If i) {
+        String otherwise = ".L" + labels++;
+        String end = ".L" + labels++;
+        emitCondJump(i.cond, false, otherwise);
+        i.st1.accept(this);
+        if (i.st2 != null)
+            out.println("\tjmp " + end);
+        out.println(otherwise + ":");
+        if (i.st2 != null) {
+            i.st2.accept(this);
+            out.println(end + ":");
+        }
+        return null;
+    }
+
+    @Override
+    public Reg visitWhile(While w) {
+        //test at the bottom so each iteration only takes the one branch
+        String body = ".L" + labels++;
+        String test = ".L" + labels++;
+        out.println("\tjmp " + test);
+        out.println(body + ":");
+        w.loop.accept(this);
+        out.println(test + ":");
+        emitCondJump(w.cond, true, body);
+        return null;
+    }
+
+    @Override
+    public Reg visitReturn(Return r) {
+        if (tailCalls.contains(r.exp)) {
+            emitTailCall((FunCallExpr) r.exp);
+            return null;
+        }
+        if (r.exp != null && function.type instanceof StructType) {
+            //copied to where the caller asked for it, which is also returned
+            Mem from = address(r.exp);
+            Reg to = getRegister();
+            out.println("\tmovq " + resultOffset + "(%rbp), " + to.q);
+            emitCopy(new Mem(to, "", 0, true), from, findSize(function.type));
+            release(from);
+            out.println("\tmovq " + to.q + ", %rax");
+            freeRegister(to);
+        } else if (r.exp != null) {
+            Reg v = r.exp.accept(this);
+            out.println("\tmovq " + v.q + ", %rax");
+            freeRegister(v);
+        }
+        out.println("\tjmp " + retLabel);
+        return null;
+    }
+
+    @Override
+    public Reg visitBaseType(BaseType bt) {
+        return null;
+    }
+
+    @Override
+    public Reg visitPointerType(PointerType pt) {
+        return null;
+    }
+
+    @Override
+    public Reg visitStructType(StructType st) {
+        return null;
+    }
+
+    @Override
+    public Reg visitArrayType(ArrayType at) {
+        return null;
+    }
+
+    @Override
+    public Reg visitOp(Op o) {
+        return null;
+    }
+}
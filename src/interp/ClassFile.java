@@ -0,0 +1,165 @@
+package interp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a class file, just enough of the format for a class of static fields and static methods.
+ * The version is 49 so the methods need no stack map frames, the verifier infers the types itself.
+ */
+final class ClassFile {
+
+    static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+    private static final int UTF8 = 1, INTEGER = 3, CLASS = 7, FIELD = 9, METHOD = 10, NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream constants = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int count = 1;
+
+    private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream fields = new DataOutputStream(fieldBytes);
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int fieldCount, methodCount;
+
+    private final int thisClass, superClass;
+    private final int code;
+
+    ClassFile(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        code = utf8("Code");
+    }
+
+    int utf8(String s) {
+        Integer index = entries.get("U" + s);
+        if (index != null)
+            return index;
+        return entry("U" + s, out -> {
+            out.writeByte(UTF8);
+            out.writeUTF(s);
+        });
+    }
+
+    int integer(int value) {
+        Integer index = entries.get("I" + value);
+        if (index != null)
+            return index;
+        return entry("I" + value, out -> {
+            out.writeByte(INTEGER);
+            out.writeInt(value);
+        });
+    }
+
+    int classRef(String name) {
+        return reference("C", CLASS, utf8(name), -1);
+    }
+
+    int field(String owner, String name, String descriptor) {
+        return reference("F", FIELD, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int method(String owner, String name, String descriptor) {
+        return reference("M", METHOD, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return reference("N", NAME_AND_TYPE, utf8(name), utf8(descriptor));
+    }
+
+    /*
+     * An entry made of one or two indexes of other entries.
+     */
+    private int reference(String kind, int tag, int a, int b) {
+        String key = kind + a + ":" + b;
+        Integer index = entries.get(key);
+        if (index != null)
+            return index;
+        return entry(key, out -> {
+            out.writeByte(tag);
+            out.writeShort(a);
+            if (b >= 0)
+                out.writeShort(b);
+        });
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, Writer writer) {
+        try {
+            writer.write(constants);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can't happen writing to memory
+        }
+        entries.put(key, count);
+        if (count == 0xffff)
+            throw new IllegalStateException("the constant pool is full");
+        return count++;
+    }
+
+    void addField(int access, String name, String descriptor) {
+        try {
+            fields.writeShort(access);
+            fields.writeShort(utf8(name));
+            fields.writeShort(utf8(descriptor));
+            fields.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fieldCount++;
+    }
+
+    void addMethod(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] bytecode) {
+        if (bytecode.length >= 0x10000)
+            throw new IllegalStateException(name + " is too big for a JVM method");
+        try {
+            methods.writeShort(access);
+            methods.writeShort(utf8(name));
+            methods.writeShort(utf8(descriptor));
+            methods.writeShort(1);
+            methods.writeShort(code);
+            methods.writeInt(12 + bytecode.length);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(bytecode.length);
+            methods.write(bytecode);
+            methods.writeShort(0); // exceptions
+            methods.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(count);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(fieldCount);
+            fieldBytes.writeTo(out);
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,41 @@
+package interp;
+
+import java.io.PrintWriter;
+
+/**
+ * A function lowered to bytecode. Each call gets a copy of the initial registers: the parameters
+ * are written over the first ones, and the registers holding constants already have them.
+ */
+final class Function {
+
+    final String name;
+    final int[] code;
+    final int[] initial;
+    final int params;
+    final int constants; // the first register holding a constant, none of them is ever written
+    final int frameSize; // bytes of memory for the arrays and structs among the locals
+
+    Function(String name, int[] code, int[] initial, int params, int constants, int frameSize) {
+        this.name = name;
+        this.code = code;
+        this.initial = initial;
+        this.params = params;
+        this.constants = constants;
+        this.frameSize = frameSize;
+    }
+
+    void print(PrintWriter out) {
+        out.println(name + ": " + params + " params, " + initial.length + " registers, " + frameSize + " bytes of frame");
+        for (int r = constants; r < initial.length; r++) {
+            out.println("\tr" + r + " = " + initial[r]);
+        }
+        for (int pc = 0; pc < code.length; pc = Opcode.next(code, pc)) {
+            StringBuilder line = new StringBuilder().append(pc).append("\t").append(Opcode.NAME[code[pc]]);
+            for (int i = pc + 1; i < Opcode.next(code, pc); i++) {
+                char kind = Opcode.kind(code, pc, i);
+                line.append(i == pc + 1 ? " " : ", ").append(kind == 'r' ? "r" : kind == 't' ? "@" : "").append(code[i]);
+            }
+            out.println(line);
+        }
+    }
+}
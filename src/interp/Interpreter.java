@@ -0,0 +1,139 @@
+package interp;
+
+import ast.Program;
+
+import java.io.*;
+
+import static interp.Opcode.*;
+
+/**
+ * Runs a program straight from its AST, lowered to bytecode first so the loop running it only has
+ * to index arrays: variables are registers, fields and constant indexes offsets, and conditions
+ * compare and branch in one instruction. Each call runs in a Java call of its own with a fresh copy
+ * of the callee's registers, except calls in return statements of functions without a frame, which
+ * reuse the Java call so deep tail recursion doesn't need a deep Java stack.
+ */
+public class Interpreter {
+
+    private final Function[] functions;
+    private final int main;
+    private final Machine machine;
+
+    // counters
+    private long calls;
+
+    public Interpreter(Program program, InputStream in, PrintStream out) {
+        Lowering lowered = Lowering.lower(program);
+        this.functions = lowered.functions.toArray(new Function[0]);
+        this.main = lowered.main;
+        this.machine = new Machine(lowered.data(), in, out);
+    }
+
+    /*
+     * Writes the bytecode of every function.
+     */
+    public void printCode(PrintWriter writer) {
+        for (Function f : functions) {
+            f.print(writer);
+            writer.println();
+        }
+    }
+
+    public void run() {
+        if (main < 0)
+            throw new InterpreterError("no main function");
+        machine.run(() -> execute(functions[main], functions[main].initial.clone()));
+    }
+
+    private int execute(Function f, int[] r) {
+        calls++;
+        int fp = machine.enter(f.frameSize);
+        int[] code = f.code;
+        int pc = 0;
+        for (;;) {
+            switch (code[pc]) {
+                case CONST: r[code[pc + 1]] = code[pc + 2]; pc += 3; break;
+                case MOVE: r[code[pc + 1]] = r[code[pc + 2]]; pc += 3; break;
+                case ADD: r[code[pc + 1]] = Math.addExact(r[code[pc + 2]], r[code[pc + 3]]); pc += 4; break;
+                case SUB: r[code[pc + 1]] = Math.subtractExact(r[code[pc + 2]], r[code[pc + 3]]); pc += 4; break;
+                case MUL: r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]]; pc += 4; break;
+                case DIV: r[code[pc + 1]] = Machine.divide(r[code[pc + 2]], r[code[pc + 3]]); pc += 4; break;
+                case MOD: r[code[pc + 1]] = Machine.remainder(r[code[pc + 2]], r[code[pc + 3]]); pc += 4; break;
+                case LT: r[code[pc + 1]] = r[code[pc + 2]] < r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case GT: r[code[pc + 1]] = r[code[pc + 2]] > r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case LE: r[code[pc + 1]] = r[code[pc + 2]] <= r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case GE: r[code[pc + 1]] = r[code[pc + 2]] >= r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case EQ: r[code[pc + 1]] = r[code[pc + 2]] == r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case NE: r[code[pc + 1]] = r[code[pc + 2]] != r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case ADDI: r[code[pc + 1]] = r[code[pc + 2]] + code[pc + 3]; pc += 4; break;
+                case INDEX: r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]] * code[pc + 4]; pc += 5; break;
+                case LOCAL: r[code[pc + 1]] = fp + code[pc + 2]; pc += 3; break;
+                case LDW: r[code[pc + 1]] = machine.loadWord(r[code[pc + 2]] + code[pc + 3]); pc += 4; break;
+                case LDB: r[code[pc + 1]] = machine.loadByte(r[code[pc + 2]] + code[pc + 3]); pc += 4; break;
+                case LDGW: r[code[pc + 1]] = machine.loadWord(code[pc + 2]); pc += 3; break;
+                case LDGB: r[code[pc + 1]] = machine.loadByte(code[pc + 2]); pc += 3; break;
+                case STW: machine.storeWord(r[code[pc + 1]] + code[pc + 2], r[code[pc + 3]]); pc += 4; break;
+                case STB: machine.storeByte(r[code[pc + 1]] + code[pc + 2], r[code[pc + 3]]); pc += 4; break;
+                case STGW: machine.storeWord(code[pc + 1], r[code[pc + 2]]); pc += 3; break;
+                case STGB: machine.storeByte(code[pc + 1], r[code[pc + 2]]); pc += 3; break;
+                case COPY: machine.copy(r[code[pc + 1]], r[code[pc + 2]], code[pc + 3]); pc += 4; break;
+                case JMP: pc = code[pc + 1]; break;
+                case JZ: pc = r[code[pc + 1]] == 0 ? code[pc + 2] : pc + 3; break;
+                case JNZ: pc = r[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3; break;
+                case JEQ: pc = r[code[pc + 1]] == r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case JNE: pc = r[code[pc + 1]] != r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case JLT: pc = r[code[pc + 1]] < r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case JGE: pc = r[code[pc + 1]] >= r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case JGT: pc = r[code[pc + 1]] > r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case JLE: pc = r[code[pc + 1]] <= r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case CALL: {
+                    Function callee = functions[code[pc + 2]];
+                    int n = code[pc + 3];
+                    int[] args = callee.initial.clone();
+                    for (int i = 0; i < n; i++) {
+                        args[i] = r[code[pc + 4 + i]];
+                    }
+                    r[code[pc + 1]] = execute(callee, args);
+                    pc += 4 + n;
+                    break;
+                }
+                case TAIL: {
+                    Function callee = functions[code[pc + 2]];
+                    int n = code[pc + 3];
+                    int[] args = callee.initial.clone();
+                    for (int i = 0; i < n; i++) {
+                        args[i] = r[code[pc + 4 + i]];
+                    }
+                    calls++;
+                    f = callee;
+                    r = args;
+                    code = f.code;
+                    pc = 0;
+                    fp = machine.enter(f.frameSize); // the caller had no frame to give back
+                    break;
+                }
+                case RET:
+                    machine.leave(f.frameSize);
+                    return r[code[pc + 1]];
+                case RETV:
+                    machine.leave(f.frameSize);
+                    return 0;
+                case PRINT_I: machine.printInt(r[code[pc + 1]]); pc += 2; break;
+                case PRINT_C: machine.printChar(r[code[pc + 1]]); pc += 2; break;
+                case PRINT_S: machine.printString(r[code[pc + 1]]); pc += 2; break;
+                case READ_I: r[code[pc + 1]] = machine.readInt(); pc += 2; break;
+                case READ_C: r[code[pc + 1]] = machine.readChar(); pc += 2; break;
+                case MALLOC: r[code[pc + 1]] = machine.malloc(r[code[pc + 2]]); pc += 3; break;
+                default:
+                    throw new InterpreterError("unknown opcode " + code[pc] + " at " + pc + " in " + f.name);
+            }
+        }
+    }
+
+    public void printStats(PrintStream out) {
+        out.println("Interpreter:");
+        out.println("\tfunctions: " + functions.length);
+        out.println("\tcalls: " + calls);
+        out.println(String.format("\ttime: %.3f ms", machine.nanos() / 1e6));
+    }
+}
@@ -0,0 +1,13 @@
+package interp;
+
+/**
+ * Something the interpreted program did that it can't go on from.
+ */
+public class InterpreterError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public InterpreterError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,403 @@
+package interp;
+
+import ast.Program;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import static interp.Opcode.*;
+
+/**
+ * Compiles a program to a JVM class, one static method per function, and runs it in this JVM so
+ * HotSpot compiles the hot ones to native code. The functions are lowered as for the interpreter
+ * and each instruction of theirs becomes a few JVM ones: registers are int locals, constant
+ * registers are pushed as constants, and memory and the built-ins are the methods of a Machine
+ * kept in a static field of the class. Calls in return position of a function to itself become
+ * jumps back to its start.
+ */
+public class JvmCompiler {
+
+    static final String CLASS_NAME = "MiniC";
+    private static final String MACHINE = "interp/Machine";
+    private static final int START = -2; // a jump to the very start of a method, before its registers are cleared
+
+    private static final int
+            ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13,
+            ILOAD = 0x15, ILOAD_0 = 0x1a, ISTORE = 0x36, ISTORE_0 = 0x3b,
+            IADD = 0x60, IMUL = 0x68,
+            IFEQ = 0x99, IFNE = 0x9a, IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2,
+            IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7, IRETURN = 0xac,
+            GETSTATIC = 0xb2, INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8, WIDE = 0xc4;
+
+    private final Function[] functions;
+    private final int main;
+    private final byte[] data;
+    private final byte[] classFile;
+    private long nanos;
+
+    // the method being written
+    private final ClassFile cf = new ClassFile(CLASS_NAME, "java/lang/Object");
+    private Function f;
+    private byte[] out = new byte[1024];
+    private int size;
+
+    public JvmCompiler(Program program) {
+        Lowering lowered = Lowering.lower(program);
+        functions = lowered.functions.toArray(new Function[0]);
+        main = lowered.main;
+        data = lowered.data();
+        cf.addField(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "machine", "L" + MACHINE + ";");
+        for (int i = 0; i < functions.length; i++) {
+            compile(i);
+        }
+        classFile = cf.toByteArray();
+    }
+
+    public byte[] toByteArray() {
+        return classFile.clone();
+    }
+
+    /*
+     * Loads the class and runs main with a fresh machine.
+     */
+    public void run(InputStream in, PrintStream out) {
+        if (main < 0)
+            throw new InterpreterError("no main function");
+        Machine machine = new Machine(data, in, out);
+        Method entry;
+        try {
+            Class<?> c = new Loader(JvmCompiler.class.getClassLoader()).define(classFile);
+            c.getField("machine").set(null, machine);
+            Class<?>[] params = new Class<?>[functions[main].params];
+            Arrays.fill(params, int.class);
+            entry = c.getMethod(functions[main].name, params);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("the generated class can't be used", e);
+        }
+        Object[] args = new Object[functions[main].params];
+        Arrays.fill(args, 0);
+        machine.run(() -> {
+            try {
+                entry.invoke(null, args);
+            } catch (InvocationTargetException e) {
+                sneak(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        nanos = machine.nanos();
+    }
+
+    /*
+     * Rethrows what the program threw as it is, so the machine can tell what went wrong.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> void sneak(Throwable t) throws T {
+        throw (T) t;
+    }
+
+    private static final class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(byte[] bytes) {
+            return defineClass(CLASS_NAME, bytes, 0, bytes.length);
+        }
+    }
+
+    private void compile(int index) {
+        f = functions[index];
+        size = 0;
+        int[] code = f.code;
+        int[] positions = new int[code.length + 1]; // where each instruction starts in the JVM code
+        int[] fixups = new int[code.length]; // pairs of where a branch is and the instruction it goes to
+        int fixupCount = 0;
+        int fp = f.constants;
+        int maxStack = 4;
+
+        for (int r = f.params; r < f.constants; r++) {
+            push(0);
+            store(r);
+        }
+        if (f.frameSize > 0) {
+            machine();
+            push(f.frameSize);
+            invoke(INVOKEVIRTUAL, MACHINE, "enter", "(I)I");
+            store(fp);
+        }
+        for (int pc = 0; pc < code.length; pc = Opcode.next(code, pc)) {
+            positions[pc] = size;
+            int target = -1;
+            switch (code[pc]) {
+                case CONST: push(code[pc + 2]); store(code[pc + 1]); break;
+                case MOVE: load(code[pc + 2]); store(code[pc + 1]); break;
+                case ADD: binary(code, pc, INVOKESTATIC, "java/lang/Math", "addExact"); break;
+                case SUB: binary(code, pc, INVOKESTATIC, "java/lang/Math", "subtractExact"); break;
+                case MUL: load(code[pc + 2]); load(code[pc + 3]); u1(IMUL); store(code[pc + 1]); break;
+                case DIV: binary(code, pc, INVOKESTATIC, MACHINE, "divide"); break;
+                case MOD: binary(code, pc, INVOKESTATIC, MACHINE, "remainder"); break;
+                case LT: compare(code, pc, IF_ICMPLT); break;
+                case GT: compare(code, pc, IF_ICMPGT); break;
+                case LE: compare(code, pc, IF_ICMPLE); break;
+                case GE: compare(code, pc, IF_ICMPGE); break;
+                case EQ: compare(code, pc, IF_ICMPEQ); break;
+                case NE: compare(code, pc, IF_ICMPNE); break;
+                case ADDI: load(code[pc + 2]); push(code[pc + 3]); u1(IADD); store(code[pc + 1]); break;
+                case INDEX:
+                    load(code[pc + 2]);
+                    load(code[pc + 3]);
+                    push(code[pc + 4]);
+                    u1(IMUL);
+                    u1(IADD);
+                    store(code[pc + 1]);
+                    break;
+                case LOCAL: iload(fp); push(code[pc + 2]); u1(IADD); store(code[pc + 1]); break;
+                case LDW:
+                case LDB:
+                    machine();
+                    load(code[pc + 2]);
+                    push(code[pc + 3]);
+                    u1(IADD);
+                    invoke(INVOKEVIRTUAL, MACHINE, code[pc] == LDW ? "loadWord" : "loadByte", "(I)I");
+                    store(code[pc + 1]);
+                    break;
+                case LDGW:
+                case LDGB:
+                    machine();
+                    push(code[pc + 2]);
+                    invoke(INVOKEVIRTUAL, MACHINE, code[pc] == LDGW ? "loadWord" : "loadByte", "(I)I");
+                    store(code[pc + 1]);
+                    break;
+                case STW:
+                case STB:
+                    machine();
+                    load(code[pc + 1]);
+                    push(code[pc + 2]);
+                    u1(IADD);
+                    load(code[pc + 3]);
+                    invoke(INVOKEVIRTUAL, MACHINE, code[pc] == STW ? "storeWord" : "storeByte", "(II)V");
+                    break;
+                case STGW:
+                case STGB:
+                    machine();
+                    push(code[pc + 1]);
+                    load(code[pc + 2]);
+                    invoke(INVOKEVIRTUAL, MACHINE, code[pc] == STGW ? "storeWord" : "storeByte", "(II)V");
+                    break;
+                case COPY:
+                    machine();
+                    load(code[pc + 1]);
+                    load(code[pc + 2]);
+                    push(code[pc + 3]);
+                    invoke(INVOKEVIRTUAL, MACHINE, "copy", "(III)V");
+                    break;
+                case JMP: target = code[pc + 1]; u1(GOTO); break;
+                case JZ: load(code[pc + 1]); target = code[pc + 2]; u1(IFEQ); break;
+                case JNZ: load(code[pc + 1]); target = code[pc + 2]; u1(IFNE); break;
+                case JEQ: target = compareAndBranch(code, pc, IF_ICMPEQ); break;
+                case JNE: target = compareAndBranch(code, pc, IF_ICMPNE); break;
+                case JLT: target = compareAndBranch(code, pc, IF_ICMPLT); break;
+                case JGE: target = compareAndBranch(code, pc, IF_ICMPGE); break;
+                case JGT: target = compareAndBranch(code, pc, IF_ICMPGT); break;
+                case JLE: target = compareAndBranch(code, pc, IF_ICMPLE); break;
+                case TAIL:
+                    maxStack = Math.max(maxStack, code[pc + 3]);
+                    if (code[pc + 2] != index) { // a call all the same
+                        call(code, pc);
+                        break;
+                    }
+                    // the arguments become the parameters and it starts again
+                    for (int i = 0; i < code[pc + 3]; i++) {
+                        load(code[pc + 4 + i]);
+                    }
+                    for (int i = code[pc + 3] - 1; i >= 0; i--) {
+                        store(i);
+                    }
+                    target = START;
+                    u1(GOTO);
+                    break;
+                case CALL:
+                    maxStack = Math.max(maxStack, code[pc + 3]);
+                    call(code, pc);
+                    break;
+                case RET:
+                case RETV:
+                    if (f.frameSize > 0) {
+                        machine();
+                        push(f.frameSize);
+                        invoke(INVOKEVIRTUAL, MACHINE, "leave", "(I)V");
+                    }
+                    if (code[pc] == RET)
+                        load(code[pc + 1]);
+                    else
+                        push(0);
+                    u1(IRETURN);
+                    break;
+                case PRINT_I: machine(); load(code[pc + 1]); invoke(INVOKEVIRTUAL, MACHINE, "printInt", "(I)V"); break;
+                case PRINT_C: machine(); load(code[pc + 1]); invoke(INVOKEVIRTUAL, MACHINE, "printChar", "(I)V"); break;
+                case PRINT_S: machine(); load(code[pc + 1]); invoke(INVOKEVIRTUAL, MACHINE, "printString", "(I)V"); break;
+                case READ_I: machine(); invoke(INVOKEVIRTUAL, MACHINE, "readInt", "()I"); store(code[pc + 1]); break;
+                case READ_C: machine(); invoke(INVOKEVIRTUAL, MACHINE, "readChar", "()I"); store(code[pc + 1]); break;
+                case MALLOC:
+                    machine();
+                    load(code[pc + 2]);
+                    invoke(INVOKEVIRTUAL, MACHINE, "malloc", "(I)I");
+                    store(code[pc + 1]);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown opcode " + code[pc] + " in " + f.name);
+            }
+            if (target != -1) {
+                fixups[fixupCount++] = size - 1;
+                fixups[fixupCount++] = target;
+                u2(0);
+            }
+        }
+        positions[code.length] = size;
+        for (int i = 0; i < fixupCount; i += 2) {
+            int at = fixups[i];
+            int offset = (fixups[i + 1] == START ? 0 : positions[fixups[i + 1]]) - at;
+            if (offset != (short) offset)
+                throw new IllegalStateException(f.name + " is too big for a JVM method");
+            out[at + 1] = (byte) (offset >> 8);
+            out[at + 2] = (byte) offset;
+        }
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < f.params; i++) {
+            descriptor.append('I');
+        }
+        cf.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, f.name, descriptor.append(")I").toString(),
+                maxStack, f.constants + 1, Arrays.copyOf(out, size));
+    }
+
+    /*
+     * The arguments pushed, the callee invoked and what it returns stored.
+     */
+    private void call(int[] code, int pc) {
+        Function callee = functions[code[pc + 2]];
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < code[pc + 3]; i++) {
+            load(code[pc + 4 + i]);
+            descriptor.append('I');
+        }
+        invoke(INVOKESTATIC, CLASS_NAME, callee.name, descriptor.append(")I").toString());
+        store(code[pc + 1]);
+    }
+
+    private void binary(int[] code, int pc, int invoke, String owner, String name) {
+        load(code[pc + 2]);
+        load(code[pc + 3]);
+        invoke(invoke, owner, name, "(II)I");
+        store(code[pc + 1]);
+    }
+
+    /*
+     * 1 or 0 for whether the comparison holds.
+     */
+    private void compare(int[] code, int pc, int branch) {
+        load(code[pc + 2]);
+        load(code[pc + 3]);
+        u1(branch);
+        u2(7);
+        push(0);
+        u1(GOTO);
+        u2(4);
+        push(1);
+        store(code[pc + 1]);
+    }
+
+    private int compareAndBranch(int[] code, int pc, int branch) {
+        load(code[pc + 1]);
+        load(code[pc + 2]);
+        u1(branch);
+        return code[pc + 3];
+    }
+
+    private void machine() {
+        u1(GETSTATIC);
+        u2(cf.field(CLASS_NAME, "machine", "L" + MACHINE + ";"));
+    }
+
+    private void invoke(int kind, String owner, String name, String descriptor) {
+        u1(kind);
+        u2(cf.method(owner, name, descriptor));
+    }
+
+    /*
+     * A register, or the constant in it when it only ever holds one.
+     */
+    private void load(int r) {
+        if (r >= f.constants)
+            push(f.initial[r]);
+        else
+            iload(r);
+    }
+
+    private void iload(int r) {
+        if (r < 4) {
+            u1(ILOAD_0 + r);
+        } else if (r < 256) {
+            u1(ILOAD);
+            u1(r);
+        } else {
+            u1(WIDE);
+            u1(ILOAD);
+            u2(r);
+        }
+    }
+
+    private void store(int r) {
+        if (r < 4) {
+            u1(ISTORE_0 + r);
+        } else if (r < 256) {
+            u1(ISTORE);
+            u1(r);
+        } else {
+            u1(WIDE);
+            u1(ISTORE);
+            u2(r);
+        }
+    }
+
+    private void push(int value) {
+        if (value >= -1 && value <= 5) {
+            u1(ICONST_0 + value);
+        } else if (value == (byte) value) {
+            u1(BIPUSH);
+            u1(value);
+        } else if (value == (short) value) {
+            u1(SIPUSH);
+            u2(value);
+        } else {
+            int index = cf.integer(value);
+            if (index < 256) {
+                u1(LDC);
+                u1(index);
+            } else {
+                u1(LDC_W);
+                u2(index);
+            }
+        }
+    }
+
+    private void u1(int b) {
+        if (size == out.length)
+            out = Arrays.copyOf(out, out.length * 2);
+        out[size++] = (byte) b;
+    }
+
+    private void u2(int s) {
+        u1(s >> 8);
+        u1(s);
+    }
+
+    public void printStats(PrintStream out) {
+        out.println("JVM backend:");
+        out.println("\tfunctions: " + functions.length);
+        out.println("\tclass file: " + classFile.length + " bytes");
+        out.println(String.format("\ttime: %.3f ms", nanos / 1e6));
+    }
+}
@@ -0,0 +1,583 @@
+package interp;
+
+import ast.*;
+
+import java.util.*;
+
+import static ast.Expr.typeOf;
+import static interp.Opcode.*;
+
+/**
+ * Turns a type checked program into bytecode. Scalar locals and parameters live in registers,
+ * arrays and structs declared in a function in its frame, and globals and string literals at fixed
+ * addresses. Every constant a function uses gets a register of its own holding it from the start,
+ * so no instruction needs a form taking a constant besides the few that add an offset.
+ *
+ * The visit methods return the register holding the value of an expression. For arrays and
+ * structs that is their address. Registers for intermediate values are handed out in order and
+ * given back at the end of each statement.
+ */
+class Lowering implements ASTVisitor<Integer> {
+
+    static final int NULL_GUARD = 16; // nothing lives at the lowest addresses, so null stays invalid
+
+    private static final int CONSTANTS = 1 << 30; // placeholder register numbers, until the frame size is known
+
+    private static final Set<String> BUILTINS = new HashSet<>(Arrays.asList(
+            "print_s", "print_i", "print_c", "read_i", "read_c", "mcmalloc"));
+
+    // the whole program
+    final List<Function> functions = new ArrayList<>();
+    private final Map<String, Integer> indices = new HashMap<>();
+    private final Map<VarDecl, Integer> globals = new HashMap<>();
+    private final Map<String, Integer> strings = new HashMap<>();
+    private byte[] data = new byte[256];
+    private int dataSize = NULL_GUARD;
+    int main = -1;
+
+    // the function being lowered
+    private int[] code = new int[256];
+    private int size;
+    private final List<Integer> labels = new ArrayList<>();
+    private final Map<VarDecl, Integer> registers = new HashMap<>();
+    private final Map<VarDecl, Integer> frame = new HashMap<>();
+    private final BitSet variables = new BitSet();
+    private final Map<Integer, Integer> constants = new LinkedHashMap<>();
+    private int next, max, frameSize;
+    private boolean structReturn;
+    private Type returnType;
+    private int lastDest = -1; // where the destination of the last instruction is, while it can still be changed
+
+    /*
+     * A place in memory: the address in a register plus a constant offset.
+     */
+    private static final class Place {
+        final int base, offset;
+
+        Place(int base, int offset) {
+            this.base = base;
+            this.offset = offset;
+        }
+    }
+
+    static Lowering lower(Program program) {
+        Lowering l = new Lowering();
+        program.accept(l);
+        return l;
+    }
+
+    /*
+     * The initial contents of memory, globals are zero and the strings follow them.
+     */
+    byte[] data() {
+        return Arrays.copyOf(data, dataSize);
+    }
+
+    @Override
+    public Integer visitProgram(Program p) {
+        for (VarDecl vd : p.varDecls) {
+            dataSize = StructLayout.alignUp(dataSize, StructLayout.alignOf(vd.type));
+            globals.put(vd, dataSize);
+            reserve(StructLayout.sizeOf(vd.type));
+        }
+        for (FunDecl fd : p.funDecls) {
+            indices.put(fd.name, indices.size());
+            functions.add(null);
+        }
+        for (FunDecl fd : p.funDecls) {
+            fd.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Integer visitFunDecl(FunDecl fd) {
+        size = 0;
+        labels.clear();
+        registers.clear();
+        frame.clear();
+        variables.clear();
+        constants.clear();
+        next = max = frameSize = 0;
+        lastDest = -1;
+        returnType = fd.type;
+        structReturn = fd.type instanceof StructType;
+        if (structReturn)
+            variable(); // where the caller wants the struct
+        for (VarDecl vd : fd.params) {
+            registers.put(vd, variable());
+        }
+        int params = next;
+        for (VarDecl vd : fd.params) {
+            if (vd.type instanceof StructType) { // passed by address, the callee gets its own copy
+                int from = registers.remove(vd);
+                int to = temp();
+                emit(LOCAL, to, allocate(vd));
+                emit(COPY, to, from, StructLayout.sizeOf(vd.type));
+                next--;
+            }
+        }
+        fd.block.accept(this);
+        emit(RETV);
+
+        for (int i = 0; i < size; i = Opcode.next(code, i)) {
+            if (code[i] == TAIL && frameSize > 0)
+                code[i] = CALL; // the callee's arguments may point into the frame it would take over
+            for (int j = i + 1; j < Opcode.next(code, i); j++) {
+                char kind = Opcode.kind(code, i, j);
+                if (kind == 'r' && code[j] >= CONSTANTS)
+                    code[j] = max + code[j] - CONSTANTS;
+                else if (kind == 't')
+                    code[j] = labels.get(code[j]);
+            }
+        }
+        int[] initial = new int[max + constants.size()];
+        for (Map.Entry<Integer, Integer> c : constants.entrySet()) {
+            initial[max + c.getValue() - CONSTANTS] = c.getKey();
+        }
+        functions.set(indices.get(fd.name), new Function(fd.name, Arrays.copyOf(code, size), initial, params, max,
+                StructLayout.alignUp(frameSize, 8)));
+        if (fd.name.equals("main"))
+            main = indices.get(fd.name);
+        return null;
+    }
+
+    @Override
+    public Integer visitBlock(Block b) {
+        int mark = next;
+        for (VarDecl vd : b.varDeclList) {
+            vd.accept(this);
+        }
+        for (Stmt s : b.stmtList) {
+            int temps = next;
+            s.accept(this);
+            next = temps;
+        }
+        next = mark;
+        return null;
+    }
+
+    @Override
+    public Integer visitVarDecl(VarDecl vd) {
+        if (vd.type instanceof ArrayType || vd.type instanceof StructType)
+            allocate(vd);
+        else
+            registers.put(vd, variable());
+        return null;
+    }
+
+    @Override
+    public Integer visitExprStmt(ExprStmt es) {
+        es.exp.accept(this);
+        return null;
+    }
+
+    @Override
+    public Integer visitIf(If i) {
+        int otherwise = label();
+        branch(i.cond, false, otherwise);
+        statement(i.st1);
+        if (i.st2 != null) {
+            int end = label();
+            emit(JMP, end);
+            bind(otherwise);
+            statement(i.st2);
+            bind(end);
+        } else {
+            bind(otherwise);
+        }
+        return null;
+    }
+
+    /*
+     * The condition goes after the body, so each time round takes one branch.
+     */
+    @Override
+    public Integer visitWhile(While w) {
+        int top = label(), test = label();
+        emit(JMP, test);
+        bind(top);
+        statement(w.loop);
+        bind(test);
+        branch(w.cond, true, top);
+        return null;
+    }
+
+    private void statement(Stmt s) {
+        int temps = next;
+        s.accept(this);
+        next = temps;
+    }
+
+    @Override
+    public Integer visitAssign(Assign a) {
+        Type t = typeOf(a.e1);
+        int value = a.e2.accept(this);
+        if (t instanceof StructType) {
+            emit(COPY, a.e1.accept(this), value, StructLayout.sizeOf(t));
+        } else if (a.e1 instanceof VarExpr && registers.containsKey(((VarExpr) a.e1).vd)) {
+            int r = registers.get(((VarExpr) a.e1).vd);
+            if (lastDest >= 0 && code[lastDest] == value && !variables.get(value) && value < CONSTANTS)
+                code[lastDest] = r; // the value was only computed to be put here
+            else if (r != value)
+                emit(MOVE, r, value);
+        } else if (a.e1 instanceof VarExpr && globals.containsKey(((VarExpr) a.e1).vd)) {
+            emit(t == BaseType.CHAR ? STGB : STGW, globals.get(((VarExpr) a.e1).vd), value);
+        } else {
+            Place p = place(a.e1);
+            emit(t == BaseType.CHAR ? STB : STW, p.base, p.offset, value);
+        }
+        return null;
+    }
+
+    @Override
+    public Integer visitReturn(Return r) {
+        if (r.exp == null) {
+            emit(RETV);
+        } else if (r.exp instanceof FunCallExpr && !BUILTINS.contains(((FunCallExpr) r.exp).name) && !structReturn
+                && !(typeOf(r.exp) instanceof StructType)) {
+            int d = r.exp.accept(this);
+            code[lastDest - 1] = TAIL; // back to CALL if this function turns out to need a frame
+            emit(RET, d);
+        } else if (structReturn) {
+            emit(COPY, 0, r.exp.accept(this), StructLayout.sizeOf(returnType));
+            emit(RETV);
+        } else {
+            emit(RET, r.exp.accept(this));
+        }
+        return null;
+    }
+
+    @Override
+    public Integer visitVarExpr(VarExpr v) {
+        Integer r = registers.get(v.vd);
+        if (r != null)
+            return r;
+        Integer offset = frame.get(v.vd);
+        if (offset != null) {
+            int d = temp();
+            emit(LOCAL, d, offset);
+            return d;
+        }
+        int address = globals.get(v.vd);
+        if (v.vd.type instanceof ArrayType || v.vd.type instanceof StructType)
+            return constant(address);
+        int d = temp();
+        emit(v.vd.type == BaseType.CHAR ? LDGB : LDGW, d, address);
+        return d;
+    }
+
+    @Override
+    public Integer visitIntLiteral(IntLiteral il) {
+        return constant(il.number);
+    }
+
+    @Override
+    public Integer visitChrLiteral(ChrLiteral cl) {
+        return constant(cl.c);
+    }
+
+    @Override
+    public Integer visitStringLiteral(StrLiteral sl) {
+        String s = StrLiteral.decode(sl.string);
+        Integer address = strings.get(s);
+        if (address == null) {
+            address = dataSize;
+            reserve(s.length() + 1);
+            for (int i = 0; i < s.length(); i++) {
+                data[address + i] = (byte) s.charAt(i);
+            }
+            strings.put(s, address);
+        }
+        return constant(address);
+    }
+
+    @Override
+    public Integer visitSizeOfExpr(SizeOfExpr soe) {
+        return constant(StructLayout.sizeOf(soe.type));
+    }
+
+    @Override
+    public Integer visitTypecastExpr(TypecastExpr te) {
+        return te.exp.accept(this);
+    }
+
+    @Override
+    public Integer visitBinOp(BinOp bo) {
+        if (bo.op == Op.AND || bo.op == Op.OR) {
+            int d = temp(), no = label(), end = label();
+            branch(bo, false, no);
+            emit(CONST, d, 1);
+            emit(JMP, end);
+            bind(no);
+            emit(CONST, d, 0);
+            bind(end);
+            return d;
+        }
+        int a = bo.E1.accept(this);
+        int b = bo.E2.accept(this);
+        int d = temp();
+        emit(arithmetic(bo.op), d, a, b);
+        return d;
+    }
+
+    @Override
+    public Integer visitArrayAccessExpr(ArrayAccessExpr aae) {
+        return load(aae);
+    }
+
+    @Override
+    public Integer visitFieldAccessExpr(FieldAccessExpr fae) {
+        return load(fae);
+    }
+
+    @Override
+    public Integer visitValueAtExpr(ValueAtExpr vae) {
+        return load(vae);
+    }
+
+    /*
+     * The value at a place in memory, or its address for arrays and structs.
+     */
+    private int load(Expr e) {
+        Type t = typeOf(e);
+        Place p = place(e);
+        int d = temp();
+        if (t instanceof ArrayType || t instanceof StructType) {
+            if (p.offset == 0)
+                return p.base;
+            emit(ADDI, d, p.base, p.offset);
+        } else {
+            emit(t == BaseType.CHAR ? LDB : LDW, d, p.base, p.offset);
+        }
+        return d;
+    }
+
+    /*
+     * Where an array element, field or the target of a pointer is. Constant indexes and field
+     * offsets are added up into the offset, so nested accesses need no arithmetic at run time.
+     */
+    private Place place(Expr e) {
+        if (e instanceof FieldAccessExpr) {
+            FieldAccessExpr fae = (FieldAccessExpr) e;
+            Place p = place(fae.struct);
+            StructLayout.Field f = ((StructType) typeOf(fae.struct)).layout.field(fae.field);
+            return new Place(p.base, p.offset + f.offset);
+        } else if (e instanceof ArrayAccessExpr) {
+            ArrayAccessExpr aae = (ArrayAccessExpr) e;
+            Type array = typeOf(aae.exp);
+            Place p = array instanceof ArrayType ? place(aae.exp) : new Place(aae.exp.accept(this), 0);
+            int element = StructLayout.sizeOf(array instanceof ArrayType ? ((ArrayType) array).type : ((PointerType) array).type);
+            if (aae.index instanceof IntLiteral)
+                return new Place(p.base, p.offset + ((IntLiteral) aae.index).number * element);
+            int i = aae.index.accept(this);
+            int d = temp();
+            emit(INDEX, d, p.base, i, element);
+            return new Place(d, p.offset);
+        } else if (e instanceof ValueAtExpr) {
+            return new Place(((ValueAtExpr) e).exp.accept(this), 0);
+        }
+        return new Place(e.accept(this), 0);
+    }
+
+    @Override
+    public Integer visitFunCallExpr(FunCallExpr fce) {
+        if (BUILTINS.contains(fce.name))
+            return builtin(fce);
+        int[] args = new int[fce.args.size()];
+        int n = 0;
+        int result = temp();
+        Type type = fce.fd != null ? fce.fd.type : BaseType.INT;
+        if (type instanceof StructType) { // the callee writes the struct to a place in this frame
+            emit(LOCAL, result, allocate(type));
+            args = new int[args.length + 1];
+            args[n++] = result;
+        }
+        for (Expr e : fce.args) {
+            args[n++] = e.accept(this);
+        }
+        int[] call = new int[4 + args.length];
+        call[0] = CALL;
+        call[1] = type instanceof StructType ? temp() : result;
+        call[2] = indices.get(fce.name);
+        call[3] = args.length;
+        System.arraycopy(args, 0, call, 4, args.length);
+        emit(call);
+        return result;
+    }
+
+    private int builtin(FunCallExpr fce) {
+        int a = fce.args.isEmpty() ? 0 : fce.args.get(0).accept(this);
+        int d = temp();
+        switch (fce.name) {
+            case "print_s": emit(PRINT_S, a); break;
+            case "print_i": emit(PRINT_I, a); break;
+            case "print_c": emit(PRINT_C, a); break;
+            case "read_i": emit(READ_I, d); break;
+            case "read_c": emit(READ_C, d); break;
+            case "mcmalloc": emit(MALLOC, d, a); break;
+        }
+        return d;
+    }
+
+    /*
+     * Jumps to label when e is true, or when it is false if when isn't set. Comparisons become a
+     * single compare and branch, && and || skip their right hand side as soon as the outcome is known.
+     */
+    private void branch(Expr e, boolean when, int label) {
+        if (e instanceof IntLiteral || e instanceof ChrLiteral) {
+            boolean value = e instanceof IntLiteral ? ((IntLiteral) e).number != 0 : ((ChrLiteral) e).c != 0;
+            if (value == when)
+                emit(JMP, label);
+            return;
+        }
+        if (e instanceof BinOp) {
+            BinOp bo = (BinOp) e;
+            if (bo.op == Op.AND || bo.op == Op.OR) {
+                if ((bo.op == Op.AND) == when) {
+                    int skip = label();
+                    branch(bo.E1, !when, skip);
+                    branch(bo.E2, when, label);
+                    bind(skip);
+                } else {
+                    branch(bo.E1, when, label);
+                    branch(bo.E2, when, label);
+                }
+                return;
+            }
+            int jump = compareAndBranch(bo.op, when);
+            if (jump >= 0) {
+                int a = bo.E1.accept(this);
+                int b = bo.E2.accept(this);
+                emit(jump, a, b, label);
+                return;
+            }
+        }
+        emit(when ? JNZ : JZ, e.accept(this), label);
+    }
+
+    private static int compareAndBranch(Op op, boolean when) {
+        switch (op) {
+            case EQ: return when ? JEQ : JNE;
+            case NE: return when ? JNE : JEQ;
+            case LT: return when ? JLT : JGE;
+            case GE: return when ? JGE : JLT;
+            case GT: return when ? JGT : JLE;
+            case LE: return when ? JLE : JGT;
+            default: return -1;
+        }
+    }
+
+    private static int arithmetic(Op op) {
+        switch (op) {
+            case ADD: return ADD;
+            case SUB: return SUB;
+            case MUL: return MUL;
+            case DIV: return DIV;
+            case MOD: return MOD;
+            case LT: return LT;
+            case GT: return GT;
+            case LE: return LE;
+            case GE: return GE;
+            case EQ: return EQ;
+            case NE: return NE;
+            default: throw new IllegalArgumentException(op.toString());
+        }
+    }
+    private void reserve(int bytes) {
+        dataSize += bytes;
+        if (dataSize > data.length)
+            data = Arrays.copyOf(data, Math.max(dataSize, data.length * 2));
+    }
+
+    private int allocate(VarDecl vd) {
+        int offset = allocate(vd.type);
+        frame.put(vd, offset);
+        return offset;
+    }
+
+    private int allocate(Type t) {
+        frameSize = StructLayout.alignUp(frameSize, StructLayout.alignOf(t));
+        int offset = frameSize;
+        frameSize += StructLayout.sizeOf(t);
+        return offset;
+    }
+
+    private int variable() {
+        int r = temp();
+        variables.set(r);
+        return r;
+    }
+
+    private int temp() {
+        variables.clear(next);
+        max = Math.max(max, next + 1);
+        return next++;
+    }
+
+    private int constant(int value) {
+        Integer r = constants.get(value);
+        if (r == null) {
+            r = CONSTANTS + constants.size();
+            constants.put(value, r);
+        }
+        return r;
+    }
+
+    private int label() {
+        labels.add(-1);
+        return labels.size() - 1;
+    }
+
+    private void bind(int label) {
+        labels.set(label, size);
+        lastDest = -1;
+    }
+
+    private void emit(int... instruction) {
+        if (size + instruction.length > code.length)
+            code = Arrays.copyOf(code, Math.max(size + instruction.length, code.length * 2));
+        System.arraycopy(instruction, 0, code, size, instruction.length);
+        lastDest = writes(instruction[0]) ? size + 1 : -1;
+        size += instruction.length;
+    }
+
+    /*
+     * Whether the first operand of op is a register it writes.
+     */
+    private static boolean writes(int op) {
+        return op <= LDGB || op == CALL || op == TAIL || op == READ_I || op == READ_C || op == MALLOC;
+    }
+
+    // types are only looked at through the declarations
+
+    @Override
+    public Integer visitBaseType(BaseType bt) {
+        return null;
+    }
+
+    @Override
+    public Integer visitStructTypeDecl(StructTypeDecl st) {
+        return null;
+    }
+
+    @Override
+    public Integer visitPointerType(PointerType pt) {
+        return null;
+    }
+
+    @Override
+    public Integer visitStructType(StructType st) {
+        return null;
+    }
+
+    @Override
+    public Integer visitArrayType(ArrayType at) {
+        return null;
+    }
+
+    @Override
+    public Integer visitOp(Op o) {
+        return null;
+    }
+}
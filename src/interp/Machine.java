@@ -0,0 +1,232 @@
+package interp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The memory and built-ins a lowered program runs against, whether it is interpreted or compiled
+ * to JVM classes, which call the public methods here.
+ *
+ * Memory is one array. Globals and strings sit at the bottom above a few bytes kept free so null
+ * can't be used, mcmalloc hands out memory upwards from there and frames grow down from the top.
+ * The built-ins read their input like the C versions in tests/minic-stdlib.h.
+ */
+public final class Machine {
+
+    private static final int MEMORY_SIZE = 16 << 20;
+    private static final long THREAD_STACK = 1L << 28; // calls nest as deep as the program's do
+    private static final int OUTPUT_BUFFER = 8192;
+    private static final int STACK_SLACK = 4096; // like MARS, reading a little past the first frame stays in memory
+
+    private final byte[] bytes = new byte[MEMORY_SIZE];
+    private final ByteBuffer memory = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    private int heap, sp = MEMORY_SIZE - STACK_SLACK;
+
+    private final InputStream in;
+    private final PrintStream stream;
+    private final StringBuilder out = new StringBuilder();
+    private int peeked = -2; // the next byte of input if it has been read already
+
+    private long nanos;
+
+    Machine(byte[] data, InputStream in, PrintStream out) {
+        System.arraycopy(data, 0, bytes, 0, data.length);
+        this.heap = align(data.length, 8);
+        this.in = new BufferedInputStream(in);
+        this.stream = out;
+    }
+
+    /*
+     * Runs the program on a thread of its own, with a stack deep enough for its recursion, and
+     * turns what the JVM throws for it into the errors it stands for.
+     */
+    void run(Runnable program) {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                program.run();
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "minic", THREAD_STACK);
+        long start = System.nanoTime();
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterpreterError("interrupted");
+        } finally {
+            nanos = System.nanoTime() - start;
+            flush();
+        }
+        if (failure[0] instanceof InterpreterError)
+            throw (InterpreterError) failure[0];
+        if (failure[0] instanceof IndexOutOfBoundsException)
+            throw new InterpreterError("memory access outside the address space");
+        if (failure[0] instanceof ArithmeticException) // only + and - throw it, division by zero is caught before
+            throw new InterpreterError("arithmetic overflow");
+        if (failure[0] instanceof StackOverflowError)
+            throw new InterpreterError("stack overflow");
+        if (failure[0] instanceof RuntimeException)
+            throw (RuntimeException) failure[0];
+        if (failure[0] != null)
+            throw (Error) failure[0];
+    }
+
+    /*
+     * How long the last run took.
+     */
+    long nanos() {
+        return nanos;
+    }
+
+    /*
+     * Makes room for a frame, returning its address.
+     */
+    public int enter(int size) {
+        if (size > sp - heap)
+            throw new InterpreterError("stack overflow");
+        sp -= size;
+        return sp;
+    }
+
+    public void leave(int size) {
+        sp += size;
+    }
+
+    public int loadWord(int address) {
+        return memory.getInt(check(address));
+    }
+
+    public int loadByte(int address) {
+        return bytes[check(address)];
+    }
+
+    public void storeWord(int address, int value) {
+        memory.putInt(check(address), value);
+    }
+
+    public void storeByte(int address, int value) {
+        bytes[check(address)] = (byte) value;
+    }
+
+    public void copy(int to, int from, int size) {
+        System.arraycopy(bytes, check(from), bytes, check(to), size);
+    }
+
+    /*
+     * Addresses below the globals are never valid, the rest of the checking is the array's.
+     */
+    private static int check(int address) {
+        if (address < Lowering.NULL_GUARD)
+            throw new InterpreterError(String.format("invalid memory access at 0x%08x", address));
+        return address;
+    }
+
+    public static int divide(int a, int b) {
+        if (b == 0)
+            throw new InterpreterError("division by zero");
+        return a / b;
+    }
+
+    public static int remainder(int a, int b) {
+        if (b == 0)
+            throw new InterpreterError("division by zero");
+        return a % b;
+    }
+
+    public int malloc(int size) {
+        int block = heap;
+        if (size < 0 || size > sp - heap)
+            throw new InterpreterError("mcmalloc(" + size + "): out of memory");
+        heap = align(heap + size, 4);
+        return block;
+    }
+
+    private static int align(int n, int align) {
+        return (n + align - 1) / align * align;
+    }
+
+    public void printInt(int i) {
+        out.append(i);
+        written();
+    }
+
+    public void printChar(int c) {
+        out.append((char) (c & 0xff));
+        written();
+    }
+
+    public void printString(int address) {
+        for (int a = check(address); bytes[a] != 0; a++) {
+            out.append((char) (bytes[a] & 0xff));
+        }
+        written();
+    }
+
+    private void written() {
+        if (out.length() >= OUTPUT_BUFFER)
+            flush();
+    }
+
+    private void flush() {
+        stream.print(out);
+        stream.flush();
+        out.setLength(0);
+    }
+
+    /*
+     * Like fscanf(" %c"), the first character that isn't white space.
+     */
+    public int readChar() {
+        int c = skipSpace("read_c");
+        peeked = -2;
+        return (byte) c;
+    }
+
+    /*
+     * Like fscanf("%d"), an optional sign and the digits after any white space.
+     */
+    public int readInt() {
+        int c = skipSpace("read_i");
+        boolean negative = c == '-';
+        if (c == '-' || c == '+') {
+            peeked = -2;
+            c = peek();
+        }
+        if (c < '0' || c > '9')
+            throw new InterpreterError("read_i: no number in the input");
+        int n = 0;
+        while (c >= '0' && c <= '9') {
+            n = n * 10 + c - '0';
+            peeked = -2;
+            c = peek();
+        }
+        return negative ? -n : n;
+    }
+
+    private int skipSpace(String call) {
+        flush();
+        int c = peek();
+        while (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0b) {
+            peeked = -2;
+            c = peek();
+        }
+        if (c < 0)
+            throw new InterpreterError(call + " past the end of the input");
+        return c;
+    }
+
+    private int peek() {
+        if (peeked == -2) {
+            try {
+                peeked = in.read();
+            } catch (IOException e) {
+                throw new InterpreterError("reading the input: " + e.getMessage());
+            }
+        }
+        return peeked;
+    }
+}
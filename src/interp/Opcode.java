@@ -0,0 +1,67 @@
+package interp;
+
+/**
+ * The instructions of the interpreter's bytecode. An instruction is its opcode followed by its
+ * operands in the function's code array: registers of the frame, constants, or code positions to
+ * jump to. CALL and TAIL are the only ones whose length varies, they are followed by one register
+ * per argument.
+ */
+final class Opcode {
+
+    static final int
+            CONST = 0,      // d, value
+            MOVE = 1,       // d, s
+            ADD = 2, SUB = 3, MUL = 4, DIV = 5, MOD = 6,   // d, a, b
+            LT = 7, GT = 8, LE = 9, GE = 10, EQ = 11, NE = 12,
+            ADDI = 13,      // d, a, value
+            INDEX = 14,     // d, base, i, size   d = base + i * size
+            LOCAL = 15,     // d, offset     address in the frame
+            LDW = 16, LDB = 17,             // d, a, offset
+            LDGW = 18, LDGB = 19,           // d, address
+            STW = 20, STB = 21,             // a, offset, s
+            STGW = 22, STGB = 23,           // address, s
+            COPY = 24,      // to, from, size
+            JMP = 25,       // target
+            JZ = 26, JNZ = 27,              // s, target
+            JEQ = 28, JNE = 29, JLT = 30, JGE = 31, JGT = 32, JLE = 33,   // a, b, target
+            CALL = 34,      // d, function, n, args...
+            RET = 35,       // s
+            RETV = 36,
+            PRINT_I = 37, PRINT_C = 38, PRINT_S = 39,   // s
+            READ_I = 40, READ_C = 41,       // d
+            MALLOC = 42,    // d, size
+            TAIL = 43;      // like CALL, but the callee takes over the caller's frame
+
+    static final String[] NAME = {"CONST", "MOVE", "ADD", "SUB", "MUL", "DIV", "MOD", "LT", "GT", "LE", "GE",
+            "EQ", "NE", "ADDI", "INDEX", "LOCAL", "LDW", "LDB", "LDGW", "LDGB", "STW", "STB", "STGW", "STGB",
+            "COPY", "JMP", "JZ", "JNZ", "JEQ", "JNE", "JLT", "JGE", "JGT", "JLE", "CALL", "RET", "RETV",
+            "PRINT_I", "PRINT_C", "PRINT_S", "READ_I", "READ_C", "MALLOC", "TAIL"};
+
+    /*
+     * What the operands after each opcode are: r a register, v a value, t a position in the code.
+     * The arguments of calls, all registers, come after these.
+     */
+    static final String[] OPERANDS = {"rv", "rr", "rrr", "rrr", "rrr", "rrr", "rrr", "rrr", "rrr", "rrr", "rrr",
+            "rrr", "rrr", "rrv", "rrrv", "rv", "rrv", "rrv", "rv", "rv", "rvr", "rvr", "vr", "vr",
+            "rrv", "t", "rt", "rt", "rrt", "rrt", "rrt", "rrt", "rrt", "rrt", "rvv", "r", "",
+            "r", "r", "r", "r", "r", "rr", "rvv"};
+
+    private Opcode() {
+    }
+
+    /*
+     * Where the instruction at pc ends.
+     */
+    static int next(int[] code, int pc) {
+        int op = code[pc];
+        return pc + 1 + OPERANDS[op].length() + (op == CALL || op == TAIL ? code[pc + 3] : 0);
+    }
+
+    /*
+     * The kind of the operand at position i of the instruction at pc.
+     */
+    static char kind(int[] code, int pc, int i) {
+        String kinds = OPERANDS[code[pc]];
+        return i - pc - 1 < kinds.length() ? kinds.charAt(i - pc - 1) : 'r';
+    }
+}
@@ -4,6 +4,7 @@ import lexer.Token.TokenClass;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.PrintStream;
 
 /**
  * @author cdubach
@@ -11,6 +12,7 @@ import java.io.IOException;
 public class Tokeniser {
 
 	private Scanner scanner;
+	private final PrintStream errors;
 
 	private int error = 0;
 	public int getErrorCount() {
@@ -18,11 +20,23 @@ public class Tokeniser {
 	}
 
 	public Tokeniser(Scanner scanner) {
+		this(scanner, System.out);
+	}
+
+	/*
+	 * Reports lexing errors on the given stream, so several files can be compiled side by side.
+	 */
+	public Tokeniser(Scanner scanner, PrintStream errors) {
 		this.scanner = scanner;
+		this.errors = errors;
+	}
+
+	public PrintStream getErrorStream() {
+		return errors;
 	}
 
 	private void error(char c, int line, int col) {
-		System.out.println("Lexing error: unrecognised character ("+c+") at "+line+":"+col);
+		errors.println("Lexing error: unrecognised character ("+c+") at "+line+":"+col);
 		error++;
 	}
 
@@ -34,10 +48,10 @@ public class Tokeniser {
 			// end of file, nothing to worry about, just return EOF token
 			return new Token(TokenClass.EOF, scanner.getLine(), scanner.getColumn());
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			// something went horribly wrong, abort
-			System.exit(-1);
-			return null;
+			// something went horribly wrong, stop reading as if the file ended there
+			errors.println("Lexing error: " + ioe.getMessage());
+			error++;
+			return new Token(TokenClass.EOF, scanner.getLine(), scanner.getColumn());
 		}
 		return result;
 	}
@@ -87,7 +101,7 @@ public class Tokeniser {
 					}
 				}
 			} catch (EOFException e) {
-				System.out.println("Unfinished block comment starting at " + sLine + ":" + sCol);
+				errors.println("Unfinished block comment starting at " + sLine + ":" + sCol);
 				error++;
 			}
 			scanner.next();
@@ -190,7 +204,7 @@ public class Tokeniser {
 					column++;
 					if (!escape) {
 						if (c == '\n') {
-							System.out.println("Missing terminating \" character for string starting at " + sline + ":" + scol);
+							errors.println("Missing terminating \" character for string starting at " + sline + ":" + scol);
 							error++;
 						} else if (c == '\\' && scanner.peek() == '\"') {
 							out.append("\"");
@@ -238,9 +252,9 @@ public class Tokeniser {
 							line++;
 							column = 0;
 						} else if (c == '\\') {
-							System.out.println("Invalid escape sequence at " + line + ":" + column);
+							errors.println("Invalid escape sequence at " + line + ":" + column);
 						} else if (c == '\n') {
-							System.out.println("Missing terminating \" character for string starting at " + sline + ":" + scol);
+							errors.println("Missing terminating \" character for string starting at " + sline + ":" + scol);
 							error++;
 						} else {
 							out.append(c);
@@ -248,7 +262,7 @@ public class Tokeniser {
 					}
 				}
 			} catch (EOFException e) {
-				System.out.println("String starting at "+sline+":"+scol+" unterminated");
+				errors.println("String starting at "+sline+":"+scol+" unterminated");
 				error++;
 			}
 			return new Token(TokenClass.STRING_LITERAL, out.toString(), line, column);
@@ -299,7 +313,7 @@ public class Tokeniser {
 						c = '\"';
 						break;
 					default: // other sequences aren't valid
-						System.out.println("Invalid character declaration at "+line+":"+column);
+						errors.println("Invalid character declaration at "+line+":"+column);
 						error++;
 						scanner.next();
 						return new Token(TokenClass.INVALID, line, column);
@@ -310,7 +324,7 @@ public class Tokeniser {
 			if (temp == '\'') {
 				return new Token(TokenClass.CHAR_LITERAL, Character.toString(c), line, column);
 			} else {
-				System.out.println("Bad character definition at "+line+":"+column);
+				errors.println("Bad character definition at "+line+":"+column);
 				error++;
 				return new Token(TokenClass.INVALID, line, column);
 			}
@@ -328,7 +342,7 @@ public class Tokeniser {
 				case "#include":
 					return new Token(TokenClass.INCLUDE, line, column-6);
 				default:
-					System.out.println("Unrecognised # statement at "+line+":"+hcol);
+					errors.println("Unrecognised # statement at "+line+":"+hcol);
 					error++;
 					return new Token(TokenClass.INVALID, line, column);
 			}
@@ -6,6 +6,7 @@ import lexer.Token;
 import lexer.Tokeniser;
 import lexer.Token.TokenClass;
 
+import java.io.PrintStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -24,10 +25,12 @@ public class Parser {
 	private Queue<Token> buffer = new LinkedList<>();
 
 	private final Tokeniser tokeniser;
+	private final PrintStream errors;
 
 
 	public Parser(Tokeniser tokeniser) {
 		this.tokeniser = tokeniser;
+		this.errors = tokeniser.getErrorStream();
 	}
 
 	public Program parse() {
@@ -58,7 +61,7 @@ public class Parser {
 			sb.append(e);
 			sep = "|";
 		}
-		System.out.println("Parsing error: expected (" + sb + ") found (" + token + ") at " + token.position);
+		errors.println("Parsing error: expected (" + sb + ") found (" + token + ") at " + token.position);
 
 		error++;
 		lastErrorToken = token;
@@ -469,7 +472,7 @@ public class Parser {
 //			out = parseStructArray(out);
 		} else {
 			if (i != 0) {
-				System.out.println("Parsing error: unexpected expression at " + token.position + ", with token: " + token.tokenClass);
+				errors.println("Parsing error: unexpected expression at " + token.position + ", with token: " + token.tokenClass);
 				error++;
 				lastErrorToken = token;
 				nextToken();
@@ -1,5 +1,6 @@
 package sem;
 
+import java.io.PrintStream;
 
 /**
  * 
@@ -8,18 +9,23 @@ package sem;
  */
 public abstract class BaseSemanticVisitor<T> implements SemanticVisitor<T> {
 	private int errors;
+	private PrintStream stream = System.err;
 	
 	
 	public BaseSemanticVisitor() {
 		errors = 0;
 	}
+
+	public void setErrorStream(PrintStream stream) {
+		this.stream = stream;
+	}
 	
 	public int getErrorCount() {
 		return errors;
 	}
 	
 	protected void error(String message) {
-		System.err.println("semantic error: " + message);
+		stream.println("semantic error: " + message);
 		errors++;
 	}
 }
@@ -1,10 +1,18 @@
 package sem;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 
 public class SemanticAnalyzer {
 
+	private final PrintStream stream;
+
 	public SemanticAnalyzer() {
+		this(System.err);
+	}
+
+	public SemanticAnalyzer(PrintStream stream) {
+		this.stream = stream;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -19,6 +27,7 @@ public class SemanticAnalyzer {
 		
 		// Apply each visitor to the AST
 		for (SemanticVisitor v : visitors) {
+			((BaseSemanticVisitor) v).setErrorStream(stream);
 			prog.accept(v);
 			errors += v.getErrorCount();
 			if (errors!=0) break;
@@ -21,6 +21,13 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 		for (VarDecl i : st.varDeclList) {
 			i.accept(this);
 		}
+		//fields are checked first, the structs they use need their layouts
+		if (laidOut(st))
+			st.st.layout = StructLayout.of(st);
+		//pointers to the struct itself only get its layout now
+		for (VarDecl i : st.varDeclList) {
+			resolve(i.type);
+		}
 		// To be completed...
 		return null;
 	}
@@ -111,7 +118,11 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 		if (pt.type instanceof StructType) {
 			if (!(structs.containsKey(((StructType) pt.type).name))) {
 				error("Pointer to undeclared struct type "+((StructType) pt.type).name);
+			} else {
+				layout((StructType) pt.type);
 			}
+		} else {
+			pt.type.accept(this);
 		}
 		return pt;
 	}
@@ -120,12 +131,53 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 	public Type visitStructType(StructType st) {
 		if (!(structs.containsKey(st.name))) {
 			error("Use of undeclared struct type "+st.name);
+		} else {
+			layout(st);
 		}
 		return st;
 	}
 
+	/*
+	 * Every use of a struct type shares the layout of its declaration.
+	 */
+	private StructLayout layout(StructType st) {
+		if (st.layout == null)
+			st.layout = structs.get(st.name).st.layout;
+		return st.layout;
+	}
+
+	/*
+	 * Whether every struct a field holds by value has a layout. One that isn't declared yet has
+	 * been reported already, the struct itself never will have one.
+	 */
+	private boolean laidOut(StructTypeDecl st) {
+		boolean laidOut = true;
+		for (VarDecl i : st.varDeclList) {
+			Type t = i.type;
+			while (t instanceof ArrayType)
+				t = ((ArrayType) t).type;
+			if (t instanceof StructType && ((StructType) t).layout == null) {
+				if (((StructType) t).name.equals(st.st.name))
+					error("Struct "+st.st.name+" contains itself");
+				laidOut = false;
+			}
+		}
+		return laidOut;
+	}
+
+	private void resolve(Type t) {
+		if (t instanceof PointerType) {
+			resolve(((PointerType) t).type);
+		} else if (t instanceof ArrayType) {
+			resolve(((ArrayType) t).type);
+		} else if (t instanceof StructType && structs.containsKey(((StructType) t).name)) {
+			layout((StructType) t);
+		}
+	}
+
 	@Override
 	public Type visitArrayType(ArrayType at) {
+		at.type.accept(this);
 		return at;
 	}
 
@@ -243,16 +295,14 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 			error("Trying to access instance as struct when not");
 			return fae.type = null;
 		}
-		StructTypeDecl f = structs.get((((StructType) t).name));
-		fae.type = null;
-		for (VarDecl i: f.varDeclList) {
-			if (i.varName.equals(fae.field)) {
-				fae.type = i.type;
-				break;
-			}
+		if (layout((StructType) t) == null) {
+			//its declaration has been reported already
+			return fae.type = null;
 		}
+		StructLayout.Field f = layout((StructType) t).field(fae.field);
+		fae.type = f == null ? null : f.type;
 		if (fae.type == null) {
-			error("Accessing field "+fae.field+" on struct "+f.st.name+" which doesn't exist");
+			error("Accessing field "+fae.field+" on struct "+((StructType) t).name+" which doesn't exist");
 		}
 		return fae.type;
 	}
@@ -270,6 +320,7 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 
 	@Override
 	public Type visitSizeOfExpr(SizeOfExpr soe) {
+		soe.type.accept(this);
 		return BaseType.INT;
 	}
 
@@ -0,0 +1,72 @@
+package sim;
+
+/**
+ * The simulated address space, little endian like MARS. Pages are only allocated when something is
+ * stored in them, anything never written reads as zero.
+ */
+class Memory {
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final byte[][] pages = new byte[1 << (32 - PAGE_BITS)][];
+
+    int loadByte(int address) {
+        byte[] page = pages[address >>> PAGE_BITS];
+        return page == null ? 0 : page[address & PAGE_SIZE - 1];
+    }
+
+    int loadHalf(int address) {
+        aligned(address, 2);
+        return (short) (loadByte(address) & 0xff | loadByte(address + 1) << 8);
+    }
+
+    int loadWord(int address) {
+        aligned(address, 4);
+        byte[] page = pages[address >>> PAGE_BITS];
+        if (page == null)
+            return 0;
+        int i = address & PAGE_SIZE - 1;
+        return page[i] & 0xff | (page[i + 1] & 0xff) << 8 | (page[i + 2] & 0xff) << 16 | page[i + 3] << 24;
+    }
+
+    void storeByte(int address, int value) {
+        page(address)[address & PAGE_SIZE - 1] = (byte) value;
+    }
+
+    void storeHalf(int address, int value) {
+        aligned(address, 2);
+        storeByte(address, value);
+        storeByte(address + 1, value >> 8);
+    }
+
+    void storeWord(int address, int value) {
+        aligned(address, 4);
+        byte[] page = page(address);
+        int i = address & PAGE_SIZE - 1;
+        page[i] = (byte) value;
+        page[i + 1] = (byte) (value >> 8);
+        page[i + 2] = (byte) (value >> 16);
+        page[i + 3] = (byte) (value >> 24);
+    }
+
+    void store(int address, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            storeByte(address + i, bytes[i]);
+        }
+    }
+
+    private byte[] page(int address) {
+        byte[] page = pages[address >>> PAGE_BITS];
+        if (page == null) {
+            page = new byte[PAGE_SIZE];
+            pages[address >>> PAGE_BITS] = page;
+        }
+        return page;
+    }
+
+    private static void aligned(int address, int size) {
+        if ((address & size - 1) != 0)
+            throw new SimulationError(String.format("address 0x%08x isn't aligned on a %d byte boundary", address, size));
+    }
+}
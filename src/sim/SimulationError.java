@@ -0,0 +1,13 @@
+package sim;
+
+/**
+ * Something the simulated program did that a real machine would trap on.
+ */
+public class SimulationError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SimulationError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,323 @@
+package sim;
+
+import gen.MipsEncoder;
+
+import java.io.*;
+
+/**
+ * Runs the machine code of a compiled program, with the memory layout and syscalls MARS has, and
+ * counts what it does.
+ *
+ * Cycles are estimated for a classic five stage pipeline with forwarding: one per instruction once
+ * the pipeline is full, one more when an instruction uses the register loaded by the instruction
+ * right before it, and one more for each taken branch or jump since the next instruction fetched
+ * has to be thrown away. There are no delay slots, as in MARS.
+ */
+public class Simulator {
+
+    private static final int HEAP_BASE = 0x10040000;
+    private static final int STACK_TOP = 0x7fffeffc;
+    private static final int GLOBAL_POINTER = 0x10008000;
+    private static final int PIPELINE_DEPTH = 5;
+
+    private static final int V0 = 2, A0 = 4, GP = 28, SP = 29, RA = 31;
+
+    private final int[] text;
+    private final Memory memory = new Memory();
+    private final int[] regs = new int[32];
+    private int hi, lo, pc;
+    private int heap = HEAP_BASE;
+    private boolean halted;
+
+    private final BufferedReader in;
+    private final PrintStream out;
+
+    // counters
+    private long instructions, loads, stores, branches, taken, jumps, syscalls, stalls;
+    private int loaded = -1; // the register the previous instruction loaded, if it was a load
+
+    public Simulator(MipsEncoder program, InputStream in, PrintStream out) {
+        this.text = program.text();
+        this.in = new BufferedReader(new InputStreamReader(in));
+        this.out = out;
+        memory.store(MipsEncoder.DATA_BASE, program.data());
+        regs[SP] = STACK_TOP;
+        regs[GP] = GLOBAL_POINTER;
+        pc = MipsEncoder.TEXT_BASE;
+    }
+
+    /*
+     * Runs until the program exits or falls off the end of its code.
+     */
+    public void run() {
+        try {
+            while (!halted) {
+                int index = (pc - MipsEncoder.TEXT_BASE) >>> 2;
+                if (index >= text.length) {
+                    if (index == text.length)
+                        break; // dropped off the end, MARS stops there too
+                    throw new SimulationError(String.format("jumped to 0x%08x, outside the program", pc));
+                }
+                step(text[index]);
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    private void step(int w) {
+        int op = w >>> 26;
+        int rs = w >> 21 & 31, rt = w >> 16 & 31, rd = w >> 11 & 31;
+        int imm = (short) w;
+        int next = pc + 4;
+        instructions++;
+        if (loaded > 0 && (loaded == rs || loaded == rt && readsRt(op)))
+            stalls++;
+        loaded = -1;
+
+        switch (op) {
+            case 0:
+                next = special(w, rs, rt, rd, next);
+                break;
+            case 0x1c: // MUL, the product also goes to HI and LO
+                long product = (long) regs[rs] * regs[rt];
+                hi = (int) (product >> 32);
+                lo = (int) product;
+                set(rd, lo);
+                break;
+            case 1: // BLTZ, BGEZ
+                next = branch(rt == 1 ? regs[rs] >= 0 : regs[rs] < 0, imm, next);
+                break;
+            case 2: // J
+            case 3: // JAL
+                if (op == 3)
+                    set(RA, next);
+                next = next & 0xf0000000 | (w & 0x3ffffff) << 2;
+                jumps++;
+                break;
+            case 4: next = branch(regs[rs] == regs[rt], imm, next); break;
+            case 5: next = branch(regs[rs] != regs[rt], imm, next); break;
+            case 6: next = branch(regs[rs] <= 0, imm, next); break;
+            case 7: next = branch(regs[rs] > 0, imm, next); break;
+            case 8: set(rt, add(regs[rs], imm)); break;
+            case 9: set(rt, regs[rs] + imm); break;
+            case 10: set(rt, regs[rs] < imm ? 1 : 0); break;
+            case 11: set(rt, Integer.compareUnsigned(regs[rs], imm) < 0 ? 1 : 0); break;
+            case 12: set(rt, regs[rs] & imm & 0xffff); break;
+            case 13: set(rt, regs[rs] | imm & 0xffff); break;
+            case 14: set(rt, regs[rs] ^ imm & 0xffff); break;
+            case 15: set(rt, imm << 16); break;
+            case 32: load(rt, memory.loadByte(regs[rs] + imm)); break;
+            case 33: load(rt, memory.loadHalf(regs[rs] + imm)); break;
+            case 35: load(rt, memory.loadWord(regs[rs] + imm)); break;
+            case 36: load(rt, memory.loadByte(regs[rs] + imm) & 0xff); break;
+            case 37: load(rt, memory.loadHalf(regs[rs] + imm) & 0xffff); break;
+            case 40: memory.storeByte(regs[rs] + imm, regs[rt]); stores++; break;
+            case 41: memory.storeHalf(regs[rs] + imm, regs[rt]); stores++; break;
+            case 43: memory.storeWord(regs[rs] + imm, regs[rt]); stores++; break;
+            default:
+                throw unknown(w);
+        }
+        pc = next;
+    }
+
+    private int special(int w, int rs, int rt, int rd, int next) {
+        int shamt = w >> 6 & 31;
+        switch (w & 63) {
+            case 0: set(rd, regs[rt] << shamt); break;
+            case 2: set(rd, regs[rt] >>> shamt); break;
+            case 3: set(rd, regs[rt] >> shamt); break;
+            case 4: set(rd, regs[rt] << regs[rs]); break;
+            case 6: set(rd, regs[rt] >>> regs[rs]); break;
+            case 7: set(rd, regs[rt] >> regs[rs]); break;
+            case 8: // JR
+                jumps++;
+                return regs[rs];
+            case 9: { // JALR
+                int target = regs[rs];
+                set(rd, next);
+                jumps++;
+                return target;
+            }
+            case 12: syscall(); break;
+            case 13: throw new SimulationError(String.format("break at 0x%08x, division by zero", pc));
+            case 16: set(rd, hi); break;
+            case 17: hi = regs[rs]; break;
+            case 18: set(rd, lo); break;
+            case 19: lo = regs[rs]; break;
+            case 24: {
+                long p = (long) regs[rs] * regs[rt];
+                hi = (int) (p >> 32);
+                lo = (int) p;
+                break;
+            }
+            case 25: {
+                long p = (regs[rs] & 0xffffffffL) * (regs[rt] & 0xffffffffL);
+                hi = (int) (p >> 32);
+                lo = (int) p;
+                break;
+            }
+            case 26: // a division by zero leaves HI and LO as they were
+                if (regs[rt] != 0) {
+                    lo = regs[rs] / regs[rt];
+                    hi = regs[rs] % regs[rt];
+                }
+                break;
+            case 27:
+                if (regs[rt] != 0) {
+                    lo = Integer.divideUnsigned(regs[rs], regs[rt]);
+                    hi = Integer.remainderUnsigned(regs[rs], regs[rt]);
+                }
+                break;
+            case 32: set(rd, add(regs[rs], regs[rt])); break;
+            case 33: set(rd, regs[rs] + regs[rt]); break;
+            case 34: set(rd, subtract(regs[rs], regs[rt])); break;
+            case 35: set(rd, regs[rs] - regs[rt]); break;
+            case 36: set(rd, regs[rs] & regs[rt]); break;
+            case 37: set(rd, regs[rs] | regs[rt]); break;
+            case 38: set(rd, regs[rs] ^ regs[rt]); break;
+            case 39: set(rd, ~(regs[rs] | regs[rt])); break;
+            case 42: set(rd, regs[rs] < regs[rt] ? 1 : 0); break;
+            case 43: set(rd, Integer.compareUnsigned(regs[rs], regs[rt]) < 0 ? 1 : 0); break;
+            default:
+                throw unknown(w);
+        }
+        return next;
+    }
+
+    /*
+     * Whether an I type instruction reads its rt field, register instructions always can.
+     */
+    private static boolean readsRt(int op) {
+        return op == 0 || op == 0x1c || op == 4 || op == 5 || op >= 40;
+    }
+
+    private void set(int r, int value) {
+        if (r != 0)
+            regs[r] = value;
+    }
+
+    private void load(int r, int value) {
+        set(r, value);
+        loads++;
+        loaded = r;
+    }
+
+    private int branch(boolean condition, int offset, int next) {
+        branches++;
+        if (!condition)
+            return next;
+        taken++;
+        return next + (offset << 2);
+    }
+
+    private int add(int a, int b) {
+        int sum = a + b;
+        if (((a ^ sum) & (b ^ sum)) < 0)
+            throw overflow();
+        return sum;
+    }
+
+    private int subtract(int a, int b) {
+        int difference = a - b;
+        if (((a ^ b) & (a ^ difference)) < 0)
+            throw overflow();
+        return difference;
+    }
+
+    private SimulationError overflow() {
+        return new SimulationError(String.format("arithmetic overflow at 0x%08x", pc));
+    }
+
+    private SimulationError unknown(int w) {
+        return new SimulationError(String.format("unknown instruction 0x%08x at 0x%08x", w, pc));
+    }
+
+    /*
+     * The syscalls the code generator uses, numbered as in MARS.
+     */
+    private void syscall() {
+        syscalls++;
+        switch (regs[V0]) {
+            case 1:
+                out.print(regs[A0]);
+                break;
+            case 4:
+                for (int a = regs[A0]; memory.loadByte(a) != 0; a++) {
+                    out.print((char) (memory.loadByte(a) & 0xff));
+                }
+                break;
+            case 5:
+                set(V0, readInt());
+                break;
+            case 9: // sbrk, word aligned like MARS
+                set(V0, heap);
+                heap += regs[A0] + 3 & ~3;
+                break;
+            case 10:
+                halted = true;
+                break;
+            case 11:
+                out.print((char) (regs[A0] & 0xff));
+                break;
+            case 12:
+                set(V0, readChar());
+                break;
+            case 17:
+                halted = true;
+                break;
+            default:
+                throw new SimulationError("unsupported syscall " + regs[V0] + String.format(" at 0x%08x", pc));
+        }
+    }
+
+    /*
+     * Like MARS both reads take a whole line, read_c keeping just its first character.
+     */
+    private int readInt() {
+        try {
+            return Integer.parseInt(readLine("read_i").trim());
+        } catch (NumberFormatException e) {
+            throw new SimulationError("read_i: " + e.getMessage());
+        }
+    }
+
+    private int readChar() {
+        String line = readLine("read_c");
+        if (line.isEmpty())
+            throw new SimulationError("read_c: empty line");
+        return line.charAt(0);
+    }
+
+    private String readLine(String call) {
+        out.flush();
+        try {
+            String line = in.readLine();
+            if (line == null)
+                throw new SimulationError(call + " past the end of the input");
+            return line;
+        } catch (IOException e) {
+            throw new SimulationError(call + ": " + e.getMessage());
+        }
+    }
+
+    public long getInstructionCount() {
+        return instructions;
+    }
+
+    public long getCycles() {
+        return instructions == 0 ? 0 : instructions + PIPELINE_DEPTH - 1 + stalls + taken + jumps;
+    }
+
+    public void printStats(PrintStream out) {
+        out.println("Simulation:");
+        out.println("\tinstructions: " + instructions);
+        out.println("\tloads: " + loads);
+        out.println("\tstores: " + stores);
+        out.println("\tbranches: " + branches + " (" + taken + " taken)");
+        out.println("\tjumps: " + jumps);
+        out.println("\tsyscalls: " + syscalls);
+        out.println("\tload-use stalls: " + stalls);
+        out.println("\tcycles: " + getCycles() + String.format(" (CPI %.2f)", instructions == 0 ? 0.0 : (double) getCycles() / instructions));
+    }
+}
@@ -0,0 +1,105 @@
+#include "minic-stdlib.h"
+
+int g;
+int h;
+int a[4];
+int b[4];
+
+void set(int v) {
+    g = v;
+    a[1] = v * 2;
+}
+
+// a store through a pointer that may be to the same memory
+int alias(int *p, int *q) {
+    int x;
+    int y;
+    int z;
+    x = p[0] + 1;
+    *q = 10;
+    y = p[0] + 1;
+    z = p[1] * 3;
+    q[1] = 4;
+    z = z + p[1] * 3;
+    return x * 10000 + y * 100 + z;
+}
+
+int global_alias(int *p) {
+    int x;
+    x = a[2] * g;
+    p[2] = 7;
+    return x * 1000 + a[2] * g;
+}
+
+// a call between two equal expressions can change what they read
+int across_call(int k) {
+    int x;
+    int y;
+    int z;
+    x = g * h + k;
+    y = a[1] + k;
+    set(k);
+    z = g * h + k;
+    return (x + z) * 1000 + y + a[1] + k;
+}
+
+// a value worked out on both arms of an if is still there after it, one from only one arm isn't
+int arms(int c, int u, int v) {
+    int x;
+    int y;
+    if (c > 0) {
+        x = u * v + 1;
+        y = u - v;
+    } else {
+        x = u * v + 2;
+        u = u + 1;
+    }
+    y = u * v;
+    return x * 1000 + y + (u - v);
+}
+
+int loop(int n, int u) {
+    int s;
+    int i;
+    s = u * 3;
+    i = 0;
+    while (i < n) {
+        s = s + u * 3;
+        u = u + 1;
+        i = i + 1;
+    }
+    return s + u * 3;
+}
+
+void main() {
+    int *m;
+    a[0] = 1;
+    a[1] = 2;
+    a[2] = 3;
+    a[3] = 4;
+    print_i(alias(a, a));
+    print_c(' ');
+    print_i(alias(a, b));
+    print_c(' ');
+    m = (int *) mcmalloc(8);
+    m[0] = 5;
+    m[1] = 6;
+    print_i(alias(m, m));
+    print_c(' ');
+    g = 2;
+    print_i(global_alias(a));
+    print_c('\n');
+    h = 5;
+    print_i(across_call(3));
+    print_c(' ');
+    print_i(g);
+    print_c('\n');
+    print_i(arms(1, 6, 7));
+    print_c(' ');
+    print_i(arms(0, 6, 7));
+    print_c(' ');
+    print_i(loop(4, 2));
+    print_c(' ');
+    print_i(loop(0, 2));
+    print_c('\n');
+}
@@ -0,0 +1,141 @@
+#include "minic-stdlib.h"
+
+int calls;
+
+int bump(int by) {
+    calls = calls + by;
+    return calls;
+}
+
+// stores that only feed each other, none of them read at the end
+int chain(int n) {
+    int i;
+    int j;
+    i = n;
+    j = n * 2;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    i = i + 4;
+    i = i + 5;
+    i = i + 1;
+    i = i + 2;
+    i = i + 3;
+    j = j + i;
+    i = j - 1;
+    return n + 1;
+}
+
+// the stores are dead, the calls on their right hand sides aren't
+int effects(int n) {
+    int x;
+    int y;
+    y = n + 5;
+    x = bump(y);
+    x = bump(1) + bump(2);
+    y = 7;
+    return y;
+}
+
+// nothing after a return runs
+int after(int n) {
+    int r;
+    r = n * 3;
+    if (n > 2) {
+        return r;
+        r = bump(100);
+        print_s("never\n");
+    } else {
+        r = r + 1;
+    }
+    return r;
+    print_s("never\n");
+    r = bump(1000);
+}
+
+// a store dead on one path and read on the other
+int paths(int n) {
+    int v;
+    v = n * 10;
+    if (n > 5)
+        v = 1;
+    return v;
+}
+
+// a store in a loop only read by the next trip
+int loop(int n) {
+    int i;
+    int last;
+    int unused;
+    i = 0;
+    last = 0;
+    while (i < n) {
+        unused = last * 2;
+        last = i;
+        i = i + 1;
+    }
+    return last;
+}
+
+void main() {
+    print_i(chain(4));
+    print_c(' ');
+    print_i(effects(3));
+    print_c(' ');
+    print_i(calls);
+    print_c(' ');
+    print_i(after(5));
+    print_c(' ');
+    print_i(after(1));
+    print_c(' ');
+    print_i(calls);
+    print_c('\n');
+    print_i(paths(3));
+    print_c(' ');
+    print_i(paths(9));
+    print_c(' ');
+    print_i(loop(6));
+    print_c(' ');
+    print_i(loop(0));
+    print_c('\n');
+}
@@ -0,0 +1,64 @@
+#include "minic-stdlib.h"
+
+int vals[9];
+
+void show(int x) {
+    // division and modulo by powers of two round towards zero
+    print_i(x / 2);
+    print_c(' ');
+    print_i(x / 4);
+    print_c(' ');
+    print_i(x % 4);
+    print_c(' ');
+    print_i(x / -8);
+    print_c(' ');
+    print_i(x % -8);
+    print_c(' ');
+    print_i(x % 2);
+    print_c(' ');
+    print_i(x / 65536);
+    print_c(' ');
+    print_i(x % 131072);
+    print_c(' ');
+    print_i(x / 1);
+    print_c(' ');
+    print_i(x / -1);
+    print_c(' ');
+    print_i(x % 1);
+    print_c(' ');
+    // multiplies by 2^k, 2^a + 2^b and 2^k - 1
+    print_i(x * 8);
+    print_c(' ');
+    print_i(x * -4);
+    print_c(' ');
+    print_i(x * 10);
+    print_c(' ');
+    print_i(x * 3);
+    print_c(' ');
+    print_i(x * 7);
+    print_c(' ');
+    print_i(x * -15);
+    print_c(' ');
+    print_i(x * 31);
+    print_c(' ');
+    print_i(x * 0);
+    print_c('\n');
+}
+
+void main() {
+    int i;
+    vals[0] = -7;
+    vals[1] = 7;
+    vals[2] = -8;
+    vals[3] = 8;
+    vals[4] = -1;
+    vals[5] = 0;
+    vals[6] = -65537;
+    vals[7] = 131075;
+    vals[8] = -131075;
+    i = 0;
+    while (i < 9) {
+        show(vals[i]);
+        i = i + 1;
+    }
+}
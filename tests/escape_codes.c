@@ -4,4 +4,7 @@ int main()
 {
     int bc;
     print_s("Hello \\\"\"world\"\\\"\n");
+    print_c('\'');
+    print_c('\\');
+    print_c('\n');
 }
@@ -0,0 +1,3 @@
+struct a { struct b x; int y; };
+struct b { int z; };
+void main() { struct a v; v.y = 1; v.x.z = 2; }
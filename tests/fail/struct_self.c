@@ -0,0 +1,2 @@
+struct a { int y; struct a x; };
+void main() { struct a v; v.y = 1; print_i(v.x.y); }
@@ -0,0 +1,123 @@
+#include "minic-stdlib.h"
+
+int g;
+int h;
+int a[10];
+int b[10];
+
+void show(int *p, int n) {
+    int i;
+    i = 0;
+    while (i < n) {
+        print_i(p[i]);
+        print_c(' ');
+        i = i + 1;
+    }
+    print_c('\n');
+}
+
+// the invariants are worked out before a loop that may not run at all
+int never(int n, int d) {
+    int s;
+    int i;
+    s = 1;
+    i = 0;
+    while (i < n) {
+        s = s + g * h + a[3] + 100 / d + 7 % d;
+        i = i + 1;
+    }
+    return s;
+}
+
+// the loop writes the array it reads
+void prefix(int n) {
+    int i;
+    i = 1;
+    while (i < n) {
+        a[i] = a[i - 1] + a[i];
+        i = i + 1;
+    }
+}
+
+void shift(int n) {
+    int i;
+    i = n - 1;
+    while (i > 0) {
+        b[i] = b[i - 1] * 2;
+        i = i - 1;
+    }
+    b[0] = 0;
+}
+
+// a[0] looks invariant but the loop changes it
+int bump(int n) {
+    int i;
+    int s;
+    i = 0;
+    s = 0;
+    while (i < n) {
+        s = s + a[0] * g;
+        a[0] = a[0] + 1;
+        i = i + 1;
+    }
+    return s;
+}
+
+// negative offsets from the induction variable, through an array and a pointer
+int back(int *p, int n) {
+    int i;
+    int s;
+    i = 3;
+    s = 0;
+    while (i < n) {
+        s = s + b[i - 3] * 100 + p[i + -2] * 10 + p[i - 1];
+        i = i + 2;
+    }
+    return s;
+}
+
+int down(int *p) {
+    int i;
+    int s;
+    i = 9;
+    s = 0;
+    while (i >= 2) {
+        s = s * 2 + p[i - 2] - b[i - 1];
+        i = i - 1;
+    }
+    return s;
+}
+
+void main() {
+    int i;
+    g = 3;
+    h = 4;
+    i = 0;
+    while (i < 10) {
+        a[i] = i + 1;
+        b[i] = 10 - i;
+        i = i + 1;
+    }
+    print_i(never(0, 0));
+    print_c(' ');
+    print_i(never(-5, 0));
+    print_c(' ');
+    print_i(never(2, 3));
+    print_c('\n');
+    print_i(back(a, 10));
+    print_c(' ');
+    print_i(down(a));
+    print_c('\n');
+    prefix(10);
+    show(a, 10);
+    shift(10);
+    show(b, 10);
+    print_i(bump(4));
+    print_c(' ');
+    print_i(a[0]);
+    print_c('\n');
+    prefix(0);
+    shift(1);
+    show(a, 3);
+    show(b, 3);
+}
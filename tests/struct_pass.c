@@ -0,0 +1,132 @@
+struct pt {
+    int x;
+    int y;
+};
+
+struct big {
+    int a[12];
+    char tag;
+};
+
+struct pair {
+    struct pt p;
+    struct pt q;
+};
+
+struct pt gp;
+
+int sum2(int k, struct pt a, struct pt b) {
+    return k + a.x + a.y + b.x + b.y * 2;
+}
+
+struct pt mk(int x, int y) {
+    struct pt p;
+    p.x = x;
+    p.y = y;
+    return p;
+}
+
+struct pt swap(struct pt p) {
+    int t;
+    t = p.x;
+    p.x = p.y;
+    p.y = t;
+    return p;
+}
+
+struct big mkbig(int k) {
+    struct big b;
+    int i;
+    i = 0;
+    while (i < 12) {
+        b.a[i] = k + i;
+        i = i + 1;
+    }
+    b.tag = 'B';
+    return b;
+}
+
+int bigsum(struct big b) {
+    int i;
+    int s;
+    i = 0;
+    s = 0;
+    while (i < 12) {
+        s = s + b.a[i];
+        i = i + 1;
+    }
+    b.a[0] = 1000;
+    return s;
+}
+
+struct pair mkpair(int n) {
+    struct pair r;
+    r.p = mk(n, n + 1);
+    r.q = mk(n + 2, n + 3);
+    return r;
+}
+
+int six(int a, int b, int c, int d, struct pt e, struct pt f) {
+    return a + b + c + d + e.x * 10 + e.y + f.x * 100 + f.y;
+}
+
+// copies through a pointer, from and to the element after it
+void shift(struct pt *p) {
+    struct pt t;
+    t = *p;
+    *p = p[1];
+    p[1] = t;
+}
+
+void show(struct pt p) {
+    print_i(p.x);
+    print_c(',');
+    print_i(p.y);
+    print_c(' ');
+}
+
+void main() {
+    struct pt a;
+    struct pt arr[3];
+    struct pair w;
+    struct big b;
+
+    // passing and returning
+    a = mk(1, 2);
+    show(a);
+    show(swap(a));
+    show(a);
+    print_i(sum2(1, mk(3, 4), mk(5, 6)));
+    print_c('\n');
+
+    // returned structs passed straight on, also in the arguments on the stack
+    show(swap(swap(mk(7, 8))));
+    print_i(six(1, 2, 3, 4, mk(5, 6), swap(mk(7, 8))));
+    print_c(' ');
+    print_i(sum2(bigsum(mkbig(1)), mkpair(10).q, mkpair(20).p));
+    print_c('\n');
+
+    // block copies through fields, arrays and pointers
+    w.p = a;
+    w.q = mk(3, 4);
+    arr[0] = w.q;
+    arr[1] = swap(w.p);
+    arr[2] = arr[0];
+    shift(arr);
+    gp = arr[0];
+    show(w.p);
+    show(w.q);
+    show(arr[0]);
+    show(arr[1]);
+    show(arr[2]);
+    show(gp);
+    print_c('\n');
+
+    // the callee works on its own copy
+    b = mkbig(5);
+    print_i(bigsum(b));
+    print_c(' ');
+    print_i(b.a[0]);
+    print_c(b.tag);
+    print_c('\n');
+}
@@ -0,0 +1,137 @@
+#include "minic-stdlib.h"
+
+struct pt {
+    int x;
+    int y;
+};
+
+int steps;
+
+// self tail recursion far deeper than the stack would allow
+int count(int n, int acc) {
+    if (n == 0)
+        return acc;
+    return count(n - 1, acc + 2);
+}
+
+int gcd(int a, int b) {
+    if (b == 0)
+        return a;
+    return gcd(b, a % b);
+}
+
+// more than four arguments to itself
+int spread(int n, int a, int b, int c, int d, int e) {
+    if (n == 0)
+        return a + b * 2 + c * 3 + d * 4 + e * 5;
+    return spread(n - 1, b, c, d, e, a + 1);
+}
+
+// tail calls to other functions, the arguments are shuffled on the way
+int last(int a, int b, int c, int d) {
+    return a * 1000 + b * 100 + c * 10 + d;
+}
+
+int third(int a, int b, int c, int d) {
+    int t;
+    t = a + b;
+    return last(d, c, b, t - b);
+}
+
+int second(int a, int b) {
+    return third(b, a, a + b, steps % 10);
+}
+
+int first(int n) {
+    return second(n % 10, n / 10);
+}
+
+// a tail call into a deep self recursion
+int twice(int n) {
+    return count(n, n);
+}
+
+// a call the function ends with but doesn't return the value of
+void walk(int n) {
+    if (n == 0)
+        return;
+    steps = steps + 1;
+    walk(n - 1);
+}
+
+// more than four arguments to another function, this one can't reuse the frame
+int five(int a, int b, int c, int d, int e) {
+    return a - b + c - d + e * 10;
+}
+
+int call_five(int n) {
+    return five(n, n + 1, n + 2, n + 3, n + 4);
+}
+
+// the callee reads an array in the caller's frame
+int total(int *a, int n) {
+    int s;
+    int i;
+    s = 0;
+    i = 0;
+    while (i < n) {
+        s = s + a[i];
+        i = i + 1;
+    }
+    return s;
+}
+
+int with_array(int n) {
+    int a[4];
+    a[0] = n;
+    a[1] = n * 2;
+    a[2] = n * 3;
+    a[3] = n * 4;
+    return total(a, 4);
+}
+
+// the callee gets a struct local
+int area(struct pt p) {
+    return p.x * p.y;
+}
+
+int with_struct(int n) {
+    struct pt p;
+    p.x = n;
+    p.y = n + 3;
+    return area(p);
+}
+
+// arrays and structs in the frame stop the self tail call too
+int down(int n, int acc) {
+    int a[2];
+    a[0] = acc;
+    a[1] = n;
+    if (n == 0)
+        return a[0];
+    return down(a[1] - 1, a[0] + a[1]);
+}
+
+void main() {
+    print_i(count(1000000, 0));
+    print_c(' ');
+    print_i(gcd(1071, 462));
+    print_c(' ');
+    print_i(spread(100001, 1, 2, 3, 4, 5));
+    print_c('\n');
+    walk(200000);
+    print_i(steps);
+    print_c(' ');
+    print_i(first(34));
+    print_c(' ');
+    print_i(twice(500000));
+    print_c('\n');
+    print_i(call_five(3));
+    print_c(' ');
+    print_i(with_array(5));
+    print_c(' ');
+    print_i(with_struct(4));
+    print_c(' ');
+    print_i(down(100, 0));
+    print_c('\n');
+}